@@ -21,8 +21,11 @@ import java.util.Date;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -66,6 +69,8 @@ public class BenchmarkOHC
     public static final String READ_KEY_DIST = "rkd";
     public static final String WRITE_KEY_DIST = "wkd";
     public static final String VALUE_SIZE_DIST = "vs";
+    public static final String VIRTUAL_THREADS = "vt";
+    public static final String LOCK_SPINS = "ls";
 
     public static final String DEFAULT_VALUE_SIZE_DIST = "fixed(512)";
     public static final String DEFAULT_KEY_DIST = "uniform(1..10000)";
@@ -75,6 +80,9 @@ public class BenchmarkOHC
     static ThreadMXBean threadMXBean;
     static final Timer readTimer = Metrics.newTimer(ReadTask.class, "reads");
     static final Timer writeTimer = Metrics.newTimer(WriteTask.class, "writes");
+    // limits the number of concurrently running virtual threads, null if running on a thread pool
+    static Semaphore virtualThreadPermits;
+    static int virtualThreads;
 
     static final class GCStats
     {
@@ -128,7 +136,9 @@ public class BenchmarkOHC
                 cores -= 2;
             else if (cores > 2)
                 cores--;
-            int threads = Integer.parseInt(cmd.getOptionValue(THREADS, Integer.toString(cores)));
+            boolean useVirtualThreads = cmd.hasOption(VIRTUAL_THREADS);
+            int threads = Integer.parseInt(cmd.getOptionValue(THREADS, useVirtualThreads ? "10000" : Integer.toString(cores)));
+            int lockSpins = Integer.parseInt(cmd.getOptionValue(LOCK_SPINS, "0"));
             long capacity = Long.parseLong(cmd.getOptionValue(CAPACITY, "" + (1024 * 1024 * 1024)));
             int hashTableSize = Integer.parseInt(cmd.getOptionValue(HASH_TABLE_SIZE, "0"));
             int segmentCount = Integer.parseInt(cmd.getOptionValue(SEGMENT_COUNT, "0"));
@@ -140,11 +150,11 @@ public class BenchmarkOHC
             Distribution valueSizeDist = parseDistribution(cmd.getOptionValue(VALUE_SIZE_DIST, DEFAULT_VALUE_SIZE_DIST));
 
             printMessage("Starting benchmark with%n" +
-                         "   threads     : %d%n" +
+                         "   threads     : %d%s%n" +
                          "   runtime-secs: %d%n" +
                          "   warm-up-secs: %d%n" +
                          "   idle-secs   : %d%n",
-                         threads,
+                         threads, useVirtualThreads ? " (virtual)" : "",
                          duration,
                          warmUpSecs, coldSleepSecs);
 
@@ -155,6 +165,7 @@ public class BenchmarkOHC
                                   .hashTableSize(hashTableSize)
                     .loadFactor(loadFactor)
                     .segmentCount(segmentCount)
+                    .lockSpins(lockSpins)
                                   .capacity(capacity)
                                   .statisticsEnabled(true)
                                   .build();
@@ -168,11 +179,22 @@ public class BenchmarkOHC
                          cache.getSegments(),
                          cache.getCapacity());
 
-            LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(5000);
-            ThreadPoolExecutor exec = new ThreadPoolExecutor(threads, threads,
-                                                             0L, TimeUnit.MILLISECONDS,
-                                                             queue);
-            exec.prestartAllCoreThreads();
+            ExecutorService exec;
+            if (useVirtualThreads)
+            {
+                exec = newVirtualThreadPerTaskExecutor();
+                virtualThreadPermits = new Semaphore(threads);
+                virtualThreads = threads;
+            }
+            else
+            {
+                LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(5000);
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                                                                 0L, TimeUnit.MILLISECONDS,
+                                                                 queue);
+                pool.prestartAllCoreThreads();
+                exec = pool;
+            }
 
             // warm up
 
@@ -224,7 +246,27 @@ public class BenchmarkOHC
 //        return System.nanoTime();
     }
 
-    private static void runFor(ThreadPoolExecutor exec, int duration,
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Virtual threads are only available
+     * on Java 21 and newer, which is why the executor is looked up via reflection.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void runFor(ExecutorService exec, int duration,
                                double readWriteRatio,
                                Distribution readKeyDist, Distribution writeKeyDist,
                                Distribution valueSizeDist) throws InterruptedException
@@ -271,9 +313,20 @@ public class BenchmarkOHC
             }
         }
 
-        printMessage("%s: Time over ... waiting for %d tasks to complete...", new Date(), exec.getActiveCount());
-        while (exec.getActiveCount() > 0)
-            Thread.sleep(10);
+        if (virtualThreadPermits != null)
+        {
+            printMessage("%s: Time over ... waiting for %d tasks to complete...", new Date(),
+                         virtualThreads - virtualThreadPermits.availablePermits());
+            virtualThreadPermits.acquire(virtualThreads);
+            virtualThreadPermits.release(virtualThreads);
+        }
+        else
+        {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) exec;
+            printMessage("%s: Time over ... waiting for %d tasks to complete...", new Date(), pool.getActiveCount());
+            while (pool.getActiveCount() > 0)
+                Thread.sleep(10);
+        }
         printStats("Final");
     }
 
@@ -324,8 +377,16 @@ public class BenchmarkOHC
                           timer.durationUnit());
     }
 
-    private static void submit(ThreadPoolExecutor exec, Runnable task) throws InterruptedException
+    private static void submit(ExecutorService exec, Runnable task) throws InterruptedException
     {
+        if (virtualThreadPermits != null)
+        {
+            // the task releases the permit
+            virtualThreadPermits.acquire();
+            exec.execute(task);
+            return;
+        }
+
         while (true)
             try
             {
@@ -359,6 +420,10 @@ public class BenchmarkOHC
         options.addOption(HASH_TABLE_SIZE, true, "hash table size");
         options.addOption(LOAD_FACTOR, true, "hash table load factor");
         options.addOption(SEGMENT_COUNT, true, "number of segments (number of individual off-heap-maps)");
+        options.addOption(LOCK_SPINS, true, "attempts to acquire a contended segment lock before parking");
+
+        options.addOption(VIRTUAL_THREADS, false, "run each operation on a new virtual thread (Java 21+), " +
+                                                  "option -" + THREADS + " limits the number of concurrent virtual threads (default 10000)");
 
         options.addOption(VALUE_SIZE_DIST, true, "value sizes - default: " + DEFAULT_VALUE_SIZE_DIST);
         options.addOption(READ_KEY_DIST, true, "hot key use distribution - default: " + DEFAULT_KEY_DIST);
@@ -431,6 +496,11 @@ public class BenchmarkOHC
                 t.printStackTrace();
                 fatal.set(true);
             }
+            finally
+            {
+                if (virtualThreadPermits != null)
+                    virtualThreadPermits.release();
+            }
         }
     }
 
@@ -459,6 +529,11 @@ public class BenchmarkOHC
                 t.printStackTrace();
                 fatal.set(true);
             }
+            finally
+            {
+                if (virtualThreadPermits != null)
+                    virtualThreadPermits.release();
+            }
         }
     }
 
@@ -0,0 +1,359 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.caffinitas.ohc.alloc.IAllocator;
+
+/**
+ * Allocator for a fixed memory region like a memory mapped file. All allocator state is kept inside the region
+ * using offsets relative to the region's base address - so the state survives a re-attach at a different address.
+ * <p>
+ * The region is split into independently locked stripes, a thread allocates from "its" stripe and falls back
+ * to the other stripes if that one is exhausted. Each stripe keeps its free blocks in segregated free lists per
+ * size class (multiples of 16 bytes up to 512 bytes, four classes per power of two above). An allocation takes the
+ * first block of the smallest non-empty class whose blocks all fit - or, if there is none, the first block that fits
+ * in its own class - and splits off the remainder. Freed blocks are coalesced with free neighbours using boundary
+ * tags, so memory freed by small entries can be reused by large ones.
+ * </p>
+ * <p>
+ * Each block starts with a header containing its length and flags. A free block also contains the offsets of the
+ * next and previous free block of its size class and ends with its length.
+ * </p>
+ */
+final class ArenaAllocator implements IAllocator
+{
+    static final int SIZE_CLASSES = 256;
+    static final int MAX_STRIPES = 16;
+
+    // per stripe: number of free bytes and the free list heads
+    private static final long STRIPE_META_OFF_FREE = 0;
+    private static final long STRIPE_META_OFF_FREE_LISTS = 8;
+    private static final long STRIPE_META_LEN = STRIPE_META_OFF_FREE_LISTS + SIZE_CLASSES * 8;
+    // length of the allocator's state
+    static final long META_LEN = MAX_STRIPES * STRIPE_META_LEN;
+
+    private static final long BLOCK_HEADER_LEN = 8;
+    private static final long BLOCK_ALIGN = 16;
+    // header flags - block lengths are multiples of BLOCK_ALIGN
+    private static final long FLAG_USED = 1;
+    private static final long FLAG_PREV_FREE = 2;
+    private static final long FLAGS = BLOCK_ALIGN - 1;
+    // offsets in a free block
+    private static final long FREE_OFF_NEXT = 8;
+    private static final long FREE_OFF_PREV = 16;
+    private static final long MIN_BLOCK_LEN = 32;
+
+    private final long base;
+    private final long start;
+    private final long stripeLen;
+    private final Stripe[] stripes;
+
+    /**
+     * @param base       base address of the region
+     * @param metaOff    offset of the allocator's state ({@link #META_LEN} bytes)
+     * @param start      offset of the first allocatable byte
+     * @param end        offset of the end of the region
+     * @param stripes    number of stripes, a power of two up to {@link #MAX_STRIPES}
+     * @param initialize whether to initialize the allocator's state or to attach to an existing one
+     */
+    ArenaAllocator(long base, long metaOff, long start, long end, int stripes, boolean initialize)
+    {
+        if (stripes <= 0 || stripes > MAX_STRIPES || Integer.bitCount(stripes) != 1)
+            throw new IllegalArgumentException("Invalid number of stripes " + stripes);
+
+        this.base = base;
+        this.start = (start + BLOCK_ALIGN - 1) & ~(BLOCK_ALIGN - 1);
+        this.stripeLen = ((end - this.start) / stripes) & ~(BLOCK_ALIGN - 1);
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new Stripe(metaOff + i * STRIPE_META_LEN, this.start + i * stripeLen, initialize);
+    }
+
+    /**
+     * Number of stripes for a cache with the given number of segments.
+     */
+    static int stripes(int segments)
+    {
+        return Math.min(Integer.highestOneBit(Math.max(segments, 1)), MAX_STRIPES);
+    }
+
+    static int sizeClass(long blockLen)
+    {
+        if (blockLen <= 512L)
+            return (int) ((Math.max(blockLen, BLOCK_ALIGN) + 15L) >>> 4);
+
+        int b = 63 - Long.numberOfLeadingZeros(blockLen - 1L);
+        int sub = (int) ((blockLen - 1L) >>> (b - 2)) - 4;
+        return 33 + (b - 9) * 4 + sub;
+    }
+
+    static long classSize(int sizeClass)
+    {
+        if (sizeClass <= 32)
+            return (long) sizeClass << 4;
+
+        int k = sizeClass - 33;
+        int b = 9 + k / 4;
+        return (5L + (k & 3)) << (b - 2);
+    }
+
+    /**
+     * Size class of the free list for a free block - all blocks in a free list are at least as large as its class.
+     */
+    private static int freeListClass(long blockLen)
+    {
+        int sizeClass = sizeClass(blockLen);
+        return classSize(sizeClass) > blockLen ? sizeClass - 1 : sizeClass;
+    }
+
+    public long allocate(long size)
+    {
+        if (size < 0L)
+            return 0L;
+        long blockLen = Math.max((size + BLOCK_HEADER_LEN + BLOCK_ALIGN - 1) & ~(BLOCK_ALIGN - 1), MIN_BLOCK_LEN);
+
+        int mask = stripes.length - 1;
+        int first = (int) Thread.currentThread().getId() & mask;
+        for (int i = 0; i < stripes.length; i++)
+        {
+            long blockOff = stripes[(first + i) & mask].allocate(blockLen);
+            if (blockOff != 0L)
+                return base + blockOff + BLOCK_HEADER_LEN;
+        }
+        return 0L;
+    }
+
+    public void free(long peer)
+    {
+        long blockOff = peer - base - BLOCK_HEADER_LEN;
+        long stripe = blockOff >= start ? (blockOff - start) / stripeLen : -1L;
+        if (stripe < 0L || stripe >= stripes.length)
+            throw new IllegalStateException("Corrupted block at " + peer);
+        stripes[(int) stripe].free(blockOff);
+    }
+
+    /**
+     * Number of free bytes in all stripes.
+     */
+    long free()
+    {
+        long free = 0L;
+        for (Stripe stripe : stripes)
+            free += stripe.free();
+        return free;
+    }
+
+    private final class Stripe
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long metaOff;
+        private final long startOff;
+        private final long endOff;
+        // non-empty free lists - derived from the free list heads
+        private final long[] nonEmpty = new long[SIZE_CLASSES / 64];
+
+        Stripe(long metaOff, long startOff, boolean initialize)
+        {
+            this.metaOff = metaOff;
+            this.startOff = startOff;
+            // a used block of length 0 ends the stripe, so that the last block is never coalesced with the next stripe
+            this.endOff = startOff + stripeLen - BLOCK_ALIGN;
+
+            if (initialize)
+            {
+                Uns.setMemory(base, metaOff, STRIPE_META_LEN, (byte) 0);
+                Uns.putLong(base, endOff, FLAG_USED);
+                if (endOff - startOff >= MIN_BLOCK_LEN)
+                {
+                    putFree(startOff, endOff - startOff);
+                    Uns.putLong(base, metaOff + STRIPE_META_OFF_FREE, endOff - startOff);
+                }
+            }
+            else
+                for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++)
+                    if (head(sizeClass) != 0L)
+                        nonEmpty[sizeClass >>> 6] |= 1L << sizeClass;
+        }
+
+        long allocate(long blockLen)
+        {
+            lock.lock();
+            try
+            {
+                long blockOff;
+                int sizeClass = nextNonEmpty(sizeClass(blockLen));
+                if (sizeClass >= 0)
+                    blockOff = head(sizeClass);
+                else if ((blockOff = firstFit(blockLen)) == 0L)
+                    return 0L;
+
+                long freeLen = Uns.getLong(base, blockOff) & ~FLAGS;
+                removeFree(blockOff, freeLen);
+
+                if (freeLen - blockLen >= MIN_BLOCK_LEN)
+                    // the block after the remainder still follows a free block
+                    putFree(blockOff + blockLen, freeLen - blockLen);
+                else
+                {
+                    blockLen = freeLen;
+                    long nextOff = blockOff + blockLen;
+                    Uns.putLong(base, nextOff, Uns.getLong(base, nextOff) & ~FLAG_PREV_FREE);
+                }
+
+                // the previous block is used - free blocks are always coalesced
+                Uns.putLong(base, blockOff, blockLen | FLAG_USED);
+                addFree(-blockLen);
+                return blockOff;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        void free(long blockOff)
+        {
+            lock.lock();
+            try
+            {
+                long header = Uns.getLong(base, blockOff);
+                long blockLen = header & ~FLAGS;
+                if ((header & FLAG_USED) == 0L || blockLen < MIN_BLOCK_LEN || blockOff < startOff || blockOff + blockLen > endOff)
+                    throw new IllegalStateException("Corrupted block at " + (base + blockOff + BLOCK_HEADER_LEN));
+                addFree(blockLen);
+
+                long nextOff = blockOff + blockLen;
+                long next = Uns.getLong(base, nextOff);
+                if ((next & FLAG_USED) == 0L)
+                {
+                    removeFree(nextOff, next & ~FLAGS);
+                    blockLen += next & ~FLAGS;
+                }
+
+                if ((header & FLAG_PREV_FREE) != 0L)
+                {
+                    long prevLen = Uns.getLong(base, blockOff - 8);
+                    blockOff -= prevLen;
+                    removeFree(blockOff, prevLen);
+                    blockLen += prevLen;
+                }
+
+                putFree(blockOff, blockLen);
+                nextOff = blockOff + blockLen;
+                Uns.putLong(base, nextOff, Uns.getLong(base, nextOff) | FLAG_PREV_FREE);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        long free()
+        {
+            lock.lock();
+            try
+            {
+                return Uns.getLong(base, metaOff + STRIPE_META_OFF_FREE);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void addFree(long bytes)
+        {
+            long off = metaOff + STRIPE_META_OFF_FREE;
+            Uns.putLong(base, off, Uns.getLong(base, off) + bytes);
+        }
+
+        private long headOff(int sizeClass)
+        {
+            return metaOff + STRIPE_META_OFF_FREE_LISTS + sizeClass * 8L;
+        }
+
+        private long head(int sizeClass)
+        {
+            return Uns.getLong(base, headOff(sizeClass));
+        }
+
+        /**
+         * @return the smallest size class not less than {@code sizeClass} with a non-empty free list or {@code -1}
+         */
+        private int nextNonEmpty(int sizeClass)
+        {
+            for (int i = sizeClass >>> 6; i < nonEmpty.length; i++)
+            {
+                long bits = nonEmpty[i];
+                if (i == sizeClass >>> 6)
+                    bits &= -1L << sizeClass;
+                if (bits != 0L)
+                    return i * 64 + Long.numberOfTrailingZeros(bits);
+            }
+            return -1;
+        }
+
+        /**
+         * Searches the free list that may contain blocks both smaller and larger than {@code blockLen}.
+         *
+         * @return the offset of the first block in that list that is large enough or {@code 0}
+         */
+        private long firstFit(long blockLen)
+        {
+            for (long blockOff = head(freeListClass(blockLen)); blockOff != 0L; blockOff = Uns.getLong(base, blockOff + FREE_OFF_NEXT))
+                if ((Uns.getLong(base, blockOff) & ~FLAGS) >= blockLen)
+                    return blockOff;
+            return 0L;
+        }
+
+        /**
+         * Writes the header and footer of a free block and adds it to its free list.
+         */
+        private void putFree(long blockOff, long blockLen)
+        {
+            Uns.putLong(base, blockOff, blockLen);
+            Uns.putLong(base, blockOff + blockLen - 8, blockLen);
+
+            int sizeClass = freeListClass(blockLen);
+            long next = head(sizeClass);
+            Uns.putLong(base, blockOff + FREE_OFF_NEXT, next);
+            Uns.putLong(base, blockOff + FREE_OFF_PREV, 0L);
+            if (next != 0L)
+                Uns.putLong(base, next + FREE_OFF_PREV, blockOff);
+            Uns.putLong(base, headOff(sizeClass), blockOff);
+            nonEmpty[sizeClass >>> 6] |= 1L << sizeClass;
+        }
+
+        private void removeFree(long blockOff, long blockLen)
+        {
+            int sizeClass = freeListClass(blockLen);
+            long next = Uns.getLong(base, blockOff + FREE_OFF_NEXT);
+            long prev = Uns.getLong(base, blockOff + FREE_OFF_PREV);
+            if (next != 0L)
+                Uns.putLong(base, next + FREE_OFF_PREV, prev);
+            if (prev != 0L)
+                Uns.putLong(base, prev + FREE_OFF_NEXT, next);
+            else
+            {
+                Uns.putLong(base, headOff(sizeClass), next);
+                if (next == 0L)
+                    nonEmpty[sizeClass >>> 6] &= ~(1L << sizeClass);
+            }
+        }
+    }
+}
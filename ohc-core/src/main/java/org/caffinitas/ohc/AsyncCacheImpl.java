@@ -0,0 +1,449 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Implementation of {@link OHAsyncCache} on top of a {@link SegmentedCacheImpl} whose values are prefixed
+ * with their write timestamp.
+ */
+final class AsyncCacheImpl<K, V> implements OHAsyncCache<K, V>
+{
+    // runs listeners that only complete other futures
+    private static final Executor DIRECT = new Executor()
+    {
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private final SegmentedCacheImpl<K, Stamped<V>> cache;
+    private final CacheLoader<K, V> loader;
+    private final Executor executor;
+    private final long expireAfterWrite;
+    private final long refreshAfterWrite;
+
+    // loads in progress - concurrent requests for the same key share the same future
+    private final ConcurrentMap<K, SettableFuture<V>> loading = new ConcurrentHashMap<>();
+    // keys with a refresh in progress
+    private final ConcurrentMap<K, Boolean> refreshing = new ConcurrentHashMap<>();
+
+    AsyncCacheImpl(SegmentedCacheImpl<K, Stamped<V>> cache, CacheLoader<K, V> loader, Executor executor,
+                   long expireAfterWrite, long refreshAfterWrite)
+    {
+        this.cache = cache;
+        this.loader = loader;
+        this.executor = executor;
+        this.expireAfterWrite = expireAfterWrite;
+        this.refreshAfterWrite = refreshAfterWrite;
+    }
+
+    public ListenableFuture<V> get(K key)
+    {
+        V v = present(key, cache.getIfPresent(key), System.currentTimeMillis());
+        if (v != null)
+            return Futures.immediateFuture(v);
+
+        SettableFuture<V> load = SettableFuture.create();
+        SettableFuture<V> inFlight = loading.putIfAbsent(key, load);
+        if (inFlight != null)
+            return inFlight;
+
+        List<K> keys = new ArrayList<>(1);
+        keys.add(key);
+        List<SettableFuture<V>> loads = new ArrayList<>(1);
+        loads.add(load);
+        submitLoad(keys, loads);
+        return load;
+    }
+
+    public ListenableFuture<ImmutableMap<K, V>> getAll(Iterable<? extends K> keys)
+    {
+        final List<K> ks = new ArrayList<>(Sets.newLinkedHashSet(keys));
+        ImmutableMap<K, Stamped<V>> stamped = cache.getAllPresent(ks);
+        long now = System.currentTimeMillis();
+
+        final Map<K, V> present = new LinkedHashMap<>();
+        final Map<K, ListenableFuture<V>> pending = new LinkedHashMap<>();
+        List<K> missing = new ArrayList<>();
+        List<SettableFuture<V>> loads = new ArrayList<>();
+        for (K key : ks)
+        {
+            V v = present(key, stamped.get(key), now);
+            if (v != null)
+            {
+                present.put(key, v);
+                continue;
+            }
+
+            SettableFuture<V> load = SettableFuture.create();
+            SettableFuture<V> inFlight = loading.putIfAbsent(key, load);
+            if (inFlight != null)
+                pending.put(key, inFlight);
+            else
+            {
+                pending.put(key, load);
+                missing.add(key);
+                loads.add(load);
+            }
+        }
+
+        if (pending.isEmpty())
+            return Futures.immediateFuture(ImmutableMap.copyOf(present));
+
+        if (!missing.isEmpty())
+            submitLoad(missing, loads);
+
+        final SettableFuture<ImmutableMap<K, V>> result = SettableFuture.create();
+        final ListenableFuture<List<V>> all = Futures.allAsList(pending.values());
+        all.addListener(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    all.get();
+                    Map<K, V> values = new LinkedHashMap<>();
+                    for (K key : ks)
+                    {
+                        V v = present.get(key);
+                        values.put(key, v != null ? v : Futures.getUnchecked(pending.get(key)));
+                    }
+                    result.set(ImmutableMap.copyOf(values));
+                }
+                catch (ExecutionException e)
+                {
+                    result.setException(e.getCause());
+                }
+                catch (Throwable t)
+                {
+                    result.setException(t);
+                }
+            }
+        }, DIRECT);
+        return result;
+    }
+
+    public V getIfPresent(K key)
+    {
+        Stamped<V> stamped = cache.getIfPresent(key);
+        return stamped != null && !expired(stamped, System.currentTimeMillis()) ? stamped.value : null;
+    }
+
+    /**
+     * Returns the value of a cached entry if it has not expired and starts a refresh if it is due.
+     */
+    private V present(K key, Stamped<V> stamped, long now)
+    {
+        if (stamped == null || expired(stamped, now))
+            return null;
+        if (refreshAfterWrite > 0L && now - stamped.written >= refreshAfterWrite)
+            refresh(key, stamped);
+        return stamped.value;
+    }
+
+    private boolean expired(Stamped<V> stamped, long now)
+    {
+        return expireAfterWrite > 0L && now - stamped.written >= expireAfterWrite;
+    }
+
+    private void submitLoad(final List<K> keys, final List<SettableFuture<V>> loads)
+    {
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    load(keys, loads);
+                }
+            });
+        }
+        catch (RuntimeException | Error e)
+        {
+            for (int i = 0; i < keys.size(); i++)
+                fail(keys.get(i), loads.get(i), e);
+        }
+    }
+
+    private void load(List<K> keys, List<SettableFuture<V>> loads)
+    {
+        long t0 = System.currentTimeMillis();
+        Map<K, V> values;
+        try
+        {
+            values = loadValues(keys);
+        }
+        catch (Throwable t)
+        {
+            cache.recordLoad(false, System.currentTimeMillis() - t0);
+            for (int i = 0; i < keys.size(); i++)
+                fail(keys.get(i), loads.get(i), t);
+            return;
+        }
+        cache.recordLoad(true, System.currentTimeMillis() - t0);
+
+        long now = System.currentTimeMillis();
+        Map<K, Stamped<V>> stamped = new LinkedHashMap<>();
+        for (K key : keys)
+        {
+            V v = values.get(key);
+            if (v != null)
+                stamped.put(key, new Stamped<>(v, now));
+        }
+        try
+        {
+            // put values before completing the futures, so that new requests find them in the cache
+            cache.putAll(stamped);
+
+            for (int i = 0; i < keys.size(); i++)
+            {
+                K key = keys.get(i);
+                SettableFuture<V> load = loads.get(i);
+                V v = values.get(key);
+                if (v != null)
+                {
+                    loading.remove(key, load);
+                    load.set(v);
+                }
+                else
+                    fail(key, load, new CacheLoader.InvalidCacheLoadException("loader returned no value for a key"));
+            }
+        }
+        catch (Throwable t)
+        {
+            // waiting requests must not hang on loads that cannot be completed
+            for (int i = 0; i < keys.size(); i++)
+                if (!loads.get(i).isDone())
+                    fail(keys.get(i), loads.get(i), t);
+        }
+    }
+
+    private Map<K, V> loadValues(List<K> keys) throws Exception
+    {
+        if (keys.size() > 1)
+            try
+            {
+                Map<K, V> values = loader.loadAll(keys);
+                if (values == null)
+                    throw new CacheLoader.InvalidCacheLoadException("loadAll returned null");
+                return values;
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // loadAll not implemented (Guava's UnsupportedLoadingOperationException is not public) -
+                // fall back to individual loads
+            }
+
+        Map<K, V> values = new LinkedHashMap<>();
+        for (K key : keys)
+        {
+            V v = loader.load(key);
+            if (v != null)
+                values.put(key, v);
+        }
+        return values;
+    }
+
+    private void fail(K key, SettableFuture<V> load, Throwable t)
+    {
+        // a failed load is not cached - requests after completion must start a new load
+        loading.remove(key, load);
+        load.setException(t);
+    }
+
+    /**
+     * Reloads the value in the background. The reloaded value only replaces the value it has been reloaded for,
+     * so a refresh does not resurrect an entry invalidated or overwritten in the meantime.
+     */
+    private void refresh(final K key, final Stamped<V> old)
+    {
+        if (refreshing.putIfAbsent(key, Boolean.TRUE) != null)
+            return;
+
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    final long t0 = System.currentTimeMillis();
+                    final ListenableFuture<V> reload;
+                    try
+                    {
+                        reload = loader.reload(key, old.value);
+                    }
+                    catch (Throwable t)
+                    {
+                        cache.recordLoad(false, System.currentTimeMillis() - t0);
+                        refreshing.remove(key);
+                        return;
+                    }
+                    reload.addListener(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                V v = reload.get();
+                                cache.recordLoad(v != null, System.currentTimeMillis() - t0);
+                                if (v != null)
+                                    cache.replace(key, old, new Stamped<>(v, System.currentTimeMillis()));
+                            }
+                            catch (Throwable t)
+                            {
+                                // keep the current value - the next access after the refresh interval retries
+                                cache.recordLoad(false, System.currentTimeMillis() - t0);
+                            }
+                            finally
+                            {
+                                refreshing.remove(key);
+                            }
+                        }
+                    }, DIRECT);
+                }
+            });
+        }
+        catch (RuntimeException | Error e)
+        {
+            refreshing.remove(key);
+        }
+    }
+
+    public void put(K key, V value)
+    {
+        cache.put(key, new Stamped<>(value, System.currentTimeMillis()));
+    }
+
+    public void invalidate(K key)
+    {
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    public long size()
+    {
+        return cache.size();
+    }
+
+    public CacheStats stats()
+    {
+        return cache.stats();
+    }
+
+    public OHCacheStats extendedStats()
+    {
+        return cache.extendedStats();
+    }
+
+    public void close() throws IOException
+    {
+        cache.close();
+    }
+
+    //
+    // values with write timestamp
+    //
+
+    static final class Stamped<V>
+    {
+        final V value;
+        final long written;
+
+        Stamped(V value, long written)
+        {
+            this.value = value;
+            this.written = written;
+        }
+    }
+
+    static <V> CacheSerializer<Stamped<V>> stampedSerializer(final CacheSerializer<V> serializer)
+    {
+        if (serializer == null)
+            return null;
+        return new CacheSerializer<Stamped<V>>()
+        {
+            public void serialize(Stamped<V> stamped, DataOutput out) throws IOException
+            {
+                out.writeLong(stamped.written);
+                serializer.serialize(stamped.value, out);
+            }
+
+            public Stamped<V> deserialize(DataInput in) throws IOException
+            {
+                long written = in.readLong();
+                return new Stamped<>(serializer.deserialize(in), written);
+            }
+
+            public int serializedSize(Stamped<V> stamped)
+            {
+                int size = serializer.serializedSize(stamped.value);
+                return size < 0 ? size : 8 + size;
+            }
+        };
+    }
+
+    static <V> ByteBufferCacheSerializer<Stamped<V>> stampedSerializer(final ByteBufferCacheSerializer<V> serializer)
+    {
+        if (serializer == null)
+            return null;
+        return new ByteBufferCacheSerializer<Stamped<V>>()
+        {
+            public void serialize(Stamped<V> stamped, ByteBuffer buf)
+            {
+                buf.putLong(stamped.written);
+                serializer.serialize(stamped.value, buf);
+            }
+
+            public Stamped<V> deserialize(ByteBuffer buf)
+            {
+                long written = buf.getLong();
+                return new Stamped<>(serializer.deserialize(buf.slice().order(buf.order())), written);
+            }
+
+            public int serializedSize(Stamped<V> stamped)
+            {
+                int size = serializer.serializedSize(stamped.value);
+                return size < 0 ? size : 8 + size;
+            }
+        };
+    }
+}
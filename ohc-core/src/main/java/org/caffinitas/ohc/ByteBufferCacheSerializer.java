@@ -0,0 +1,57 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serialize and deserialize cached data using {@link java.nio.ByteBuffer}s.
+ * <p>
+ * Alternative to {@link org.caffinitas.ohc.CacheSerializer} for serializers that already target NIO buffers.
+ * Values are usually passed as a direct buffer view of the key or value region of the hash entry - no copy involved.
+ * The byte order of the buffers is configured via {@link OHCacheBuilder#bufferByteOrder(java.nio.ByteOrder)}.
+ * Implementations must not retain references to the buffers after the method returns.
+ * </p>
+ */
+public interface ByteBufferCacheSerializer<T>
+{
+    /**
+     * Serialize the specified type into the specified buffer starting at its position.
+     *
+     * @param t   type that needs to be serialized
+     * @param buf buffer into which serialization needs to happen. The buffer's remaining bytes are at least
+     *            the value returned by {@link #serializedSize(Object)}.
+     * @throws java.nio.BufferOverflowException if {@link #serializedSize(Object)} returned a negative value
+     *                                          and the buffer is too small - serialization is retried using a
+     *                                          larger buffer
+     */
+    public void serialize(T t, ByteBuffer buf);
+
+    /**
+     * Deserialize from the specified buffer.
+     *
+     * @param buf buffer from which deserialization needs to happen. Position is {@code 0}, limit is the
+     *            serialized length.
+     * @return the type that was deserialized
+     */
+    public T deserialize(ByteBuffer buf);
+
+    /**
+     * Calculate the number of bytes that {@link #serialize(Object, java.nio.ByteBuffer)} will write for the
+     * specified type or a negative value if the size is not known in advance.
+     */
+    public int serializedSize(T t);
+}
@@ -0,0 +1,174 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link java.util.concurrent.ConcurrentMap} view of a {@link SegmentedCacheImpl}.
+ * Values are compared using their serialized form, iteration is weakly consistent.
+ */
+final class CacheMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
+{
+    private final SegmentedCacheImpl<K, V> cache;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    CacheMap(SegmentedCacheImpl<K, V> cache)
+    {
+        this.cache = cache;
+    }
+
+    public int size()
+    {
+        return (int) Math.min(cache.size(), Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty()
+    {
+        return cache.size() == 0L;
+    }
+
+    public boolean containsKey(Object key)
+    {
+        return key != null && cache.containsKey(CacheMap.<K>unchecked(key));
+    }
+
+    public V get(Object key)
+    {
+        return key != null ? cache.getIfPresent(key) : null;
+    }
+
+    public V put(K key, V value)
+    {
+        checkNotNull(key, value);
+        return cache.putAndGet(key, value);
+    }
+
+    public V remove(Object key)
+    {
+        return key != null ? cache.removeAndGet(CacheMap.<K>unchecked(key)) : null;
+    }
+
+    public void clear()
+    {
+        cache.invalidateAll();
+    }
+
+    public V putIfAbsent(K key, V value)
+    {
+        checkNotNull(key, value);
+        return cache.putIfAbsentAndGet(key, value);
+    }
+
+    public boolean remove(Object key, Object value)
+    {
+        return key != null && value != null && cache.remove(CacheMap.<K>unchecked(key), CacheMap.<V>unchecked(value));
+    }
+
+    public boolean replace(K key, V oldValue, V newValue)
+    {
+        checkNotNull(key, oldValue);
+        checkNotNull(key, newValue);
+        return cache.replace(key, oldValue, newValue);
+    }
+
+    public V replace(K key, V value)
+    {
+        checkNotNull(key, value);
+        return cache.replace(key, value);
+    }
+
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        Set<Map.Entry<K, V>> es = entrySet;
+        return es != null ? es : (entrySet = new EntrySet());
+    }
+
+    // keys and values of other types are only passed to the serializers, which reject them
+    @SuppressWarnings("unchecked")
+    private static <T> T unchecked(Object o)
+    {
+        return (T) o;
+    }
+
+    private static void checkNotNull(Object key, Object value)
+    {
+        if (key == null || value == null)
+            throw new NullPointerException();
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>>
+    {
+        public Iterator<Map.Entry<K, V>> iterator()
+        {
+            final Iterator<Map.Entry<K, V>> iter = cache.entryIterator();
+            return new Iterator<Map.Entry<K, V>>()
+            {
+                private Map.Entry<K, V> last;
+
+                public boolean hasNext()
+                {
+                    return iter.hasNext();
+                }
+
+                public Map.Entry<K, V> next()
+                {
+                    return last = iter.next();
+                }
+
+                public void remove()
+                {
+                    if (last == null)
+                        throw new IllegalStateException();
+                    CacheMap.this.remove(last.getKey(), last.getValue());
+                    last = null;
+                }
+            };
+        }
+
+        public int size()
+        {
+            return CacheMap.this.size();
+        }
+
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            V v = get(e.getKey());
+            return v != null && v.equals(e.getValue());
+        }
+
+        public boolean remove(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return CacheMap.this.remove(e.getKey(), e.getValue());
+        }
+
+        public void clear()
+        {
+            CacheMap.this.clear();
+        }
+    }
+}
@@ -42,6 +42,17 @@ public interface CacheSerializer<T>
      */
     public T deserialize(DataInput in) throws IOException;
 
+    /**
+     * Calculate the number of bytes that {@link #serialize(Object, java.io.DataOutput)} will write for the
+     * specified type.
+     * <p>
+     * Implementations that cannot calculate the size cheaply may return a negative value. The data is then
+     * serialized in a single pass into a thread-local off-heap staging area and copied into the hash entry.
+     * </p>
+     *
+     * @param t type that needs to be serialized
+     * @return number of serialized bytes or a negative value if the size is not known in advance
+     */
     public int serializedSize(T t);
 }
 
@@ -0,0 +1,423 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Writes and loads cache snapshots.
+ * <p>
+ * File layout (native byte order):
+ * <ul>
+ *     <li>header: magic (long), version (int), number of sections (int)</li>
+ *     <li>sections: number of entries (long), length of all entries (long),
+ *     entries as written by {@link EntryWriter#writeEntry(long)}, checksum over the section (long)</li>
+ * </ul>
+ * Full snapshots write one section per segment with the entries in LRU order starting with the least recently
+ * used entry - loading them in that order restores the recency order. Incremental snapshots write one section
+ * per range of hash buckets. Sections are loaded in parallel.
+ * </p>
+ * <p>
+ * Streams written by {@link #export(SegmentedCacheImpl, java.nio.channels.WritableByteChannel)} use the same
+ * sections, but a different header: magic (long), version (int), number of segments (int),
+ * estimated number of entries (long). The end of the stream is marked by a section with {@code -1} entries.
+ * </p>
+ */
+final class CacheSnapshot
+{
+    // "OHCSnap1" - also detects snapshots written on a platform with a different byte order
+    static final long MAGIC = 0x4f4843536e617031L;
+    static final int VERSION = 1;
+    // "OHCStrm1"
+    static final long STREAM_MAGIC = 0x4f48435374726d31L;
+
+    private static final long FILE_HEADER_LEN = 16;
+    private static final long SECTION_COUNT_OFFSET = 12;
+    private static final long SECTION_HEADER_LEN = 16;
+    private static final long SECTION_TRAILER_LEN = 8;
+
+    // number of hash buckets per section written by incremental snapshots
+    static final int BUCKET_BATCH = 1024;
+
+    private CacheSnapshot()
+    {
+    }
+
+    static void write(SegmentedCacheImpl<?, ?> cache, Path path) throws IOException
+    {
+        write(cache, path, null);
+    }
+
+    static void writeIncremental(SegmentedCacheImpl<?, ?> cache, Path path, RateLimiter rateLimiter) throws IOException
+    {
+        write(cache, path, rateLimiter);
+    }
+
+    private static void write(SegmentedCacheImpl<?, ?> cache, Path path, RateLimiter rateLimiter) throws IOException
+    {
+        // write to a temporary file first to keep the previous snapshot intact if anything goes wrong
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            int sections = 0;
+            EntryWriter out = new EntryWriter(channel);
+            try
+            {
+                out.writeLong(MAGIC);
+                out.writeInt(VERSION);
+                // number of sections - updated when all sections have been written
+                out.writeInt(0);
+
+                for (int segment = 0; segment < cache.getSegments(); segment++)
+                    sections += rateLimiter == null
+                                ? writeSegment(cache, segment, out)
+                                : writeSegmentIncremental(cache, segment, out, rateLimiter);
+
+                out.flush();
+            }
+            finally
+            {
+                out.release();
+            }
+
+            ByteBuffer sectionCount = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+            sectionCount.putInt(0, sections);
+            while (sectionCount.hasRemaining())
+                channel.write(sectionCount, SECTION_COUNT_OFFSET + sectionCount.position());
+
+            channel.force(true);
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes all entries of a segment in LRU order as a single section.
+     */
+    private static int writeSegment(SegmentedCacheImpl<?, ?> cache, int segment, EntryWriter out) throws IOException
+    {
+        // entries are referenced - so they can be written outside of the segment's lock
+        long[] entries = cache.lruEntries(segment);
+        try
+        {
+            writeSection(entries, out);
+            return 1;
+        }
+        finally
+        {
+            dereference(cache, entries);
+        }
+    }
+
+    /**
+     * Writes the entries of a segment as one section per range of {@link #BUCKET_BATCH} hash buckets.
+     * Only the entries of the current bucket range are pinned. The write rate is not limited if
+     * {@code rateLimiter} is {@code null}.
+     */
+    private static int writeSegmentIncremental(SegmentedCacheImpl<?, ?> cache, int segment, EntryWriter out,
+                                               RateLimiter rateLimiter) throws IOException
+    {
+        int sections = 0;
+        // bucket ranges refer to the hash table size at the beginning - see OffHeapMap.bucketEntries
+        int baseTableSize = cache.hashTableSize(segment);
+        for (int bucket = 0; bucket < baseTableSize; bucket += BUCKET_BATCH)
+        {
+            long[] entries = cache.bucketEntries(segment, baseTableSize, bucket, Math.min(bucket + BUCKET_BATCH, baseTableSize));
+            if (entries.length == 0)
+                continue;
+            long len;
+            try
+            {
+                len = writeSection(entries, out);
+                sections++;
+            }
+            finally
+            {
+                dereference(cache, entries);
+            }
+
+            // throttle outside of the pinned range
+            if (rateLimiter != null)
+                rateLimiter.acquire((int) Math.min(len, Integer.MAX_VALUE));
+        }
+        return sections;
+    }
+
+    /**
+     * Writes the raw entries of all segments to a channel. Like incremental snapshots, only the entries of a small
+     * range of hash buckets are pinned at a time - a slow reader just blocks the export, not the cache.
+     */
+    static void export(SegmentedCacheImpl<?, ?> cache, WritableByteChannel channel) throws IOException
+    {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking())
+            throw new IllegalArgumentException("Channel must be in blocking mode");
+
+        EntryWriter out = new EntryWriter(channel);
+        try
+        {
+            out.writeLong(STREAM_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cache.getSegments());
+            out.writeLong(cache.size());
+
+            for (int segment = 0; segment < cache.getSegments(); segment++)
+                writeSegmentIncremental(cache, segment, out, null);
+
+            out.writeLong(-1L);
+            out.flush();
+        }
+        finally
+        {
+            out.release();
+        }
+    }
+
+    /**
+     * Puts all entries of a stream written by {@link #export(SegmentedCacheImpl, java.nio.channels.WritableByteChannel)}
+     * into the cache. Existing entries with the same keys are replaced.
+     *
+     * @return number of entries read from the stream
+     */
+    static long importFrom(SegmentedCacheImpl<?, ?> cache, ReadableByteChannel channel) throws IOException
+    {
+        EntryReader in = new EntryReader(channel);
+        try
+        {
+            if (in.readLong() != STREAM_MAGIC)
+                throw new IOException("Not an OHC export stream or written on a platform with a different byte order");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported OHC export stream version " + version);
+            in.readInt();
+            cache.presize(in.readLong());
+
+            long entries = 0L;
+            while (true)
+            {
+                in.resetChecksum();
+                long count = in.readLong();
+                if (count == -1L)
+                    return entries;
+                if (count < 0L || in.readLong() < 0L)
+                    throw new IOException("Corrupt OHC export stream");
+
+                for (long i = 0L; i < count; i++)
+                    cache.restoreEntry(in);
+                entries += count;
+
+                long checksum = in.checksum();
+                if (in.readLong() != checksum)
+                    throw new IOException("Checksum mismatch in OHC export stream");
+            }
+        }
+        finally
+        {
+            in.release();
+        }
+    }
+
+    private static long writeSection(long[] entries, EntryWriter out) throws IOException
+    {
+        long len = 0L;
+        for (long hashEntryAdr : entries)
+            len += EntryWriter.entryLen(hashEntryAdr);
+
+        out.resetChecksum();
+        out.writeLong(entries.length);
+        out.writeLong(len);
+        for (long hashEntryAdr : entries)
+            out.writeEntry(hashEntryAdr);
+        out.writeLong(out.checksum());
+
+        return SECTION_HEADER_LEN + len + SECTION_TRAILER_LEN;
+    }
+
+    private static void dereference(SegmentedCacheImpl<?, ?> cache, long[] entries)
+    {
+        for (long hashEntryAdr : entries)
+            cache.dereference(hashEntryAdr);
+    }
+
+    static void load(final SegmentedCacheImpl<?, ?> cache, Path path) throws IOException
+    {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer header = readHeader(channel, 0L, FILE_HEADER_LEN);
+            if (header.getLong() != MAGIC)
+                throw new IOException("Not an OHC snapshot or written on a platform with a different byte order: " + path);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported OHC snapshot version " + version + ": " + path);
+            int sections = header.getInt();
+            if (sections < 0)
+                throw new IOException("Corrupt OHC snapshot: " + path);
+
+            // scan section headers to pre-size the hash tables and to load the sections in parallel
+            long[] positions = new long[sections];
+            long entries = 0L;
+            long position = FILE_HEADER_LEN;
+            for (int i = 0; i < sections; i++)
+            {
+                ByteBuffer sectionHeader = readHeader(channel, position, SECTION_HEADER_LEN);
+                long count = sectionHeader.getLong();
+                long len = sectionHeader.getLong();
+                if (count < 0L || len < 0L)
+                    throw new IOException("Corrupt OHC snapshot: " + path);
+                positions[i] = position;
+                entries += count;
+                position += SECTION_HEADER_LEN + len + SECTION_TRAILER_LEN;
+            }
+            if (position != channel.size())
+                throw new IOException("Truncated or corrupt OHC snapshot: " + path);
+
+            cache.presize(entries);
+
+            if (sections == 0)
+                return;
+
+            int threads = Math.min(sections, Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                                                                              .setDaemon(true)
+                                                                              .setNameFormat("OHC-snapshot-load-%d")
+                                                                              .build());
+            try
+            {
+                List<Future<Void>> futures = new ArrayList<>(sections);
+                for (final long sectionPosition : positions)
+                    futures.add(executor.submit(new Callable<Void>()
+                    {
+                        public Void call() throws IOException
+                        {
+                            loadSection(cache, channel, sectionPosition);
+                            return null;
+                        }
+                    }));
+
+                for (Future<Void> future : futures)
+                    future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading OHC snapshot " + path, e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new IOException("Failed to load OHC snapshot " + path, cause);
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static void loadSection(SegmentedCacheImpl<?, ?> cache, FileChannel channel, long position) throws IOException
+    {
+        EntryReader in = new EntryReader(new PositionalChannel(channel, position));
+        try
+        {
+            long count = in.readLong();
+            in.readLong();
+            for (long i = 0L; i < count; i++)
+                cache.restoreEntry(in);
+
+            long checksum = in.checksum();
+            if (in.readLong() != checksum)
+                throw new IOException("Checksum mismatch in OHC snapshot section at offset " + position);
+        }
+        finally
+        {
+            in.release();
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, long position, long len) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) len).order(ByteOrder.nativeOrder());
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Sequential view on a {@link java.nio.channels.FileChannel} starting at a specific position, allowing multiple
+     * threads to read different sections of the same file concurrently.
+     */
+    private static final class PositionalChannel implements ReadableByteChannel
+    {
+        private final FileChannel channel;
+        private long position;
+
+        PositionalChannel(FileChannel channel, long position)
+        {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        public int read(ByteBuffer dst) throws IOException
+        {
+            int rd = channel.read(dst, position);
+            if (rd > 0)
+                position += rd;
+            return rd;
+        }
+
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        public void close()
+        {
+            // the underlying channel is closed by the owner
+        }
+    }
+}
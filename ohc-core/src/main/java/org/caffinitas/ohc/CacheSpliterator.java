@@ -0,0 +1,186 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Weakly consistent iterator over a range of segments and hash buckets of a cache that can be split into
+ * independent parts like a {@code java.util.Spliterator}, e.g. to scan a large cache using multiple threads.
+ * Only a small range of hash buckets is pinned at a time, entries added or removed during the iteration may or may
+ * not be returned. Each entry is returned exactly once by exactly one of the parts.
+ * <p>
+ * A {@code CacheSpliterator} must only be used by one thread at a time.
+ * </p>
+ */
+public final class CacheSpliterator<T> implements Iterator<T>
+{
+    // number of hash buckets visited at a time
+    static final int BUCKETS = 64;
+
+    /**
+     * Converts a referenced hash entry to the element type of the iterator.
+     */
+    interface EntryFunction<T>
+    {
+        T apply(long hashEntryAdr) throws IOException;
+    }
+
+    private final SegmentedCacheImpl<?, ?> cache;
+    private final EntryFunction<T> function;
+    // hash table sizes of all segments when the iteration started - bucket ranges refer to these sizes
+    private final int[] tableSizes;
+
+    private int segment;
+    private int bucket;
+    private final int lastSegment;
+    private int lastBucketEnd;
+
+    private Iterator<T> batch = Collections.emptyIterator();
+
+    CacheSpliterator(SegmentedCacheImpl<?, ?> cache, EntryFunction<T> function)
+    {
+        this.cache = cache;
+        this.function = function;
+        int segments = cache.getSegments();
+        this.tableSizes = new int[segments];
+        for (int i = 0; i < segments; i++)
+            tableSizes[i] = cache.hashTableSize(i);
+        this.lastSegment = segments - 1;
+        this.lastBucketEnd = tableSizes[lastSegment];
+    }
+
+    private CacheSpliterator(CacheSpliterator<T> parent, int segment, int bucket, int lastSegment, int lastBucketEnd)
+    {
+        this.cache = parent.cache;
+        this.function = parent.function;
+        this.tableSizes = parent.tableSizes;
+        this.segment = segment;
+        this.bucket = bucket;
+        this.lastSegment = lastSegment;
+        this.lastBucketEnd = lastBucketEnd;
+    }
+
+    /**
+     * Splits off a part of the remaining range of segments and buckets. The returned part and this iterator
+     * return disjoint sets of entries.
+     *
+     * @return the split off part or {@code null}, if the remaining range is too small to be split
+     */
+    public CacheSpliterator<T> trySplit()
+    {
+        if (segment < lastSegment)
+        {
+            // split by segment
+            int mid = (segment + lastSegment + 1) >>> 1;
+            CacheSpliterator<T> prefix = new CacheSpliterator<>(this, segment, bucket, mid - 1, tableSizes[mid - 1]);
+            segment = mid;
+            bucket = 0;
+            return prefix;
+        }
+
+        // split the bucket range of the last segment
+        int remaining = lastBucketEnd - bucket;
+        if (segment > lastSegment || remaining <= BUCKETS)
+            return null;
+        int mid = bucket + remaining / 2;
+        CacheSpliterator<T> prefix = new CacheSpliterator<>(this, segment, bucket, segment, mid);
+        bucket = mid;
+        return prefix;
+    }
+
+    /**
+     * Estimated number of entries that have not been returned yet.
+     */
+    public long estimateSize()
+    {
+        long size = 0L;
+        for (int s = segment; s <= lastSegment; s++)
+        {
+            int from = s == segment ? bucket : 0;
+            int to = s == lastSegment ? lastBucketEnd : tableSizes[s];
+            if (to > from)
+                size += cache.segmentSize(s) * (to - from) / tableSizes[s];
+        }
+        return size;
+    }
+
+    public boolean hasNext()
+    {
+        while (!batch.hasNext())
+        {
+            if (segment > lastSegment)
+                return false;
+
+            int limit = segment == lastSegment ? lastBucketEnd : tableSizes[segment];
+            if (bucket >= limit)
+            {
+                segment++;
+                bucket = 0;
+                continue;
+            }
+
+            int to = Math.min(bucket + BUCKETS, limit);
+            batch = convert(cache.bucketEntries(segment, tableSizes[segment], bucket, to));
+            bucket = to;
+        }
+        return true;
+    }
+
+    public T next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.next();
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Converts and dereferences the given referenced hash entries - entries are not pinned across calls,
+     * since an iterator might not be exhausted.
+     */
+    private Iterator<T> convert(long[] entries)
+    {
+        List<T> r = new ArrayList<>(entries.length);
+        try
+        {
+            for (long hashEntryAdr : entries)
+                // tombstones only record absent keys
+                if (!HashEntries.isTombstone(hashEntryAdr))
+                    r.add(function.apply(hashEntryAdr));
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+        finally
+        {
+            for (long hashEntryAdr : entries)
+                cache.dereference(hashEntryAdr);
+        }
+        return r.iterator();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.caffinitas.ohc.Constants.*;
+
+/**
+ * Streaming {@link java.io.DataInput} over the chain of chunks of a chunked value.
+ */
+final class ChunkedInput extends AbstractDataInput
+{
+    private final long chunkSize;
+    private long chunkAdr;
+    private long chunkOff;
+    private long remaining;
+
+    ChunkedInput(long firstChunk, long chunkSize, long len)
+    {
+        if (firstChunk == 0L && len > 0L)
+            throw new IllegalArgumentException();
+
+        this.chunkSize = chunkSize;
+        this.chunkAdr = firstChunk;
+        this.chunkOff = CHUNK_OFF_DATA;
+        this.remaining = len;
+    }
+
+    private void assertAvail(long req) throws IOException
+    {
+        if (remaining < req || req < 0)
+            throw new EOFException();
+    }
+
+    private long chunkAvail()
+    {
+        if (chunkOff == chunkSize)
+        {
+            chunkAdr = Uns.getPointer(chunkAdr, CHUNK_OFF_NEXT);
+            chunkOff = CHUNK_OFF_DATA;
+        }
+        return Math.min(chunkSize - chunkOff, remaining);
+    }
+
+    public int available()
+    {
+        return remaining > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) remaining;
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException
+    {
+        if (b == null || off < 0 || off + len > b.length || len < 0)
+            throw new IllegalArgumentException();
+
+        assertAvail(len);
+
+        while (len > 0)
+        {
+            int l = (int) Math.min(chunkAvail(), len);
+            Uns.copyMemory(chunkAdr, chunkOff, b, off, l);
+            chunkOff += l;
+            remaining -= l;
+            off += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * Copies the next {@code len} bytes to off-heap memory.
+     */
+    void readFully(long dstAdr, long dstOff, long len) throws IOException
+    {
+        assertAvail(len);
+
+        while (len > 0L)
+        {
+            long l = Math.min(chunkAvail(), len);
+            Uns.copyMemory(chunkAdr, chunkOff, dstAdr, dstOff, l);
+            chunkOff += l;
+            remaining -= l;
+            dstOff += l;
+            len -= l;
+        }
+    }
+
+    public byte readByte() throws IOException
+    {
+        assertAvail(1);
+
+        chunkAvail();
+        remaining--;
+        return Uns.getByte(chunkAdr, chunkOff++);
+    }
+}
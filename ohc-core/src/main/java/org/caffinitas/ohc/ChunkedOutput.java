@@ -0,0 +1,101 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.caffinitas.ohc.Constants.*;
+
+/**
+ * Streaming {@link java.io.DataOutput} over the chain of chunks of a chunked value.
+ */
+final class ChunkedOutput extends AbstractDataOutput
+{
+    private final long chunkSize;
+    private long chunkAdr;
+    private long chunkOff;
+    private long remaining;
+
+    ChunkedOutput(long hashEntryAdr)
+    {
+        this.chunkSize = HashEntries.getChunkSize(hashEntryAdr);
+        this.chunkAdr = HashEntries.getFirstChunk(hashEntryAdr);
+        this.chunkOff = CHUNK_OFF_DATA;
+        this.remaining = HashEntries.getValueLen(hashEntryAdr);
+    }
+
+    private void assertAvail(long req) throws IOException
+    {
+        if (remaining < req || req < 0)
+            throw new EOFException();
+    }
+
+    private long chunkAvail()
+    {
+        if (chunkOff == chunkSize)
+        {
+            chunkAdr = Uns.getPointer(chunkAdr, CHUNK_OFF_NEXT);
+            chunkOff = CHUNK_OFF_DATA;
+        }
+        return Math.min(chunkSize - chunkOff, remaining);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (b == null || off < 0 || off + len > b.length || len < 0)
+            throw new IllegalArgumentException();
+
+        assertAvail(len);
+
+        while (len > 0)
+        {
+            int l = (int) Math.min(chunkAvail(), len);
+            Uns.copyMemory(b, off, chunkAdr, chunkOff, l);
+            chunkOff += l;
+            remaining -= l;
+            off += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * Copies {@code len} bytes from off-heap memory into the chunks.
+     */
+    void write(long srcAdr, long srcOff, long len) throws IOException
+    {
+        assertAvail(len);
+
+        while (len > 0L)
+        {
+            long l = Math.min(chunkAvail(), len);
+            Uns.copyMemory(srcAdr, srcOff, chunkAdr, chunkOff, l);
+            chunkOff += l;
+            remaining -= l;
+            srcOff += l;
+            len -= l;
+        }
+    }
+
+    public void write(int b) throws IOException
+    {
+        assertAvail(1);
+
+        chunkAvail();
+        remaining--;
+        Uns.putByte(chunkAdr, chunkOff++, (byte) b);
+    }
+}
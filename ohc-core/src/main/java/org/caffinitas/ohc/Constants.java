@@ -30,13 +30,74 @@ abstract class Constants
     static final long ENTRY_OFF_NEXT = 24;
     // offset of serialized hash value
     static final long ENTRY_OFF_HASH = 32;
-    // offset of serialized hash key length
+    // offset of serialized hash key length (int)
     static final long ENTRY_OFF_KEY_LENGTH = 40;
+    // offset of entry flags (int)
+    static final long ENTRY_OFF_FLAGS = 44;
     // offset of serialized value length
     static final long ENTRY_OFF_VALUE_LENGTH = 48;
     // offset of data in first block
     static final long ENTRY_OFF_DATA = 56;
 
+    // length of a key of OHLongCache, stored inline at ENTRY_OFF_DATA
+    static final long LONG_KEY_LEN = 8;
+
+// Hash entry flags
+
+    // value is stored LZ4 compressed, prefixed with the uncompressed length (int)
+    static final int FLAG_COMPRESSED = 1;
+    // value is stored in a chain of chunks, the value area of the entry only contains the chunk reference
+    static final int FLAG_CHUNKED = 2;
+    // entry has been evicted and handed over to the spill file, its capacity has already been released
+    static final int FLAG_SPILLING = 4;
+    // entry records that the key is absent, the value area only contains the expiry time - see OHCache.putAbsent
+    static final int FLAG_TOMBSTONE = 8;
+
+// Tombstones
+
+    // length of the value area of a tombstone - the expiry time in milliseconds since the epoch
+    static final long TOMBSTONE_VALUE_LEN = 8;
+
+// Chunked values
+
+    // offset of address of the first chunk in the value area of a chunked entry
+    static final long CHUNKED_OFF_FIRST = 0;
+    // offset of chunk size in the value area of a chunked entry
+    static final long CHUNKED_OFF_CHUNK_SIZE = 8;
+    // length of the value area of a chunked entry
+    static final long CHUNKED_REF_LEN = 16;
+
+    // offset of next chunk
+    static final long CHUNK_OFF_NEXT = 0;
+    // offset of data in a chunk
+    static final long CHUNK_OFF_DATA = 8;
+
+// Entry streams (snapshots)
+
+    // length of an entry's header in a stream - hash (long), key length (int), flags (int), value length (long)
+    static final long STREAM_ENTRY_HEADER_LEN = 24;
+
+// Segment state in shared memory
+
+    // offset of the hash table address
+    static final long SEGMENT_STATE_OFF_TABLE = 0;
+    // offset of the hash table size (number of buckets)
+    static final long SEGMENT_STATE_OFF_TABLE_SIZE = 8;
+    // offset of the LRU list head
+    static final long SEGMENT_STATE_OFF_LRU_HEAD = 16;
+    // offset of the LRU list tail
+    static final long SEGMENT_STATE_OFF_LRU_TAIL = 24;
+    // offset of the number of entries
+    static final long SEGMENT_STATE_OFF_SIZE = 32;
+    // offset of the free capacity
+    static final long SEGMENT_STATE_OFF_FREE_CAPACITY = 40;
+    // offset of the capacity
+    static final long SEGMENT_STATE_OFF_CAPACITY = 48;
+    // offset of the number of tombstones
+    static final long SEGMENT_STATE_OFF_TOMBSTONES = 56;
+    // length of a segment state
+    static final long SEGMENT_STATE_LEN = 64;
+
 // Hash bucket-table
 
     // reference to the first entry of segment
@@ -56,4 +117,15 @@ abstract class Constants
     {
         return ENTRY_OFF_DATA + roundUpTo8(keyLen) + valueLen;
     }
+
+    static long chunkCount(long valueLen, long chunkSize)
+    {
+        long chunkDataLen = chunkSize - CHUNK_OFF_DATA;
+        return (valueLen + chunkDataLen - 1) / chunkDataLen;
+    }
+
+    static long chunkedAllocLen(long keyLen, long valueLen, long chunkSize)
+    {
+        return allocLen(keyLen, CHUNKED_REF_LEN) + chunkCount(valueLen, chunkSize) * chunkSize;
+    }
 }
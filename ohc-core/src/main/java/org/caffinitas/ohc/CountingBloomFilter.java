@@ -0,0 +1,104 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+/**
+ * Counting Bloom filter in off-heap memory with one byte per counter. The filter of a segment is updated whenever
+ * an entry is added to or removed from the segment's hash table (under the segment lock) and can be queried without
+ * a lock - a definite miss does not need to lock the segment and walk a hash chain.
+ * Counters that reach {@code 255} stick, so that they never underflow. The filter is always allocated from the
+ * process wide allocator - it is not part of shared memory.
+ */
+final class CountingBloomFilter
+{
+    // number of counters per key
+    private static final int PROBES = 3;
+    // counters per expected entry - approx. 3% false positives with 3 probes
+    static final int COUNTERS_PER_ENTRY = 8;
+
+    private static final int STICKY = 0xff;
+
+    private final long address;
+    private final int mask;
+
+    CountingBloomFilter(long expectedEntries)
+    {
+        int counters = OffHeapMap.roundUpToPowerOf2((int) Math.min(Math.max(expectedEntries * COUNTERS_PER_ENTRY, 64L),
+                                                                   Integer.MAX_VALUE));
+        this.address = Uns.allocate(counters);
+        if (address == 0L)
+            throw new OutOfMemoryError("Unable to allocate " + counters + " bytes for Bloom filter");
+        this.mask = counters - 1;
+        clear();
+    }
+
+    void release()
+    {
+        Uns.free(address);
+    }
+
+    int counters()
+    {
+        return mask + 1;
+    }
+
+    void clear()
+    {
+        Uns.setMemory(address, 0L, mask + 1, (byte) 0);
+    }
+
+    void add(long hash)
+    {
+        long h = SegmentedCacheImpl.longKeyHash(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++)
+        {
+            int counter = (h1 + i * h2) & mask;
+            int count = Uns.getByte(address, counter) & 0xff;
+            if (count != STICKY)
+                Uns.putByteVolatile(address, counter, (byte) (count + 1));
+        }
+    }
+
+    void remove(long hash)
+    {
+        long h = SegmentedCacheImpl.longKeyHash(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++)
+        {
+            int counter = (h1 + i * h2) & mask;
+            int count = Uns.getByte(address, counter) & 0xff;
+            if (count != STICKY && count != 0)
+                Uns.putByteVolatile(address, counter, (byte) (count - 1));
+        }
+    }
+
+    /**
+     * @return {@code false} if there is definitely no entry with the given hash
+     */
+    boolean mightContain(long hash)
+    {
+        long h = SegmentedCacheImpl.longKeyHash(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++)
+            if (Uns.getByteVolatile(address, (h1 + i * h2) & mask) == 0)
+                return false;
+        return true;
+    }
+}
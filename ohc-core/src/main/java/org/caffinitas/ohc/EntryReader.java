@@ -0,0 +1,157 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffered reader for streams written by {@link EntryWriter}. Data is read directly into off-heap memory.
+ * A running {@link StreamChecksum checksum} covers all bytes read since the last {@link #resetChecksum()}.
+ */
+final class EntryReader
+{
+    private final ReadableByteChannel channel;
+    private final StreamChecksum checksum = new StreamChecksum();
+    private long buffer;
+    private int pos;
+    private int limit;
+
+    EntryReader(ReadableByteChannel channel)
+    {
+        this.channel = channel;
+        this.buffer = Uns.allocate(EntryWriter.BUFFER_SIZE);
+        if (buffer == 0L)
+            throw new OutOfMemoryError("Unable to allocate " + EntryWriter.BUFFER_SIZE + " bytes for entry reader");
+    }
+
+    long readLong() throws IOException
+    {
+        require(8);
+        long v = Uns.getLong(buffer, pos);
+        checksum.update(buffer, pos, 8L);
+        pos += 8;
+        return v;
+    }
+
+    int readInt() throws IOException
+    {
+        require(4);
+        int v = Uns.getInt(buffer, pos);
+        checksum.update(buffer, pos, 4L);
+        pos += 4;
+        return v;
+    }
+
+    /**
+     * Reads {@code len} bytes into off-heap memory. Large regions are read directly without copying.
+     */
+    void read(long address, long offset, long len) throws IOException
+    {
+        while (len > 0L)
+        {
+            if (pos == limit)
+            {
+                pos = limit = 0;
+                if (len >= EntryWriter.BUFFER_SIZE)
+                {
+                    int l = (int) Math.min(len, 1 << 30);
+                    ByteBuffer dst = Uns.directBufferFor(address, offset, l, ByteOrder.nativeOrder());
+                    while (dst.hasRemaining())
+                        if (channel.read(dst) < 0)
+                            throw new EOFException();
+                    checksum.update(address, offset, l);
+                    offset += l;
+                    len -= l;
+                    continue;
+                }
+                fill();
+            }
+
+            long l = Math.min(len, limit - pos);
+            Uns.copyMemory(buffer, pos, address, offset, l);
+            checksum.update(buffer, pos, l);
+            pos += l;
+            offset += l;
+            len -= l;
+        }
+    }
+
+    void skip(long len) throws IOException
+    {
+        while (len > 0L)
+        {
+            if (pos == limit)
+            {
+                pos = limit = 0;
+                fill();
+            }
+
+            int l = (int) Math.min(len, limit - pos);
+            checksum.update(buffer, pos, l);
+            pos += l;
+            len -= l;
+        }
+    }
+
+    private void require(int n) throws IOException
+    {
+        if (limit - pos >= n)
+            return;
+
+        if (pos > 0)
+        {
+            if (limit > pos)
+                Uns.copyMemory(buffer, pos, buffer, 0L, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+
+        while (limit < n)
+            fill();
+    }
+
+    private void fill() throws IOException
+    {
+        int rd = channel.read(Uns.directBufferFor(buffer, limit, EntryWriter.BUFFER_SIZE - limit, ByteOrder.nativeOrder()));
+        if (rd < 0)
+            throw new EOFException();
+        limit += rd;
+    }
+
+    long checksum()
+    {
+        return checksum.value();
+    }
+
+    void resetChecksum()
+    {
+        checksum.reset();
+    }
+
+    /**
+     * Frees the read buffer. Does not close the channel.
+     */
+    void release()
+    {
+        if (buffer != 0L)
+            Uns.free(buffer);
+        buffer = 0L;
+    }
+}
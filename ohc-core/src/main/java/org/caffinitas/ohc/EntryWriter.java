@@ -0,0 +1,161 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+import static org.caffinitas.ohc.Constants.*;
+
+/**
+ * Buffered writer of raw hash entries to a channel. The stream representation of an entry is
+ * hash (long), key length (int), flags (int), value length (long), key bytes and value bytes -
+ * all in native byte order. Chunked values are written as a contiguous value.
+ * A running {@link StreamChecksum checksum} covers all bytes written since the last {@link #resetChecksum()}.
+ */
+final class EntryWriter
+{
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private final WritableByteChannel channel;
+    private final StreamChecksum checksum = new StreamChecksum();
+    private long buffer;
+    private int pos;
+
+    EntryWriter(WritableByteChannel channel)
+    {
+        this.channel = channel;
+        this.buffer = Uns.allocate(BUFFER_SIZE);
+        if (buffer == 0L)
+            throw new OutOfMemoryError("Unable to allocate " + BUFFER_SIZE + " bytes for entry writer");
+    }
+
+    /**
+     * Number of bytes required to write the specified hash entry using {@link #writeEntry(long)}.
+     */
+    static long entryLen(long hashEntryAdr)
+    {
+        return STREAM_ENTRY_HEADER_LEN + HashEntries.getKeyLen(hashEntryAdr) + HashEntries.getValueLen(hashEntryAdr);
+    }
+
+    void writeEntry(long hashEntryAdr) throws IOException
+    {
+        long keyLen = HashEntries.getKeyLen(hashEntryAdr);
+        long valueLen = HashEntries.getValueLen(hashEntryAdr);
+
+        writeLong(HashEntries.getHash(hashEntryAdr));
+        writeInt((int) keyLen);
+        writeInt(HashEntries.getFlags(hashEntryAdr) & ~(FLAG_CHUNKED | FLAG_SPILLING));
+        writeLong(valueLen);
+        write(hashEntryAdr, ENTRY_OFF_DATA, keyLen);
+
+        if (!HashEntries.isChunked(hashEntryAdr))
+        {
+            write(hashEntryAdr, HashEntries.valueOffset(hashEntryAdr), valueLen);
+            return;
+        }
+
+        long chunkDataLen = HashEntries.getChunkSize(hashEntryAdr) - CHUNK_OFF_DATA;
+        for (long chunkAdr = HashEntries.getFirstChunk(hashEntryAdr);
+             valueLen > 0L;
+             chunkAdr = Uns.getPointer(chunkAdr, CHUNK_OFF_NEXT))
+        {
+            long l = Math.min(chunkDataLen, valueLen);
+            write(chunkAdr, CHUNK_OFF_DATA, l);
+            valueLen -= l;
+        }
+    }
+
+    void writeLong(long v) throws IOException
+    {
+        if (pos + 8 > BUFFER_SIZE)
+            flush();
+        Uns.putLong(buffer, pos, v);
+        checksum.update(buffer, pos, 8L);
+        pos += 8;
+    }
+
+    void writeInt(int v) throws IOException
+    {
+        if (pos + 4 > BUFFER_SIZE)
+            flush();
+        Uns.putInt(buffer, pos, v);
+        checksum.update(buffer, pos, 4L);
+        pos += 4;
+    }
+
+    /**
+     * Writes {@code len} bytes of off-heap memory. Large regions are written directly without copying.
+     */
+    void write(long address, long offset, long len) throws IOException
+    {
+        checksum.update(address, offset, len);
+
+        if (len > BUFFER_SIZE - pos)
+        {
+            flush();
+            if (len >= BUFFER_SIZE)
+            {
+                while (len > 0L)
+                {
+                    int l = (int) Math.min(len, 1 << 30);
+                    writeFully(Uns.directBufferFor(address, offset, l, ByteOrder.nativeOrder()));
+                    offset += l;
+                    len -= l;
+                }
+                return;
+            }
+        }
+
+        Uns.copyMemory(address, offset, buffer, pos, len);
+        pos += len;
+    }
+
+    void flush() throws IOException
+    {
+        if (pos > 0)
+            writeFully(Uns.directBufferFor(buffer, 0L, pos, ByteOrder.nativeOrder()));
+        pos = 0;
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException
+    {
+        while (src.hasRemaining())
+            channel.write(src);
+    }
+
+    long checksum()
+    {
+        return checksum.value();
+    }
+
+    void resetChecksum()
+    {
+        checksum.reset();
+    }
+
+    /**
+     * Frees the write buffer. Does neither flush nor close the channel.
+     */
+    void release()
+    {
+        if (buffer != 0L)
+            Uns.free(buffer);
+        buffer = 0L;
+    }
+}
@@ -17,6 +17,8 @@ package org.caffinitas.ohc;
 
 import java.io.DataInput;
 
+import org.caffinitas.ohc.alloc.IAllocator;
+
 import static org.caffinitas.ohc.Constants.*;
 
 /**
@@ -36,7 +38,8 @@ public final class HashEntries
     {
         Uns.putLong(hashEntryAdr, ENTRY_OFF_HASH, hash);
         setNext(hashEntryAdr, 0L);
-        Uns.putLong(hashEntryAdr, ENTRY_OFF_KEY_LENGTH, keyLen);
+        Uns.putInt(hashEntryAdr, ENTRY_OFF_KEY_LENGTH, (int) keyLen);
+        Uns.putInt(hashEntryAdr, ENTRY_OFF_FLAGS, 0);
         Uns.putLong(hashEntryAdr, ENTRY_OFF_VALUE_LENGTH, valueLen);
         Uns.putLong(hashEntryAdr, ENTRY_OFF_REFCOUNT, 1L);
     }
@@ -46,34 +49,122 @@ public final class HashEntries
         if (hashEntryAdr == 0L)
             return false;
 
-        long blkOff = ENTRY_OFF_DATA;
+        return compareKey(hashEntryAdr, ENTRY_OFF_DATA, key, serKeyLen);
+    }
+
+    /**
+     * Compares the serialized key at the specified off-heap location with {@code key}.
+     */
+    static boolean compareKey(long address, long offset, KeyBuffer key, long serKeyLen)
+    {
+        long blkOff = offset;
         int p = 0;
         byte[] arr = key.array();
         for (; p <= serKeyLen - 8; p += 8, blkOff += 8)
-            if (Uns.getLong(hashEntryAdr, blkOff) != Uns.getLongFromByteArray(arr, p))
+            if (Uns.getLong(address, blkOff) != Uns.getLongFromByteArray(arr, p))
+                return false;
+        for (; p < serKeyLen; p++, blkOff++)
+            if (Uns.getByte(address, blkOff) != arr[p])
                 return false;
 
         return true;
     }
 
+    /**
+     * Checks whether the serialized key of {@code keyLen} bytes at {@code address + offset} starts with {@code prefix}.
+     */
+    static boolean keyStartsWith(long address, long offset, long keyLen, byte[] prefix)
+    {
+        int len = prefix.length;
+        if (keyLen < len)
+            return false;
+
+        long blkOff = offset;
+        int p = 0;
+        for (; p <= len - 8; p += 8, blkOff += 8)
+            if (Uns.getLong(address, blkOff) != Uns.getLongFromByteArray(prefix, p))
+                return false;
+        for (; p < len; p++, blkOff++)
+            if (Uns.getByte(address, blkOff) != prefix[p])
+                return false;
+
+        return true;
+    }
+
+    static boolean compareKey(long hashEntryAdr, long otherHashEntryAdr, long serKeyLen)
+    {
+        long blkOff = ENTRY_OFF_DATA;
+        long end = ENTRY_OFF_DATA + serKeyLen;
+        for (; blkOff <= end - 8; blkOff += 8)
+            if (Uns.getLong(hashEntryAdr, blkOff) != Uns.getLong(otherHashEntryAdr, blkOff))
+                return false;
+        for (; blkOff < end; blkOff++)
+            if (Uns.getByte(hashEntryAdr, blkOff) != Uns.getByte(otherHashEntryAdr, blkOff))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Compares the stored value of a hash entry with a staged serialized value, which is compressed if
+     * {@code compressed} is set. The value of a tombstone never matches.
+     */
+    static boolean compareValue(long hashEntryAdr, SerializationBuffer expected, boolean compressed)
+    {
+        if (isTombstone(hashEntryAdr) || isCompressed(hashEntryAdr) != compressed)
+            return false;
+
+        long valueLen = getValueLen(hashEntryAdr);
+        if (valueLen != expected.size())
+            return false;
+
+        if (!isChunked(hashEntryAdr))
+            return compareMemory(hashEntryAdr, valueOffset(hashEntryAdr), expected.address(), 0L, valueLen);
+
+        long chunkSize = getChunkSize(hashEntryAdr);
+        long off = 0L;
+        for (long chunkAdr = getFirstChunk(hashEntryAdr);
+             off < valueLen;
+             chunkAdr = Uns.getPointer(chunkAdr, CHUNK_OFF_NEXT))
+        {
+            long l = Math.min(chunkSize - CHUNK_OFF_DATA, valueLen - off);
+            if (!compareMemory(chunkAdr, CHUNK_OFF_DATA, expected.address(), off, l))
+                return false;
+            off += l;
+        }
+        return true;
+    }
+
+    private static boolean compareMemory(long address, long offset, long otherAddress, long otherOffset, long len)
+    {
+        long p = 0L;
+        for (; p <= len - 8; p += 8)
+            if (Uns.getLong(address, offset + p) != Uns.getLong(otherAddress, otherOffset + p))
+                return false;
+        for (; p < len; p++)
+            if (Uns.getByte(address, offset + p) != Uns.getByte(otherAddress, otherOffset + p))
+                return false;
+        return true;
+    }
+
     public static long getLRUNext(long hashEntryAdr)
     {
-        return Uns.getLong(hashEntryAdr, ENTRY_OFF_LRU_NEXT);
+        return Uns.getPointer(hashEntryAdr, ENTRY_OFF_LRU_NEXT);
     }
 
     public static void setLRUNext(long hashEntryAdr, long replacement)
     {
-        Uns.putLong(hashEntryAdr, ENTRY_OFF_LRU_NEXT, replacement);
+        Uns.putPointer(hashEntryAdr, ENTRY_OFF_LRU_NEXT, replacement);
     }
 
     public static long getLRUPrev(long hashEntryAdr)
     {
-        return Uns.getLong(hashEntryAdr, ENTRY_OFF_LRU_PREV);
+        return Uns.getPointer(hashEntryAdr, ENTRY_OFF_LRU_PREV);
     }
 
     public static void setLRUPrev(long hashEntryAdr, long replacement)
     {
-        Uns.putLong(hashEntryAdr, ENTRY_OFF_LRU_PREV, replacement);
+        Uns.putPointer(hashEntryAdr, ENTRY_OFF_LRU_PREV, replacement);
     }
 
     static long getHash(long hashEntryAdr)
@@ -83,7 +174,7 @@ public final class HashEntries
 
     static long getNext(long hashEntryAdr)
     {
-        return hashEntryAdr != 0L ? Uns.getLong(hashEntryAdr, ENTRY_OFF_NEXT) : 0L;
+        return hashEntryAdr != 0L ? Uns.getPointer(hashEntryAdr, ENTRY_OFF_NEXT) : 0L;
     }
 
     static void setNext(long hashEntryAdr, long nextAdr)
@@ -91,12 +182,45 @@ public final class HashEntries
         if (hashEntryAdr == nextAdr)
             throw new IllegalArgumentException();
         if (hashEntryAdr != 0L)
-            Uns.putLong(hashEntryAdr, ENTRY_OFF_NEXT, nextAdr);
+            Uns.putPointer(hashEntryAdr, ENTRY_OFF_NEXT, nextAdr);
     }
 
     static long getKeyLen(long hashEntryAdr)
     {
-        return Uns.getLong(hashEntryAdr, ENTRY_OFF_KEY_LENGTH);
+        return Uns.getInt(hashEntryAdr, ENTRY_OFF_KEY_LENGTH);
+    }
+
+    static int getFlags(long hashEntryAdr)
+    {
+        return Uns.getInt(hashEntryAdr, ENTRY_OFF_FLAGS);
+    }
+
+    static void setFlags(long hashEntryAdr, int flags)
+    {
+        Uns.putInt(hashEntryAdr, ENTRY_OFF_FLAGS, flags);
+    }
+
+    static boolean isCompressed(long hashEntryAdr)
+    {
+        return (getFlags(hashEntryAdr) & FLAG_COMPRESSED) != 0;
+    }
+
+    static boolean isTombstone(long hashEntryAdr)
+    {
+        return (getFlags(hashEntryAdr) & FLAG_TOMBSTONE) != 0;
+    }
+
+    /**
+     * Answers whether the entry is a tombstone that has not expired at {@code now} (in milliseconds since the epoch).
+     */
+    static boolean isLiveTombstone(long hashEntryAdr, long now)
+    {
+        return isTombstone(hashEntryAdr) && Uns.getLong(hashEntryAdr, valueOffset(hashEntryAdr)) > now;
+    }
+
+    static long valueOffset(long hashEntryAdr)
+    {
+        return ENTRY_OFF_DATA + roundUpTo8(getKeyLen(hashEntryAdr));
     }
 
     static long getValueLen(long hashEntryAdr)
@@ -106,6 +230,8 @@ public final class HashEntries
 
     static long getAllocLen(long address)
     {
+        if (isChunked(address))
+            return chunkedAllocLen(getKeyLen(address), getValueLen(address), getChunkSize(address));
         return allocLen(getKeyLen(address), getValueLen(address));
     }
 
@@ -116,9 +242,84 @@ public final class HashEntries
 
     static DataInput readValueFrom(long hashEntryAdr)
     {
+        if (isChunked(hashEntryAdr))
+            return new ChunkedInput(getFirstChunk(hashEntryAdr), getChunkSize(hashEntryAdr), getValueLen(hashEntryAdr));
         return newInput(hashEntryAdr, true);
     }
 
+    //
+    // chunked values
+    //
+
+    static boolean isChunked(long hashEntryAdr)
+    {
+        return (getFlags(hashEntryAdr) & FLAG_CHUNKED) != 0;
+    }
+
+    static long getFirstChunk(long hashEntryAdr)
+    {
+        return Uns.getPointer(hashEntryAdr, valueOffset(hashEntryAdr) + CHUNKED_OFF_FIRST);
+    }
+
+    static long getChunkSize(long hashEntryAdr)
+    {
+        return Uns.getLong(hashEntryAdr, valueOffset(hashEntryAdr) + CHUNKED_OFF_CHUNK_SIZE);
+    }
+
+    /**
+     * Allocates the chunks for a chunked value and links the chunk reference of the (initialized) hash entry.
+     *
+     * @return {@code false} if the chunks could not be allocated
+     */
+    static boolean allocateChunks(long hashEntryAdr, long chunkSize, IAllocator allocator)
+    {
+        long count = chunkCount(getValueLen(hashEntryAdr), chunkSize);
+
+        long first = 0L;
+        long last = 0L;
+        for (long i = 0L; i < count; i++)
+        {
+            long chunkAdr = Uns.allocate(allocator, chunkSize);
+            if (chunkAdr == 0L)
+            {
+                freeChunks(first, allocator);
+                return false;
+            }
+            Uns.putPointer(chunkAdr, CHUNK_OFF_NEXT, 0L);
+            if (last != 0L)
+                Uns.putPointer(last, CHUNK_OFF_NEXT, chunkAdr);
+            else
+                first = chunkAdr;
+            last = chunkAdr;
+        }
+
+        long valueOff = valueOffset(hashEntryAdr);
+        Uns.putPointer(hashEntryAdr, valueOff + CHUNKED_OFF_FIRST, first);
+        Uns.putLong(hashEntryAdr, valueOff + CHUNKED_OFF_CHUNK_SIZE, chunkSize);
+        setFlags(hashEntryAdr, getFlags(hashEntryAdr) | FLAG_CHUNKED);
+        return true;
+    }
+
+    private static void freeChunks(long chunkAdr, IAllocator allocator)
+    {
+        long next;
+        for (; chunkAdr != 0L; chunkAdr = next)
+        {
+            next = Uns.getPointer(chunkAdr, CHUNK_OFF_NEXT);
+            Uns.free(allocator, chunkAdr);
+        }
+    }
+
+    /**
+     * Frees the memory of the hash entry including all chunks of a chunked value.
+     */
+    static void free(long hashEntryAdr, IAllocator allocator)
+    {
+        if (isChunked(hashEntryAdr))
+            freeChunks(getFirstChunk(hashEntryAdr), allocator);
+        Uns.free(allocator, hashEntryAdr);
+    }
+
     private static HashEntryInput newInput(long hashEntryAdr, boolean value)
     {
         return new HashEntryInput(hashEntryAdr, value, getKeyLen(hashEntryAdr), getValueLen(hashEntryAdr));
@@ -15,19 +15,40 @@
  */
 package org.caffinitas.ohc;
 
+import java.util.Arrays;
+
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 final class KeyBuffer extends AbstractDataOutput
 {
     private final Hasher hasher = Hashing.murmur3_128().newHasher();
-    private final byte[] array;
+    // initial size of the key buffer if the serialized key size is not known in advance
+    private static final int INITIAL_GROWABLE_SIZE = 64;
+
+    private byte[] array;
+    private final boolean growable;
     private int p;
     private long hash;
 
+    /**
+     * @param size serialized size of the key or a negative value if the size is not known in advance
+     */
     KeyBuffer(int size)
     {
-        array = new byte[size];
+        growable = size < 0;
+        array = new byte[growable ? INITIAL_GROWABLE_SIZE : size];
+    }
+
+    /**
+     * Wraps an already serialized key.
+     */
+    KeyBuffer(byte[] serialized)
+    {
+        growable = false;
+        array = serialized;
+        p = serialized.length;
+        hasher.putBytes(serialized);
     }
 
     byte[] array()
@@ -45,20 +66,45 @@ final class KeyBuffer extends AbstractDataOutput
         return hash;
     }
 
+    public boolean equals(Object o)
+    {
+        if (this == o)
+            return true;
+        if (!(o instanceof KeyBuffer))
+            return false;
+        KeyBuffer other = (KeyBuffer) o;
+        return hash == other.hash && Arrays.equals(array, other.array);
+    }
+
+    public int hashCode()
+    {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
     KeyBuffer finish()
     {
+        if (growable && p != array.length)
+            array = Arrays.copyOf(array, p);
         hash = hasher.hash().asLong();
         return this;
     }
 
+    private void ensureAvail(int req)
+    {
+        if (growable && p + req > array.length)
+            array = Arrays.copyOf(array, Math.max(array.length * 2, p + req));
+    }
+
     public void write(int b)
     {
+        ensureAvail(1);
         hasher.putByte((byte) b);
         array[p++] = (byte) b;
     }
 
     public void write(byte[] b, int off, int len)
     {
+        ensureAvail(len);
         hasher.putBytes(b, off, len);
         System.arraycopy(b, off, array, p, len);
         p += len;
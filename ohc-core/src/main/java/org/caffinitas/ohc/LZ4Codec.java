@@ -0,0 +1,229 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the LZ4 block format working on off-heap memory.
+ * Uses a simple greedy single-probe match finder (like LZ4's "fast" mode) - good compression speed,
+ * decompression does not need any state.
+ */
+final class LZ4Codec
+{
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final int ML_BITS = 4;
+    private static final int ML_MASK = (1 << ML_BITS) - 1;
+    private static final int RUN_MASK = ML_MASK;
+
+    private static final int HASH_LOG = 12;
+    private static final int HASH_SHIFT = 32 - HASH_LOG;
+
+    private static final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>()
+    {
+        protected int[] initialValue()
+        {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    private LZ4Codec()
+    {
+    }
+
+    static int maxCompressedLength(int len)
+    {
+        return len + len / 255 + 16;
+    }
+
+    private static int hash(int seq)
+    {
+        return (seq * -1640531535) >>> HASH_SHIFT;
+    }
+
+    /**
+     * Compress {@code srcLen} bytes.
+     *
+     * @return the compressed length or {@code -1} if the compressed data does not fit into {@code dstMax} bytes
+     */
+    static int compress(long srcAdr, long srcOff, int srcLen, long dstAdr, long dstOff, int dstMax)
+    {
+        int[] table = hashTables.get();
+        Arrays.fill(table, -1);
+
+        int ip = 0;
+        int anchor = 0;
+        int op = 0;
+
+        if (srcLen >= MF_LIMIT + 1)
+        {
+            int mfLimit = srcLen - MF_LIMIT;
+            int matchLimit = srcLen - LAST_LITERALS;
+
+            table[hash(Uns.getInt(srcAdr, srcOff))] = 0;
+            ip = 1;
+            int searchCount = 1 << 6;
+
+            while (ip < mfLimit)
+            {
+                int seq = Uns.getInt(srcAdr, srcOff + ip);
+                int h = hash(seq);
+                int ref = table[h];
+                table[h] = ip;
+
+                if (ref < 0 || ip - ref > MAX_DISTANCE || Uns.getInt(srcAdr, srcOff + ref) != seq)
+                {
+                    // accelerate over incompressible data
+                    ip += searchCount++ >>> 6;
+                    continue;
+                }
+                searchCount = 1 << 6;
+
+                // extend match backwards
+                while (ip > anchor && ref > 0 && Uns.getByte(srcAdr, srcOff + ip - 1) == Uns.getByte(srcAdr, srcOff + ref - 1))
+                {
+                    ip--;
+                    ref--;
+                }
+
+                // extend match forwards
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && Uns.getByte(srcAdr, srcOff + ip + matchLen) == Uns.getByte(srcAdr, srcOff + ref + matchLen))
+                    matchLen++;
+
+                op = writeSequence(srcAdr, srcOff + anchor, ip - anchor, ip - ref, matchLen, dstAdr, dstOff, op, dstMax);
+                if (op < 0)
+                    return -1;
+
+                ip += matchLen;
+                anchor = ip;
+
+                if (ip < mfLimit)
+                    table[hash(Uns.getInt(srcAdr, srcOff + ip - 2))] = ip - 2;
+            }
+        }
+
+        // last literals
+        return writeSequence(srcAdr, srcOff + anchor, srcLen - anchor, 0, 0, dstAdr, dstOff, op, dstMax);
+    }
+
+    private static int writeSequence(long srcAdr, long litOff, int litLen, int offset, int matchLen,
+                                     long dstAdr, long dstOff, int op, int dstMax)
+    {
+        int required = 1 + litLen / 255 + 1 + litLen + (matchLen > 0 ? 2 + matchLen / 255 + 1 : 0);
+        if (op + required > dstMax)
+            return -1;
+
+        long tokenOff = dstOff + op++;
+        int token = (litLen >= RUN_MASK ? RUN_MASK : litLen) << ML_BITS;
+        if (litLen >= RUN_MASK)
+            op = writeLength(litLen - RUN_MASK, dstAdr, dstOff, op);
+
+        if (litLen > 0)
+            Uns.copyMemory(srcAdr, litOff, dstAdr, dstOff + op, litLen);
+        op += litLen;
+
+        if (matchLen > 0)
+        {
+            Uns.putByte(dstAdr, dstOff + op++, (byte) offset);
+            Uns.putByte(dstAdr, dstOff + op++, (byte) (offset >>> 8));
+
+            int ml = matchLen - MIN_MATCH;
+            token |= ml >= ML_MASK ? ML_MASK : ml;
+            if (ml >= ML_MASK)
+                op = writeLength(ml - ML_MASK, dstAdr, dstOff, op);
+        }
+
+        Uns.putByte(dstAdr, tokenOff, (byte) token);
+        return op;
+    }
+
+    private static int writeLength(int len, long dstAdr, long dstOff, int op)
+    {
+        for (; len >= 255; len -= 255)
+            Uns.putByte(dstAdr, dstOff + op++, (byte) 255);
+        Uns.putByte(dstAdr, dstOff + op++, (byte) len);
+        return op;
+    }
+
+    /**
+     * Decompress {@code srcLen} bytes of LZ4 compressed data, which must result in exactly {@code dstLen} bytes.
+     */
+    static void decompress(long srcAdr, long srcOff, int srcLen, long dstAdr, long dstOff, int dstLen)
+    {
+        int ip = 0;
+        int op = 0;
+        while (true)
+        {
+            int token = Uns.getByte(srcAdr, srcOff + ip++) & 0xff;
+
+            int litLen = token >>> ML_BITS;
+            if (litLen == RUN_MASK)
+            {
+                int b;
+                do
+                {
+                    b = Uns.getByte(srcAdr, srcOff + ip++) & 0xff;
+                    litLen += b;
+                } while (b == 255);
+            }
+
+            if (ip + litLen > srcLen || op + litLen > dstLen)
+                throw new IllegalStateException("Malformed LZ4 data");
+            if (litLen > 0)
+                Uns.copyMemory(srcAdr, srcOff + ip, dstAdr, dstOff + op, litLen);
+            ip += litLen;
+            op += litLen;
+
+            if (ip == srcLen)
+                break;
+
+            int offset = (Uns.getByte(srcAdr, srcOff + ip) & 0xff) | ((Uns.getByte(srcAdr, srcOff + ip + 1) & 0xff) << 8);
+            ip += 2;
+
+            int matchLen = token & ML_MASK;
+            if (matchLen == ML_MASK)
+            {
+                int b;
+                do
+                {
+                    b = Uns.getByte(srcAdr, srcOff + ip++) & 0xff;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+
+            int ref = op - offset;
+            if (offset == 0 || ref < 0 || op + matchLen > dstLen)
+                throw new IllegalStateException("Malformed LZ4 data");
+
+            if (offset >= matchLen)
+                Uns.copyMemory(dstAdr, dstOff + ref, dstAdr, dstOff + op, matchLen);
+            else
+                // overlapping copy
+                for (int i = 0; i < matchLen; i++)
+                    Uns.putByte(dstAdr, dstOff + op + i, Uns.getByte(dstAdr, dstOff + ref + i));
+            op += matchLen;
+        }
+
+        if (op != dstLen)
+            throw new IllegalStateException("Malformed LZ4 data");
+    }
+}
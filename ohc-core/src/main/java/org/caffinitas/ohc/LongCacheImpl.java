@@ -0,0 +1,99 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Implementation of {@link OHLongCache} on top of a {@link SegmentedCacheImpl} whose entries have an inline
+ * 8 byte key.
+ */
+public class LongCacheImpl<V> implements OHLongCache<V>
+{
+    private final SegmentedCacheImpl<Long, V> cache;
+
+    LongCacheImpl(SegmentedCacheImpl<Long, V> cache)
+    {
+        this.cache = cache;
+    }
+
+    public V get(long key)
+    {
+        return cache.getLong(key);
+    }
+
+    public void put(long key, V value)
+    {
+        cache.putLong(key, value, false);
+    }
+
+    public boolean putIfAbsent(long key, V value)
+    {
+        return cache.putLong(key, value, true);
+    }
+
+    public boolean containsKey(long key)
+    {
+        return cache.containsLong(key);
+    }
+
+    public void invalidate(long key)
+    {
+        cache.invalidateLong(key);
+    }
+
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    public long size()
+    {
+        return cache.size();
+    }
+
+    public long getCapacity()
+    {
+        return cache.getCapacity();
+    }
+
+    public long freeCapacity()
+    {
+        return cache.freeCapacity();
+    }
+
+    public void resetStatistics()
+    {
+        cache.resetStatistics();
+    }
+
+    public CacheStats stats()
+    {
+        return cache.stats();
+    }
+
+    public OHCacheStats extendedStats()
+    {
+        return cache.extendedStats();
+    }
+
+    public void close() throws IOException
+    {
+        cache.close();
+    }
+}
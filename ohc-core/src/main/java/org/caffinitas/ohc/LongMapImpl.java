@@ -0,0 +1,207 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+/**
+ * Implementation of {@link OHLongMap} using a {@link LongMapSegment} per segment.
+ */
+public class LongMapImpl implements OHLongMap
+{
+    private final LongMapSegment[] segments;
+    private final int valueWidth;
+    private final long maxSize;
+
+    // bit-mask for segment part of hash
+    private final int segmentShift;
+
+    LongMapImpl(OHCacheBuilder<?, ?> builder, int valueWidth)
+    {
+        if (valueWidth <= 0)
+            throw new IllegalArgumentException("Invalid value width " + valueWidth);
+        this.valueWidth = valueWidth;
+
+        int segments = builder.getSegmentCount();
+        if (segments <= 0)
+            segments = Runtime.getRuntime().availableProcessors() * 2;
+        segments = OffHeapMap.roundUpToPowerOf2(segments);
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segments);
+
+        double loadFactor = builder.getLoadFactor();
+        if (loadFactor <= 0d || loadFactor >= 1d)
+            loadFactor = .75d;
+
+        // largest power of 2 number of slots (key, value and state byte) that fits into the segment's capacity
+        long slotsPerSegment = builder.getCapacity() / segments / (Constants.LONG_KEY_LEN + valueWidth + 1);
+        if (slotsPerSegment < 16)
+            throw new IllegalArgumentException("Capacity too small for " + segments + " segments");
+        int slots = Integer.highestOneBit((int) Math.min(slotsPerSegment, 1 << 30));
+
+        this.segments = new LongMapSegment[segments];
+        long max = 0L;
+        try
+        {
+            for (int i = 0; i < segments; i++)
+            {
+                this.segments[i] = new LongMapSegment(slots, valueWidth, loadFactor, builder.getLockSpins());
+                max += this.segments[i].maxSize();
+            }
+        }
+        catch (RuntimeException | Error e)
+        {
+            release();
+            throw e;
+        }
+        this.maxSize = max;
+    }
+
+    private void release()
+    {
+        for (LongMapSegment segment : segments)
+            if (segment != null)
+                segment.release();
+    }
+
+    private LongMapSegment segment(long hash)
+    {
+        // segments == 1 results in a shift of 64, which is a shift of 0 for longs
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    private void checkLongValues()
+    {
+        if (valueWidth != 8)
+            throw new UnsupportedOperationException("long values require a value width of 8 bytes");
+    }
+
+    private void checkWidth(byte[] value)
+    {
+        if (value.length != valueWidth)
+            throw new IllegalArgumentException("value length " + value.length + " does not match value width " + valueWidth);
+    }
+
+    public long get(long key, long absent)
+    {
+        checkLongValues();
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        return segment(hash).getLong(hash, key, absent);
+    }
+
+    public boolean get(long key, byte[] value)
+    {
+        checkWidth(value);
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        return segment(hash).get(hash, key, value);
+    }
+
+    public void put(long key, long value)
+    {
+        checkLongValues();
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        segment(hash).putLong(hash, key, value);
+    }
+
+    public void put(long key, byte[] value)
+    {
+        checkWidth(value);
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        segment(hash).put(hash, key, value);
+    }
+
+    public boolean compareAndSet(long key, long expected, long value)
+    {
+        checkLongValues();
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        return segment(hash).compareAndSetLong(hash, key, expected, value);
+    }
+
+    public boolean compareAndSet(long key, byte[] expected, byte[] value)
+    {
+        checkWidth(expected);
+        checkWidth(value);
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        return segment(hash).compareAndSet(hash, key, expected, value);
+    }
+
+    public long addAndGet(long key, long delta)
+    {
+        checkLongValues();
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        return segment(hash).addAndGet(hash, key, delta);
+    }
+
+    public boolean containsKey(long key)
+    {
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        return segment(hash).containsKey(hash, key);
+    }
+
+    public boolean remove(long key)
+    {
+        long hash = SegmentedCacheImpl.longKeyHash(key);
+        return segment(hash).remove(hash, key);
+    }
+
+    public void clear()
+    {
+        for (LongMapSegment segment : segments)
+            segment.clear();
+    }
+
+    public long size()
+    {
+        long size = 0L;
+        for (LongMapSegment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    public int getValueWidth()
+    {
+        return valueWidth;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public long getMemUsed()
+    {
+        long mem = 0L;
+        for (LongMapSegment segment : segments)
+            mem += segment.memUsed();
+        return mem;
+    }
+
+    public long evictedEntries()
+    {
+        long evicted = 0L;
+        for (LongMapSegment segment : segments)
+            evicted += segment.evictedEntries();
+        return evicted;
+    }
+
+    public void resetStatistics()
+    {
+        for (LongMapSegment segment : segments)
+            segment.resetStatistics();
+    }
+
+    public void close()
+    {
+        release();
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import static org.caffinitas.ohc.Constants.*;
+
+/**
+ * Segment of an {@link OHLongMap} - an open addressed hash table (linear probing) whose slots contain the
+ * {@code long} key immediately followed by the fixed width value. One state byte per slot, stored after the
+ * slots, tells whether the slot is used and whether it has been referenced since the CLOCK hand passed it.
+ * Removed entries are deleted using backward shifting, so there are no tombstones.
+ */
+final class LongMapSegment
+{
+    // slot states
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REFERENCED = 2;
+
+    private final long address;
+    private final long statesOff;
+    private final int mask;
+    private final long slotLen;
+    private final int valueLen;
+    private final long maxSize;
+
+    private final OffHeapMap.SegmentLock lock;
+
+    private long size;
+    private int hand;
+
+    private long evictedEntries;
+
+    LongMapSegment(int slots, int valueLen, double loadFactor, int lockSpins)
+    {
+        this.mask = slots - 1;
+        this.valueLen = valueLen;
+        this.slotLen = LONG_KEY_LEN + valueLen;
+        this.statesOff = slots * slotLen;
+        // keep at least one slot empty, so that probing always terminates
+        this.maxSize = Math.min((long) (slots * loadFactor), slots - 1);
+        this.lock = new OffHeapMap.SegmentLock(lockSpins);
+
+        long bytes = statesOff + slots;
+        address = Uns.allocate(bytes);
+        if (address == 0L)
+            throw new OutOfMemoryError("Unable to allocate " + bytes + " bytes for long map segment");
+        Uns.setMemory(address, statesOff, slots, EMPTY);
+    }
+
+    void release()
+    {
+        Uns.free(address);
+    }
+
+    long size()
+    {
+        return size;
+    }
+
+    long maxSize()
+    {
+        return maxSize;
+    }
+
+    long evictedEntries()
+    {
+        return evictedEntries;
+    }
+
+    /**
+     * Number of off-heap bytes used by this segment - independent of the number of entries.
+     */
+    long memUsed()
+    {
+        return statesOff + mask + 1;
+    }
+
+    long getLong(long hash, long key, long absent)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            if (slot < 0)
+                return absent;
+            reference(slot);
+            return Uns.getLong(address, valueOff(slot));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean get(long hash, long key, byte[] value)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            if (slot < 0)
+                return false;
+            reference(slot);
+            Uns.copyMemory(address, valueOff(slot), value, 0, valueLen);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean containsKey(long hash, long key)
+    {
+        lock.lock();
+        try
+        {
+            return find(hash, key) >= 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} if the entry has been added
+     */
+    boolean putLong(long hash, long key, long value)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            boolean added = slot < 0;
+            if (added)
+                slot = insert(hash, key);
+            reference(slot);
+            Uns.putLong(address, valueOff(slot), value);
+            return added;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} if the entry has been added
+     */
+    boolean put(long hash, long key, byte[] value)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            boolean added = slot < 0;
+            if (added)
+                slot = insert(hash, key);
+            reference(slot);
+            Uns.copyMemory(value, 0, address, valueOff(slot), valueLen);
+            return added;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean compareAndSetLong(long hash, long key, long expected, long value)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            if (slot < 0 || Uns.getLong(address, valueOff(slot)) != expected)
+                return false;
+            reference(slot);
+            Uns.putLong(address, valueOff(slot), value);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean compareAndSet(long hash, long key, byte[] expected, byte[] value)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            if (slot < 0)
+                return false;
+            long off = valueOff(slot);
+            for (int i = 0; i < valueLen; i++)
+                if (Uns.getByte(address, off + i) != expected[i])
+                    return false;
+            reference(slot);
+            Uns.copyMemory(value, 0, address, off, valueLen);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds {@code delta} to the value of the key. A missing entry is created with the value {@code delta}.
+     *
+     * @return the new value
+     */
+    long addAndGet(long hash, long key, long delta)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            long value = delta;
+            if (slot < 0)
+                slot = insert(hash, key);
+            else
+                value += Uns.getLong(address, valueOff(slot));
+            reference(slot);
+            Uns.putLong(address, valueOff(slot), value);
+            return value;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean remove(long hash, long key)
+    {
+        lock.lock();
+        try
+        {
+            int slot = find(hash, key);
+            if (slot < 0)
+                return false;
+            delete(slot);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void clear()
+    {
+        lock.lock();
+        try
+        {
+            Uns.setMemory(address, statesOff, mask + 1, EMPTY);
+            size = 0L;
+            hand = 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void resetStatistics()
+    {
+        evictedEntries = 0L;
+    }
+
+    private long keyOff(int slot)
+    {
+        return slot * slotLen;
+    }
+
+    private long valueOff(int slot)
+    {
+        return slot * slotLen + LONG_KEY_LEN;
+    }
+
+    private byte state(int slot)
+    {
+        return Uns.getByte(address, statesOff + slot);
+    }
+
+    private void state(int slot, byte state)
+    {
+        Uns.putByte(address, statesOff + slot, state);
+    }
+
+    private void reference(int slot)
+    {
+        state(slot, REFERENCED);
+    }
+
+    private int find(long hash, long key)
+    {
+        for (int slot = (int) hash & mask; state(slot) != EMPTY; slot = (slot + 1) & mask)
+            if (Uns.getLong(address, keyOff(slot)) == key)
+                return slot;
+        return -1;
+    }
+
+    /**
+     * Takes the first empty slot for a key that is not in the table - evicting an entry first, if the
+     * table is full.
+     */
+    private int insert(long hash, long key)
+    {
+        if (size >= maxSize)
+            evict();
+
+        int slot = (int) hash & mask;
+        while (state(slot) != EMPTY)
+            slot = (slot + 1) & mask;
+        Uns.putLong(address, keyOff(slot), key);
+        state(slot, USED);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Advances the CLOCK hand until it finds an entry that has not been referenced since the hand passed it
+     * the last time and evicts that entry.
+     */
+    private void evict()
+    {
+        while (true)
+        {
+            byte state = state(hand);
+            if (state == USED)
+            {
+                // the slot at the hand now contains an entry shifted back from a later slot - if any
+                delete(hand);
+                evictedEntries++;
+                return;
+            }
+            if (state == REFERENCED)
+                state(hand, USED);
+            hand = (hand + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the entry in the given slot and shifts back following entries of the same probe sequence.
+     */
+    private void delete(int slot)
+    {
+        int free = slot;
+        for (int next = (free + 1) & mask; state(next) != EMPTY; next = (next + 1) & mask)
+        {
+            int home = (int) SegmentedCacheImpl.longKeyHash(Uns.getLong(address, keyOff(next))) & mask;
+            // the entry can be moved to the free slot if its home slot is not cyclically in (free, next]
+            boolean stays = free <= next
+                            ? free < home && home <= next
+                            : free < home || home <= next;
+            if (stays)
+                continue;
+
+            Uns.copyMemory(address, keyOff(next), address, keyOff(free), slotLen);
+            state(free, state(next));
+            free = next;
+        }
+        state(free, EMPTY);
+        size--;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.Closeable;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Asynchronous facade of an off-heap cache, built using {@link OHCacheBuilder#buildAsync(com.google.common.cache.CacheLoader)}.
+ * Missing values are loaded on the builder's executor - calling threads never block on a load.
+ * Concurrent requests for a key that is being loaded share the same load.
+ */
+public interface OHAsyncCache<K, V> extends Closeable
+{
+    /**
+     * Returns a future for the value of the given key. The future is already completed if the cache contains
+     * a value that has not expired. Otherwise the value is loaded asynchronously and put into the cache.
+     * A value older than {@link OHCacheBuilder#refreshAfterWrite(long)} is returned and reloaded in the background.
+     */
+    ListenableFuture<V> get(K key);
+
+    /**
+     * Returns a future for the values of all given keys. Keys missing in the cache are loaded using a single call
+     * to {@link com.google.common.cache.CacheLoader#loadAll(Iterable)}, falling back to individual loads if the
+     * loader does not support bulk loads. The future fails if any of the loads fails.
+     */
+    ListenableFuture<ImmutableMap<K, V>> getAll(Iterable<? extends K> keys);
+
+    /**
+     * Returns the value of the given key if it is present and has not expired without loading it.
+     */
+    V getIfPresent(K key);
+
+    void put(K key, V value);
+
+    void invalidate(K key);
+
+    void invalidateAll();
+
+    long size();
+
+    CacheStats stats();
+
+    OHCacheStats extendedStats();
+}
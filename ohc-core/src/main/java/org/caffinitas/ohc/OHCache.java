@@ -16,12 +16,49 @@
 package org.caffinitas.ohc;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.Map;
 
+import com.google.common.base.Predicate;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
 
 public interface OHCache<K, V> extends Cache<K, V>, Closeable
 {
+    /**
+     * Returned by {@link #getIfKnown(Object)} for a key that has been recorded as absent using
+     * {@link #putAbsent(Object, long)}.
+     */
+    Object NOT_FOUND = new Object()
+    {
+        public String toString()
+        {
+            return "NOT_FOUND";
+        }
+    };
+
+    /**
+     * Records that the key is absent (e.g. in the backing store) for {@code ttl} milliseconds by putting a
+     * tombstone - an entry without a value that replaces an existing entry for the key. A tombstone is not
+     * returned by {@link #getIfPresent(Object)}, the iterators or the {@link #asMap() map view} and does not prevent
+     * {@code putIfAbsent}. Tombstones are evicted before all other entries.
+     *
+     * @throws IllegalArgumentException if {@code ttl} is not positive
+     */
+    void putAbsent(K key, long ttl);
+
+    /**
+     * Returns the value for the key like {@link #getIfPresent(Object)}, {@link #NOT_FOUND} if the key has been
+     * recorded as absent using {@link #putAbsent(Object, long)} and the tombstone has not expired yet, or
+     * {@code null} if nothing is known about the key.
+     */
+    Object getIfKnown(K key);
+
     boolean isStatisticsEnabled();
 
     void setStatisticsEnabled(boolean statisticsEnabled);
@@ -34,13 +71,118 @@ public interface OHCache<K, V> extends Cache<K, V>, Closeable
 
     long getCapacity();
 
+    /**
+     * Changes the capacity of the cache at runtime, distributed evenly across all segments. Growing takes effect
+     * immediately. When shrinking, least recently used entries are evicted (or moved to the spill file) a few at a
+     * time until each segment fits into its new capacity - this method returns when that is done.
+     * The maximum entry size does not change. A cache in shared memory cannot grow beyond the capacity its shared
+     * memory image has been created with.
+     *
+     * @throws IllegalArgumentException      if the capacity per segment is not larger than the maximum entry size or
+     *                                       if a cache in shared memory would grow beyond its initial capacity
+     * @throws UnsupportedOperationException if the cache is part of an {@link OHCachePool}, which manages its capacity
+     */
+    void setCapacity(long capacity);
+
     long getMemUsed();
 
     long freeCapacity();
 
     Iterator<K> hotN(int n);
 
+    /**
+     * Returns a weakly consistent iterator over all keys. Segments are visited one after the other and only a small
+     * range of hash buckets is pinned at a time. Keys added or removed during the iteration may or may not be returned.
+     */
+    Iterator<K> keyIterator();
+
+    /**
+     * Returns a weakly consistent iterator over all entries like {@link #keyIterator()}.
+     */
+    Iterator<Map.Entry<K, V>> entryIterator();
+
+    /**
+     * Returns a weakly consistent iterator over the serialized keys and (uncompressed) values of all entries like
+     * {@link #keyIterator()}. The returned buffers are heap copies using the configured
+     * {@link OHCacheBuilder#bufferByteOrder(java.nio.ByteOrder) byte order}.
+     */
+    Iterator<Map.Entry<ByteBuffer, ByteBuffer>> rawEntryIterator();
+
+    /**
+     * Returns a weakly consistent iterator over all entries that can be split into parts by segment and hash bucket
+     * range using {@link CacheSpliterator#trySplit()} - e.g. to scan or aggregate the entries using multiple threads.
+     */
+    CacheSpliterator<Map.Entry<K, V>> entrySpliterator();
+
     OHCacheStats extendedStats();
 
     double getLoadFactor();
+
+    /**
+     * Removes all entries whose serialized key matches the predicate. Keys are not deserialized - the predicate is
+     * called with a read-only view of the serialized key in off-heap memory, which is only valid during the call.
+     * The predicate is called while holding a segment lock, so it must be fast and must not access the cache.
+     * Segments are scanned one small range of hash buckets at a time, in parallel if an
+     * {@link OHCacheBuilder#executor(java.util.concurrent.Executor) executor} has been configured.
+     * Entries added concurrently may or may not be removed. Matching entries in the spill file are removed as well,
+     * their keys are read from the file.
+     *
+     * @return number of removed entries
+     */
+    long invalidateIf(Predicate<ByteBuffer> keyPredicate);
+
+    /**
+     * Removes all entries whose serialized key starts with the given bytes like {@link #invalidateIf(com.google.common.base.Predicate)}.
+     *
+     * @return number of removed entries
+     */
+    long invalidateKeysWithPrefix(byte[] prefix);
+
+    /**
+     * Writes the raw contents of the cache including the recency order of the entries to the specified file.
+     * The file can be loaded into a new cache instance using {@link OHCacheBuilder#loadFrom(java.nio.file.Path)}.
+     * Entries are serialized per segment without blocking concurrent cache operations for long.
+     */
+    void snapshot(Path path) throws IOException;
+
+    /**
+     * Writes a snapshot like {@link #snapshot(java.nio.file.Path)}, but visits only a small range of hash buckets
+     * at a time and limits the write rate to {@code maxBytesPerSecond}. Suitable to run in the background while
+     * the cache serves traffic. Entries added or removed during the snapshot may or may not be contained in it
+     * and the recency order of the entries is not retained.
+     */
+    void snapshot(Path path, long maxBytesPerSecond) throws IOException;
+
+    /**
+     * Streams the raw contents of the cache to the specified channel, e.g. a pipe or socket to a new process that
+     * reads it using {@link #importFrom(java.nio.channels.ReadableByteChannel)}. The channel must be in blocking
+     * mode - a slow reader slows down the export, only a small number of entries is pinned at a time.
+     * Entries are not deserialized and the channel is not closed. Entries added or removed during the export may
+     * or may not be contained in the stream and the recency order of the entries is not retained.
+     */
+    void exportTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Reads a stream written by {@link #exportTo(java.nio.channels.WritableByteChannel)} and puts the raw entries
+     * into this cache, replacing existing entries with the same keys. Keys and values are not deserialized, so the
+     * cache must use the same serializers as the exporting cache. The channel is not closed.
+     *
+     * @return number of entries read from the stream
+     */
+    long importFrom(ReadableByteChannel channel) throws IOException;
+
+    /**
+     * Writes the serialized keys of the {@code n} most recently used entries to the specified file,
+     * most recently used first. See {@link #warmUp(java.nio.file.Path, com.google.common.cache.CacheLoader, int, double)}.
+     */
+    void saveKeys(Path path, int n) throws IOException;
+
+    /**
+     * Re-populates the cache with the keys saved by {@link #saveKeys(java.nio.file.Path, int)} using the
+     * {@link com.google.common.cache.CacheLoader#loadAll(Iterable) bulk loader} of the given {@code loader}.
+     * Keys are loaded in batches by {@code concurrency} threads at a rate of at most {@code maxKeysPerSecond}
+     * keys (not limited if {@code <= 0}). Entries already present in the cache are not replaced.
+     * Returns when all keys have been processed - progress is reported in {@link #extendedStats()}.
+     */
+    void warmUp(Path path, CacheLoader<K, V> loader, int concurrency, double maxKeysPerSecond) throws IOException;
 }
@@ -15,6 +15,13 @@
  */
 package org.caffinitas.ohc;
 
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
+import com.google.common.cache.CacheLoader;
+
 public class OHCacheBuilder<K, V>
 {
     private int segmentCount;
@@ -22,10 +29,29 @@ public class OHCacheBuilder<K, V>
     private long capacity = 64L * 1024L * 1024L;
     private CacheSerializer<K> keySerializer;
     private CacheSerializer<V> valueSerializer;
+    private ByteBufferCacheSerializer<K> keyBufferSerializer;
+    private ByteBufferCacheSerializer<V> valueBufferSerializer;
+    private ByteOrder bufferByteOrder = ByteOrder.BIG_ENDIAN;
     private double loadFactor;
     private double cleanUpTriggerFree = -1d;
     private boolean statisticsEnabled;
     private double maxEntrySize;
+    private int compressionThreshold;
+    private int chunkSize;
+    private Path sharedMemoryFile;
+    private long sharedMemorySize;
+    private Path spillFile;
+    private long spillFileSize;
+    private Executor executor;
+    private long loadWaitTimeout;
+    private long expireAfterWrite;
+    private long refreshAfterWrite;
+    private int lockSpins;
+    private long bloomFilterEntries;
+    private OHCachePool pool;
+    private long poolMinCapacity;
+    private long poolMaxCapacity;
+    private double poolWeight = 1d;
 
     private OHCacheBuilder()
     {
@@ -41,6 +67,106 @@ public class OHCacheBuilder<K, V>
         return new SegmentedCacheImpl<>(this);
     }
 
+    /**
+     * Builds a new cache with keys of type {@code long}, which need no key serializer. Only the value serializer
+     * is used. Spill files are not supported for long keys.
+     */
+    public OHLongCache<V> buildLongCache()
+    {
+        if (spillFile != null)
+            throw new IllegalArgumentException("spill file not supported for long keys");
+
+        OHCacheBuilder<Long, V> longKeys = (OHCacheBuilder<Long, V>) copy(valueSerializer, valueBufferSerializer);
+        longKeys.keySerializer = null;
+        longKeys.keyBufferSerializer = null;
+        return new LongCacheImpl<>(new SegmentedCacheImpl<>(longKeys));
+    }
+
+    /**
+     * Builds a new map with keys of type {@code long} and values of {@code valueWidth} bytes, which are both stored
+     * inline in open addressed hash tables. Uses {@link #capacity(long)}, {@link #segmentCount(int)},
+     * {@link #loadFactor(double)} and {@link #lockSpins(int)} - all other settings, including the serializers,
+     * are ignored.
+     */
+    public OHLongMap buildLongMap(int valueWidth)
+    {
+        return new LongMapImpl(this, valueWidth);
+    }
+
+    /**
+     * Builds a new cache with an asynchronous facade that loads missing values using the given {@code loader}
+     * on the configured {@link #executor(java.util.concurrent.Executor) executor}, which is required.
+     * Values are stored with their write timestamp to support {@link #expireAfterWrite(long)} and
+     * {@link #refreshAfterWrite(long)}.
+     */
+    public OHAsyncCache<K, V> buildAsync(CacheLoader<K, V> loader)
+    {
+        if (loader == null)
+            throw new NullPointerException();
+        if (executor == null)
+            throw new IllegalArgumentException("executor required for asynchronous loads");
+        if (refreshAfterWrite > 0L && expireAfterWrite > 0L && refreshAfterWrite >= expireAfterWrite)
+            throw new IllegalArgumentException("refreshAfterWrite must be less than expireAfterWrite");
+
+        OHCacheBuilder<K, AsyncCacheImpl.Stamped<V>> stamped = copy(AsyncCacheImpl.stampedSerializer(valueSerializer),
+                                                                    AsyncCacheImpl.stampedSerializer(valueBufferSerializer));
+        return new AsyncCacheImpl<>(new SegmentedCacheImpl<>(stamped), loader, executor, expireAfterWrite, refreshAfterWrite);
+    }
+
+    private <W> OHCacheBuilder<K, W> copy(CacheSerializer<W> valueSerializer, ByteBufferCacheSerializer<W> valueBufferSerializer)
+    {
+        OHCacheBuilder<K, W> b = new OHCacheBuilder<>();
+        b.segmentCount = segmentCount;
+        b.hashTableSize = hashTableSize;
+        b.capacity = capacity;
+        b.keySerializer = keySerializer;
+        b.valueSerializer = valueSerializer;
+        b.keyBufferSerializer = keyBufferSerializer;
+        b.valueBufferSerializer = valueBufferSerializer;
+        b.bufferByteOrder = bufferByteOrder;
+        b.loadFactor = loadFactor;
+        b.cleanUpTriggerFree = cleanUpTriggerFree;
+        b.statisticsEnabled = statisticsEnabled;
+        b.maxEntrySize = maxEntrySize;
+        b.compressionThreshold = compressionThreshold;
+        b.chunkSize = chunkSize;
+        b.sharedMemoryFile = sharedMemoryFile;
+        b.sharedMemorySize = sharedMemorySize;
+        b.spillFile = spillFile;
+        b.spillFileSize = spillFileSize;
+        b.executor = executor;
+        b.loadWaitTimeout = loadWaitTimeout;
+        b.expireAfterWrite = expireAfterWrite;
+        b.refreshAfterWrite = refreshAfterWrite;
+        b.lockSpins = lockSpins;
+        b.bloomFilterEntries = bloomFilterEntries;
+        b.pool = pool;
+        b.poolMinCapacity = poolMinCapacity;
+        b.poolMaxCapacity = poolMaxCapacity;
+        b.poolWeight = poolWeight;
+        return b;
+    }
+
+    /**
+     * Builds a new cache and loads the entries of a snapshot written by {@link OHCache#snapshot(java.nio.file.Path)}.
+     * The serializers must produce the same serialized form as the ones used by the cache that wrote the snapshot.
+     * Entries that do not fit into the new cache's configuration are skipped.
+     */
+    public OHCache<K, V> loadFrom(Path snapshot) throws IOException
+    {
+        SegmentedCacheImpl<K, V> cache = new SegmentedCacheImpl<>(this);
+        try
+        {
+            CacheSnapshot.load(cache, snapshot);
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
     public int getHashTableSize()
     {
         return hashTableSize;
@@ -85,6 +211,275 @@ public class OHCacheBuilder<K, V>
         return this;
     }
 
+    public ByteBufferCacheSerializer<K> getKeyBufferSerializer()
+    {
+        return keyBufferSerializer;
+    }
+
+    /**
+     * Use a {@link java.nio.ByteBuffer} based serializer for keys instead of {@link #keySerializer(CacheSerializer)}.
+     */
+    public OHCacheBuilder<K, V> keyBufferSerializer(ByteBufferCacheSerializer<K> keyBufferSerializer)
+    {
+        this.keyBufferSerializer = keyBufferSerializer;
+        return this;
+    }
+
+    public ByteBufferCacheSerializer<V> getValueBufferSerializer()
+    {
+        return valueBufferSerializer;
+    }
+
+    /**
+     * Use a {@link java.nio.ByteBuffer} based serializer for values instead of {@link #valueSerializer(CacheSerializer)}.
+     */
+    public OHCacheBuilder<K, V> valueBufferSerializer(ByteBufferCacheSerializer<V> valueBufferSerializer)
+    {
+        this.valueBufferSerializer = valueBufferSerializer;
+        return this;
+    }
+
+    public ByteOrder getBufferByteOrder()
+    {
+        return bufferByteOrder;
+    }
+
+    /**
+     * Byte order of the buffers passed to {@link ByteBufferCacheSerializer}s, defaults to
+     * {@link java.nio.ByteOrder#BIG_ENDIAN}. Use {@link java.nio.ByteOrder#nativeOrder()} for best performance.
+     */
+    public OHCacheBuilder<K, V> bufferByteOrder(ByteOrder bufferByteOrder)
+    {
+        this.bufferByteOrder = bufferByteOrder;
+        return this;
+    }
+
+    public Path getSharedMemoryFile()
+    {
+        return sharedMemoryFile;
+    }
+
+    /**
+     * Keep hash tables and entries in a memory mapped file, e.g. on {@code /dev/shm}, tmpfs or a DAX file system.
+     * A cache that has been closed cleanly is re-attached by the next cache instance built for the same file with
+     * the same capacity and segment count - even by another process. Otherwise the file is re-initialized.
+     */
+    public OHCacheBuilder<K, V> sharedMemoryFile(Path sharedMemoryFile)
+    {
+        this.sharedMemoryFile = sharedMemoryFile;
+        return this;
+    }
+
+    public long getSharedMemorySize()
+    {
+        return sharedMemorySize;
+    }
+
+    /**
+     * Size of the shared memory file, defaults to twice the capacity plus room for the hash tables.
+     */
+    public OHCacheBuilder<K, V> sharedMemorySize(long sharedMemorySize)
+    {
+        this.sharedMemorySize = sharedMemorySize;
+        return this;
+    }
+
+    public Path getSpillFile()
+    {
+        return spillFile;
+    }
+
+    /**
+     * Write entries evicted from memory asynchronously to this file, e.g. on a local SSD.
+     * A lookup that misses in memory checks the spill file and promotes a found entry back to memory.
+     * The file is re-initialized when the cache is built and deleted when the cache is closed.
+     */
+    public OHCacheBuilder<K, V> spillFile(Path spillFile)
+    {
+        this.spillFile = spillFile;
+        return this;
+    }
+
+    public long getSpillFileSize()
+    {
+        return spillFileSize;
+    }
+
+    /**
+     * Maximum size of the spill file, defaults to four times the capacity. The file is written like a ring buffer,
+     * the oldest spilled entries are overwritten first.
+     */
+    public OHCacheBuilder<K, V> spillFileSize(long spillFileSize)
+    {
+        this.spillFileSize = spillFileSize;
+        return this;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Executor used to parallelize work on behalf of a single caller, e.g. deserializing the values of large
+     * {@link OHCache#getAllPresent(Iterable)} batches. Work is done by the calling thread if not set.
+     */
+    public OHCacheBuilder<K, V> executor(Executor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    public long getLoadWaitTimeout()
+    {
+        return loadWaitTimeout;
+    }
+
+    /**
+     * Maximum time in milliseconds that {@link OHCache#get(Object, java.util.concurrent.Callable)} waits for
+     * a load of the same key by another caller, defaults to {@code 0} (no timeout). A caller that times out
+     * gets an {@link java.util.concurrent.ExecutionException} caused by a {@link java.util.concurrent.TimeoutException}.
+     */
+    public OHCacheBuilder<K, V> loadWaitTimeout(long loadWaitTimeout)
+    {
+        this.loadWaitTimeout = loadWaitTimeout;
+        return this;
+    }
+
+    public long getExpireAfterWrite()
+    {
+        return expireAfterWrite;
+    }
+
+    /**
+     * Time in milliseconds after which a value loaded or put via {@link #buildAsync(com.google.common.cache.CacheLoader)}
+     * is no longer returned and loaded again. Defaults to {@code 0} (values do not expire). Expired entries are
+     * replaced on access or evicted like any other entry.
+     */
+    public OHCacheBuilder<K, V> expireAfterWrite(long expireAfterWrite)
+    {
+        this.expireAfterWrite = expireAfterWrite;
+        return this;
+    }
+
+    public long getRefreshAfterWrite()
+    {
+        return refreshAfterWrite;
+    }
+
+    /**
+     * Time in milliseconds after which an access to a value of a cache built via
+     * {@link #buildAsync(com.google.common.cache.CacheLoader)} starts an asynchronous
+     * {@link com.google.common.cache.CacheLoader#reload(Object, Object) reload} while still returning the current
+     * value. Must be less than {@link #expireAfterWrite(long)}, defaults to {@code 0} (no refresh).
+     */
+    public OHCacheBuilder<K, V> refreshAfterWrite(long refreshAfterWrite)
+    {
+        this.refreshAfterWrite = refreshAfterWrite;
+        return this;
+    }
+
+    public int getLockSpins()
+    {
+        return lockSpins;
+    }
+
+    /**
+     * Number of attempts to acquire a contended segment lock before the calling thread parks, defaults to
+     * {@code 0} (park immediately). Segment locks are {@link java.util.concurrent.locks.ReentrantLock}s, so
+     * waiting virtual threads do not pin their carrier threads. Spinning may help if segments are only held for
+     * very short periods and there are enough CPU cores.
+     */
+    public OHCacheBuilder<K, V> lockSpins(int lockSpins)
+    {
+        if (lockSpins < 0)
+            throw new IllegalArgumentException("lockSpins must not be negative");
+        this.lockSpins = lockSpins;
+        return this;
+    }
+
+    public long getBloomFilterEntries()
+    {
+        return bloomFilterEntries;
+    }
+
+    /**
+     * Expected number of entries in the whole cache to size a counting Bloom filter per segment, defaults to
+     * {@code 0} (no filter). With a filter, lookups of missing keys are usually answered without locking a segment.
+     * The filters use 8 bytes of off-heap memory per expected entry in addition to the capacity and yield about 3%
+     * false positives when the expected number of entries is not exceeded.
+     */
+    public OHCacheBuilder<K, V> bloomFilterEntries(long bloomFilterEntries)
+    {
+        this.bloomFilterEntries = bloomFilterEntries;
+        return this;
+    }
+
+    public OHCachePool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Builds the cache against a pool of capacity shared with other caches. The capacity of the cache is then
+     * managed by the pool within {@link #poolMinCapacity(long)} and {@link #poolMaxCapacity(long)} - the configured
+     * {@link #capacity(long)} is ignored. Statistics are always enabled for pooled caches, the pool uses them to
+     * find caches that are cold relative to their {@link #poolWeight(double) weight}.
+     * Pooled caches cannot use shared memory.
+     */
+    public OHCacheBuilder<K, V> pool(OHCachePool pool)
+    {
+        this.pool = pool;
+        return this;
+    }
+
+    public long getPoolMinCapacity()
+    {
+        return poolMinCapacity;
+    }
+
+    /**
+     * Capacity guaranteed to the cache by its {@link #pool(OHCachePool) pool}, defaults to the smallest capacity
+     * that is sufficient for the configured {@link #maxEntrySize(double) maximum entry size}.
+     */
+    public OHCacheBuilder<K, V> poolMinCapacity(long poolMinCapacity)
+    {
+        this.poolMinCapacity = poolMinCapacity;
+        return this;
+    }
+
+    public long getPoolMaxCapacity()
+    {
+        return poolMaxCapacity;
+    }
+
+    /**
+     * Maximum capacity the {@link #pool(OHCachePool) pool} assigns to the cache, defaults to the capacity of the
+     * pool. Also the base for the {@link #maxEntrySize(double) maximum entry size}.
+     */
+    public OHCacheBuilder<K, V> poolMaxCapacity(long poolMaxCapacity)
+    {
+        this.poolMaxCapacity = poolMaxCapacity;
+        return this;
+    }
+
+    public double getPoolWeight()
+    {
+        return poolWeight;
+    }
+
+    /**
+     * Weight of the cache in its {@link #pool(OHCachePool) pool}, defaults to {@code 1}. Caches with equal activity
+     * get capacity proportional to their weights.
+     */
+    public OHCacheBuilder<K, V> poolWeight(double poolWeight)
+    {
+        if (poolWeight <= 0d)
+            throw new IllegalArgumentException("poolWeight must be positive");
+        this.poolWeight = poolWeight;
+        return this;
+    }
+
     public double getCleanUpTriggerFree()
     {
         return cleanUpTriggerFree;
@@ -139,4 +534,34 @@ public class OHCacheBuilder<K, V>
         this.maxEntrySize = maxEntrySize;
         return this;
     }
+
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    /**
+     * Serialized values with at least the given number of bytes are stored LZ4 compressed, if that reduces
+     * their size. A value of {@code 0} (the default) disables compression.
+     */
+    public OHCacheBuilder<K, V> compressionThreshold(int compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Values too large for {@link #maxEntrySize(double)} are stored in a chain of off-heap chunks of the given
+     * size, if set. A value of {@code 0} (the default) disables chunked values - too large values are not cached.
+     */
+    public OHCacheBuilder<K, V> chunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+        return this;
+    }
 }
@@ -0,0 +1,329 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Off-heap capacity shared by multiple caches, which are built against the pool using
+ * {@link OHCacheBuilder#pool(OHCachePool)}. Each cache has a minimum and maximum quota and a weight.
+ * <p>
+ * The pool periodically redistributes its capacity: each cache gets a share proportional to its weight multiplied by
+ * its recent activity (reads and writes, decaying over time), bounded by its quotas. Caches that are cold relative to
+ * their weight shrink - evicting their least recently used entries - in favor of busy caches. Rebalancing is
+ * scheduled every few thousand writes to a cache and runs on a background thread of the pool, it can also be
+ * triggered using {@link #rebalance()}. The capacity of a pooled cache cannot be changed using
+ * {@link OHCache#setCapacity(long)}.
+ * </p>
+ */
+public final class OHCachePool
+{
+    // approximate number of writes to a cache between two rebalancing runs
+    static final int REBALANCE_WRITES = 4096;
+
+    // capacity changes of less than 1/MIN_CHANGE of a cache's capacity are not applied
+    private static final int MIN_CHANGE = 16;
+
+    private final long capacity;
+    private final List<Member> members = new ArrayList<>();
+    // sum of the minimum capacities of caches that are being built
+    private long reservedCapacity;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // rebalancing triggered by writes runs here - shrinking caches must not block writing threads
+    private final ThreadPoolExecutor rebalancer;
+    private final AtomicBoolean rebalanceScheduled = new AtomicBoolean();
+    private final Runnable rebalanceTask = new Runnable()
+    {
+        public void run()
+        {
+            // writes from now on may schedule the next run
+            rebalanceScheduled.set(false);
+            rebalance();
+        }
+    };
+
+    public OHCachePool(long capacity)
+    {
+        if (capacity <= 0L)
+            throw new IllegalArgumentException("Invalid pool capacity " + capacity);
+        this.capacity = capacity;
+
+        // the thread terminates when idle, so an unused pool does not keep it
+        this.rebalancer = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                 new ThreadFactoryBuilder().setDaemon(true)
+                                                                           .setNameFormat("OHC-pool-rebalancer-%d")
+                                                                           .build());
+        this.rebalancer.allowCoreThreadTimeOut(true);
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return sum of the current capacities of all caches in the pool
+     */
+    public long getAssignedCapacity()
+    {
+        lock.lock();
+        try
+        {
+            long assigned = 0L;
+            for (Member member : members)
+                assigned += member.cache.getCapacity();
+            return assigned;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getCacheCount()
+    {
+        lock.lock();
+        try
+        {
+            return members.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Redistributes the pool's capacity between its caches.
+     */
+    public void rebalance()
+    {
+        lock.lock();
+        try
+        {
+            rebalance(true);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves the minimum capacity for a cache before it allocates anything. The cache joins the pool using
+     * {@link #join(Member, SegmentedCacheImpl)} when it has been built or releases the reservation using
+     * {@link #cancel(Member)} if building it fails.
+     *
+     * @param minCapacity minimum capacity, already raised to the minimum the cache supports
+     */
+    Member reserve(long minCapacity, long maxCapacity, double weight)
+    {
+        if (minCapacity > maxCapacity)
+            throw new IllegalArgumentException("Minimum capacity " + minCapacity + " exceeds maximum capacity " + maxCapacity);
+
+        lock.lock();
+        try
+        {
+            long mins = reservedCapacity + minCapacity;
+            for (Member member : members)
+                mins += member.minCapacity;
+            if (mins > capacity)
+                throw new IllegalArgumentException("Minimum capacities of pooled caches exceed pool capacity " + capacity);
+
+            reservedCapacity += minCapacity;
+            return new Member(this, minCapacity, maxCapacity, weight);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a completely built cache to the pool and assigns its initial capacity.
+     */
+    void join(Member member, SegmentedCacheImpl<?, ?> cache)
+    {
+        lock.lock();
+        try
+        {
+            reservedCapacity -= member.minCapacity;
+            member.cache = cache;
+            members.add(member);
+            // forced - the new cache has been built with its maximum capacity
+            rebalance(false);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void cancel(Member member)
+    {
+        lock.lock();
+        try
+        {
+            reservedCapacity -= member.minCapacity;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void unregister(Member member)
+    {
+        lock.lock();
+        try
+        {
+            members.remove(member);
+            rebalance(true);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called on each write to a pooled cache. Schedules a rebalancing run every {@link #REBALANCE_WRITES} writes -
+     * unless a run is already scheduled.
+     */
+    void written(Member member)
+    {
+        // racy counter, an approximate interval is good enough
+        if ((++member.writes & (REBALANCE_WRITES - 1)) != 0)
+            return;
+
+        if (rebalanceScheduled.compareAndSet(false, true))
+            rebalancer.execute(rebalanceTask);
+    }
+
+    private void rebalance(boolean ignoreSmallChanges)
+    {
+        int n = members.size();
+        if (n == 0)
+            return;
+
+        // activity since the last run - halved each run, so that it reflects recent activity
+        double[] share = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            Member member = members.get(i);
+            long accesses = member.cache.accesses();
+            long delta = accesses >= member.lastAccesses ? accesses - member.lastAccesses : accesses;
+            member.lastAccesses = accesses;
+            member.heat = member.heat / 2d + delta;
+            share[i] = member.weight * (member.heat + 1d);
+        }
+
+        long[] targets = targets(share);
+
+        // shrink first, so that the pool's capacity is not exceeded while caches grow
+        for (int pass = 0; pass < 2; pass++)
+            for (int i = 0; i < n; i++)
+            {
+                Member member = members.get(i);
+                long current = member.cache.getCapacity();
+                long target = targets[i];
+                boolean shrink = target < current;
+                if (target == current || shrink != (pass == 0))
+                    continue;
+                if (ignoreSmallChanges && Math.abs(target - current) < current / MIN_CHANGE
+                    && target >= member.minCapacity && target <= member.maxCapacity)
+                    continue;
+                member.cache.resize(target);
+            }
+    }
+
+    /**
+     * Distributes the pool's capacity proportional to the shares of the caches, bounded by their quotas
+     * (water filling).
+     */
+    private long[] targets(double[] share)
+    {
+        int n = share.length;
+        long[] targets = new long[n];
+        boolean[] fixed = new boolean[n];
+        long remaining = capacity;
+        while (true)
+        {
+            double shares = 0d;
+            for (int i = 0; i < n; i++)
+                if (!fixed[i])
+                    shares += share[i];
+            if (shares == 0d)
+                return targets;
+
+            // fix caches whose proportional share violates a quota and distribute the rest again
+            boolean changed = false;
+            for (int i = 0; i < n; i++)
+            {
+                if (fixed[i])
+                    continue;
+                Member member = members.get(i);
+                long target = (long) (remaining * share[i] / shares);
+                if (target < member.minCapacity || target > member.maxCapacity)
+                {
+                    targets[i] = target < member.minCapacity ? member.minCapacity : member.maxCapacity;
+                    fixed[i] = true;
+                    remaining -= targets[i];
+                    changed = true;
+                    break;
+                }
+            }
+            if (changed)
+                continue;
+
+            for (int i = 0; i < n; i++)
+                if (!fixed[i])
+                    targets[i] = (long) (remaining * share[i] / shares);
+            return targets;
+        }
+    }
+
+    static final class Member
+    {
+        final OHCachePool pool;
+        // set when the cache joins the pool
+        SegmentedCacheImpl<?, ?> cache;
+        final long minCapacity;
+        final long maxCapacity;
+        final double weight;
+
+        long writes;
+        long lastAccesses;
+        double heat;
+
+        Member(OHCachePool pool, long minCapacity, long maxCapacity, double weight)
+        {
+            this.pool = pool;
+            this.minCapacity = minCapacity;
+            this.maxCapacity = maxCapacity;
+            this.weight = weight;
+        }
+    }
+}
@@ -31,10 +31,29 @@ public final class OHCacheStats
     private final long putReplaceCount;
     private final long putFailCount;
     private final long unlinkCount;
+    private final long compressedCount;
+    private final long decompressCount;
+    private final long decompressTime;
+    private final long warmUpKeyCount;
+    private final long warmUpLoadCount;
+    private final long warmUpFailCount;
+    private final long warmUpTime;
+    private final long spillWriteCount;
+    private final long spillHitCount;
+    private final long bloomNegativeCount;
+    private final long bloomFalsePositiveCount;
+    private final long tombstoneCount;
+    private final long tombstonePutCount;
+    private final long tombstoneHitCount;
 
     public OHCacheStats(CacheStats cacheStats, long[] hashPartitionLengths, long size, long capacity, long free,
                         long cleanupCount, long rehashCount,
-                        long putAddCount, long putReplaceCount, long putFailCount, long unlinkCount)
+                        long putAddCount, long putReplaceCount, long putFailCount, long unlinkCount,
+                        long compressedCount, long decompressCount, long decompressTime,
+                        long warmUpKeyCount, long warmUpLoadCount, long warmUpFailCount, long warmUpTime,
+                        long spillWriteCount, long spillHitCount,
+                        long bloomNegativeCount, long bloomFalsePositiveCount,
+                        long tombstoneCount, long tombstonePutCount, long tombstoneHitCount)
     {
         this.cacheStats = cacheStats;
         this.hashPartitionLengths = hashPartitionLengths;
@@ -47,6 +66,20 @@ public final class OHCacheStats
         this.putReplaceCount = putReplaceCount;
         this.putFailCount = putFailCount;
         this.unlinkCount = unlinkCount;
+        this.compressedCount = compressedCount;
+        this.decompressCount = decompressCount;
+        this.decompressTime = decompressTime;
+        this.warmUpKeyCount = warmUpKeyCount;
+        this.warmUpLoadCount = warmUpLoadCount;
+        this.warmUpFailCount = warmUpFailCount;
+        this.warmUpTime = warmUpTime;
+        this.spillWriteCount = spillWriteCount;
+        this.spillHitCount = spillHitCount;
+        this.bloomNegativeCount = bloomNegativeCount;
+        this.bloomFalsePositiveCount = bloomFalsePositiveCount;
+        this.tombstoneCount = tombstoneCount;
+        this.tombstonePutCount = tombstonePutCount;
+        this.tombstoneHitCount = tombstoneHitCount;
     }
 
     public long getCapacity()
@@ -79,6 +112,9 @@ public final class OHCacheStats
         return hashPartitionLengths;
     }
 
+    /**
+     * Number of entries including tombstones - unlike {@link OHCache#size()}.
+     */
     public long getSize()
     {
         return size;
@@ -104,6 +140,135 @@ public final class OHCacheStats
         return unlinkCount;
     }
 
+    /**
+     * Number of values that have been stored compressed.
+     */
+    public long getCompressedCount()
+    {
+        return compressedCount;
+    }
+
+    /**
+     * Number of values that have been decompressed.
+     */
+    public long getDecompressCount()
+    {
+        return decompressCount;
+    }
+
+    /**
+     * Total time spent in decompression in nanoseconds.
+     */
+    public long getDecompressTime()
+    {
+        return decompressTime;
+    }
+
+    /**
+     * Number of keys read from saved key files during warm-up.
+     */
+    public long getWarmUpKeyCount()
+    {
+        return warmUpKeyCount;
+    }
+
+    /**
+     * Number of entries loaded and put into the cache during warm-up.
+     */
+    public long getWarmUpLoadCount()
+    {
+        return warmUpLoadCount;
+    }
+
+    /**
+     * Number of keys that the loader failed to load during warm-up.
+     */
+    public long getWarmUpFailCount()
+    {
+        return warmUpFailCount;
+    }
+
+    /**
+     * Total time spent in warm-up in nanoseconds, including a currently running warm-up.
+     */
+    public long getWarmUpTime()
+    {
+        return warmUpTime;
+    }
+
+    /**
+     * Number of entries loaded per second during warm-up.
+     */
+    public double warmUpRate()
+    {
+        return warmUpTime > 0L ? warmUpLoadCount * 1000000000d / warmUpTime : 0d;
+    }
+
+    /**
+     * Number of evicted entries written to the spill file.
+     */
+    public long getSpillWriteCount()
+    {
+        return spillWriteCount;
+    }
+
+    /**
+     * Number of lookups that missed in memory but found the entry in the spill file.
+     */
+    public long getSpillHitCount()
+    {
+        return spillHitCount;
+    }
+
+    /**
+     * Number of lookups answered as misses by the Bloom filter without locking a segment.
+     */
+    public long getBloomFilterNegativeCount()
+    {
+        return bloomNegativeCount;
+    }
+
+    /**
+     * Number of lookups the Bloom filter did not rule out, but that found no entry in memory.
+     */
+    public long getBloomFilterFalsePositiveCount()
+    {
+        return bloomFalsePositiveCount;
+    }
+
+    /**
+     * Fraction of lookups of missing keys that the Bloom filter did not rule out.
+     */
+    public double bloomFilterFalsePositiveRate()
+    {
+        long misses = bloomNegativeCount + bloomFalsePositiveCount;
+        return misses > 0L ? (double) bloomFalsePositiveCount / misses : 0d;
+    }
+
+    /**
+     * Number of tombstones currently in the cache - included in {@link #getSize()}.
+     */
+    public long getTombstoneCount()
+    {
+        return tombstoneCount;
+    }
+
+    /**
+     * Number of tombstones put via {@link OHCache#putAbsent(Object, long)}.
+     */
+    public long getTombstonePutCount()
+    {
+        return tombstonePutCount;
+    }
+
+    /**
+     * Number of lookups answered by a tombstone that has not expired - also counted as misses.
+     */
+    public long getTombstoneHitCount()
+    {
+        return tombstoneHitCount;
+    }
+
     public double averageHashPartitionLength()
     {
         return avgOf(hashPartitionLengths);
@@ -130,6 +295,11 @@ public final class OHCacheStats
                       .add("rehashCount", rehashCount)
                       .add("put(add/replace/fail)", Long.toString(putAddCount)+'/'+putReplaceCount+'/'+putFailCount)
                       .add("unlinkCount", unlinkCount)
+                      .add("compressed/decompressed/decompressTime", Long.toString(compressedCount)+'/'+decompressCount+'/'+decompressTime)
+                      .add("warmUp(keys/loaded/failed/time)", Long.toString(warmUpKeyCount)+'/'+warmUpLoadCount+'/'+warmUpFailCount+'/'+warmUpTime)
+                      .add("spill(written/hits)", Long.toString(spillWriteCount)+'/'+spillHitCount)
+                      .add("bloomFilter(negatives/falsePositives)", Long.toString(bloomNegativeCount)+'/'+bloomFalsePositiveCount)
+                      .add("tombstones(count/puts/hits)", Long.toString(tombstoneCount)+'/'+tombstonePutCount+'/'+tombstoneHitCount)
                       .add("hashPartitionLengths(#/min/max/avg)", String.format("%d/%d/%d/%.2f", hashPartitionLengths.length, minHashPartitionLength(), maxHashPartitionLength(), averageHashPartitionLength()))
                       .toString();
     }
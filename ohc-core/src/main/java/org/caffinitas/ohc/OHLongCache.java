@@ -0,0 +1,60 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.Closeable;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Off-heap cache with keys of type {@code long}, built using {@link OHCacheBuilder#buildLongCache()}.
+ * Keys need no serializer - they are stored inline in the hash entry and hashed with a cheap bit mixer,
+ * so operations do not allocate any heap objects for the key.
+ */
+public interface OHLongCache<V> extends Closeable
+{
+    /**
+     * Returns the value for the given key or {@code null} if the cache contains no entry for the key.
+     */
+    V get(long key);
+
+    void put(long key, V value);
+
+    /**
+     * Puts the value only if the cache contains no entry for the key.
+     *
+     * @return {@code true} if the value has been stored
+     */
+    boolean putIfAbsent(long key, V value);
+
+    boolean containsKey(long key);
+
+    void invalidate(long key);
+
+    void invalidateAll();
+
+    long size();
+
+    long getCapacity();
+
+    long freeCapacity();
+
+    void resetStatistics();
+
+    CacheStats stats();
+
+    OHCacheStats extendedStats();
+}
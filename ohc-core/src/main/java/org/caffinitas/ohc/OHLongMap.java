@@ -0,0 +1,104 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.Closeable;
+
+/**
+ * Off-heap map with keys of type {@code long} and fixed width values, built using
+ * {@link OHCacheBuilder#buildLongMap(int)}. Keys and values are stored inline in the slots of open addressed
+ * hash tables - an entry occupies the key, the value and a single state byte, there are no per entry headers
+ * or allocations. When a segment is full, entries are evicted using CLOCK (second chance).
+ * <p>
+ * Methods taking or returning {@code long} values require a value width of 8 bytes.
+ * Methods taking {@code byte[]} values require arrays of exactly the value width.
+ * </p>
+ */
+public interface OHLongMap extends Closeable
+{
+    /**
+     * @return the value for the given key or {@code absent} if the map contains no entry for the key
+     */
+    long get(long key, long absent);
+
+    /**
+     * Copies the value for the given key to {@code value}.
+     *
+     * @return {@code true} if the map contains an entry for the key
+     */
+    boolean get(long key, byte[] value);
+
+    void put(long key, long value);
+
+    void put(long key, byte[] value);
+
+    /**
+     * Sets the value for the key only if there is an entry with the value {@code expected}.
+     *
+     * @return {@code true} if the value has been set
+     */
+    boolean compareAndSet(long key, long expected, long value);
+
+    /**
+     * Sets the value for the key only if there is an entry with the value {@code expected}.
+     *
+     * @return {@code true} if the value has been set
+     */
+    boolean compareAndSet(long key, byte[] expected, byte[] value);
+
+    /**
+     * Atomically adds {@code delta} to the value for the key. A missing entry is created with the value
+     * {@code delta}.
+     *
+     * @return the new value
+     */
+    long addAndGet(long key, long delta);
+
+    boolean containsKey(long key);
+
+    /**
+     * @return {@code true} if an entry has been removed
+     */
+    boolean remove(long key);
+
+    void clear();
+
+    long size();
+
+    /**
+     * @return width of the values in bytes
+     */
+    int getValueWidth();
+
+    /**
+     * @return maximum number of entries before entries are evicted
+     */
+    long getMaxSize();
+
+    /**
+     * @return number of off-heap bytes used by the hash tables - independent of the number of entries
+     */
+    long getMemUsed();
+
+    long evictedEntries();
+
+    void resetStatistics();
+
+    /**
+     * Releases the off-heap memory of the map.
+     */
+    void close();
+}
@@ -15,22 +15,34 @@
  */
 package org.caffinitas.ohc;
 
-import static org.caffinitas.ohc.Constants.BUCKET_ENTRY_LEN;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.caffinitas.ohc.alloc.IAllocator;
+
+import static org.caffinitas.ohc.Constants.*;
 
 final class OffHeapMap
 {
     // maximum hash table size
     private static final int MAX_TABLE_SIZE = 1 << 27;
+    // number of keys whose lookups are interleaved by getEntries()
+    static final int LOOKUP_GROUP = 16;
 
-    private final long capacity;
+    private long capacity;
     private long freeCapacity;
-    private final long cleanUpTriggerFree;
+    private long cleanUpTriggerFree;
 
     private Table table;
     private long size;
+    // number of tombstones, included in size
+    private long tombstones;
     private long threshold;
     private final double loadFactor;
 
+    private final IAllocator allocator;
+    private final SpillFile spillFile;
+
     private long lruHead;
     private long lruTail;
 
@@ -38,29 +50,173 @@ final class OffHeapMap
     private long cleanUpCount;
     private long evictedEntries;
 
-    OffHeapMap(OHCacheBuilder builder, long capacity, long cleanUpTriggerFree)
+    private final SegmentLock lock;
+
+    // counting Bloom filter over the hashes of all entries, null if not configured
+    private final CountingBloomFilter filter;
+
+    /**
+     * @param filterEntries expected number of entries for the Bloom filter, {@code 0} for no filter
+     */
+    OffHeapMap(OHCacheBuilder builder, long capacity, long cleanUpTriggerFree, IAllocator allocator, SpillFile spillFile,
+               long filterEntries)
     {
         this.capacity = capacity;
         this.freeCapacity = capacity;
         this.cleanUpTriggerFree = cleanUpTriggerFree;
+        this.allocator = allocator;
+        this.spillFile = spillFile;
+        this.lock = new SegmentLock(builder.getLockSpins());
+        this.filter = filterEntries > 0L ? new CountingBloomFilter(filterEntries) : null;
 
         int hts = builder.getHashTableSize();
         if (hts <= 0)
             hts = 8192;
         if (hts < 256)
             hts = 256;
-        table = new Table(roundUpToPowerOf2(hts));
+        table = new Table(allocator, roundUpToPowerOf2(hts));
+
+        this.loadFactor = loadFactor(builder);
+        threshold = (long) ((double) table.size() * loadFactor);
+    }
+
+    /**
+     * Re-attaches a segment whose state has been saved to shared memory using {@link #saveState(long, long)}.
+     */
+    OffHeapMap(OHCacheBuilder builder, long capacity, long cleanUpTriggerFree, IAllocator allocator, SpillFile spillFile,
+               long filterEntries, long stateAdr, long stateOff)
+    {
+        this.capacity = capacity;
+        this.cleanUpTriggerFree = cleanUpTriggerFree;
+        this.allocator = allocator;
+        this.spillFile = spillFile;
+        this.lock = new SegmentLock(builder.getLockSpins());
+        this.filter = filterEntries > 0L ? new CountingBloomFilter(filterEntries) : null;
+        this.loadFactor = loadFactor(builder);
+
+        table = new Table(allocator, Uns.getPointer(stateAdr, stateOff + SEGMENT_STATE_OFF_TABLE),
+                          (int) Uns.getLong(stateAdr, stateOff + SEGMENT_STATE_OFF_TABLE_SIZE));
+        threshold = (long) ((double) table.size() * loadFactor);
+        lruHead = Uns.getPointer(stateAdr, stateOff + SEGMENT_STATE_OFF_LRU_HEAD);
+        lruTail = Uns.getPointer(stateAdr, stateOff + SEGMENT_STATE_OFF_LRU_TAIL);
+        size = Uns.getLong(stateAdr, stateOff + SEGMENT_STATE_OFF_SIZE);
+        tombstones = Uns.getLong(stateAdr, stateOff + SEGMENT_STATE_OFF_TOMBSTONES);
+        // the capacity might have been changed at runtime by the previous process
+        freeCapacity = Uns.getLong(stateAdr, stateOff + SEGMENT_STATE_OFF_FREE_CAPACITY)
+                       + capacity - Uns.getLong(stateAdr, stateOff + SEGMENT_STATE_OFF_CAPACITY);
+
+        // the filter is not part of the shared memory - take it from the re-attached entries
+        if (filter != null)
+            for (int p = 0; p < table.size(); p++)
+                for (long hashEntryAdr = table.first(p);
+                     hashEntryAdr != 0L;
+                     hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+                    filter.add(HashEntries.getHash(hashEntryAdr));
+    }
+
+    /**
+     * Lock guarding all operations on a segment. Threads waiting for the lock park instead of blocking on a
+     * monitor, so a long clean-up or rehash does not pin the carrier threads of waiting virtual threads.
+     * Optionally retries to acquire a contended lock {@code spins} times before parking.
+     */
+    static final class SegmentLock
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int spins;
+
+        SegmentLock(int spins)
+        {
+            this.spins = spins;
+        }
+
+        void lock()
+        {
+            for (int i = spins; i > 0; i--)
+                if (lock.tryLock())
+                    return;
+            lock.lock();
+        }
+
+        void unlock()
+        {
+            lock.unlock();
+        }
+
+        int getHoldCount()
+        {
+            return lock.getHoldCount();
+        }
+
+        boolean isHeldByCurrentThread()
+        {
+            return lock.isHeldByCurrentThread();
+        }
+
+        boolean hasQueuedThreads()
+        {
+            return lock.hasQueuedThreads();
+        }
+    }
 
+    private static double loadFactor(OHCacheBuilder builder)
+    {
         double lf = builder.getLoadFactor();
         if (lf <= .0d)
             lf = .75d;
-        this.loadFactor = lf;
-        threshold = (long) ((double) table.size() * loadFactor);
+        return lf;
+    }
+
+    /**
+     * Saves the state of this segment to shared memory. The segment must not be used afterwards.
+     */
+    void saveState(long stateAdr, long stateOff)
+    {
+        lock.lock();
+        try
+        {
+            Uns.putPointer(stateAdr, stateOff + SEGMENT_STATE_OFF_TABLE, table.address);
+            Uns.putLong(stateAdr, stateOff + SEGMENT_STATE_OFF_TABLE_SIZE, table.size());
+            Uns.putPointer(stateAdr, stateOff + SEGMENT_STATE_OFF_LRU_HEAD, lruHead);
+            Uns.putPointer(stateAdr, stateOff + SEGMENT_STATE_OFF_LRU_TAIL, lruTail);
+            Uns.putLong(stateAdr, stateOff + SEGMENT_STATE_OFF_SIZE, size);
+            Uns.putLong(stateAdr, stateOff + SEGMENT_STATE_OFF_TOMBSTONES, tombstones);
+            Uns.putLong(stateAdr, stateOff + SEGMENT_STATE_OFF_FREE_CAPACITY, freeCapacity);
+            Uns.putLong(stateAdr, stateOff + SEGMENT_STATE_OFF_CAPACITY, capacity);
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     void release()
     {
         table.release();
+        releaseFilter();
+    }
+
+    /**
+     * Releases the Bloom filter, which is not part of the state saved to shared memory.
+     */
+    void releaseFilter()
+    {
+        if (filter != null)
+            filter.release();
+    }
+
+    /**
+     * Answers whether the segment might contain an entry with the given hash without locking the segment.
+     *
+     * @return {@code false} if the segment definitely contains no entry with the hash
+     */
+    boolean mightContain(long hash)
+    {
+        return filter == null || filter.mightContain(hash);
+    }
+
+    boolean hasFilter()
+    {
+        return filter != null;
     }
 
     long size()
@@ -68,6 +224,11 @@ final class OffHeapMap
         return size;
     }
 
+    long tombstones()
+    {
+        return tombstones;
+    }
+
     long capacity()
     {
         return capacity;
@@ -100,43 +261,372 @@ final class OffHeapMap
         return evictedEntries;
     }
 
-    synchronized long getEntry(KeyBuffer key)
+    long getEntry(KeyBuffer key)
     {
-        for (long hashEntryAdr = table.first(key.hash());
-             hashEntryAdr != 0L;
-             hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+        lock.lock();
+        try
         {
-            if (notSameKey(key, hashEntryAdr))
-                continue;
+            for (long hashEntryAdr = table.first(key.hash());
+                 hashEntryAdr != 0L;
+                 hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+            {
+                if (notSameKey(key, hashEntryAdr))
+                    continue;
 
-            // return existing entry
+                // return existing entry
 
-            touch(hashEntryAdr);
+                touch(hashEntryAdr);
 
-            HashEntries.reference(hashEntryAdr);
+                HashEntries.reference(hashEntryAdr);
+
+                return hashEntryAdr;
+            }
+
+            // not found
 
+            return 0L;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #getEntry(KeyBuffer)} for a key of {@link OHLongCache}, which is stored inline in the hash entry.
+     */
+    long getEntry(long hash, long key)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = find(hash, key);
+            if (hashEntryAdr != 0L)
+            {
+                touch(hashEntryAdr);
+                HashEntries.reference(hashEntryAdr);
+            }
             return hashEntryAdr;
         }
+        finally
+        {
+            lock.unlock();
+        }
+    }
 
-        // not found
+    /**
+     * Looks up multiple keys at once. For each index {@code order[from..to-1]} the referenced hash entry for
+     * {@code keys[index]} or {@code 0} is stored in {@code entries[index]}.
+     * <p>
+     * Keys are looked up in groups of {@link #LOOKUP_GROUP} keys and each group proceeds in stages: first the bucket
+     * heads of all keys are read, then the chains are walked to the first entry with the same hash, then the keys
+     * are compared. The loads within a stage do not depend on each other, so the CPU can overlap their cache misses
+     * instead of waiting for each lookup in turn - Java does not offer explicit prefetch instructions.
+     * </p>
+     */
+    void getEntries(KeyBuffer[] keys, int[] order, int from, int to, long[] entries)
+    {
+        lock.lock();
+        try
+        {
+            Table tab = table;
+            for (int group = from; group < to; group = Math.min(group + LOOKUP_GROUP, to))
+            {
+                int end = Math.min(group + LOOKUP_GROUP, to);
 
-        return 0L;
+                // bucket heads
+                for (int i = group; i < end; i++)
+                    entries[order[i]] = tab.first(keys[order[i]].hash());
+
+                // entry headers - first candidate with the same hash
+                for (int i = group; i < end; i++)
+                    entries[order[i]] = nextWithHash(entries[order[i]], keys[order[i]].hash());
+
+                // keys
+                for (int i = group; i < end; i++)
+                {
+                    int index = order[i];
+                    KeyBuffer key = keys[index];
+                    long hashEntryAdr = entries[index];
+                    while (hashEntryAdr != 0L && notSameKey(key, hashEntryAdr))
+                        hashEntryAdr = nextWithHash(HashEntries.getNext(hashEntryAdr), key.hash());
+
+                    if (hashEntryAdr != 0L)
+                    {
+                        touch(hashEntryAdr);
+                        HashEntries.reference(hashEntryAdr);
+                    }
+                    entries[index] = hashEntryAdr;
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
-    synchronized boolean putEntry(KeyBuffer key, long newHashEntryAdr, long bytes)
+    private static long nextWithHash(long hashEntryAdr, long hash)
+    {
+        while (hashEntryAdr != 0L && HashEntries.getHash(hashEntryAdr) != hash)
+            hashEntryAdr = HashEntries.getNext(hashEntryAdr);
+        return hashEntryAdr;
+    }
+
+    boolean putEntry(KeyBuffer key, long newHashEntryAdr, long bytes)
+    {
+        lock.lock();
+        try
+        {
+            return putEntry(key, key.hash(), newHashEntryAdr, bytes);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts multiple new entries at once - {@code entries[index]} for {@code keys[index]} for each index
+     * {@code order[from..to-1]}. Entries with address {@code 0} are skipped. Space for all entries is
+     * recycled in a single clean-up pass.
+     *
+     * @param added receives for each index whether the entry has been added ({@code true}) or replaced an existing one
+     */
+    void putEntries(KeyBuffer[] keys, long[] entries, int[] order, int from, int to, boolean[] added)
+    {
+        lock.lock();
+        try
+        {
+            long required = 0L;
+            for (int i = from; i < to; i++)
+                if (entries[order[i]] != 0L)
+                    required += HashEntries.getAllocLen(entries[order[i]]);
+            if (freeCapacity - required < cleanUpTriggerFree)
+                cleanUp(required);
+
+            for (int i = from; i < to; i++)
+            {
+                int index = order[i];
+                if (entries[index] != 0L)
+                    added[index] = putEntry(keys[index], keys[index].hash(), entries[index], HashEntries.getAllocLen(entries[index]));
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put the new entry only if there is no entry for the same key. If there is one, the new entry is freed.
+     * A tombstone for the key is replaced.
+     *
+     * @return {@code true} if the new entry has been added
+     */
+    boolean putEntryIfAbsent(KeyBuffer key, long newHashEntryAdr, long bytes)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = find(key);
+            if (hashEntryAdr != 0L && !HashEntries.isTombstone(hashEntryAdr))
+            {
+                // keep existing entry
+
+                HashEntries.free(newHashEntryAdr, allocator);
+
+                return false;
+            }
+
+            putEntry(key, key.hash(), newHashEntryAdr, bytes);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #putEntryIfAbsent(KeyBuffer, long, long)}, but returns the existing entry.
+     *
+     * @return referenced existing hash entry, which must be dereferenced by the caller, or {@code 0} if the new
+     * entry has been added
+     */
+    long putEntryIfAbsentOrGet(KeyBuffer key, long newHashEntryAdr, long bytes)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = find(key);
+            if (hashEntryAdr != 0L && !HashEntries.isTombstone(hashEntryAdr))
+            {
+                HashEntries.free(newHashEntryAdr, allocator);
+                touch(hashEntryAdr);
+                HashEntries.reference(hashEntryAdr);
+                return hashEntryAdr;
+            }
+
+            putEntry(key, key.hash(), newHashEntryAdr, bytes);
+            return 0L;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the new entry and returns the replaced one. If {@code ifPresent} is set, the new entry is only put
+     * if there is an entry for the key, which is not a tombstone - otherwise it is freed.
+     *
+     * @return referenced replaced hash entry, which must be dereferenced by the caller, or {@code 0}
+     */
+    long replaceEntry(KeyBuffer key, long newHashEntryAdr, long bytes, boolean ifPresent)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = find(key);
+            if ((hashEntryAdr == 0L || HashEntries.isTombstone(hashEntryAdr)) && ifPresent)
+            {
+                HashEntries.free(newHashEntryAdr, allocator);
+                return 0L;
+            }
+
+            // keep the replaced entry alive for the caller
+            if (hashEntryAdr != 0L)
+                HashEntries.reference(hashEntryAdr);
+            putEntry(key, key.hash(), newHashEntryAdr, bytes);
+            return hashEntryAdr;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the new entry only if the value of the existing entry for the key equals the staged value
+     * {@code expected}, see {@link HashEntries#compareValue(long, SerializationBuffer, boolean)}.
+     * The new entry is freed if it is not put.
+     *
+     * @return {@code true} if the new entry has been put
+     */
+    boolean replaceEntry(KeyBuffer key, SerializationBuffer expected, boolean compressed, long newHashEntryAdr, long bytes)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = find(key);
+            if (hashEntryAdr == 0L || !HashEntries.compareValue(hashEntryAdr, expected, compressed))
+            {
+                HashEntries.free(newHashEntryAdr, allocator);
+                return false;
+            }
+
+            putEntry(key, key.hash(), newHashEntryAdr, bytes);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Promotes an entry read from the spill file back to memory - unless the key has been put or invalidated
+     * in the meantime. The new entry is freed if it is not promoted.
+     *
+     * @return referenced hash entry for the key, which must be dereferenced by the caller, or {@code 0}
+     */
+    long promoteEntry(KeyBuffer key, long newHashEntryAdr, long bytes, long position)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = getEntry(key);
+            if (hashEntryAdr != 0L || spillFile.position(key.hash()) != position)
+            {
+                HashEntries.free(newHashEntryAdr, allocator);
+                return hashEntryAdr;
+            }
+
+            HashEntries.reference(newHashEntryAdr);
+            putEntry(key, key.hash(), newHashEntryAdr, bytes);
+            return newHashEntryAdr;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put an entry whose key is only available in the new hash entry itself (e.g. restored from a snapshot or
+     * a key of {@link OHLongCache}).
+     */
+    boolean putEntry(long newHashEntryAdr, long bytes)
+    {
+        lock.lock();
+        try
+        {
+            return putEntry(null, HashEntries.getHash(newHashEntryAdr), newHashEntryAdr, bytes);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #putEntryIfAbsent(KeyBuffer, long, long)} for an entry whose key is only available in the
+     * new hash entry itself.
+     */
+    boolean putEntryIfAbsent(long newHashEntryAdr, long bytes)
+    {
+        lock.lock();
+        try
+        {
+            long hash = HashEntries.getHash(newHashEntryAdr);
+            for (long hashEntryAdr = table.first(hash);
+                 hashEntryAdr != 0L;
+                 hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+            {
+                if (notSameKey(newHashEntryAdr, hashEntryAdr))
+                    continue;
+
+                HashEntries.free(newHashEntryAdr, allocator);
+                return false;
+            }
+
+            return putEntry(null, hash, newHashEntryAdr, bytes);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean putEntry(KeyBuffer key, long hash, long newHashEntryAdr, long bytes)
     {
         if (freeCapacity - bytes < cleanUpTriggerFree)
-            cleanUp();
+            cleanUp(bytes);
+
+        // a spilled entry for the key is stale now (the clean-up above might have spilled the current entry)
+        if (spillFile != null)
+            spillFile.invalidate(hash);
 
         freeCapacity -= bytes;
 
         long hashEntryAdr;
         long prevEntryAdr = 0L;
-        for (hashEntryAdr = table.first(key.hash());
+        for (hashEntryAdr = table.first(hash);
              hashEntryAdr != 0L;
              prevEntryAdr = hashEntryAdr, hashEntryAdr = HashEntries.getNext(hashEntryAdr))
         {
-            if (notSameKey(key, hashEntryAdr))
+            if (key != null ? notSameKey(key, hashEntryAdr) : notSameKey(newHashEntryAdr, hashEntryAdr))
                 continue;
 
             // replace existing entry
@@ -153,6 +643,9 @@ final class OffHeapMap
                 rehash();
 
             size++;
+            // before the new entry becomes visible to lock-free readers of the filter
+            if (filter != null)
+                filter.add(hash);
         }
 
         add(newHashEntryAdr);
@@ -160,48 +653,292 @@ final class OffHeapMap
         return hashEntryAdr == 0L;
     }
 
-    synchronized void clear()
+    void clear()
     {
-        lruHead = lruTail = 0L;
-        size = 0L;
+        lock.lock();
+        try
+        {
+            lruHead = lruTail = 0L;
+            size = 0L;
+            tombstones = 0L;
+            if (filter != null)
+                filter.clear();
+
+            long next;
+            for (int p = 0; p < table.size(); p++)
+                for (long hashEntryAdr = table.first(p);
+                     hashEntryAdr != 0L;
+                     hashEntryAdr = next)
+                {
+                    next = HashEntries.getNext(hashEntryAdr);
 
-        long next;
-        for (int p = 0; p < table.size(); p++)
-            for (long hashEntryAdr = table.first(p);
+                    dereference(hashEntryAdr);
+                }
+
+            table.clear();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entries for {@code keys[index]} for each index {@code order[from..to-1]}.
+     *
+     * @return number of removed entries
+     */
+    int removeEntries(KeyBuffer[] keys, int[] order, int from, int to)
+    {
+        lock.lock();
+        try
+        {
+            int removed = 0;
+            for (int i = from; i < to; i++)
+                if (removeEntry(keys[order[i]]))
+                    removed++;
+            return removed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    boolean removeEntry(KeyBuffer key)
+    {
+        lock.lock();
+        try
+        {
+            if (spillFile != null)
+                spillFile.invalidate(key.hash());
+
+            long prevEntryAdr = 0L;
+            for (long hashEntryAdr = table.first(key.hash());
                  hashEntryAdr != 0L;
-                 hashEntryAdr = next)
+                 prevEntryAdr = hashEntryAdr, hashEntryAdr = HashEntries.getNext(hashEntryAdr))
             {
-                next = HashEntries.getNext(hashEntryAdr);
+                if (notSameKey(key, hashEntryAdr))
+                    continue;
+
+                // remove existing entry
 
+                remove(hashEntryAdr, prevEntryAdr);
+                if (filter != null)
+                    filter.remove(HashEntries.getHash(hashEntryAdr));
                 dereference(hashEntryAdr);
+
+                size--;
+
+                return true;
             }
 
-        table.clear();
+            // no entry to remove
+
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
-    synchronized boolean removeEntry(KeyBuffer key)
+    /**
+     * Like {@link #removeEntry(KeyBuffer)} for a key of {@link OHLongCache}.
+     */
+    boolean removeEntry(long hash, long key)
     {
-        long prevEntryAdr = 0L;
-        for (long hashEntryAdr = table.first(key.hash());
-             hashEntryAdr != 0L;
-             prevEntryAdr = hashEntryAdr, hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+        lock.lock();
+        try
         {
-            if (notSameKey(key, hashEntryAdr))
-                continue;
+            if (spillFile != null)
+                spillFile.invalidate(hash);
 
-            // remove existing entry
+            long prevEntryAdr = 0L;
+            for (long hashEntryAdr = table.first(hash);
+                 hashEntryAdr != 0L;
+                 prevEntryAdr = hashEntryAdr, hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+            {
+                if (notSameKey(hash, key, hashEntryAdr))
+                    continue;
 
-            remove(hashEntryAdr, prevEntryAdr);
-            dereference(hashEntryAdr);
+                remove(hashEntryAdr, prevEntryAdr);
+                if (filter != null)
+                    filter.remove(HashEntries.getHash(hashEntryAdr));
+                dereference(hashEntryAdr);
 
-            size--;
+                size--;
 
-            return true;
+                return true;
+            }
+
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
         }
+    }
 
-        // no entry to remove
+    /**
+     * Removes the entry for the key only if its value equals the staged value {@code expected},
+     * see {@link HashEntries#compareValue(long, SerializationBuffer, boolean)}.
+     */
+    boolean removeEntry(KeyBuffer key, SerializationBuffer expected, boolean compressed)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = find(key);
+            if (hashEntryAdr == 0L || !HashEntries.compareValue(hashEntryAdr, expected, compressed))
+                return false;
 
-        return false;
+            return removeEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry for the key and returns it. The spill file is not touched if there is no entry for the key.
+     *
+     * @return referenced removed hash entry, which must be dereferenced by the caller, or {@code 0}
+     */
+    long removeAndGetEntry(KeyBuffer key)
+    {
+        lock.lock();
+        try
+        {
+            long hashEntryAdr = find(key);
+            if (hashEntryAdr == 0L)
+                return 0L;
+
+            // keep the removed entry alive for the caller
+            HashEntries.reference(hashEntryAdr);
+            removeEntry(key);
+            return hashEntryAdr;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry for the hash from the spill file, if the spill file index still refers to {@code ref}
+     * (see {@link SpillFile#slots(int)}).
+     */
+    boolean invalidateSpilled(long hash, long ref)
+    {
+        lock.lock();
+        try
+        {
+            return spillFile.invalidate(hash, ref);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the (referenced) tombstone {@code tombstoneAdr} if it is still the entry for the key.
+     */
+    boolean removeTombstone(KeyBuffer key, long tombstoneAdr)
+    {
+        lock.lock();
+        try
+        {
+            return find(key) == tombstoneAdr && removeEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Matches a serialized key in off-heap memory - of a hash entry or of an entry read from the spill file.
+     */
+    interface KeyPredicate
+    {
+        boolean matches(long address, long offset, long keyLen);
+    }
+
+    /**
+     * Removes all entries whose keys match the predicate in a range of buckets of the hash table as it was when
+     * it had {@code baseTableSize} buckets (see {@link #bucketEntries(int, int, int)}).
+     *
+     * @return number of removed entries
+     */
+    int removeEntries(int baseTableSize, int fromBucket, int toBucket, KeyPredicate predicate)
+    {
+        lock.lock();
+        try
+        {
+            int removed = 0;
+            Table tab = table;
+            for (int base = 0; base < tab.size(); base += baseTableSize)
+                for (int bucket = base + fromBucket; bucket < base + toBucket; bucket++)
+                {
+                    long next;
+                    long prevEntryAdr = 0L;
+                    for (long hashEntryAdr = tab.first(bucket);
+                         hashEntryAdr != 0L;
+                         hashEntryAdr = next)
+                    {
+                        next = HashEntries.getNext(hashEntryAdr);
+
+                        if (!predicate.matches(hashEntryAdr, ENTRY_OFF_DATA, HashEntries.getKeyLen(hashEntryAdr)))
+                        {
+                            prevEntryAdr = hashEntryAdr;
+                            continue;
+                        }
+
+                        remove(hashEntryAdr, prevEntryAdr);
+                        if (filter != null)
+                            filter.remove(HashEntries.getHash(hashEntryAdr));
+                        dereference(hashEntryAdr);
+
+                        size--;
+                        removed++;
+                    }
+                }
+            return removed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private long find(KeyBuffer key)
+    {
+        for (long hashEntryAdr = table.first(key.hash());
+             hashEntryAdr != 0L;
+             hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+            if (!notSameKey(key, hashEntryAdr))
+                return hashEntryAdr;
+        return 0L;
+    }
+
+    private long find(long hash, long key)
+    {
+        for (long hashEntryAdr = table.first(hash);
+             hashEntryAdr != 0L;
+             hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+            if (!notSameKey(hash, key, hashEntryAdr))
+                return hashEntryAdr;
+        return 0L;
+    }
+
+    private boolean notSameKey(long hash, long key, long hashEntryAdr)
+    {
+        return HashEntries.getHash(hashEntryAdr) != hash
+               || HashEntries.getKeyLen(hashEntryAdr) != LONG_KEY_LEN
+               || Uns.getLong(hashEntryAdr, ENTRY_OFF_DATA) != key;
     }
 
     private boolean notSameKey(KeyBuffer key, long hashEntryAdr)
@@ -215,6 +952,42 @@ final class OffHeapMap
                || !HashEntries.compareKey(hashEntryAdr, key, serKeyLen);
     }
 
+    private boolean notSameKey(long newHashEntryAdr, long hashEntryAdr)
+    {
+        if (HashEntries.getHash(hashEntryAdr) != HashEntries.getHash(newHashEntryAdr))
+            return true;
+
+        long serKeyLen = HashEntries.getKeyLen(hashEntryAdr);
+        return serKeyLen != HashEntries.getKeyLen(newHashEntryAdr)
+               || !HashEntries.compareKey(hashEntryAdr, newHashEntryAdr, serKeyLen);
+    }
+
+    /**
+     * Grows the hash table of an empty segment so that it can take {@code entries} entries without rehashing.
+     */
+    void presize(long entries)
+    {
+        lock.lock();
+        try
+        {
+            if (size > 0L)
+                return;
+
+            long required = (long) (entries / loadFactor) + 1L;
+            int tableSize = roundUpToPowerOf2((int) Math.min(required, MAX_TABLE_SIZE));
+            if (tableSize <= table.size())
+                return;
+
+            table.release();
+            table = new Table(allocator, tableSize);
+            threshold = (long) ((double) table.size() * loadFactor);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
     private void rehash()
     {
         Table tab = table;
@@ -225,7 +998,7 @@ final class OffHeapMap
             return;
         }
 
-        Table newTable = new Table(tableSize * 2);
+        Table newTable = new Table(allocator, tableSize * 2);
         long next;
 
         for (int part = 0; part < tableSize; part++)
@@ -242,6 +1015,7 @@ final class OffHeapMap
 
         threshold = (long) ((double) newTable.size() * loadFactor);
         table = newTable;
+        tab.release();
         rehashes++;
     }
 
@@ -252,18 +1026,87 @@ final class OffHeapMap
                : (number > 1) ? Integer.highestOneBit((number - 1) << 1) : 1;
     }
 
-    synchronized long[] hotN(int n)
+    long[] hotN(int n)
     {
-        long[] r = new long[n];
-        int i = 0;
-        for (long hashEntryAdr = lruHead;
-             hashEntryAdr != 0L;
-             hashEntryAdr = lruNext(hashEntryAdr))
+        lock.lock();
+        try
         {
-            r[i++] = hashEntryAdr;
-            HashEntries.reference(hashEntryAdr);
+            long[] r = new long[n];
+            int i = 0;
+            for (long hashEntryAdr = lruHead;
+                 hashEntryAdr != 0L && i < n;
+                 hashEntryAdr = lruNext(hashEntryAdr))
+            {
+                if (HashEntries.isTombstone(hashEntryAdr))
+                    continue;
+                r[i++] = hashEntryAdr;
+                HashEntries.reference(hashEntryAdr);
+            }
+            return r;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns all entries in LRU order starting with the least recently used one. Each returned
+     * entry has been referenced and must be dereferenced by the caller.
+     */
+    long[] lruEntries()
+    {
+        lock.lock();
+        try
+        {
+            long[] r = new long[(int) size];
+            int i = 0;
+            for (long hashEntryAdr = lruTail;
+                 hashEntryAdr != 0L && i < r.length;
+                 hashEntryAdr = lruPrev(hashEntryAdr))
+            {
+                r[i++] = hashEntryAdr;
+                HashEntries.reference(hashEntryAdr);
+            }
+            return i == r.length ? r : Arrays.copyOf(r, i);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the entries of a range of buckets of the hash table as it was when it had {@code baseTableSize}
+     * buckets. Since the hash table only grows, each entry that stays in the map is returned for exactly one
+     * bucket range, even if the hash table has been rehashed in the meantime. Each returned entry has been
+     * referenced and must be dereferenced by the caller.
+     */
+    long[] bucketEntries(int baseTableSize, int fromBucket, int toBucket)
+    {
+        lock.lock();
+        try
+        {
+            long[] r = new long[64];
+            int i = 0;
+            Table tab = table;
+            for (int base = 0; base < tab.size(); base += baseTableSize)
+                for (int bucket = base + fromBucket; bucket < base + toBucket; bucket++)
+                    for (long hashEntryAdr = tab.first(bucket);
+                         hashEntryAdr != 0L;
+                         hashEntryAdr = HashEntries.getNext(hashEntryAdr))
+                    {
+                        if (i == r.length)
+                            r = Arrays.copyOf(r, i * 2);
+                        r[i++] = hashEntryAdr;
+                        HashEntries.reference(hashEntryAdr);
+                    }
+            return Arrays.copyOf(r, i);
+        }
+        finally
+        {
+            lock.unlock();
         }
-        return r;
     }
 
     double loadFactor()
@@ -280,15 +1123,29 @@ final class OffHeapMap
     {
         final int mask;
         final long address;
+        private final IAllocator allocator;
 
-        public Table(int hashTableSize)
+        public Table(IAllocator allocator, int hashTableSize)
         {
             int msz = (int) BUCKET_ENTRY_LEN * hashTableSize;
-            this.address = Uns.allocate(msz);
+            this.allocator = allocator;
+            this.address = Uns.allocate(allocator, msz);
+            if (address == 0L)
+                throw new OutOfMemoryError("Unable to allocate " + msz + " bytes for hash table");
             mask = hashTableSize - 1;
             clear();
         }
 
+        /**
+         * Existing hash table, e.g. in shared memory.
+         */
+        Table(IAllocator allocator, long address, int hashTableSize)
+        {
+            this.allocator = allocator;
+            this.address = address;
+            mask = hashTableSize - 1;
+        }
+
         void clear()
         {
             // It's important to initialize the hash table memory.
@@ -298,17 +1155,17 @@ final class OffHeapMap
 
         void release()
         {
-            Uns.free(address);
+            Uns.free(allocator, address);
         }
 
         long first(long hash)
         {
-            return Uns.getLong(address, bucketOffset(hash));
+            return Uns.getPointer(address, bucketOffset(hash));
         }
 
         void first(long hash, long hashEntryAdr)
         {
-            Uns.putLong(address, bucketOffset(hash), hashEntryAdr);
+            Uns.putPointer(address, bucketOffset(hash), hashEntryAdr);
         }
 
         private long bucketOffset(long hash)
@@ -386,6 +1243,9 @@ final class OffHeapMap
             // other operations know about the previous hash-entry (since they walk through the entry-chain)
             table.removeLink(hash, hashEntryAdr, prevEntryAdr);
 
+        if (HashEntries.isTombstone(hashEntryAdr))
+            tombstones--;
+
         // LRU stuff
 
         long next = lruNext(hashEntryAdr);
@@ -408,6 +1268,23 @@ final class OffHeapMap
 
         table.addLinkAsHead(hash, hashEntryAdr);
 
+        if (HashEntries.isTombstone(hashEntryAdr))
+        {
+            // tombstones are added as the least recently used entries, so they are evicted first
+            tombstones++;
+
+            long t = lruTail;
+            lruPrev(hashEntryAdr, t);
+            if (t != 0L)
+                lruNext(t, hashEntryAdr);
+            lruNext(hashEntryAdr, 0L);
+            lruTail = hashEntryAdr;
+
+            if (lruHead == 0L)
+                lruHead = hashEntryAdr;
+            return;
+        }
+
         // LRU stuff
 
         long h = lruHead;
@@ -427,6 +1304,10 @@ final class OffHeapMap
             // short-cut - entry already at LRU head
             return;
 
+        if (HashEntries.isTombstone(hashEntryAdr))
+            // tombstones stay next to the LRU tail
+            return;
+
         // LRU stuff (basically a remove from LRU linked list)
 
         long next = lruNext(hashEntryAdr);
@@ -473,14 +1354,88 @@ final class OffHeapMap
         HashEntries.setLRUPrev(hashEntryAdr, prev);
     }
 
-    synchronized void freed(long bytes)
+    void freed(long bytes)
+    {
+        lock.lock();
+        try
+        {
+            freeCapacity += bytes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    void cleanUp()
+    {
+        lock.lock();
+        try
+        {
+            cleanUp(0L);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the capacity of this segment. Growing takes effect immediately. After shrinking, the free capacity
+     * may be negative until enough entries have been evicted using {@link #shrink(int)}.
+     */
+    void setCapacity(long capacity, long cleanUpTriggerFree)
     {
-        freeCapacity += bytes;
+        lock.lock();
+        try
+        {
+            freeCapacity += capacity - this.capacity;
+            this.capacity = capacity;
+            this.cleanUpTriggerFree = cleanUpTriggerFree;
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
-    synchronized void cleanUp()
+    /**
+     * Evicts at most {@code maxEntries} least recently used entries while the segment uses more than its capacity.
+     *
+     * @return {@code true} if the segment still uses more than its capacity
+     */
+    boolean shrink(int maxEntries)
     {
-        long recycleGoal = cleanUpTriggerFree - freeCapacity;
+        lock.lock();
+        try
+        {
+            // entries still referenced by readers are recycled later - count their bytes as recycled
+            long recycleGoal = -freeCapacity;
+            long evicted = 0L;
+            for (long hashEntryAdr = lruTail;
+                 hashEntryAdr != 0L && recycleGoal > 0L && evicted < maxEntries;
+                 hashEntryAdr = lruTail)
+            {
+                recycleGoal -= evict(hashEntryAdr);
+                evicted++;
+            }
+            evictedEntries += evicted;
+            return recycleGoal > 0L && lruTail != 0L;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the free capacity will still reach the clean-up trigger after
+     * {@code required} bytes have been allocated.
+     */
+    private void cleanUp(long required)
+    {
+        // a negative free capacity after shrinking the segment is recycled incrementally by shrink()
+        long recycleGoal = cleanUpTriggerFree + required - Math.max(freeCapacity, 0L);
         if (recycleGoal <= 0L)
             recycleGoal = 1L;
 
@@ -492,14 +1447,7 @@ final class OffHeapMap
         {
             prev = lruPrev(hashEntryAdr);
 
-            long bytes = HashEntries.getAllocLen(hashEntryAdr);
-
-            remove(hashEntryAdr, -1L);
-            dereference(hashEntryAdr);
-
-            size--;
-
-            recycleGoal -= bytes;
+            recycleGoal -= evict(hashEntryAdr);
 
             evicted++;
         }
@@ -508,6 +1456,29 @@ final class OffHeapMap
         evictedEntries += evicted;
     }
 
+    /**
+     * Removes the entry from the map and hands it over to the spill file, if configured.
+     *
+     * @return number of bytes recycled
+     */
+    private long evict(long hashEntryAdr)
+    {
+        long bytes = HashEntries.getAllocLen(hashEntryAdr);
+
+        remove(hashEntryAdr, -1L);
+        if (filter != null)
+            filter.remove(HashEntries.getHash(hashEntryAdr));
+        if (spillFile != null && !HashEntries.isTombstone(hashEntryAdr) && spillFile.offer(hashEntryAdr))
+            // the spill file took over the reference
+            freeCapacity += bytes;
+        else
+            dereference(hashEntryAdr);
+
+        size--;
+
+        return bytes;
+    }
+
     private void dereference(long hashEntryAdr)
     {
         if (HashEntries.dereference(hashEntryAdr))
@@ -516,7 +1487,7 @@ final class OffHeapMap
             if (bytes == 0L)
                 throw new IllegalStateException();
 
-            Uns.free(hashEntryAdr);
+            HashEntries.free(hashEntryAdr, allocator);
 
             freeCapacity += bytes;
         }
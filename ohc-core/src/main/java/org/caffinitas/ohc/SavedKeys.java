@@ -0,0 +1,268 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.caffinitas.ohc.Constants.ENTRY_OFF_DATA;
+
+/**
+ * Writes the serialized keys of the hottest entries to a file and re-populates a cache from such a file
+ * using a bulk loader.
+ * <p>
+ * File layout (native byte order): magic (long), version (int), reserved (int), keys as key length (int) and
+ * serialized key bytes, end marker {@code -1} (int), checksum over all preceding bytes (long).
+ * </p>
+ */
+final class SavedKeys
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SavedKeys.class);
+
+    // "OHCKeys1" - also detects files written on a platform with a different byte order
+    static final long MAGIC = 0x4f48434b65797331L;
+    static final int VERSION = 1;
+
+    // number of keys passed to CacheLoader.loadAll
+    static final int BATCH_SIZE = 100;
+
+    private SavedKeys()
+    {
+    }
+
+    static void write(SegmentedCacheImpl<?, ?> cache, Path path, int n) throws IOException
+    {
+        int segments = cache.getSegments();
+        long size = Math.max(cache.size(), 1L);
+
+        // entries are referenced - so they can be written outside of the segments' locks
+        long[][] hot = new long[segments][];
+        try
+        {
+            // take the hottest entries of each segment proportionally to the segment's size
+            int perSegment = 0;
+            for (int segment = 0; segment < segments; segment++)
+            {
+                long quota = (n * cache.segmentSize(segment) + size - 1) / size;
+                hot[segment] = cache.hotEntries(segment, (int) Math.min(quota, n));
+                perSegment = Math.max(perSegment, hot[segment].length);
+            }
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                EntryWriter out = new EntryWriter(channel);
+                try
+                {
+                    out.writeLong(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(0);
+
+                    // there is no global recency order - interleave the segments' LRU lists
+                    int written = 0;
+                    for (int i = 0; i < perSegment && written < n; i++)
+                        for (int segment = 0; segment < segments && written < n; segment++)
+                        {
+                            long hashEntryAdr = i < hot[segment].length ? hot[segment][i] : 0L;
+                            if (hashEntryAdr == 0L)
+                                continue;
+                            long keyLen = HashEntries.getKeyLen(hashEntryAdr);
+                            out.writeInt((int) keyLen);
+                            out.write(hashEntryAdr, ENTRY_OFF_DATA, keyLen);
+                            written++;
+                        }
+
+                    out.writeInt(-1);
+                    out.writeLong(out.checksum());
+                    out.flush();
+                }
+                finally
+                {
+                    out.release();
+                }
+                channel.force(true);
+            }
+            catch (IOException | RuntimeException | Error e)
+            {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            for (long[] entries : hot)
+                if (entries != null)
+                    for (long hashEntryAdr : entries)
+                        if (hashEntryAdr != 0L)
+                            cache.dereference(hashEntryAdr);
+        }
+    }
+
+    static <K, V> void warmUp(final SegmentedCacheImpl<K, V> cache, Path path, final CacheLoader<K, V> loader,
+                              int concurrency, double maxKeysPerSecond) throws IOException
+    {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("Invalid concurrency " + concurrency);
+
+        RateLimiter rateLimiter = maxKeysPerSecond > 0d ? RateLimiter.create(maxKeysPerSecond) : null;
+
+        // bounds the number of batches submitted but not yet loaded
+        int maxPending = concurrency * 2;
+        final Semaphore pending = new Semaphore(maxPending);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+                                                                             .setDaemon(true)
+                                                                             .setNameFormat("OHC-warm-up-%d")
+                                                                             .build());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            EntryReader in = new EntryReader(channel);
+            SerializationBuffer keyBuffer = SerializationBuffer.acquire();
+            try
+            {
+                if (in.readLong() != MAGIC)
+                    throw new IOException("Not an OHC key file or written on a platform with a different byte order: " + path);
+                int version = in.readInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported OHC key file version " + version + ": " + path);
+                in.readInt();
+
+                List<K> batch = new ArrayList<>(BATCH_SIZE);
+                int keyLen;
+                while ((keyLen = in.readInt()) >= 0)
+                {
+                    keyBuffer.ensureCapacity(Math.max(keyLen, 1));
+                    in.read(keyBuffer.address(), 0L, keyLen);
+                    batch.add(cache.deserializeKey(keyBuffer.address(), 0L, keyLen));
+
+                    if (batch.size() == BATCH_SIZE)
+                    {
+                        submit(cache, loader, batch, executor, pending, rateLimiter);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+
+                long checksum = in.checksum();
+                if (in.readLong() != checksum)
+                    throw new IOException("Checksum mismatch in OHC key file " + path);
+
+                if (!batch.isEmpty())
+                    submit(cache, loader, batch, executor, pending, rateLimiter);
+
+                // wait until all batches have been loaded
+                pending.acquire(maxPending);
+                pending.release(maxPending);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during warm-up from " + path);
+            }
+            finally
+            {
+                keyBuffer.release();
+                in.release();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static <K, V> void submit(final SegmentedCacheImpl<K, V> cache, final CacheLoader<K, V> loader,
+                                      final List<K> keys, ExecutorService executor, final Semaphore pending,
+                                      RateLimiter rateLimiter) throws InterruptedException
+    {
+        cache.warmUpKeysRead(keys.size());
+
+        if (rateLimiter != null)
+            rateLimiter.acquire(keys.size());
+
+        pending.acquire();
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    loadBatch(cache, loader, keys);
+                }
+                finally
+                {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    private static <K, V> void loadBatch(SegmentedCacheImpl<K, V> cache, CacheLoader<K, V> loader, List<K> keys)
+    {
+        long loaded = 0L;
+        long failed = 0L;
+        try
+        {
+            Map<K, V> values;
+            try
+            {
+                values = loader.loadAll(keys);
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // loader does not implement bulk loading
+                values = null;
+            }
+
+            for (K key : keys)
+            {
+                V value = values != null ? values.get(key) : loader.load(key);
+                if (value == null)
+                    failed++;
+                else if (cache.putInternal(key, value, true))
+                    loaded++;
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Failed to load keys during warm-up", e);
+            failed = keys.size() - loaded;
+        }
+        finally
+        {
+            cache.warmUpBatchDone(loaded, failed);
+        }
+    }
+}
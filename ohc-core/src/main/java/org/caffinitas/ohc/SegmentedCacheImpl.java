@@ -17,18 +17,44 @@ package org.caffinitas.ohc;
 
 import java.io.IOError;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.base.Predicate;
 import com.google.common.cache.CacheStats;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.caffinitas.ohc.alloc.IAllocator;
+
 import static org.caffinitas.ohc.Constants.*;
 
 public final class SegmentedCacheImpl<K, V> implements OHCache<K, V>
@@ -38,14 +64,43 @@ public final class SegmentedCacheImpl<K, V> implements OHCache<K, V>
 
     public static final int ONE_GIGABYTE = 1024 * 1024 * 1024;
 
+    // number of elements per task when (de)serializing large batches in parallel
+    static final int BATCH_SIZE = 128;
+
+    // number of entries evicted at a time while shrinking the capacity
+    private static final int SHRINK_ENTRIES = 256;
+
     private final CacheSerializer<K> keySerializer;
     private final CacheSerializer<V> valueSerializer;
+    private final ByteBufferCacheSerializer<K> keyBufferSerializer;
+    private final ByteBufferCacheSerializer<V> valueBufferSerializer;
+    private final ByteOrder bufferByteOrder;
+    private final Executor executor;
+
+    // loads in progress by get(K, Callable) - concurrent callers for the same key wait for the same load
+    private final ConcurrentMap<KeyBuffer, SettableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final long loadWaitTimeout;
 
     private final OffHeapMap[] maps;
+
+    private final IAllocator allocator;
+    private final SharedMemory sharedMemory;
+    // capacity the shared memory image has been created for - the cache cannot grow beyond it
+    private final long sharedMemoryCapacity;
+    private final SpillFile spillFile;
     private final long segmentMask;
     private final int segmentShift;
 
     private final long maxEntrySize;
+    // membership in a pool of shared capacity, null if the cache is not pooled
+    private final OHCachePool.Member poolMember;
+    // configured clean-up trigger, negative for auto-sizing - applied again when the capacity changes
+    private final double cleanUpTrigger;
+
+    private final int compressionThreshold;
+
+    private final long chunkSize;
+    private volatile long maxChunkedEntrySize;
 
     private boolean statisticsEnabled;
     private volatile long hitCount;
@@ -57,52 +112,41 @@ public final class SegmentedCacheImpl<K, V> implements OHCache<K, V>
     private volatile long putAddCount;
     private volatile long putReplaceCount;
     private volatile long removeCount;
+    private volatile long compressedCount;
+    private volatile long decompressCount;
+    private volatile long decompressTime;
+    private volatile long spillHitCount;
+    private volatile long bloomNegativeCount;
+    private volatile long bloomFalsePositiveCount;
+    private volatile long tombstonePutCount;
+    private volatile long tombstoneHitCount;
+    // warm-up runs with multiple threads - use atomic counters to report progress accurately
+    private final AtomicLong warmUpKeyCount = new AtomicLong();
+    private final AtomicLong warmUpLoadCount = new AtomicLong();
+    private final AtomicLong warmUpFailCount = new AtomicLong();
+    private final AtomicLong warmUpTime = new AtomicLong();
+    private volatile long warmUpStarted;
 
     public SegmentedCacheImpl(OHCacheBuilder<K, V> builder)
     {
-        long capacity = builder.getCapacity();
+        OHCachePool pool = builder.getPool();
+        if (pool != null && builder.getSharedMemoryFile() != null)
+            throw new IllegalArgumentException("Pooled caches cannot use shared memory");
+        // a pooled cache is built with its maximum capacity and shrunk by the pool when it joins
+        long capacity = pool == null ? builder.getCapacity()
+                                     : builder.getPoolMaxCapacity() > 0L ? builder.getPoolMaxCapacity() : pool.getCapacity();
 
         // calculate trigger for cleanup/eviction/replacement
-        double cuTrigger = builder.getCleanUpTriggerFree();
-        long cleanUpTriggerFree;
-        if (cuTrigger < 0d)
-        {
-            // auto-sizing
-
-            // 12.5% if capacity less than 8GB
-            // 10% if capacity less than 16 GB
-            // 5% if capacity is higher than 16GB
-            if (capacity < 8L * ONE_GIGABYTE)
-                cleanUpTriggerFree = (long) (.125d * capacity);
-            else if (capacity < 16L * ONE_GIGABYTE)
-                cleanUpTriggerFree = (long) (.10d * capacity);
-            else
-                cleanUpTriggerFree = (long) (.05d * capacity);
-        }
-        else
-        {
-            if (cuTrigger >= 1d)
-                throw new IllegalArgumentException("Invalid clean-up percentage trigger value " + String.format("%.2f", cuTrigger));
-            cuTrigger *= capacity;
-            cleanUpTriggerFree = (long) cuTrigger;
-        }
+        this.cleanUpTrigger = builder.getCleanUpTriggerFree();
+        if (cleanUpTrigger >= 1d)
+            throw new IllegalArgumentException("Invalid clean-up percentage trigger value " + String.format("%.2f", cleanUpTrigger));
+        long cleanUpTriggerFree = cleanUpTriggerFree(cleanUpTrigger, capacity);
 
         // build segments
         int segments = builder.getSegmentCount();
         if (segments <= 0)
             segments = Runtime.getRuntime().availableProcessors() * 2;
         segments = OffHeapMap.roundUpToPowerOf2(segments);
-        maps = new OffHeapMap[segments];
-        for (int i = 0; i < segments; i++)
-            maps[i] = new OffHeapMap(builder,
-                                     capacity / segments,
-                                     cleanUpTriggerFree / segments
-            );
-
-        // bit-mask for segment part of hash
-        int bitNum = bitNum(segments) - 1;
-        this.segmentShift = 64 - bitNum;
-        this.segmentMask = ((long) segments - 1) << segmentShift;
 
         // calculate max entry size
         double mes = builder.getMaxEntrySize();
@@ -113,10 +157,133 @@ public final class SegmentedCacheImpl<K, V> implements OHCache<K, V>
             maxEntrySize = (long) (mes * capacity / segments);
         this.maxEntrySize = maxEntrySize;
 
-        this.statisticsEnabled = builder.isStatisticsEnabled();
+        int chunkSize = builder.getChunkSize();
+        if (chunkSize > 0 && chunkSize <= CHUNK_OFF_DATA * 8)
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        this.chunkSize = chunkSize > 0 ? chunkSize : 0L;
+        // chunked values may occupy up to half of a segment's capacity
+        this.maxChunkedEntrySize = capacity / segments / 2;
+
+        // check the quotas before anything is allocated
+        this.poolMember = pool != null
+                          ? pool.reserve(Math.max(builder.getPoolMinCapacity(), segments * (maxEntrySize + 1)),
+                                         capacity,
+                                         builder.getPoolWeight())
+                          : null;
+
+        Path sharedMemoryFile = builder.getSharedMemoryFile();
+        if (sharedMemoryFile != null)
+        {
+            try
+            {
+                sharedMemory = SharedMemory.open(sharedMemoryFile, sharedMemorySize(builder, capacity, segments),
+                                                 segments, capacity);
+            }
+            catch (IOException e)
+            {
+                throw new IOError(e);
+            }
+            allocator = sharedMemory.allocator();
+            sharedMemoryCapacity = capacity;
+        }
+        else
+        {
+            sharedMemory = null;
+            sharedMemoryCapacity = 0L;
+            allocator = Uns.allocator();
+        }
+
+        Path spillPath = builder.getSpillFile();
+        if (spillPath != null)
+        {
+            long spillFileSize = builder.getSpillFileSize();
+            try
+            {
+                // memory used by evicted entries waiting to be written is bounded by the clean-up trigger
+                spillFile = new SpillFile(spillPath,
+                                          spillFileSize > 0L ? spillFileSize : capacity * 4,
+                                          allocator,
+                                          Math.max(cleanUpTriggerFree, 1024 * 1024));
+            }
+            catch (IOException e)
+            {
+                if (poolMember != null)
+                    pool.cancel(poolMember);
+                throw new IOError(e);
+            }
+        }
+        else
+            spillFile = null;
+
+        long filterEntries = builder.getBloomFilterEntries() > 0L ? builder.getBloomFilterEntries() / segments + 1 : 0L;
+        maps = new OffHeapMap[segments];
+        for (int i = 0; i < segments; i++)
+            maps[i] = sharedMemory != null && sharedMemory.attached()
+                      ? new OffHeapMap(builder,
+                                       capacity / segments,
+                                       cleanUpTriggerFree / segments,
+                                       allocator,
+                                       spillFile,
+                                       filterEntries,
+                                       sharedMemory.address(),
+                                       SharedMemory.segmentStateOffset(i))
+                      : new OffHeapMap(builder,
+                                       capacity / segments,
+                                       cleanUpTriggerFree / segments,
+                                       allocator,
+                                       spillFile,
+                                       filterEntries
+            );
+
+        // bit-mask for segment part of hash
+        int bitNum = bitNum(segments) - 1;
+        this.segmentShift = 64 - bitNum;
+        this.segmentMask = ((long) segments - 1) << segmentShift;
+
+        this.compressionThreshold = builder.getCompressionThreshold();
+
+        this.statisticsEnabled = builder.isStatisticsEnabled() || pool != null;
 
         this.keySerializer = builder.getKeySerializer();
         this.valueSerializer = builder.getValueSerializer();
+        this.keyBufferSerializer = builder.getKeyBufferSerializer();
+        this.valueBufferSerializer = builder.getValueBufferSerializer();
+        ByteOrder order = builder.getBufferByteOrder();
+        this.bufferByteOrder = order != null ? order : ByteOrder.BIG_ENDIAN;
+        this.executor = builder.getExecutor();
+        this.loadWaitTimeout = builder.getLoadWaitTimeout();
+
+        // join last, when the cache is completely initialized - the pool changes its capacity immediately
+        if (poolMember != null)
+            pool.join(poolMember, this);
+    }
+
+    private static long cleanUpTriggerFree(double cuTrigger, long capacity)
+    {
+        if (cuTrigger >= 0d)
+            return (long) (cuTrigger * capacity);
+
+        // auto-sizing
+
+        // 12.5% if capacity less than 8GB
+        // 10% if capacity less than 16 GB
+        // 5% if capacity is higher than 16GB
+        if (capacity < 8L * ONE_GIGABYTE)
+            return (long) (.125d * capacity);
+        if (capacity < 16L * ONE_GIGABYTE)
+            return (long) (.10d * capacity);
+        return (long) (.05d * capacity);
+    }
+
+    private static long sharedMemorySize(OHCacheBuilder<?, ?> builder, long capacity, int segments)
+    {
+        long size = builder.getSharedMemorySize();
+        if (size > 0L)
+            return size;
+
+        // room for allocation overhead and hash tables - tmpfs only uses pages that have been touched
+        int hts = Math.max(builder.getHashTableSize(), 8192);
+        return SharedMemory.headerLen(segments) + capacity * 2 + (long) segments * hts * BUCKET_ENTRY_LEN * 8;
     }
 
     private static int bitNum(long val)
@@ -133,23 +300,61 @@ public final class SegmentedCacheImpl<K, V> implements OHCache<K, V>
 
     public V getIfPresent(Object key)
     {
-        KeyBuffer keySource = keySource((K) key);
+        return getValue(keySource((K) key), statisticsEnabled);
+    }
+
+    public Object getIfKnown(K key)
+    {
+        return getKnown(keySource(key), statisticsEnabled);
+    }
+
+    private V getValue(KeyBuffer keySource, boolean recordStats)
+    {
+        Object v = getKnown(keySource, recordStats);
+        return v != NOT_FOUND ? (V) v : null;
+    }
+
+    /**
+     * @return the value for the key, {@link #NOT_FOUND} for a tombstone that has not expired or {@code null}
+     */
+    private Object getKnown(KeyBuffer keySource, boolean recordStats)
+    {
+        long hashEntryAdr = lookup(segment(keySource.hash()), keySource, recordStats);
 
-        long hashEntryAdr = segment(keySource.hash()).getEntry(keySource);
+        if (hashEntryAdr == 0L && spillFile != null)
+        {
+            hashEntryAdr = spilledEntry(keySource);
+            if (hashEntryAdr != 0L && recordStats)
+                spillHitCount++;
+        }
 
         if (hashEntryAdr == 0L)
         {
-            if (statisticsEnabled)
+            if (recordStats)
                 missCount++;
             return null;
         }
 
-        if (statisticsEnabled)
+        if (HashEntries.isTombstone(hashEntryAdr))
+        {
+            // no value to deserialize
+            boolean live = liveTombstone(keySource, hashEntryAdr, System.currentTimeMillis());
+            dereference(hashEntryAdr);
+            if (recordStats)
+            {
+                missCount++;
+                if (live)
+                    tombstoneHitCount++;
+            }
+            return live ? NOT_FOUND : null;
+        }
+
+        if (recordStats)
             hitCount++;
 
         try
         {
-            return valueSerializer.deserialize(HashEntries.readValueFrom(hashEntryAdr));
+            return deserializeValue(hashEntryAdr);
         }
         catch (IOException e)
         {
@@ -161,360 +366,2027 @@ public final class SegmentedCacheImpl<K, V> implements OHCache<K, V>
         }
     }
 
-    public void put(K k, V v)
+    /**
+     * Looks up the entry in the segment - unless the segment's Bloom filter tells that there is no entry for the key.
+     */
+    private long lookup(OffHeapMap segment, KeyBuffer key, boolean recordStats)
     {
-        KeyBuffer key = keySource(k);
-        long keyLen = key.size();
-        long valueLen = valueSerializer.serializedSize(v);
-        long hash = key.hash();
+        if (!segment.mightContain(key.hash()))
+        {
+            if (recordStats)
+                bloomNegativeCount++;
+            return 0L;
+        }
 
-        long bytes = allocLen(keyLen, valueLen);
+        long hashEntryAdr = segment.getEntry(key);
+        if (hashEntryAdr == 0L && recordStats && segment.hasFilter())
+            bloomFalsePositiveCount++;
+        return hashEntryAdr;
+    }
 
-        long hashEntryAdr;
-        if (bytes > maxEntrySize || (hashEntryAdr = Uns.allocate(bytes))==0L)
-        {
-            // entry too large to be inserted or OS is not able to provide enough memory
-            if (statisticsEnabled)
-                putFailCount++;
+    public void put(K k, V v)
+    {
+        putInternal(k, v, false);
+    }
 
-            removeInternal(key);
-            return;
-        }
+    /**
+     * @param ifAbsent only put the value if there is no entry for the key
+     * @return {@code true} if the value has been stored
+     */
+    boolean putInternal(K k, V v, boolean ifAbsent)
+    {
+        KeyBuffer key = keySource(k);
 
-        // initialize hash entry
-        HashEntries.init(hash, keyLen, valueLen, hashEntryAdr);
-        HashEntries.toOffHeap(key, hashEntryAdr, ENTRY_OFF_DATA);
-        try
-        {
-            valueSerializer.serialize(v, new HashEntryOutput(hashEntryAdr, key.size(), valueLen));
-        }
-        catch (VirtualMachineError e)
+        long hashEntryAdr = serializeEntry(key, v);
+        if (hashEntryAdr == 0L)
         {
-            Uns.free(hashEntryAdr);
-            throw e;
+            putFailed(key, ifAbsent);
+            return false;
         }
-        catch (Throwable e)
+
+        long bytes = HashEntries.getAllocLen(hashEntryAdr);
+        if (ifAbsent)
         {
-            Uns.free(hashEntryAdr);
-            throw new IOError(e);
+            if (!segment(key.hash()).putEntryIfAbsent(key, hashEntryAdr, bytes))
+                return false;
+            if (statisticsEnabled)
+                putAddCount++;
+            return true;
         }
 
-        if (segment(hash).putEntry(key, hashEntryAdr, bytes))
+        if (segment(key.hash()).putEntry(key, hashEntryAdr, bytes))
         {
             if (statisticsEnabled)
                 putAddCount++;
-            return;
+            return true;
         }
 
         if (statisticsEnabled)
             putReplaceCount++;
+        return true;
     }
 
-    public void invalidate(Object k)
+    public void putAbsent(K k, long ttl)
     {
-        KeyBuffer key = keySource((K) k);
+        if (ttl <= 0L)
+            throw new IllegalArgumentException("ttl must be positive");
 
-        if (removeInternal(key) && statisticsEnabled)
-            removeCount++;
-    }
+        KeyBuffer key = keySource(k);
 
-    private boolean removeInternal(KeyBuffer key)
-    {
-        return segment(key.hash()).removeEntry(key);
+        if (poolMember != null)
+            poolMember.pool.written(poolMember);
+
+        // a tombstone must not be chunked - its value area holds the expiry time
+        long hashEntryAdr = allocLen(key.size(), TOMBSTONE_VALUE_LEN) <= maxEntrySize
+                            ? newEntry(key.hash(), key.size(), TOMBSTONE_VALUE_LEN, FLAG_TOMBSTONE)
+                            : 0L;
+        if (hashEntryAdr == 0L)
+        {
+            putFailed(key, false);
+            return;
+        }
+
+        HashEntries.toOffHeap(key, hashEntryAdr, ENTRY_OFF_DATA);
+        // saturated - e.g. Long.MAX_VALUE never expires
+        long now = System.currentTimeMillis();
+        Uns.putLong(hashEntryAdr, HashEntries.valueOffset(hashEntryAdr), ttl < Long.MAX_VALUE - now ? now + ttl : Long.MAX_VALUE);
+
+        segment(key.hash()).putEntry(key, hashEntryAdr, HashEntries.getAllocLen(hashEntryAdr));
+        if (statisticsEnabled)
+            tombstonePutCount++;
     }
 
-    private OffHeapMap segment(long hash)
+    /**
+     * Answers whether the referenced tombstone has not expired. An expired tombstone is removed.
+     */
+    private boolean liveTombstone(KeyBuffer key, long hashEntryAdr, long now)
     {
-        int seg = (int) ((hash & segmentMask) >>> segmentShift);
-        return maps[seg];
+        if (HashEntries.isLiveTombstone(hashEntryAdr, now))
+            return true;
+        segment(key.hash()).removeTombstone(key, hashEntryAdr);
+        return false;
     }
 
-    private KeyBuffer keySource(K o)
+    /**
+     * Serializes the key and value into a new hash entry.
+     *
+     * @return address of the new hash entry or {@code 0}, if the entry is too large or memory could not be allocated
+     */
+    private long serializeEntry(KeyBuffer key, V v)
     {
-        if (keySerializer == null)
-            throw new NullPointerException("no keySerializer configured");
-        int size = keySerializer.serializedSize(o);
-
-        KeyBuffer key = new KeyBuffer(size);
-        try
-        {
-            keySerializer.serialize(o, key);
-        }
-        catch (IOException e)
-        {
-            throw new IOError(e);
-        }
-        return key.finish();
+        long hashEntryAdr = serializeEntry(key.hash(), key.size(), v);
+        if (hashEntryAdr != 0L)
+            HashEntries.toOffHeap(key, hashEntryAdr, ENTRY_OFF_DATA);
+        return hashEntryAdr;
     }
 
-    //
-    // maintenance
-    //
-
-    public Iterator<K> hotN(int n)
+    /**
+     * Serializes the value into a new hash entry with room for a key of {@code keyLen} bytes. The key must be
+     * written to {@link Constants#ENTRY_OFF_DATA} by the caller.
+     *
+     * @return address of the new hash entry or {@code 0}, if the entry is too large or memory could not be allocated
+     */
+    private long serializeEntry(long hash, long keyLen, V v)
     {
-        // hotN implementation does only return a (good) approximation - not necessarily the exact hotN
-        // since it iterates over the all segments and takes a fraction of 'n' from them.
-        // This implementation may also return more results than expected just to keep it simple
-        // (it does not really matter if you request 5000 keys and e.g. get 5015).
+        if (poolMember != null)
+            poolMember.pool.written(poolMember);
 
-        final int perMap = n / maps.length + 1;
+        long valueLen = serializedValueSize(v);
 
-        return new AbstractIterator<K>()
+        SerializationBuffer staged = null;
+        SerializationBuffer compressed = null;
+        try
         {
-            int mapIndex;
-
-            long[] hotPerMap;
-            int subIndex;
-
-            protected K computeNext()
+            if (valueLen < 0L
+                || (compressionThreshold > 0 && valueLen >= compressionThreshold)
+                || (valueBufferSerializer != null && chunkSize > 0L && allocLen(keyLen, valueLen) > maxEntrySize))
             {
-                while (true)
+                // serialized size not known in advance, value might be compressed or
+                // ByteBuffer serializer needs a contiguous buffer for a chunked value -
+                // serialize in a single pass into the staging area
+                staged = SerializationBuffer.acquire();
+                stageValue(v, staged);
+                valueLen = staged.size();
+
+                if (compressionThreshold > 0 && valueLen >= compressionThreshold)
                 {
-                    if (hotPerMap != null && subIndex < hotPerMap.length)
+                    compressed = compress(staged);
+                    if (compressed != null)
                     {
-                        long hashEntryAdr = hotPerMap[subIndex++];
-                        if (hashEntryAdr != 0L)
-                            try
-                            {
-                                return keySerializer.deserialize(HashEntries.readKeyFrom(hashEntryAdr));
-                            }
-                            catch (IOException e)
-                            {
-                                LOGGER.error("Key serializer failed to deserialize", e);
-                                continue;
-                            }
-                            finally
-                            {
-                                dereference(hashEntryAdr);
-                            }
+                        valueLen = compressed.size();
+                        if (statisticsEnabled)
+                            compressedCount++;
                     }
+                }
+            }
 
-                    if (mapIndex == maps.length)
-                        return endOfData();
+            long bytes = allocLen(keyLen, valueLen);
 
-                    hotPerMap = maps[mapIndex++].hotN(perMap);
-                    subIndex = 0;
+            // values too large for a single allocation are stored in a chain of chunks (if configured)
+            boolean chunked = bytes > maxEntrySize && chunkSize > 0L;
+            if (chunked)
+                bytes = chunkedAllocLen(keyLen, valueLen, chunkSize);
+
+            long hashEntryAdr;
+            if (bytes > (chunked ? maxChunkedEntrySize : maxEntrySize)
+                || (hashEntryAdr = Uns.allocate(allocator, chunked ? allocLen(keyLen, CHUNKED_REF_LEN) : bytes)) == 0L)
+                // entry too large to be inserted or OS is not able to provide enough memory
+                return 0L;
+
+            // initialize hash entry
+            HashEntries.init(hash, keyLen, valueLen, hashEntryAdr);
+            if (compressed != null)
+                HashEntries.setFlags(hashEntryAdr, FLAG_COMPRESSED);
+            if (chunked && !HashEntries.allocateChunks(hashEntryAdr, chunkSize, allocator))
+            {
+                Uns.free(allocator, hashEntryAdr);
+                return 0L;
+            }
+
+            try
+            {
+                SerializationBuffer serialized = compressed != null ? compressed : staged;
+                if (chunked)
+                {
+                    ChunkedOutput out = new ChunkedOutput(hashEntryAdr);
+                    if (serialized != null)
+                        out.write(serialized.address(), 0L, serialized.size());
+                    else
+                        valueSerializer.serialize(v, out);
                 }
+                else if (serialized != null)
+                    serialized.copyTo(hashEntryAdr, ENTRY_OFF_DATA + roundUpTo8(keyLen));
+                else if (valueBufferSerializer != null)
+                    valueBufferSerializer.serialize(v, Uns.directBufferFor(hashEntryAdr, ENTRY_OFF_DATA + roundUpTo8(keyLen), valueLen, bufferByteOrder));
+                else
+                    valueSerializer.serialize(v, new HashEntryOutput(hashEntryAdr, keyLen, valueLen));
+            }
+            catch (VirtualMachineError e)
+            {
+                HashEntries.free(hashEntryAdr, allocator);
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                HashEntries.free(hashEntryAdr, allocator);
+                throw new IOError(e);
             }
-        };
-    }
 
-    public void invalidateAll()
-    {
-        for (OffHeapMap map : maps)
-            map.clear();
+            return hashEntryAdr;
+        }
+        finally
+        {
+            if (compressed != null)
+                compressed.release();
+            if (staged != null)
+                staged.release();
+        }
     }
 
-    public void cleanUp()
+    private long serializedValueSize(V v)
     {
-        for (OffHeapMap map : maps)
-            map.cleanUp();
+        if (valueBufferSerializer != null)
+            return valueBufferSerializer.serializedSize(v);
+        if (valueSerializer == null)
+            throw new NullPointerException("no valueSerializer configured");
+        return valueSerializer.serializedSize(v);
     }
 
-    //
-    // state
-    //
-
-    public void close() throws IOException
+    /**
+     * Serializes the value into the staging area.
+     */
+    private void stageValue(V v, SerializationBuffer staged)
     {
-        invalidateAll();
-
-        for (OffHeapMap map : maps)
-            map.release();
+        if (valueBufferSerializer == null)
+        {
+            try
+            {
+                valueSerializer.serialize(v, staged);
+            }
+            catch (VirtualMachineError e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new IOError(e);
+            }
+            return;
+        }
 
-        if (LOGGER.isDebugEnabled())
-            LOGGER.debug("Closing OHC instance");
+        int size = valueBufferSerializer.serializedSize(v);
+        long capacity = size > 0 ? size : size == 0 ? 1L : SerializationBuffer.INITIAL_SIZE;
+        while (true)
+        {
+            staged.ensureCapacity(capacity);
+            ByteBuffer buffer = Uns.directBufferFor(staged.address(), 0L, capacity, bufferByteOrder);
+            try
+            {
+                valueBufferSerializer.serialize(v, buffer);
+                staged.size(buffer.position());
+                return;
+            }
+            catch (BufferOverflowException e)
+            {
+                if (size >= 0)
+                    throw new IOError(e);
+                // serialized size was not known in advance - retry with a larger buffer
+                capacity <<= 1;
+            }
+            catch (VirtualMachineError e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new IOError(e);
+            }
+        }
     }
 
-    //
-    // statistics and related stuff
-    //
-
-    public boolean isStatisticsEnabled()
+    private void putFailed(KeyBuffer key, boolean ifAbsent)
     {
-        return statisticsEnabled;
+        if (statisticsEnabled)
+            putFailCount++;
+
+        // an existing entry is stale after a failed put - but must be kept if the put was conditional
+        if (!ifAbsent)
+            removeInternal(key);
     }
 
-    public void setStatisticsEnabled(boolean statisticsEnabled)
+    /**
+     * Compresses the staged serialized value.
+     *
+     * @return staging area containing the uncompressed length (int) followed by the compressed data or
+     * {@code null}, if compression does not reduce the size
+     */
+    private SerializationBuffer compress(SerializationBuffer staged)
     {
-        this.statisticsEnabled = statisticsEnabled;
+        int len = (int) staged.size();
+
+        SerializationBuffer compressed = SerializationBuffer.acquire();
+        compressed.ensureCapacity(4 + LZ4Codec.maxCompressedLength(len));
+        int compressedLen = LZ4Codec.compress(staged.address(), 0L, len,
+                                              compressed.address(), 4L, len - 4 - 1);
+        if (compressedLen < 0)
+        {
+            compressed.release();
+            return null;
+        }
+
+        Uns.putInt(compressed.address(), 0L, len);
+        compressed.size(4 + compressedLen);
+        return compressed;
     }
 
-    public void resetStatistics()
+    private V deserializeValue(long hashEntryAdr) throws IOException
+    {
+        if (!HashEntries.isCompressed(hashEntryAdr))
+        {
+            if (valueBufferSerializer == null)
+                return valueSerializer.deserialize(HashEntries.readValueFrom(hashEntryAdr));
+
+            long valueLen = HashEntries.getValueLen(hashEntryAdr);
+            if (!HashEntries.isChunked(hashEntryAdr))
+                return valueBufferSerializer.deserialize(Uns.directBufferFor(hashEntryAdr, HashEntries.valueOffset(hashEntryAdr), valueLen, bufferByteOrder));
+
+            // ByteBuffer serializer needs a contiguous buffer
+            SerializationBuffer unchunked = SerializationBuffer.acquire();
+            try
+            {
+                unchunked.ensureCapacity(valueLen);
+                ((ChunkedInput) HashEntries.readValueFrom(hashEntryAdr)).readFully(unchunked.address(), 0L, valueLen);
+                return valueBufferSerializer.deserialize(Uns.directBufferFor(unchunked.address(), 0L, valueLen, bufferByteOrder));
+            }
+            finally
+            {
+                unchunked.release();
+            }
+        }
+
+        SerializationBuffer decompressed = decompress(hashEntryAdr);
+        try
+        {
+            if (valueBufferSerializer != null)
+                return valueBufferSerializer.deserialize(Uns.directBufferFor(decompressed.address(), 0L, decompressed.size(), bufferByteOrder));
+            return valueSerializer.deserialize(decompressed.input());
+        }
+        finally
+        {
+            decompressed.release();
+        }
+    }
+
+    /**
+     * Decompresses the value of a compressed hash entry into a staging area, which must be released by the caller.
+     */
+    private SerializationBuffer decompress(long hashEntryAdr) throws IOException
+    {
+        SerializationBuffer decompressed = SerializationBuffer.acquire();
+        SerializationBuffer unchunked = null;
+        try
+        {
+            long t0 = statisticsEnabled ? System.nanoTime() : 0L;
+
+            long srcAdr = hashEntryAdr;
+            long srcOff = HashEntries.valueOffset(hashEntryAdr);
+            long srcLen = HashEntries.getValueLen(hashEntryAdr);
+            if (HashEntries.isChunked(hashEntryAdr))
+            {
+                // LZ4 needs the compressed data in a contiguous memory region
+                unchunked = SerializationBuffer.acquire();
+                unchunked.ensureCapacity(srcLen);
+                ((ChunkedInput) HashEntries.readValueFrom(hashEntryAdr)).readFully(unchunked.address(), 0L, srcLen);
+                srcAdr = unchunked.address();
+                srcOff = 0L;
+            }
+
+            int len = Uns.getInt(srcAdr, srcOff);
+            decompressed.ensureCapacity(len);
+            LZ4Codec.decompress(srcAdr, srcOff + 4, (int) srcLen - 4,
+                                decompressed.address(), 0L, len);
+            decompressed.size(len);
+
+            if (statisticsEnabled)
+            {
+                decompressCount++;
+                decompressTime += System.nanoTime() - t0;
+            }
+
+            return decompressed;
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            decompressed.release();
+            throw e;
+        }
+        finally
+        {
+            if (unchunked != null)
+                unchunked.release();
+        }
+    }
+
+    /**
+     * Returns a copy of the serialized key of a hash entry.
+     */
+    private ByteBuffer rawKey(long hashEntryAdr)
+    {
+        byte[] key = new byte[(int) HashEntries.getKeyLen(hashEntryAdr)];
+        Uns.copyMemory(hashEntryAdr, ENTRY_OFF_DATA, key, 0, key.length);
+        return ByteBuffer.wrap(key).order(bufferByteOrder);
+    }
+
+    /**
+     * Returns a copy of the serialized, uncompressed value of a hash entry.
+     */
+    private ByteBuffer rawValue(long hashEntryAdr) throws IOException
+    {
+        byte[] value;
+        if (HashEntries.isCompressed(hashEntryAdr))
+        {
+            SerializationBuffer decompressed = decompress(hashEntryAdr);
+            try
+            {
+                value = new byte[(int) decompressed.size()];
+                Uns.copyMemory(decompressed.address(), 0L, value, 0, value.length);
+            }
+            finally
+            {
+                decompressed.release();
+            }
+        }
+        else
+        {
+            value = new byte[(int) HashEntries.getValueLen(hashEntryAdr)];
+            HashEntries.readValueFrom(hashEntryAdr).readFully(value);
+        }
+        return ByteBuffer.wrap(value).order(bufferByteOrder);
+    }
+
+    public void invalidate(Object k)
+    {
+        KeyBuffer key = keySource((K) k);
+
+        if (removeInternal(key) && statisticsEnabled)
+            removeCount++;
+    }
+
+    private boolean removeInternal(KeyBuffer key)
+    {
+        return segment(key.hash()).removeEntry(key);
+    }
+
+    //
+    // long keys (OHLongCache)
+    //
+
+    /**
+     * Hash of a key of {@link OHLongCache} - the MurmurHash3 64 bit finalizer, which is sufficient to spread
+     * the bits of a single {@code long} over both the segment and the bucket part of the hash.
+     */
+    static long longKeyHash(long key)
+    {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    V getLong(long key)
+    {
+        long hash = longKeyHash(key);
+        OffHeapMap segment = segment(hash);
+
+        long hashEntryAdr = 0L;
+        if (!segment.mightContain(hash))
+        {
+            if (statisticsEnabled)
+                bloomNegativeCount++;
+        }
+        else
+        {
+            hashEntryAdr = segment.getEntry(hash, key);
+            if (hashEntryAdr == 0L && statisticsEnabled && segment.hasFilter())
+                bloomFalsePositiveCount++;
+        }
+
+        if (hashEntryAdr == 0L)
+        {
+            if (statisticsEnabled)
+                missCount++;
+            return null;
+        }
+
+        if (statisticsEnabled)
+            hitCount++;
+
+        try
+        {
+            return deserializeValue(hashEntryAdr);
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+        finally
+        {
+            dereference(hashEntryAdr);
+        }
+    }
+
+    /**
+     * @param ifAbsent only put the value if there is no entry for the key
+     * @return {@code true} if the value has been stored
+     */
+    boolean putLong(long key, V v, boolean ifAbsent)
+    {
+        long hash = longKeyHash(key);
+        OffHeapMap segment = segment(hash);
+
+        long hashEntryAdr = serializeEntry(hash, LONG_KEY_LEN, v);
+        if (hashEntryAdr == 0L)
+        {
+            if (statisticsEnabled)
+                putFailCount++;
+            // an existing entry is stale after a failed put - but must be kept if the put was conditional
+            if (!ifAbsent)
+                segment.removeEntry(hash, key);
+            return false;
+        }
+        Uns.putLong(hashEntryAdr, ENTRY_OFF_DATA, key);
+
+        long bytes = HashEntries.getAllocLen(hashEntryAdr);
+        if (ifAbsent)
+        {
+            if (!segment.putEntryIfAbsent(hashEntryAdr, bytes))
+                return false;
+            if (statisticsEnabled)
+                putAddCount++;
+            return true;
+        }
+
+        if (segment.putEntry(hashEntryAdr, bytes))
+        {
+            if (statisticsEnabled)
+                putAddCount++;
+        }
+        else if (statisticsEnabled)
+            putReplaceCount++;
+        return true;
+    }
+
+    boolean containsLong(long key)
+    {
+        long hash = longKeyHash(key);
+        long hashEntryAdr = segment(hash).getEntry(hash, key);
+        if (hashEntryAdr == 0L)
+            return false;
+        dereference(hashEntryAdr);
+        return true;
+    }
+
+    void invalidateLong(long key)
+    {
+        long hash = longKeyHash(key);
+        if (segment(hash).removeEntry(hash, key) && statisticsEnabled)
+            removeCount++;
+    }
+
+    private OffHeapMap segment(long hash)
+    {
+        return maps[segmentIndex(hash)];
+    }
+
+    private int segmentIndex(long hash)
+    {
+        return (int) ((hash & segmentMask) >>> segmentShift);
+    }
+
+    private KeyBuffer keySource(K o)
+    {
+        if (keyBufferSerializer != null)
+            return keySourceFromBuffer(o);
+
+        if (keySerializer == null)
+            throw new NullPointerException("no keySerializer configured");
+        int size = keySerializer.serializedSize(o);
+
+        KeyBuffer key = new KeyBuffer(size);
+        try
+        {
+            keySerializer.serialize(o, key);
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+        return key.finish();
+    }
+
+    private KeyBuffer keySourceFromBuffer(K o)
+    {
+        int size = keyBufferSerializer.serializedSize(o);
+        int capacity = size >= 0 ? size : 64;
+        while (true)
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity).order(bufferByteOrder);
+            try
+            {
+                keyBufferSerializer.serialize(o, buffer);
+                byte[] array = buffer.array();
+                if (buffer.position() != array.length)
+                    array = Arrays.copyOf(array, buffer.position());
+                return new KeyBuffer(array).finish();
+            }
+            catch (BufferOverflowException e)
+            {
+                if (size >= 0)
+                    throw e;
+                // serialized size was not known in advance - retry with a larger buffer
+                capacity <<= 1;
+            }
+        }
+    }
+
+    private K deserializeKey(long hashEntryAdr) throws IOException
+    {
+        return deserializeKey(hashEntryAdr, ENTRY_OFF_DATA, HashEntries.getKeyLen(hashEntryAdr));
+    }
+
+    /**
+     * Deserializes a serialized key stored in off-heap memory.
+     */
+    K deserializeKey(long address, long offset, long len) throws IOException
+    {
+        if (keyBufferSerializer != null)
+            return keyBufferSerializer.deserialize(Uns.directBufferFor(address, offset, len, bufferByteOrder));
+        return keySerializer.deserialize(new HashEntryInput(address, offset, len));
+    }
+
+    //
+    // maintenance
+    //
+
+    public Iterator<K> hotN(int n)
+    {
+        // hotN implementation does only return a (good) approximation - not necessarily the exact hotN
+        // since it iterates over the all segments and takes a fraction of 'n' from them.
+        // This implementation may also return more results than expected just to keep it simple
+        // (it does not really matter if you request 5000 keys and e.g. get 5015).
+
+        final int perMap = n / maps.length + 1;
+
+        return new AbstractIterator<K>()
+        {
+            int mapIndex;
+
+            long[] hotPerMap;
+            int subIndex;
+
+            protected K computeNext()
+            {
+                while (true)
+                {
+                    if (hotPerMap != null && subIndex < hotPerMap.length)
+                    {
+                        long hashEntryAdr = hotPerMap[subIndex++];
+                        if (hashEntryAdr != 0L)
+                            try
+                            {
+                                return deserializeKey(hashEntryAdr);
+                            }
+                            catch (IOException e)
+                            {
+                                LOGGER.error("Key serializer failed to deserialize", e);
+                                continue;
+                            }
+                            finally
+                            {
+                                dereference(hashEntryAdr);
+                            }
+                    }
+
+                    if (mapIndex == maps.length)
+                        return endOfData();
+
+                    hotPerMap = maps[mapIndex++].hotN(perMap);
+                    subIndex = 0;
+                }
+            }
+        };
+    }
+
+    public void invalidateAll()
     {
         for (OffHeapMap map : maps)
-            map.resetStatistics();
-        putAddCount = 0;
-        putReplaceCount = 0;
-        putFailCount = 0;
-        removeCount = 0;
-        hitCount = 0;
-        missCount = 0;
-        loadSuccessCount = 0;
-        loadExceptionCount = 0;
-        totalLoadTime = 0;
+            map.clear();
+        if (spillFile != null)
+            spillFile.clear();
+    }
+
+    public void cleanUp()
+    {
+        for (OffHeapMap map : maps)
+            map.cleanUp();
+    }
+
+    //
+    // state
+    //
+
+    public void close() throws IOException
+    {
+        // the pool must not change the capacity of a closed cache
+        if (poolMember != null)
+            poolMember.pool.unregister(poolMember);
+
+        if (spillFile != null)
+            spillFile.close();
+
+        if (sharedMemory != null)
+        {
+            // keep the entries - the cache can be re-attached
+            for (int i = 0; i < maps.length; i++)
+            {
+                maps[i].saveState(sharedMemory.address(), SharedMemory.segmentStateOffset(i));
+                maps[i].releaseFilter();
+            }
+            sharedMemory.close();
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Closing OHC instance (shared memory)");
+            return;
+        }
+
+        for (OffHeapMap map : maps)
+        {
+            map.clear();
+            map.release();
+        }
+
+        if (LOGGER.isDebugEnabled())
+            LOGGER.debug("Closing OHC instance");
+    }
+
+    //
+    // statistics and related stuff
+    //
+
+    public boolean isStatisticsEnabled()
+    {
+        return statisticsEnabled;
+    }
+
+    /**
+     * Whether this cache has been attached to the entries of a previous instance in shared memory.
+     */
+    public boolean isAttachedToSharedMemory()
+    {
+        return sharedMemory != null && sharedMemory.attached();
+    }
+
+    public void setStatisticsEnabled(boolean statisticsEnabled)
+    {
+        // pooled caches need statistics to report their activity to the pool
+        this.statisticsEnabled = statisticsEnabled || poolMember != null;
+    }
+
+    public void resetStatistics()
+    {
+        for (OffHeapMap map : maps)
+            map.resetStatistics();
+        putAddCount = 0;
+        putReplaceCount = 0;
+        putFailCount = 0;
+        removeCount = 0;
+        compressedCount = 0;
+        decompressCount = 0;
+        decompressTime = 0;
+        spillHitCount = 0;
+        bloomNegativeCount = 0;
+        bloomFalsePositiveCount = 0;
+        tombstonePutCount = 0;
+        tombstoneHitCount = 0;
+        if (spillFile != null)
+            spillFile.resetStatistics();
+        warmUpKeyCount.set(0L);
+        warmUpLoadCount.set(0L);
+        warmUpFailCount.set(0L);
+        warmUpTime.set(0L);
+        hitCount = 0;
+        missCount = 0;
+        loadSuccessCount = 0;
+        loadExceptionCount = 0;
+        totalLoadTime = 0;
+    }
+
+    public OHCacheStats extendedStats()
+    {
+        long[] mapSizes = new long[maps.length];
+        long rehashes = 0L;
+        // including tombstones
+        long size = 0L;
+        for (int i = 0; i < maps.length; i++)
+        {
+            OffHeapMap map = maps[i];
+            rehashes += map.rehashes();
+            mapSizes[i] = map.size();
+            size += mapSizes[i];
+        }
+        long warmUpStarted = this.warmUpStarted;
+        long warmUpTime = this.warmUpTime.get() + (warmUpStarted != 0L ? System.nanoTime() - warmUpStarted : 0L);
+        return new OHCacheStats(stats(),
+                                mapSizes,
+                                size,
+                                getCapacity(),
+                                freeCapacity(),
+                                cleanUpCount(),
+                                rehashes,
+                                putAddCount,
+                                putReplaceCount,
+                                putFailCount,
+                                removeCount,
+                                compressedCount,
+                                decompressCount,
+                                decompressTime,
+                                warmUpKeyCount.get(),
+                                warmUpLoadCount.get(),
+                                warmUpFailCount.get(),
+                                warmUpTime,
+                                spillFile != null ? spillFile.writeCount() : 0L,
+                                spillHitCount,
+                                bloomNegativeCount,
+                                bloomFalsePositiveCount,
+                                tombstones(),
+                                tombstonePutCount,
+                                tombstoneHitCount);
+    }
+
+    public CacheStats stats()
+    {
+        return new CacheStats(
+                             hitCount,
+                             missCount,
+                             loadSuccessCount,
+                             loadExceptionCount,
+                             totalLoadTime,
+                             evictedEntries()
+        );
+    }
+
+    /**
+     * Number of reads and writes recorded by the statistics, used by {@link OHCachePool} to find cold caches.
+     */
+    long accesses()
+    {
+        return hitCount + missCount + putAddCount + putReplaceCount;
+    }
+
+    public long getCapacity()
+    {
+        long capacity = 0L;
+        for (OffHeapMap map : maps)
+            capacity += map.capacity();
+        return capacity;
+    }
+
+    public void setCapacity(long capacity)
+    {
+        if (poolMember != null)
+            throw new UnsupportedOperationException("The capacity of a pooled cache is managed by its pool");
+        resize(capacity);
+    }
+
+    /**
+     * Implementation of {@link #setCapacity(long)}, also used by {@link OHCachePool}.
+     */
+    synchronized void resize(long capacity)
+    {
+        int segments = maps.length;
+        if (capacity / segments <= maxEntrySize)
+            throw new IllegalArgumentException("Capacity " + capacity + " too small for max entry size " + maxEntrySize);
+        if (sharedMemory != null && capacity > sharedMemoryCapacity)
+            throw new IllegalArgumentException("Capacity " + capacity + " exceeds the capacity of the shared memory image " + sharedMemoryCapacity);
+
+        long cleanUpTriggerFree = cleanUpTriggerFree(cleanUpTrigger, capacity);
+        // chunked values may occupy up to half of a segment's capacity
+        maxChunkedEntrySize = capacity / segments / 2;
+        for (OffHeapMap map : maps)
+            map.setCapacity(capacity / segments, cleanUpTriggerFree / segments);
+
+        // evict a few entries at a time to not block concurrent operations for long
+        for (OffHeapMap map : maps)
+            while (map.shrink(SHRINK_ENTRIES))
+                Thread.yield();
+    }
+
+    public long freeCapacity()
+    {
+        long capacity = 0L;
+        for (OffHeapMap map : maps)
+            capacity += map.freeCapacity();
+        return capacity;
+    }
+
+    public long cleanUpCount()
+    {
+        long cleanUpCount = 0L;
+        for (OffHeapMap map : maps)
+            cleanUpCount += map.cleanUpCount();
+        return cleanUpCount;
+    }
+
+    public long evictedEntries()
+    {
+        long evictedEntries = 0L;
+        for (OffHeapMap map : maps)
+            evictedEntries += map.evictedEntries();
+        return evictedEntries;
+    }
+
+    /**
+     * Number of entries without tombstones, see {@link OHCacheStats#getSize()} for the total number of entries.
+     */
+    public long size()
+    {
+        long size = 0L;
+        for (OffHeapMap map : maps)
+            size += map.size() - map.tombstones();
+        return size;
+    }
+
+    public int getSegments()
+    {
+        return maps.length;
+    }
+
+    public double getLoadFactor()
+    {
+        return maps[0].loadFactor();
+    }
+
+    public int[] getHashTableSizes()
+    {
+        int[] r = new int[maps.length];
+        for (int i = 0; i < maps.length; i++)
+            r[i] = maps[i].hashTableSize();
+        return r;
+    }
+
+    //
+    // convenience methods
+    //
+
+    /**
+     * Concurrent calls for the same key are coalesced - only the first caller invokes its {@code valueLoader},
+     * the others wait for its result (at most {@link OHCacheBuilder#loadWaitTimeout(long)}).
+     */
+    public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException
+    {
+        KeyBuffer keySource = keySource(key);
+        V v = getValue(keySource, statisticsEnabled);
+        if (v != null)
+            return v;
+
+        SettableFuture<V> load = SettableFuture.create();
+        SettableFuture<V> inFlight = loading.putIfAbsent(keySource, load);
+        if (inFlight != null)
+            return awaitLoad(inFlight);
+
+        try
+        {
+            // a load for the same key might have completed since the lookup above
+            v = getValue(keySource, false);
+            if (v != null)
+            {
+                load.set(v);
+                return v;
+            }
+
+            long t0 = System.currentTimeMillis();
+            try
+            {
+                v = valueLoader.call();
+                loadSuccessCount++;
+            }
+            catch (Exception e)
+            {
+                loadExceptionCount++;
+                load.setException(e);
+                throw new ExecutionException(e);
+            }
+            finally
+            {
+                totalLoadTime += System.currentTimeMillis() - t0;
+            }
+
+            if (v == null)
+            {
+                InvalidCacheLoadException e = new InvalidCacheLoadException("valueLoader returned null for a key");
+                load.setException(e);
+                throw e;
+            }
+
+            put(key, v);
+            load.set(v);
+            return v;
+        }
+        catch (RuntimeException | Error e)
+        {
+            // storing the loaded value failed - waiting callers must not hang
+            load.setException(e);
+            throw e;
+        }
+        finally
+        {
+            // waiting callers got the result, new callers will find the value in the cache
+            loading.remove(keySource, load);
+        }
+    }
+
+    /**
+     * Records the result of a load performed on behalf of this cache, e.g. by {@link AsyncCacheImpl}.
+     */
+    void recordLoad(boolean success, long loadTime)
+    {
+        if (success)
+            loadSuccessCount++;
+        else
+            loadExceptionCount++;
+        totalLoadTime += loadTime;
+    }
+
+    private V awaitLoad(SettableFuture<V> load) throws ExecutionException
+    {
+        try
+        {
+            return loadWaitTimeout > 0L
+                   ? Uninterruptibles.getUninterruptibly(load, loadWaitTimeout, TimeUnit.MILLISECONDS)
+                   : Uninterruptibles.getUninterruptibly(load);
+        }
+        catch (TimeoutException e)
+        {
+            throw new ExecutionException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof InvalidCacheLoadException)
+                throw (InvalidCacheLoadException) e.getCause();
+            throw e;
+        }
+    }
+
+    public ImmutableMap<K, V> getAllPresent(Iterable<?> keys)
+    {
+        Object[] ks = Sets.newLinkedHashSet(keys).toArray();
+        int n = ks.length;
+        if (n == 0)
+            return ImmutableMap.of();
+
+        // serialize and hash all keys and group them by segment
+        KeyBuffer[] keyBuffers = new KeyBuffer[n];
+        for (int i = 0; i < n; i++)
+            keyBuffers[i] = keySource((K) ks[i]);
+        int[] segmentStart = new int[maps.length + 1];
+        int[] order = groupBySegment(keyBuffers, segmentStart);
+
+        long[] entries = new long[n];
+        try
+        {
+            // a single lock acquisition per segment
+            for (int seg = 0; seg < maps.length; seg++)
+                if (segmentStart[seg] < segmentStart[seg + 1])
+                    maps[seg].getEntries(keyBuffers, order, segmentStart[seg], segmentStart[seg + 1], entries);
+
+            int hits = 0;
+            int tombstones = 0;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < n; i++)
+            {
+                if (entries[i] != 0L && HashEntries.isTombstone(entries[i]))
+                {
+                    if (liveTombstone(keyBuffers[i], entries[i], now))
+                        tombstones++;
+                    dereference(entries[i]);
+                    entries[i] = 0L;
+                    // putting the tombstone invalidated a spilled entry for the key
+                    continue;
+                }
+                if (entries[i] == 0L && spillFile != null)
+                {
+                    entries[i] = spilledEntry(keyBuffers[i]);
+                    if (entries[i] != 0L && statisticsEnabled)
+                        spillHitCount++;
+                }
+                if (entries[i] != 0L)
+                    hits++;
+            }
+            if (statisticsEnabled)
+            {
+                hitCount += hits;
+                missCount += n - hits;
+                tombstoneHitCount += tombstones;
+            }
+
+            // deserialize outside of the segment locks
+            Object[] values = deserializeValues(entries);
+
+            ImmutableMap.Builder<K, V> result = ImmutableMap.builder();
+            for (int i = 0; i < n; i++)
+                if (entries[i] != 0L)
+                    result.put((K) ks[i], (V) values[i]);
+            return result.build();
+        }
+        finally
+        {
+            for (long hashEntryAdr : entries)
+                if (hashEntryAdr != 0L)
+                    dereference(hashEntryAdr);
+        }
+    }
+
+    /**
+     * Deserializes the values of the (non-zero) hash entries.
+     */
+    private Object[] deserializeValues(final long[] entries)
+    {
+        final Object[] values = new Object[entries.length];
+        runBatched(entries.length, new Batch()
+        {
+            void run(int from, int to)
+            {
+                try
+                {
+                    for (int i = from; i < to; i++)
+                        if (entries[i] != 0L)
+                            values[i] = deserializeValue(entries[i]);
+                }
+                catch (IOException e)
+                {
+                    throw new IOError(e);
+                }
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Work on the elements of a batch operation, see {@link #runBatched(int, Batch)}.
+     */
+    private abstract static class Batch
+    {
+        abstract void run(int from, int to);
+    }
+
+    /**
+     * Runs {@code batch} for the elements {@code 0..n-1}. Large batches are split into parts of
+     * {@link #BATCH_SIZE} elements that run in parallel, if an executor has been configured.
+     * Returns when all parts have completed - also if one of them failed.
+     */
+    private void runBatched(int n, Batch batch)
+    {
+        runBatched(n, BATCH_SIZE, batch);
+    }
+
+    private void runBatched(int n, int batchSize, final Batch batch)
+    {
+        if (executor == null || n <= batchSize)
+        {
+            batch.run(0, n);
+            return;
+        }
+
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (int from = batchSize; from < n; from += batchSize)
+        {
+            final int f = from;
+            final int t = Math.min(from + batchSize, n);
+            FutureTask<Void> task = new FutureTask<>(new Callable<Void>()
+            {
+                public Void call()
+                {
+                    batch.run(f, t);
+                    return null;
+                }
+            });
+            tasks.add(task);
+            try
+            {
+                executor.execute(task);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // run by the calling thread below
+            }
+        }
+
+        Throwable failure = null;
+        try
+        {
+            batch.run(0, batchSize);
+        }
+        catch (RuntimeException | Error e)
+        {
+            failure = e;
+        }
+
+        // callers must not release resources used by the batch before all tasks have completed
+        for (FutureTask<Void> task : tasks)
+        {
+            // no-op if the task has already been started by the executor
+            task.run();
+            try
+            {
+                Uninterruptibles.getUninterruptibly(task);
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+    }
+
+    /**
+     * Groups the keys by segment.
+     *
+     * @param segmentStart receives the start index in the returned array for each segment
+     *                     and the number of keys in the last element
+     * @return indexes of the keys ordered by segment
+     */
+    private int[] groupBySegment(KeyBuffer[] keys, int[] segmentStart)
+    {
+        int n = keys.length;
+        int[] segments = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            segments[i] = segmentIndex(keys[i].hash());
+            segmentStart[segments[i] + 1]++;
+        }
+        for (int seg = 0; seg < maps.length; seg++)
+            segmentStart[seg + 1] += segmentStart[seg];
+
+        int[] order = new int[n];
+        int[] next = Arrays.copyOf(segmentStart, maps.length);
+        for (int i = 0; i < n; i++)
+            order[next[segments[i]]++] = i;
+        return order;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m)
+    {
+        int n = m.size();
+        if (n == 0)
+            return;
+
+        final KeyBuffer[] keys = new KeyBuffer[n];
+        final Object[] values = new Object[n];
+        int i = 0;
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet())
+        {
+            keys[i] = keySource(entry.getKey());
+            values[i++] = entry.getValue();
+        }
+
+        // serialize outside of the segment locks
+        final long[] entries = new long[n];
+        try
+        {
+            runBatched(n, new Batch()
+            {
+                void run(int from, int to)
+                {
+                    for (int i = from; i < to; i++)
+                        entries[i] = serializeEntry(keys[i], (V) values[i]);
+                }
+            });
+        }
+        catch (RuntimeException | Error e)
+        {
+            for (long hashEntryAdr : entries)
+                if (hashEntryAdr != 0L)
+                    HashEntries.free(hashEntryAdr, allocator);
+            throw e;
+        }
+
+        // a single lock acquisition and eviction pass per segment
+        int[] segmentStart = new int[maps.length + 1];
+        int[] order = groupBySegment(keys, segmentStart);
+        boolean[] added = new boolean[n];
+        for (int seg = 0; seg < maps.length; seg++)
+            if (segmentStart[seg] < segmentStart[seg + 1])
+                maps[seg].putEntries(keys, entries, order, segmentStart[seg], segmentStart[seg + 1], added);
+
+        for (i = 0; i < n; i++)
+            if (entries[i] == 0L)
+                putFailed(keys[i], false);
+            else if (statisticsEnabled)
+            {
+                if (added[i])
+                    putAddCount++;
+                else
+                    putReplaceCount++;
+            }
+    }
+
+    public void invalidateAll(Iterable<?> iterable)
+    {
+        List<KeyBuffer> keyList = new ArrayList<>();
+        for (Object o : iterable)
+            keyList.add(keySource((K) o));
+        KeyBuffer[] keys = keyList.toArray(new KeyBuffer[keyList.size()]);
+
+        int[] segmentStart = new int[maps.length + 1];
+        int[] order = groupBySegment(keys, segmentStart);
+        long removed = 0L;
+        for (int seg = 0; seg < maps.length; seg++)
+            if (segmentStart[seg] < segmentStart[seg + 1])
+                removed += maps[seg].removeEntries(keys, order, segmentStart[seg], segmentStart[seg + 1]);
+
+        if (statisticsEnabled)
+            removeCount += removed;
+    }
+
+    public long invalidateIf(final Predicate<ByteBuffer> keyPredicate)
+    {
+        if (keyPredicate == null)
+            throw new NullPointerException();
+        return invalidateIf(new OffHeapMap.KeyPredicate()
+        {
+            public boolean matches(long address, long offset, long keyLen)
+            {
+                return keyPredicate.apply(Uns.directBufferFor(address, offset, keyLen, bufferByteOrder)
+                                             .asReadOnlyBuffer().order(bufferByteOrder));
+            }
+        });
+    }
+
+    public long invalidateKeysWithPrefix(final byte[] prefix)
+    {
+        if (prefix == null)
+            throw new NullPointerException();
+        return invalidateIf(new OffHeapMap.KeyPredicate()
+        {
+            public boolean matches(long address, long offset, long keyLen)
+            {
+                return HashEntries.keyStartsWith(address, offset, keyLen, prefix);
+            }
+        });
+    }
+
+    /**
+     * Removes matching entries segment by segment - segments are scanned in parallel if an executor has been
+     * configured. The segment lock is released after each small range of hash buckets. Entries in the spill file
+     * are scanned afterwards.
+     */
+    private long invalidateIf(final OffHeapMap.KeyPredicate predicate)
+    {
+        final AtomicLong removed = new AtomicLong();
+        runBatched(maps.length, 1, new Batch()
+        {
+            void run(int from, int to)
+            {
+                for (int seg = from; seg < to; seg++)
+                {
+                    OffHeapMap map = maps[seg];
+                    int baseTableSize = map.hashTableSize();
+                    for (int bucket = 0; bucket < baseTableSize; bucket += CacheSpliterator.BUCKETS)
+                        removed.addAndGet(map.removeEntries(baseTableSize, bucket,
+                                                            Math.min(bucket + CacheSpliterator.BUCKETS, baseTableSize),
+                                                            predicate));
+                }
+            }
+        });
+
+        if (spillFile != null)
+            removed.addAndGet(invalidateSpilled(predicate));
+
+        if (statisticsEnabled)
+            removeCount += removed.get();
+        return removed.get();
+    }
+
+    /**
+     * Removes the entries in the spill file whose keys match the predicate - index stripes are scanned in parallel
+     * if an executor has been configured. Keys of written entries are read from the file.
+     */
+    private long invalidateSpilled(final OffHeapMap.KeyPredicate predicate)
+    {
+        final AtomicLong removed = new AtomicLong();
+        runBatched(SpillFile.STRIPES, 1, new Batch()
+        {
+            void run(int from, int to)
+            {
+                SerializationBuffer buffer = SerializationBuffer.acquire();
+                try
+                {
+                    for (int stripe = from; stripe < to; stripe++)
+                    {
+                        long[] slots = spillFile.slots(stripe);
+                        int i = 0;
+                        try
+                        {
+                            for (; i < slots.length; i += 2)
+                                if (spilledKeyMatches(slots[i], slots[i + 1], predicate, buffer)
+                                    && segment(slots[i]).invalidateSpilled(slots[i], slots[i + 1]))
+                                    removed.incrementAndGet();
+                        }
+                        finally
+                        {
+                            // hash entries after a failed one are still referenced
+                            for (i += 2; i < slots.length; i += 2)
+                                if (slots[i + 1] < 0L)
+                                    dereference(-slots[i + 1]);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new IOError(e);
+                }
+                finally
+                {
+                    buffer.release();
+                }
+            }
+        });
+        return removed.get();
+    }
+
+    /**
+     * Matches the key of an entry in the spill file, see {@link SpillFile#slots(int)}. A hash entry that has not been
+     * written yet is dereferenced.
+     */
+    private boolean spilledKeyMatches(long hash, long ref, OffHeapMap.KeyPredicate predicate, SerializationBuffer buffer) throws IOException
+    {
+        if (ref < 0L)
+        {
+            long hashEntryAdr = -ref;
+            try
+            {
+                return predicate.matches(hashEntryAdr, ENTRY_OFF_DATA, HashEntries.getKeyLen(hashEntryAdr));
+            }
+            finally
+            {
+                dereference(hashEntryAdr);
+            }
+        }
+
+        long position = ref - 1L;
+        buffer.ensureCapacity(STREAM_ENTRY_HEADER_LEN);
+        spillFile.read(position, buffer.address(), 0L, STREAM_ENTRY_HEADER_LEN);
+        if (Uns.getLong(buffer.address(), 0L) != hash || !spillFile.isValid(position))
+            // overwritten
+            return false;
+
+        long keyLen = Uns.getInt(buffer.address(), 8L);
+        buffer.ensureCapacity(keyLen);
+        spillFile.read(position + STREAM_ENTRY_HEADER_LEN, buffer.address(), 0L, keyLen);
+        // the entry might have been overwritten while reading the key
+        return spillFile.isValid(position) && predicate.matches(buffer.address(), 0L, keyLen);
+    }
+
+    public long getMemUsed()
+    {
+        return getCapacity() - freeCapacity();
+    }
+
+    //
+    // ConcurrentMap view
+    //
+
+    /**
+     * Returns a {@link java.util.concurrent.ConcurrentMap} view of this cache. Conditional operations compare
+     * the serialized form of values atomically under the segment lock. Entries that have been moved to the
+     * spill file are considered absent by conditional operations until they are read again.
+     */
+    public ConcurrentMap<K, V> asMap()
+    {
+        return new CacheMap<>(this);
+    }
+
+    /**
+     * @return the previous value for the key or {@code null}
+     */
+    V putAndGet(K k, V v)
+    {
+        return replaceInternal(k, v, false);
+    }
+
+    /**
+     * @return the previous value for the key or {@code null}, if there was none and the value has been put
+     */
+    V putIfAbsentAndGet(K k, V v)
+    {
+        KeyBuffer key = keySource(k);
+
+        long hashEntryAdr = serializeEntry(key, v);
+        if (hashEntryAdr == 0L)
+        {
+            putFailed(key, true);
+            // if there is no entry, behave as if the value has been put and evicted immediately
+            return valueOf(segment(key.hash()).getEntry(key));
+        }
+
+        long existingAdr = segment(key.hash()).putEntryIfAbsentOrGet(key, hashEntryAdr, HashEntries.getAllocLen(hashEntryAdr));
+        if (existingAdr == 0L)
+        {
+            if (statisticsEnabled)
+                putAddCount++;
+            return null;
+        }
+        return valueOf(existingAdr);
+    }
+
+    /**
+     * @return the replaced value or {@code null}, if there was no entry for the key
+     */
+    V replace(K k, V v)
+    {
+        return replaceInternal(k, v, true);
+    }
+
+    private V replaceInternal(K k, V v, boolean ifPresent)
+    {
+        KeyBuffer key = keySource(k);
+
+        long hashEntryAdr = serializeEntry(key, v);
+        if (hashEntryAdr == 0L)
+        {
+            // an existing entry is stale after a failed put - it is removed
+            V old = valueOf(segment(key.hash()).getEntry(key));
+            putFailed(key, false);
+            return old;
+        }
+
+        long oldAdr = segment(key.hash()).replaceEntry(key, hashEntryAdr, HashEntries.getAllocLen(hashEntryAdr), ifPresent);
+        if (statisticsEnabled)
+        {
+            if (oldAdr != 0L && !HashEntries.isTombstone(oldAdr))
+                putReplaceCount++;
+            else if (!ifPresent)
+                putAddCount++;
+        }
+        return valueOf(oldAdr);
     }
 
-    public OHCacheStats extendedStats()
+    /**
+     * Replaces the value for the key only if the serialized form of its current value equals the serialized form
+     * of {@code expected}.
+     */
+    boolean replace(K k, V expected, V v)
     {
-        long[] mapSizes = new long[maps.length];
-        long rehashes = 0L;
-        for (int i = 0; i < maps.length; i++)
+        KeyBuffer key = keySource(k);
+
+        SerializationBuffer staged = SerializationBuffer.acquire();
+        SerializationBuffer compressed = null;
+        try
         {
-            OffHeapMap map = maps[i];
-            rehashes += map.rehashes();
-            mapSizes[i] = map.size();
+            compressed = stageExpected(expected, staged);
+            SerializationBuffer expectedValue = compressed != null ? compressed : staged;
+
+            long hashEntryAdr = serializeEntry(key, v);
+            if (hashEntryAdr == 0L)
+            {
+                // the current value is stale if it matches - behave as if it has been replaced and evicted immediately
+                if (!segment(key.hash()).removeEntry(key, expectedValue, compressed != null))
+                    return false;
+                putFailed(key, true);
+                return true;
+            }
+
+            if (!segment(key.hash()).replaceEntry(key, expectedValue, compressed != null, hashEntryAdr, HashEntries.getAllocLen(hashEntryAdr)))
+                return false;
+            if (statisticsEnabled)
+                putReplaceCount++;
+            return true;
+        }
+        finally
+        {
+            if (compressed != null)
+                compressed.release();
+            staged.release();
         }
-        return new OHCacheStats(stats(),
-                                mapSizes,
-                                size(),
-                                getCapacity(),
-                                freeCapacity(),
-                                cleanUpCount(),
-                                rehashes,
-                                putAddCount,
-                                putReplaceCount,
-                                putFailCount,
-                                removeCount);
     }
 
-    public CacheStats stats()
+    /**
+     * Removes the entry for the key only if the serialized form of its value equals the serialized form
+     * of {@code expected}.
+     */
+    boolean remove(K k, V expected)
     {
-        return new CacheStats(
-                             hitCount,
-                             missCount,
-                             loadSuccessCount,
-                             loadExceptionCount,
-                             totalLoadTime,
-                             evictedEntries()
-        );
+        KeyBuffer key = keySource(k);
+
+        SerializationBuffer staged = SerializationBuffer.acquire();
+        SerializationBuffer compressed = null;
+        try
+        {
+            compressed = stageExpected(expected, staged);
+            if (!segment(key.hash()).removeEntry(key, compressed != null ? compressed : staged, compressed != null))
+                return false;
+            if (statisticsEnabled)
+                removeCount++;
+            return true;
+        }
+        finally
+        {
+            if (compressed != null)
+                compressed.release();
+            staged.release();
+        }
     }
 
-    public long getCapacity()
+    /**
+     * Serializes a value into the staging area to compare it with the values of existing entries. Unlike
+     * {@link #serializeEntry(KeyBuffer, Object)} no hash entry is allocated and nothing is accounted as a write.
+     *
+     * @return staging area with the compressed value, if an entry for the value would be compressed, or {@code null}
+     */
+    private SerializationBuffer stageExpected(V v, SerializationBuffer staged)
     {
-        long capacity = 0L;
-        for (OffHeapMap map : maps)
-            capacity += map.capacity();
-        return capacity;
+        if (valueBufferSerializer == null && valueSerializer == null)
+            throw new NullPointerException("no valueSerializer configured");
+        stageValue(v, staged);
+        return compressionThreshold > 0 && staged.size() >= compressionThreshold ? compress(staged) : null;
     }
 
-    public long freeCapacity()
+    /**
+     * Removes the entry for the key.
+     *
+     * @return the removed value or {@code null}
+     */
+    V removeAndGet(K k)
     {
-        long capacity = 0L;
-        for (OffHeapMap map : maps)
-            capacity += map.freeCapacity();
-        return capacity;
+        KeyBuffer key = keySource(k);
+        OffHeapMap segment = segment(key.hash());
+
+        long oldAdr = segment.removeAndGetEntry(key);
+        if (oldAdr == 0L && spillFile != null)
+        {
+            long spilledAdr = spilledEntry(key);
+            if (spilledAdr != 0L)
+            {
+                // the spilled entry has been promoted back to memory - unless it has not been written yet
+                oldAdr = segment.removeAndGetEntry(key);
+                if (oldAdr == 0L)
+                {
+                    segment.removeEntry(key);
+                    oldAdr = spilledAdr;
+                }
+                else
+                    dereference(spilledAdr);
+            }
+        }
+
+        if (oldAdr != 0L && statisticsEnabled)
+            removeCount++;
+        return valueOf(oldAdr);
     }
 
-    public long cleanUpCount()
+    boolean containsKey(K k)
     {
-        long cleanUpCount = 0L;
-        for (OffHeapMap map : maps)
-            cleanUpCount += map.cleanUpCount();
-        return cleanUpCount;
+        KeyBuffer key = keySource(k);
+        long hashEntryAdr = segment(key.hash()).getEntry(key);
+        if (hashEntryAdr == 0L)
+            return false;
+        boolean tombstone = HashEntries.isTombstone(hashEntryAdr);
+        dereference(hashEntryAdr);
+        return !tombstone;
     }
 
-    public long evictedEntries()
+    /**
+     * Deserializes and dereferences the value of a referenced hash entry - {@code null} for a tombstone.
+     */
+    private V valueOf(long hashEntryAdr)
     {
-        long evictedEntries = 0L;
-        for (OffHeapMap map : maps)
-            evictedEntries += map.evictedEntries();
-        return evictedEntries;
+        if (hashEntryAdr == 0L)
+            return null;
+        try
+        {
+            if (HashEntries.isTombstone(hashEntryAdr))
+                return null;
+            return deserializeValue(hashEntryAdr);
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+        finally
+        {
+            dereference(hashEntryAdr);
+        }
     }
 
-    public long size()
+    //
+    // iteration
+    //
+
+    public Iterator<K> keyIterator()
     {
-        long size = 0L;
-        for (OffHeapMap map : maps)
-            size += map.size();
-        return size;
+        return new CacheSpliterator<>(this, new CacheSpliterator.EntryFunction<K>()
+        {
+            public K apply(long hashEntryAdr) throws IOException
+            {
+                return deserializeKey(hashEntryAdr);
+            }
+        });
     }
 
-    public int getSegments()
+    public Iterator<Map.Entry<K, V>> entryIterator()
     {
-        return maps.length;
+        return entrySpliterator();
     }
 
-    public double getLoadFactor()
+    public CacheSpliterator<Map.Entry<K, V>> entrySpliterator()
     {
-        return maps[0].loadFactor();
+        return new CacheSpliterator<>(this, new CacheSpliterator.EntryFunction<Map.Entry<K, V>>()
+        {
+            public Map.Entry<K, V> apply(long hashEntryAdr) throws IOException
+            {
+                return new AbstractMap.SimpleImmutableEntry<>(deserializeKey(hashEntryAdr), deserializeValue(hashEntryAdr));
+            }
+        });
     }
 
-    public int[] getHashTableSizes()
+    public Iterator<Map.Entry<ByteBuffer, ByteBuffer>> rawEntryIterator()
     {
-        int[] r = new int[maps.length];
-        for (int i = 0; i < maps.length; i++)
-            r[i] = maps[i].hashTableSize();
-        return r;
+        return new CacheSpliterator<>(this, new CacheSpliterator.EntryFunction<Map.Entry<ByteBuffer, ByteBuffer>>()
+        {
+            public Map.Entry<ByteBuffer, ByteBuffer> apply(long hashEntryAdr) throws IOException
+            {
+                return new AbstractMap.SimpleImmutableEntry<>(rawKey(hashEntryAdr), rawValue(hashEntryAdr));
+            }
+        });
     }
 
     //
-    // convenience methods
+    // snapshots
     //
 
-    public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException
+    public void snapshot(Path path) throws IOException
+    {
+        CacheSnapshot.write(this, path);
+    }
+
+    public void snapshot(Path path, long maxBytesPerSecond) throws IOException
+    {
+        if (maxBytesPerSecond <= 0L)
+            throw new IllegalArgumentException("Invalid rate " + maxBytesPerSecond);
+        CacheSnapshot.writeIncremental(this, path, RateLimiter.create(maxBytesPerSecond));
+    }
+
+    public void exportTo(WritableByteChannel channel) throws IOException
+    {
+        CacheSnapshot.export(this, channel);
+    }
+
+    public long importFrom(ReadableByteChannel channel) throws IOException
+    {
+        return CacheSnapshot.importFrom(this, channel);
+    }
+
+    //
+    // saved keys and warm-up
+    //
+
+    public void saveKeys(Path path, int n) throws IOException
     {
-        V v = getIfPresent(key);
-        if (v == null)
+        SavedKeys.write(this, path, n);
+    }
+
+    public void warmUp(Path path, CacheLoader<K, V> loader, int concurrency, double maxKeysPerSecond) throws IOException
+    {
+        long t0 = System.nanoTime();
+        warmUpStarted = t0;
+        try
         {
-            long t0 = System.currentTimeMillis();
-            try
-            {
-                v = valueLoader.call();
-                loadSuccessCount++;
-            }
-            catch (Exception e)
-            {
-                loadExceptionCount++;
-                throw new ExecutionException(e);
-            }
-            finally
-            {
-                totalLoadTime += System.currentTimeMillis() - t0;
-            }
-            put(key, v);
+            SavedKeys.warmUp(this, path, loader, concurrency, maxKeysPerSecond);
+        }
+        finally
+        {
+            warmUpStarted = 0L;
+            warmUpTime.addAndGet(System.nanoTime() - t0);
         }
-        return v;
     }
 
-    public ImmutableMap<K, V> getAllPresent(Iterable<?> keys)
+    private long tombstones()
     {
-        // TODO implement
-        return null;
+        long tombstones = 0L;
+        for (OffHeapMap map : maps)
+            tombstones += map.tombstones();
+        return tombstones;
     }
 
-    public void putAll(Map<? extends K, ? extends V> m)
+    long segmentSize(int segment)
     {
-        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet())
-            put(entry.getKey(), entry.getValue());
+        return maps[segment].size();
     }
 
-    public void invalidateAll(Iterable<?> iterable)
+    long[] hotEntries(int segment, int n)
     {
-        for (Object o : iterable)
-            invalidate(o);
+        return maps[segment].hotN(n);
     }
 
-    public long getMemUsed()
+    void warmUpKeysRead(int keys)
     {
-        return getCapacity() - freeCapacity();
+        warmUpKeyCount.addAndGet(keys);
+    }
+
+    void warmUpBatchDone(long loaded, long failed)
+    {
+        warmUpLoadCount.addAndGet(loaded);
+        warmUpFailCount.addAndGet(failed);
+    }
+
+    long[] lruEntries(int segment)
+    {
+        return maps[segment].lruEntries();
+    }
+
+    long[] bucketEntries(int segment, int baseTableSize, int fromBucket, int toBucket)
+    {
+        return maps[segment].bucketEntries(baseTableSize, fromBucket, toBucket);
+    }
+
+    int hashTableSize(int segment)
+    {
+        return maps[segment].hashTableSize();
+    }
+
+    void presize(long entries)
+    {
+        for (OffHeapMap map : maps)
+            map.presize(entries / maps.length);
+    }
+
+    /**
+     * Reads an entry written by {@link EntryWriter#writeEntry(long)} and puts it into the cache
+     * without serializer round-trips.
+     */
+    void restoreEntry(EntryReader in) throws IOException
+    {
+        long hash = in.readLong();
+        long keyLen = in.readInt();
+        int flags = in.readInt();
+        long valueLen = in.readLong();
+        if (keyLen < 0L || valueLen < 0L)
+            throw new IOException("Corrupt entry");
+
+        long hashEntryAdr = newEntry(hash, keyLen, valueLen, flags);
+        if (hashEntryAdr == 0L)
+        {
+            in.skip(keyLen + valueLen);
+            if (statisticsEnabled)
+                putFailCount++;
+            return;
+        }
+
+        try
+        {
+            in.read(hashEntryAdr, ENTRY_OFF_DATA, keyLen);
+            if (HashEntries.isChunked(hashEntryAdr))
+            {
+                for (long chunkAdr = HashEntries.getFirstChunk(hashEntryAdr);
+                     valueLen > 0L;
+                     chunkAdr = Uns.getPointer(chunkAdr, CHUNK_OFF_NEXT))
+                {
+                    long l = Math.min(chunkSize - CHUNK_OFF_DATA, valueLen);
+                    in.read(chunkAdr, CHUNK_OFF_DATA, l);
+                    valueLen -= l;
+                }
+            }
+            else
+                in.read(hashEntryAdr, HashEntries.valueOffset(hashEntryAdr), valueLen);
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            HashEntries.free(hashEntryAdr, allocator);
+            throw e;
+        }
+
+        segment(hash).putEntry(hashEntryAdr, HashEntries.getAllocLen(hashEntryAdr));
+    }
+
+    /**
+     * Allocates and initializes a new hash entry including the chunks of a chunked value.
+     *
+     * @return address of the new hash entry or {@code 0}, if the entry is too large or memory could not be allocated
+     */
+    private long newEntry(long hash, long keyLen, long valueLen, int flags)
+    {
+        long bytes = allocLen(keyLen, valueLen);
+
+        boolean chunked = bytes > maxEntrySize && chunkSize > 0L;
+        if (chunked)
+            bytes = chunkedAllocLen(keyLen, valueLen, chunkSize);
+
+        long hashEntryAdr;
+        if (bytes > (chunked ? maxChunkedEntrySize : maxEntrySize)
+            || (hashEntryAdr = Uns.allocate(allocator, chunked ? allocLen(keyLen, CHUNKED_REF_LEN) : bytes)) == 0L)
+            return 0L;
+
+        HashEntries.init(hash, keyLen, valueLen, hashEntryAdr);
+        HashEntries.setFlags(hashEntryAdr, flags & ~(FLAG_CHUNKED | FLAG_SPILLING));
+        if (chunked && !HashEntries.allocateChunks(hashEntryAdr, chunkSize, allocator))
+        {
+            Uns.free(allocator, hashEntryAdr);
+            return 0L;
+        }
+        return hashEntryAdr;
     }
 
     //
-    // methods that don't make sense in this implementation
+    // spill file
     //
 
-    public ConcurrentMap<K, V> asMap()
+    /**
+     * Looks up an entry in the spill file. Entries that have already been written are promoted back to memory.
+     *
+     * @return address of the referenced hash entry, which must be dereferenced by the caller, or {@code 0}
+     */
+    private long spilledEntry(KeyBuffer key)
+    {
+        long hashEntryAdr = spillFile.pendingEntry(key);
+        if (hashEntryAdr != 0L)
+            return hashEntryAdr;
+
+        long position = spillFile.position(key.hash());
+        if (position < 0L)
+            return 0L;
+
+        try
+        {
+            hashEntryAdr = readSpilled(key, position);
+        }
+        catch (IOException e)
+        {
+            throw new IOError(e);
+        }
+        if (hashEntryAdr == 0L)
+            return 0L;
+
+        return segment(key.hash()).promoteEntry(key, hashEntryAdr, HashEntries.getAllocLen(hashEntryAdr), position);
+    }
+
+    /**
+     * Reads the entry at the specified position of the spill file into a new hash entry.
+     *
+     * @return address of the new hash entry or {@code 0}, if the entry has a different key, has been overwritten
+     * or could not be allocated
+     */
+    private long readSpilled(KeyBuffer key, long position) throws IOException
     {
-        throw new UnsupportedOperationException();
+        long keyLen = key.size();
+        long hdrLen = STREAM_ENTRY_HEADER_LEN + keyLen;
+
+        long hashEntryAdr;
+        SerializationBuffer header = SerializationBuffer.acquire();
+        try
+        {
+            header.ensureCapacity(hdrLen);
+            long adr = header.address();
+            spillFile.read(position, adr, 0L, hdrLen);
+            if (Uns.getLong(adr, 0L) != key.hash()
+                || Uns.getInt(adr, 8L) != keyLen
+                || !HashEntries.compareKey(adr, STREAM_ENTRY_HEADER_LEN, key, keyLen))
+                // hash collision or overwritten
+                return 0L;
+
+            hashEntryAdr = newEntry(key.hash(), keyLen, Uns.getLong(adr, 16L), Uns.getInt(adr, 12L));
+            if (hashEntryAdr == 0L)
+                return 0L;
+            Uns.copyMemory(adr, STREAM_ENTRY_HEADER_LEN, hashEntryAdr, ENTRY_OFF_DATA, keyLen);
+        }
+        finally
+        {
+            header.release();
+        }
+
+        try
+        {
+            long valuePos = position + hdrLen;
+            long valueLen = HashEntries.getValueLen(hashEntryAdr);
+            if (HashEntries.isChunked(hashEntryAdr))
+            {
+                for (long chunkAdr = HashEntries.getFirstChunk(hashEntryAdr);
+                     valueLen > 0L;
+                     chunkAdr = Uns.getPointer(chunkAdr, CHUNK_OFF_NEXT))
+                {
+                    long l = Math.min(chunkSize - CHUNK_OFF_DATA, valueLen);
+                    spillFile.read(valuePos, chunkAdr, CHUNK_OFF_DATA, l);
+                    valuePos += l;
+                    valueLen -= l;
+                }
+            }
+            else
+                spillFile.read(valuePos, hashEntryAdr, HashEntries.valueOffset(hashEntryAdr), valueLen);
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            HashEntries.free(hashEntryAdr, allocator);
+            throw e;
+        }
+
+        if (!spillFile.isValid(position))
+        {
+            // overwritten while reading
+            HashEntries.free(hashEntryAdr, allocator);
+            return 0L;
+        }
+
+        return hashEntryAdr;
     }
 
     //
     // alloc/free
     //
 
-    private void dereference(long hashEntryAdr)
+    void dereference(long hashEntryAdr)
     {
         if (HashEntries.dereference(hashEntryAdr))
             free(hashEntryAdr);
@@ -530,9 +2402,12 @@ public final class SegmentedCacheImpl<K, V> implements OHCache<K, V>
             throw new IllegalStateException();
 
         long hash = HashEntries.getHash(hashEntryAdr);
+        int flags = HashEntries.getFlags(hashEntryAdr);
 
-        Uns.free(hashEntryAdr);
-        segment(hash).freed(bytes);
+        HashEntries.free(hashEntryAdr, allocator);
+        // the capacity of an entry handed over to the spill file has already been released
+        if ((flags & FLAG_SPILLING) == 0)
+            segment(hash).freed(bytes);
         return bytes;
     }
 }
@@ -0,0 +1,241 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Growable, thread-local off-heap staging area used for serializers that cannot tell the serialized size
+ * in advance (see {@link CacheSerializer#serializedSize(Object)}) and for (de)compression.
+ * Data is serialized into the staging area in a single pass and copied into the exactly sized hash entry afterwards.
+ */
+final class SerializationBuffer extends AbstractDataOutput
+{
+    // initial size of a staging area
+    static final long INITIAL_SIZE = 4096;
+    // staging areas larger than this are freed after use - reallocated starting with INITIAL_SIZE when used again
+    static final long MAX_RETAINED_SIZE = 1024 * 1024;
+
+    // number of staging areas retained per thread
+    private static final int POOL_SIZE = 4;
+
+    private static final ThreadLocal<SerializationBuffer[]> perThread = new ThreadLocal<SerializationBuffer[]>()
+    {
+        protected SerializationBuffer[] initialValue()
+        {
+            return new SerializationBuffer[POOL_SIZE];
+        }
+    };
+
+    // staging areas retained by terminated threads become phantom reachable - their memory is freed by acquire()
+    private static final ReferenceQueue<SerializationBuffer> released = new ReferenceQueue<>();
+    private static final Set<Cleaner> cleaners = Collections.newSetFromMap(new ConcurrentHashMap<Cleaner, Boolean>());
+
+    private final Memory memory = new Memory();
+    private final Cleaner cleaner = new Cleaner(this, memory);
+    private long address;
+    private long capacity;
+    private long p;
+
+    private SerializationBuffer()
+    {
+    }
+
+    /**
+     * Off-heap memory of a staging area - referenced by its {@link Cleaner} as the staging area itself
+     * is no longer accessible when its cleaner is enqueued.
+     */
+    private static final class Memory
+    {
+        volatile long address;
+
+        void free()
+        {
+            long adr = address;
+            address = 0L;
+            if (adr != 0L)
+                Uns.free(adr);
+        }
+    }
+
+    private static final class Cleaner extends PhantomReference<SerializationBuffer>
+    {
+        private final Memory memory;
+
+        Cleaner(SerializationBuffer buffer, Memory memory)
+        {
+            super(buffer, released);
+            this.memory = memory;
+            cleaners.add(this);
+        }
+
+        void clean()
+        {
+            cleaners.remove(this);
+            memory.free();
+        }
+    }
+
+    /**
+     * Number of staging areas that have not been freed yet.
+     */
+    static int retained()
+    {
+        return cleaners.size();
+    }
+
+    private static void cleanReleased()
+    {
+        for (Cleaner cleaner; (cleaner = (Cleaner) released.poll()) != null; )
+            cleaner.clean();
+    }
+
+    /**
+     * Returns an empty staging area, preferably one retained by the current thread.
+     * Each acquired staging area must be passed to {@link #release()} when no longer needed.
+     */
+    static SerializationBuffer acquire()
+    {
+        cleanReleased();
+
+        SerializationBuffer[] pool = perThread.get();
+        for (int i = 0; i < POOL_SIZE; i++)
+        {
+            SerializationBuffer buffer = pool[i];
+            if (buffer != null)
+            {
+                pool[i] = null;
+                return buffer;
+            }
+        }
+        return new SerializationBuffer();
+    }
+
+    void release()
+    {
+        p = 0L;
+        if (capacity > MAX_RETAINED_SIZE)
+            freeMemory();
+
+        SerializationBuffer[] pool = perThread.get();
+        for (int i = 0; i < POOL_SIZE; i++)
+            if (pool[i] == null)
+            {
+                pool[i] = this;
+                return;
+            }
+
+        // not retained - free its memory now instead of waiting for the garbage collector
+        freeMemory();
+        cleaner.clear();
+        cleaners.remove(cleaner);
+    }
+
+    private void freeMemory()
+    {
+        memory.free();
+        address = 0L;
+        capacity = 0L;
+    }
+
+    long address()
+    {
+        return address;
+    }
+
+    long size()
+    {
+        return p;
+    }
+
+    /**
+     * Copies the staged bytes to the specified off-heap location.
+     */
+    void copyTo(long dstAddress, long dstOffset)
+    {
+        if (p > 0L)
+            Uns.copyMemory(address, 0L, dstAddress, dstOffset, p);
+    }
+
+    /**
+     * Sets the number of valid bytes after data has been written directly to {@link #address()}.
+     */
+    void size(long size)
+    {
+        if (size < 0L || size > capacity)
+            throw new IllegalArgumentException();
+        p = size;
+    }
+
+    /**
+     * Returns a {@link java.io.DataInput} over the staged bytes.
+     */
+    HashEntryInput input()
+    {
+        return new HashEntryInput(address, 0L, p);
+    }
+
+    private void ensureAvail(long req)
+    {
+        ensureCapacity(p + req);
+    }
+
+    /**
+     * Ensure that the staging area can hold at least {@code required} bytes. Already staged bytes are retained.
+     */
+    void ensureCapacity(long required)
+    {
+        if (required <= capacity)
+            return;
+
+        long newCapacity = capacity > 0L ? capacity : INITIAL_SIZE;
+        while (newCapacity < required)
+            newCapacity <<= 1;
+
+        long newAddress = Uns.allocate(newCapacity);
+        if (newAddress == 0L)
+            throw new OutOfMemoryError("Unable to allocate " + newCapacity + " bytes for serialization buffer");
+        if (address != 0L)
+        {
+            if (p > 0L)
+                Uns.copyMemory(address, 0L, newAddress, 0L, p);
+            Uns.free(address);
+        }
+        address = newAddress;
+        memory.address = newAddress;
+        capacity = newCapacity;
+    }
+
+    public void write(int b)
+    {
+        ensureAvail(1L);
+        Uns.putByte(address, p++, (byte) b);
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+        if (b == null || off < 0 || off + len > b.length || len < 0)
+            throw new IllegalArgumentException();
+
+        ensureAvail(len);
+        Uns.copyMemory(b, off, address, p, len);
+        p += len;
+    }
+}
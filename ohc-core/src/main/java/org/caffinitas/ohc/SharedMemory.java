@@ -0,0 +1,274 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.caffinitas.ohc.Constants.*;
+
+/**
+ * Memory mapped file (e.g. on {@code /dev/shm}, tmpfs or DAX) that contains the hash tables and all entries
+ * of a cache, so that a restarted process can re-attach to the cache.
+ * <p>
+ * Layout: header (magic, version, state, layout, number of segments, file size, capacity),
+ * the {@link ArenaAllocator}'s state, the state of each segment and the arena with hash tables and entries.
+ * The header's state is {@link #STATE_CLEAN} only after a clean shutdown - any other image is discarded
+ * when opened. The process that maps the image holds an exclusive lock on the file until it unmaps it.
+ * </p>
+ * <p>
+ * The allocator's state uses offsets relative to the base address. Pointers in segment states, hash tables,
+ * entries and chunks are stored relative to their own location (see {@link Uns#putPointer(long, long, long)}),
+ * so the image can be mapped at any address without walking it.
+ * </p>
+ */
+final class SharedMemory
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedMemory.class);
+
+    // "OHCShm01" - also detects images written on a platform with a different byte order
+    static final long MAGIC = 0x4f484353686d3031L;
+    static final int VERSION = 4;
+    // changes whenever the layout of entries or segment states changes
+    static final long LAYOUT = ENTRY_OFF_DATA << 48 | CHUNKED_REF_LEN << 32 | CHUNK_OFF_DATA << 16 | SEGMENT_STATE_LEN;
+
+    static final int STATE_CLEAN = 1;
+    static final int STATE_IN_USE = 2;
+
+    private static final long HDR_OFF_MAGIC = 0;
+    private static final long HDR_OFF_VERSION = 8;
+    private static final long HDR_OFF_STATE = 12;
+    private static final long HDR_OFF_LAYOUT = 16;
+    private static final long HDR_OFF_SEGMENTS = 24;
+    private static final long HDR_OFF_SIZE = 32;
+    private static final long HDR_OFF_CAPACITY = 40;
+    private static final long HDR_OFF_ARENA = 64;
+    private static final long HDR_OFF_SEGMENT_STATES = HDR_OFF_ARENA + ArenaAllocator.META_LEN;
+
+    private static final long PAGE_SIZE = 4096;
+
+    private static final int O_RDWR = 2;
+    private static final int PROT_READ_WRITE = 3;
+    private static final int MAP_SHARED = 1;
+    private static final int MAP_NORESERVE = 0x4000;
+
+    interface LibC extends Library
+    {
+        int open(String path, int flags);
+
+        long mmap(long address, long length, int prot, int flags, int fd, long offset);
+
+        int munmap(long address, long length);
+
+        int close(int fd);
+    }
+
+    private static volatile LibC libc;
+
+    private final Path path;
+    // open while the image is mapped, holds the lock on the image
+    private final RandomAccessFile file;
+    private final FileLock lock;
+    private final long base;
+    private final long size;
+    private final int segments;
+    private final boolean attached;
+    private final ArenaAllocator allocator;
+
+    private SharedMemory(Path path, RandomAccessFile file, FileLock lock, long base, long size, int segments, boolean attached)
+    {
+        this.path = path;
+        this.file = file;
+        this.lock = lock;
+        this.base = base;
+        this.size = size;
+        this.segments = segments;
+        this.attached = attached;
+
+        long headerLen = headerLen(segments);
+        this.allocator = new ArenaAllocator(base, HDR_OFF_ARENA, headerLen, size, ArenaAllocator.stripes(segments), !attached);
+    }
+
+    private static LibC libc()
+    {
+        LibC lib = libc;
+        if (lib == null)
+            libc = lib = (LibC) Native.loadLibrary("c", LibC.class);
+        return lib;
+    }
+
+    static long headerLen(int segments)
+    {
+        long len = HDR_OFF_SEGMENT_STATES + segments * SEGMENT_STATE_LEN;
+        return (len + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Maps the specified file and attaches to the cache contained in it if it has been shut down cleanly
+     * and matches the configuration. Otherwise the file is (re-)initialized.
+     *
+     * @throws IOException if the image is in use by another process (or another cache in this process)
+     */
+    static SharedMemory open(Path path, long size, int segments, long capacity) throws IOException
+    {
+        size = (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            FileLock lock;
+            try
+            {
+                lock = channel.tryLock();
+            }
+            catch (OverlappingFileLockException e)
+            {
+                lock = null;
+            }
+            // the image must neither be truncated nor attached to while it is mapped by another process
+            if (lock == null)
+                throw new IOException("Shared memory image " + path + " is in use by another process");
+
+            return open(path, file, lock, size, segments, capacity);
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            // releases the lock
+            file.close();
+            throw e;
+        }
+    }
+
+    private static SharedMemory open(Path path, RandomAccessFile file, FileLock lock, long size, int segments,
+                                     long capacity) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate((int) HDR_OFF_ARENA).order(ByteOrder.nativeOrder());
+        FileChannel channel = file.getChannel();
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+        {
+        }
+
+        boolean valid = !header.hasRemaining()
+                        && file.length() == size
+                        && header.getLong((int) HDR_OFF_MAGIC) == MAGIC
+                        && header.getInt((int) HDR_OFF_VERSION) == VERSION
+                        && header.getInt((int) HDR_OFF_STATE) == STATE_CLEAN
+                        && header.getLong((int) HDR_OFF_LAYOUT) == LAYOUT
+                        && header.getInt((int) HDR_OFF_SEGMENTS) == segments
+                        && header.getLong((int) HDR_OFF_SIZE) == size
+                        && header.getLong((int) HDR_OFF_CAPACITY) == capacity;
+
+        if (!valid)
+        {
+            if (file.length() > 0L)
+                LOGGER.info("Discarding incompatible or inconsistent shared memory image {}", path);
+            // truncating discards the previous content
+            file.setLength(0L);
+            file.setLength(size);
+        }
+
+        LibC lib = libc();
+        int fd = lib.open(path.toString(), O_RDWR);
+        if (fd < 0)
+            throw new IOException("Unable to open " + path);
+        long base;
+        try
+        {
+            base = lib.mmap(0L, size, PROT_READ_WRITE, MAP_SHARED | MAP_NORESERVE, fd, 0L);
+        }
+        finally
+        {
+            lib.close(fd);
+        }
+        if (base == -1L || base == 0L)
+            throw new IOException("Unable to map " + path);
+        Uns.registerRegion(base, size);
+
+        // any image that is not closed cleanly will be discarded
+        Uns.putInt(base, HDR_OFF_STATE, STATE_IN_USE);
+
+        if (valid)
+            LOGGER.info("Attached to shared memory image {}", path);
+        else
+        {
+            Uns.putLong(base, HDR_OFF_MAGIC, MAGIC);
+            Uns.putInt(base, HDR_OFF_VERSION, VERSION);
+            Uns.putLong(base, HDR_OFF_LAYOUT, LAYOUT);
+            Uns.putInt(base, HDR_OFF_SEGMENTS, segments);
+            Uns.putLong(base, HDR_OFF_SIZE, size);
+            Uns.putLong(base, HDR_OFF_CAPACITY, capacity);
+        }
+
+        return new SharedMemory(path, file, lock, base, size, segments, valid);
+    }
+
+    static long segmentStateOffset(int segment)
+    {
+        return HDR_OFF_SEGMENT_STATES + segment * SEGMENT_STATE_LEN;
+    }
+
+    /**
+     * Whether an existing cache has been attached.
+     */
+    boolean attached()
+    {
+        return attached;
+    }
+
+    long address()
+    {
+        return base;
+    }
+
+    ArenaAllocator allocator()
+    {
+        return allocator;
+    }
+
+    /**
+     * Marks the image as cleanly shut down and unmaps it. The segments' states must have been saved before.
+     */
+    void close()
+    {
+        Uns.putInt(base, HDR_OFF_STATE, STATE_CLEAN);
+
+        Uns.unregisterRegion(base);
+        if (libc().munmap(base, size) != 0)
+            LOGGER.warn("Failed to unmap shared memory image {}", path);
+
+        try
+        {
+            lock.release();
+            file.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("Failed to release shared memory image {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.caffinitas.ohc.alloc.IAllocator;
+
+import static org.caffinitas.ohc.Constants.*;
+
+/**
+ * Second tier for entries evicted from memory. Evicted entries are handed over by
+ * {@link OffHeapMap#cleanUp()} and written asynchronously by a single writer thread to a log structured file
+ * using the stream representation of {@link EntryWriter}. The file is written like a ring buffer - new entries
+ * overwrite the oldest ones.
+ * <p>
+ * The index is an off-heap open addressing hash table, split into independently locked stripes. It maps the hash
+ * of a key to either the position of the entry in the file or - until the entry has been written - to the
+ * evicted hash entry itself. Only the hash is indexed, the key is verified when an entry is read.
+ * </p>
+ * <p>
+ * All index modifications for a key, except publishing a written entry, are performed while holding the lock of
+ * the key's segment. Publishing only succeeds if the index still refers to the evicted hash entry.
+ * </p>
+ */
+final class SpillFile
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillFile.class);
+
+    // number of independently locked index stripes
+    static final int STRIPES = 64;
+    // initial number of slots per stripe
+    private static final int INITIAL_STRIPE_SLOTS = 1024;
+    // index slot - hash (long) and reference (long), reference is position + 1 or the negated hash entry address
+    private static final long SLOT_LEN = 16;
+    // max number of entries written before the index is updated
+    private static final int WRITE_BATCH = 256;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final IAllocator allocator;
+    private final long maxPendingBytes;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LinkedBlockingQueue<Long> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Thread writer;
+    // set when the spill file is closed or writing failed
+    private volatile boolean closed;
+
+    // logical end of all data that has been or is being written - entries before reservedEnd - fileSize are overwritten
+    private volatile long reservedEnd;
+    private volatile long writeCount;
+
+    /**
+     * @param maxPendingBytes max memory used by evicted entries that have not been written yet
+     */
+    SpillFile(Path path, long fileSize, IAllocator allocator, long maxPendingBytes) throws IOException
+    {
+        if (fileSize <= 0L)
+            throw new IllegalArgumentException("Invalid spill file size " + fileSize);
+
+        this.path = path;
+        this.fileSize = fileSize;
+        this.allocator = allocator;
+        this.maxPendingBytes = maxPendingBytes;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+
+        writer = new ThreadFactoryBuilder().setDaemon(true)
+                                           .setNameFormat("OHC-spill-writer-%d")
+                                           .build()
+                                           .newThread(new Runnable()
+                                           {
+                                               public void run()
+                                               {
+                                                   writeLoop();
+                                               }
+                                           });
+        writer.start();
+    }
+
+    private Stripe stripe(long hash)
+    {
+        return stripes[(int) (hash >>> 32) & (STRIPES - 1)];
+    }
+
+    private long minValidPosition()
+    {
+        return reservedEnd - fileSize;
+    }
+
+    /**
+     * Takes over the reference of an entry that has just been evicted by its segment.
+     *
+     * @return {@code false} if the entry cannot be spilled - the caller keeps its reference
+     */
+    boolean offer(long hashEntryAdr)
+    {
+        if (closed || EntryWriter.entryLen(hashEntryAdr) > fileSize)
+            return false;
+
+        long bytes = HashEntries.getAllocLen(hashEntryAdr);
+        if (pendingBytes.addAndGet(bytes) > maxPendingBytes)
+        {
+            // writer cannot keep up
+            pendingBytes.addAndGet(-bytes);
+            return false;
+        }
+
+        long hash = HashEntries.getHash(hashEntryAdr);
+        HashEntries.setFlags(hashEntryAdr, HashEntries.getFlags(hashEntryAdr) | FLAG_SPILLING);
+        stripe(hash).put(hash, -hashEntryAdr, minValidPosition());
+        pending.add(hashEntryAdr);
+        return true;
+    }
+
+    /**
+     * Removes the entry for the hash from the index.
+     */
+    void invalidate(long hash)
+    {
+        stripe(hash).remove(hash);
+    }
+
+    /**
+     * Removes the entry for the hash from the index, if the index still refers to {@code ref}.
+     *
+     * @return {@code true} if the entry has been removed
+     */
+    boolean invalidate(long hash, long ref)
+    {
+        return stripe(hash).replace(hash, ref, 0L);
+    }
+
+    void clear()
+    {
+        for (Stripe stripe : stripes)
+            stripe.clear();
+    }
+
+    /**
+     * Returns the hashes and references of all entries in an index stripe, which have not been overwritten, as pairs.
+     * A reference is either the position of a written entry plus one or the negated address of a hash entry, which
+     * has not been written yet. These hash entries are referenced and must be dereferenced by the caller.
+     */
+    long[] slots(int stripeIndex)
+    {
+        Stripe stripe = stripes[stripeIndex];
+        synchronized (stripe)
+        {
+            long minValidPosition = minValidPosition();
+            long[] slots = new long[stripe.size * 2];
+            int n = 0;
+            for (int slot = 0; slot < stripe.slots; slot++)
+            {
+                long ref = stripe.slotRef(slot);
+                if (ref == 0L || (ref > 0L && ref - 1L < minValidPosition))
+                    continue;
+                if (ref < 0L)
+                    HashEntries.reference(-ref);
+                slots[n++] = stripe.slotHash(slot);
+                slots[n++] = ref;
+            }
+            return n < slots.length ? Arrays.copyOf(slots, n) : slots;
+        }
+    }
+
+    /**
+     * Returns a spilled entry that has not been written yet.
+     *
+     * @return address of the referenced hash entry, which must be dereferenced by the caller, or {@code 0}
+     */
+    long pendingEntry(KeyBuffer key)
+    {
+        Stripe stripe = stripe(key.hash());
+        synchronized (stripe)
+        {
+            long ref = stripe.get(key.hash());
+            if (ref >= 0L)
+                return 0L;
+
+            long hashEntryAdr = -ref;
+            if (HashEntries.getKeyLen(hashEntryAdr) != key.size()
+                || !HashEntries.compareKey(hashEntryAdr, key, key.size()))
+                return 0L;
+
+            // the writer keeps its reference until the index no longer refers to the hash entry
+            HashEntries.reference(hashEntryAdr);
+            return hashEntryAdr;
+        }
+    }
+
+    /**
+     * @return position of the written entry for the hash or {@code -1}
+     */
+    long position(long hash)
+    {
+        Stripe stripe = stripe(hash);
+        synchronized (stripe)
+        {
+            long ref = stripe.get(hash);
+            if (ref <= 0L)
+                return -1L;
+
+            long position = ref - 1L;
+            if (position < minValidPosition())
+            {
+                // overwritten
+                stripe.remove(hash);
+                return -1L;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Whether the entry at the position has not been overwritten - must be checked after an entry has been read.
+     */
+    boolean isValid(long position)
+    {
+        return position >= minValidPosition();
+    }
+
+    /**
+     * Reads {@code len} bytes of the entry at {@code position} into off-heap memory.
+     */
+    void read(long position, long address, long offset, long len) throws IOException
+    {
+        long filePos = position % fileSize;
+        while (len > 0L)
+        {
+            int l = (int) Math.min(len, 1 << 30);
+            ByteBuffer dst = Uns.directBufferFor(address, offset, l, ByteOrder.nativeOrder());
+            while (dst.hasRemaining())
+                if (channel.read(dst, filePos + dst.position()) < 0)
+                    throw new EOFException();
+            filePos += l;
+            offset += l;
+            len -= l;
+        }
+    }
+
+    long writeCount()
+    {
+        return writeCount;
+    }
+
+    void resetStatistics()
+    {
+        writeCount = 0L;
+    }
+
+    private void writeLoop()
+    {
+        RingChannel ring = new RingChannel();
+        EntryWriter out = new EntryWriter(ring);
+        long[] batch = new long[WRITE_BATCH];
+        long[] positions = new long[WRITE_BATCH];
+        long writePos = 0L;
+        try
+        {
+            while (!closed)
+            {
+                Long first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+
+                batch[0] = first;
+                int n = 1;
+                for (Long next; n < WRITE_BATCH && (next = pending.poll()) != null; )
+                    batch[n++] = next;
+
+                try
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        long len = EntryWriter.entryLen(batch[i]);
+                        long filePos = writePos % fileSize;
+                        if (filePos + len > fileSize)
+                        {
+                            // entries are never split - continue at the beginning of the file
+                            out.flush();
+                            writePos += fileSize - filePos;
+                            ring.position = 0L;
+                        }
+                        reservedEnd = writePos + len;
+                        out.writeEntry(batch[i]);
+                        positions[i] = writePos;
+                        writePos += len;
+                    }
+                    out.flush();
+                }
+                catch (IOException e)
+                {
+                    // stop spilling - entries that have not been written yet are dropped by close()
+                    LOGGER.warn("Failed to write to spill file {}, no more entries will be spilled", path, e);
+                    closed = true;
+                    for (int i = 0; i < n; i++)
+                        positions[i] = -1L;
+                }
+
+                for (int i = 0; i < n; i++)
+                {
+                    long hash = HashEntries.getHash(batch[i]);
+                    if (positions[i] >= 0L)
+                    {
+                        stripe(hash).replace(hash, -batch[i], positions[i] + 1L);
+                        writeCount++;
+                    }
+                    else
+                        stripe(hash).replace(hash, -batch[i], 0L);
+                    release(batch[i]);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            out.release();
+        }
+    }
+
+    private void release(long hashEntryAdr)
+    {
+        long bytes = HashEntries.getAllocLen(hashEntryAdr);
+        if (HashEntries.dereference(hashEntryAdr))
+            HashEntries.free(hashEntryAdr, allocator);
+        pendingBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Stops the writer, drops all entries that have not been written, frees the index and deletes the file.
+     */
+    void close() throws IOException
+    {
+        closed = true;
+        try
+        {
+            writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        clear();
+        for (Long hashEntryAdr; (hashEntryAdr = pending.poll()) != null; )
+            release(hashEntryAdr);
+
+        for (Stripe stripe : stripes)
+            stripe.release();
+
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Writes sequentially to the file starting at {@link #position}.
+     */
+    private final class RingChannel implements WritableByteChannel
+    {
+        long position;
+
+        public int write(ByteBuffer src) throws IOException
+        {
+            int wr = channel.write(src, position);
+            position += wr;
+            return wr;
+        }
+
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        public void close()
+        {
+            // the file channel is closed by the spill file
+        }
+    }
+
+    /**
+     * Linear probing hash table with backward shift deletion. A reference of {@code 0} marks an empty slot.
+     */
+    private static final class Stripe
+    {
+        private long address;
+        private int slots;
+        private int size;
+
+        Stripe()
+        {
+            allocate(INITIAL_STRIPE_SLOTS);
+        }
+
+        private void allocate(int slots)
+        {
+            address = Uns.allocate(slots * SLOT_LEN);
+            if (address == 0L)
+                throw new OutOfMemoryError("Unable to allocate spill file index");
+            Uns.setMemory(address, 0L, slots * SLOT_LEN, (byte) 0);
+            this.slots = slots;
+            size = 0;
+        }
+
+        private int slot(long hash)
+        {
+            return (int) hash & (slots - 1);
+        }
+
+        private long slotHash(int slot)
+        {
+            return Uns.getLong(address, slot * SLOT_LEN);
+        }
+
+        private long slotRef(int slot)
+        {
+            return Uns.getLong(address, slot * SLOT_LEN + 8);
+        }
+
+        private void slot(int slot, long hash, long ref)
+        {
+            Uns.putLong(address, slot * SLOT_LEN, hash);
+            Uns.putLong(address, slot * SLOT_LEN + 8, ref);
+        }
+
+        private int find(long hash)
+        {
+            for (int slot = slot(hash); ; slot = (slot + 1) & (slots - 1))
+            {
+                if (slotRef(slot) == 0L)
+                    return -1;
+                if (slotHash(slot) == hash)
+                    return slot;
+            }
+        }
+
+        synchronized long get(long hash)
+        {
+            int slot = find(hash);
+            return slot >= 0 ? slotRef(slot) : 0L;
+        }
+
+        synchronized void put(long hash, long ref, long minValidPosition)
+        {
+            int slot = find(hash);
+            if (slot >= 0)
+            {
+                slot(slot, hash, ref);
+                return;
+            }
+
+            if (size >= slots / 4 * 3)
+                resize(minValidPosition);
+            insert(hash, ref);
+        }
+
+        private void insert(long hash, long ref)
+        {
+            int slot = slot(hash);
+            while (slotRef(slot) != 0L)
+                slot = (slot + 1) & (slots - 1);
+            slot(slot, hash, ref);
+            size++;
+        }
+
+        /**
+         * Updates the reference for the hash, if it is {@code expected}. An update to {@code 0} removes the slot.
+         *
+         * @return {@code true} if the reference has been updated
+         */
+        synchronized boolean replace(long hash, long expected, long ref)
+        {
+            int slot = find(hash);
+            if (slot < 0 || slotRef(slot) != expected)
+                return false;
+            if (ref == 0L)
+                removeSlot(slot);
+            else
+                slot(slot, hash, ref);
+            return true;
+        }
+
+        synchronized void remove(long hash)
+        {
+            int slot = find(hash);
+            if (slot >= 0)
+                removeSlot(slot);
+        }
+
+        private void removeSlot(int slot)
+        {
+            size--;
+
+            // move following entries of the same probe sequence back
+            for (int next = (slot + 1) & (slots - 1); slotRef(next) != 0L; next = (next + 1) & (slots - 1))
+            {
+                int home = slot(slotHash(next));
+                // can the entry at 'next' be moved to 'slot' (i.e. 'home' is not cyclically in (slot, next])
+                if (slot <= next ? (home <= slot || home > next) : (home <= slot && home > next))
+                {
+                    slot(slot, slotHash(next), slotRef(next));
+                    slot = next;
+                }
+            }
+            slot(slot, 0L, 0L);
+        }
+
+        /**
+         * Doubles the number of slots - overwritten entries are dropped.
+         */
+        private void resize(long minValidPosition)
+        {
+            long oldAddress = address;
+            int oldSlots = slots;
+            allocate(oldSlots * 2);
+            for (int slot = 0; slot < oldSlots; slot++)
+            {
+                long ref = Uns.getLong(oldAddress, slot * SLOT_LEN + 8);
+                if (ref < 0L || (ref > 0L && ref - 1L >= minValidPosition))
+                    insert(Uns.getLong(oldAddress, slot * SLOT_LEN), ref);
+            }
+            Uns.free(oldAddress);
+        }
+
+        synchronized void clear()
+        {
+            Uns.setMemory(address, 0L, slots * SLOT_LEN, (byte) 0);
+            size = 0;
+        }
+
+        synchronized void release()
+        {
+            Uns.free(address);
+            address = 0L;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.nio.ByteOrder;
+
+/**
+ * 64 bit checksum over a stream of off-heap bytes. The result does not depend on how the stream is split
+ * into {@link #update(long, long, long)} calls.
+ */
+final class StreamChecksum
+{
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long SEED = 0x27D4EB2F165667C5L;
+
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    private long value;
+    private long length;
+
+    // bytes of an incomplete 8 byte word
+    private long pending;
+    private int pendingBytes;
+
+    StreamChecksum()
+    {
+        reset();
+    }
+
+    void reset()
+    {
+        value = SEED;
+        length = 0L;
+        pending = 0L;
+        pendingBytes = 0;
+    }
+
+    void update(long address, long offset, long len)
+    {
+        length += len;
+
+        for (; pendingBytes != 0 && len > 0L; offset++, len--)
+            pendingByte(Uns.getByte(address, offset));
+
+        for (; len >= 8L; offset += 8, len -= 8)
+        {
+            long word = Uns.getLong(address, offset);
+            mix(BIG_ENDIAN ? Long.reverseBytes(word) : word);
+        }
+
+        for (; len > 0L; offset++, len--)
+            pendingByte(Uns.getByte(address, offset));
+    }
+
+    private void pendingByte(byte b)
+    {
+        pending |= (b & 0xffL) << (pendingBytes << 3);
+        if (++pendingBytes == 8)
+        {
+            mix(pending);
+            pending = 0L;
+            pendingBytes = 0;
+        }
+    }
+
+    private void mix(long word)
+    {
+        value = Long.rotateLeft(value + word * PRIME_2, 31) * PRIME_1;
+    }
+
+    long value()
+    {
+        long h = Long.rotateLeft(value + pending * PRIME_2, 31) * PRIME_1;
+        h ^= length;
+        h ^= h >>> 33;
+        h *= PRIME_2;
+        h ^= h >>> 29;
+        return h;
+    }
+}
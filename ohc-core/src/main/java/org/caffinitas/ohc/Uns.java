@@ -31,9 +31,14 @@
 package org.caffinitas.ohc;
 
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +55,11 @@ final class Uns
     static final Unsafe unsafe;
     private static final IAllocator allocator;
 
+    // template and field offsets used to create direct ByteBuffer instances for arbitrary off-heap memory regions
+    private static final ByteBuffer directBufferTemplate;
+    private static final long BUFFER_ADDRESS_OFFSET;
+    private static final long BUFFER_CAPACITY_OFFSET;
+
     private static final boolean __DEBUG_OFF_HEAP_MEMORY_ACCESS = Boolean.parseBoolean(System.getProperty("DEBUG_OFF_HEAP_MEMORY_ACCESS", "false"));
     private static final boolean __DISABLE_JEMALLOC = Boolean.parseBoolean(System.getProperty("DISABLE_JEMALLOC", "false"));
 
@@ -58,11 +68,45 @@ final class Uns
     //
     private static final ConcurrentMap<Long, Long> ohDebug = __DEBUG_OFF_HEAP_MEMORY_ACCESS ? new ConcurrentHashMap<Long, Long>(16384) : null;
     private static final Map<Long, Throwable> ohFreeDebug = __DEBUG_OFF_HEAP_MEMORY_ACCESS ? new ConcurrentHashMap<Long, Throwable>(16384) : null;
+    // mapped regions (e.g. shared memory) that may contain allocations made by another process
+    private static final List<long[]> ohDebugRegions = __DEBUG_OFF_HEAP_MEMORY_ACCESS ? new CopyOnWriteArrayList<long[]>() : null;
+    private static boolean inRegion(long address, long len)
+    {
+        for (long[] region : ohDebugRegions)
+            if (address >= region[0] && address + len <= region[1])
+                return true;
+        return false;
+    }
+    static void registerRegion(long address, long len)
+    {
+        if (__DEBUG_OFF_HEAP_MEMORY_ACCESS)
+        {
+            allocated(address, len);
+            ohDebugRegions.add(new long[]{ address, address + len });
+        }
+    }
+    static void unregisterRegion(long address)
+    {
+        if (__DEBUG_OFF_HEAP_MEMORY_ACCESS)
+        {
+            for (long[] region : ohDebugRegions)
+                if (region[0] == address)
+                {
+                    ohDebugRegions.remove(region);
+                    // forget about all allocations in the region
+                    for (Long adr : ohDebug.keySet())
+                        if (adr >= region[0] && adr < region[1])
+                            ohDebug.remove(adr);
+                }
+        }
+    }
     private static void freed(long address)
     {
         if (__DEBUG_OFF_HEAP_MEMORY_ACCESS)
         {
             Long allocatedLen = ohDebug.remove(address);
+            if (allocatedLen == null && inRegion(address, 0L))
+                return;
             if (allocatedLen == null)
             {
                 Throwable freedAt = ohFreeDebug.get(address);
@@ -87,6 +131,8 @@ final class Uns
             if (address == 0L)
                 throw new NullPointerException();
             Long allocatedLen = ohDebug.get(address);
+            if (allocatedLen == null && inRegion(address + offset, len))
+                return;
             if (allocatedLen == null)
             {
                 Throwable freedAt = ohFreeDebug.get(address);
@@ -128,6 +174,10 @@ final class Uns
             if (alloc == null)
                 alloc = new NativeAllocator();
             allocator = alloc;
+
+            directBufferTemplate = ByteBuffer.allocateDirect(0);
+            BUFFER_ADDRESS_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+            BUFFER_CAPACITY_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("capacity"));
         }
         catch (Exception e)
         {
@@ -156,6 +206,36 @@ final class Uns
         return unsafe.getLong(null, address + offset);
     }
 
+    /**
+     * Writes a pointer relative to its own location - {@code 0} is stored as is. Self-relative pointers stay valid
+     * when a memory region that contains both the pointer and its target is mapped at a different address.
+     */
+    static void putPointer(long address, long offset, long pointer)
+    {
+        putLong(address, offset, pointer != 0L ? pointer - (address + offset) : 0L);
+    }
+
+    /**
+     * Reads a pointer written by {@link #putPointer(long, long, long)}.
+     */
+    static long getPointer(long address, long offset)
+    {
+        long relative = getLong(address, offset);
+        return relative != 0L ? address + offset + relative : 0L;
+    }
+
+    static void putInt(long address, long offset, int value)
+    {
+        validate(address, offset, 4L);
+        unsafe.putInt(null, address + offset, value);
+    }
+
+    static int getInt(long address, long offset)
+    {
+        validate(address, offset, 4L);
+        return unsafe.getInt(null, address + offset);
+    }
+
     static void putByte(long address, long offset, byte value)
     {
         validate(address, offset, 1L);
@@ -168,6 +248,18 @@ final class Uns
         return unsafe.getByte(null, address + offset);
     }
 
+    static byte getByteVolatile(long address, long offset)
+    {
+        validate(address, offset, 1L);
+        return unsafe.getByteVolatile(null, address + offset);
+    }
+
+    static void putByteVolatile(long address, long offset, byte value)
+    {
+        validate(address, offset, 1L);
+        unsafe.putByteVolatile(null, address + offset, value);
+    }
+
     static boolean decrement(long address, long offset)
     {
         validate(address, offset, 8L);
@@ -206,22 +298,65 @@ final class Uns
         unsafe.copyMemory(null, address + offset, arr, Unsafe.ARRAY_BYTE_BASE_OFFSET + off, len);
     }
 
+    static void copyMemory(long srcAddress, long srcOffset, long dstAddress, long dstOffset, long len)
+    {
+        validate(srcAddress, srcOffset, len);
+        validate(dstAddress, dstOffset, len);
+        unsafe.copyMemory(null, srcAddress + srcOffset, null, dstAddress + dstOffset, len);
+    }
+
+    /**
+     * Returns a direct {@link java.nio.ByteBuffer} for the specified off-heap memory region.
+     * Position is {@code 0}, limit and capacity are {@code len}.
+     */
+    static ByteBuffer directBufferFor(long address, long offset, long len, ByteOrder order)
+    {
+        if (len > Integer.MAX_VALUE || len < 0L)
+            throw new IllegalArgumentException("Invalid length " + len);
+        validate(address, offset, len);
+
+        ByteBuffer buffer = directBufferTemplate.duplicate();
+        unsafe.putLong(buffer, BUFFER_ADDRESS_OFFSET, address + offset);
+        unsafe.putInt(buffer, BUFFER_CAPACITY_OFFSET, (int) len);
+        buffer.clear();
+        return buffer.order(order);
+    }
+
     static void setMemory(long address, long offset, long len, byte val)
     {
         validate(address, offset, len);
         unsafe.setMemory(address + offset, len, val);
     }
 
+    /**
+     * The process wide allocator used for all allocations that do not specify an allocator.
+     */
+    static IAllocator allocator()
+    {
+        return allocator;
+    }
+
     static long allocate(long bytes)
+    {
+        return allocate(allocator, bytes);
+    }
+
+    static long allocate(IAllocator allocator, long bytes)
     {
         // TODO any chance to pin the memory to RAM (i.e. never swap to disk) ?
 
         long address = allocator.allocate(bytes);
-        allocated(address, bytes);
+        if (address > 0L)
+            allocated(address, bytes);
         return address > 0L ? address : 0L;
     }
 
     static void free(long address)
+    {
+        free(allocator, address);
+    }
+
+    static void free(IAllocator allocator, long address)
     {
         freed(address);
         allocator.free(address);
@@ -25,4 +25,22 @@ public abstract class AbstractTest
         }
     };
 
+    public static final CacheSerializer<String> stringSerializerUnknownSize = new CacheSerializer<String>()
+    {
+        public void serialize(String s, DataOutput out) throws IOException
+        {
+            out.writeUTF(s);
+        }
+
+        public String deserialize(DataInput in) throws IOException
+        {
+            return in.readUTF();
+        }
+
+        public int serializedSize(String s)
+        {
+            return -1;
+        }
+    };
+
 }
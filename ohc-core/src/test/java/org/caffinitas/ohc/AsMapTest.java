@@ -0,0 +1,182 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AsMapTest extends AbstractTest
+{
+    private static OHCacheBuilder<String, String> builder()
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer);
+    }
+
+    @Test
+    public void conditionalOperations() throws IOException
+    {
+        try (OHCache<String, String> cache = builder().build())
+        {
+            ConcurrentMap<String, String> map = cache.asMap();
+
+            Assert.assertNull(map.putIfAbsent("a", "1"));
+            Assert.assertEquals(map.putIfAbsent("a", "2"), "1");
+            Assert.assertEquals(map.get("a"), "1");
+
+            Assert.assertFalse(map.replace("a", "2", "3"));
+            Assert.assertTrue(map.replace("a", "1", "3"));
+            Assert.assertEquals(map.get("a"), "3");
+
+            Assert.assertNull(map.replace("b", "1"));
+            Assert.assertFalse(map.containsKey("b"));
+            Assert.assertEquals(map.replace("a", "4"), "3");
+
+            Assert.assertEquals(map.put("a", "5"), "4");
+            Assert.assertNull(map.put("b", "6"));
+
+            Assert.assertFalse(map.remove("a", "4"));
+            Assert.assertTrue(map.remove("a", "5"));
+            Assert.assertFalse(map.containsKey("a"));
+
+            Assert.assertEquals(map.remove("b"), "6");
+            Assert.assertNull(map.remove("b"));
+            Assert.assertTrue(map.isEmpty());
+
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "conditionalOperations")
+    public void compareCompressedAndChunkedValues() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append("column-").append(i % 13).append(';');
+        String large = sb.toString();
+
+        try (OHCache<String, String> cache = builder().segmentCount(1)
+                                                      .capacity(4 * 1024 * 1024)
+                                                      .maxEntrySize(1d / 1024)
+                                                      .chunkSize(512)
+                                                      .compressionThreshold(256)
+                                                      .statisticsEnabled(true)
+                                                      .build())
+        {
+            ConcurrentMap<String, String> map = cache.asMap();
+
+            // large and incompressible enough to be chunked
+            StringBuilder random = new StringBuilder();
+            for (int i = 0; i < 3000; i++)
+                random.append((char) ('a' + (i * 7919) % 26)).append(i);
+            String chunked = random.toString();
+
+            map.put("compressed", large);
+            map.put("chunked", chunked);
+
+            // comparing values does not put entries
+            long compressed = cache.extendedStats().getCompressedCount();
+            Assert.assertFalse(map.remove("compressed", large + 'x'));
+            Assert.assertEquals(cache.extendedStats().getCompressedCount(), compressed);
+
+            Assert.assertFalse(map.replace("compressed", large + 'x', "small"));
+            Assert.assertTrue(map.replace("compressed", large, "small"));
+            Assert.assertEquals(map.get("compressed"), "small");
+
+            Assert.assertFalse(map.remove("chunked", chunked + 'x'));
+            Assert.assertTrue(map.remove("chunked", chunked));
+
+            map.clear();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "compareCompressedAndChunkedValues")
+    public void concurrentReplace() throws Exception
+    {
+        final int threads = 4;
+        final int increments = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (OHCache<String, String> cache = builder().build())
+        {
+            final ConcurrentMap<String, String> map = cache.asMap();
+            map.put("counter", "0");
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    public Void call()
+                    {
+                        for (int i = 0; i < increments; i++)
+                            while (true)
+                            {
+                                String v = map.get("counter");
+                                if (map.replace("counter", v, Integer.toString(Integer.parseInt(v) + 1)))
+                                    break;
+                            }
+                        return null;
+                    }
+                }));
+            for (Future<?> future : futures)
+                future.get();
+
+            Assert.assertEquals(map.get("counter"), Integer.toString(threads * increments));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "concurrentReplace")
+    public void iteration() throws IOException
+    {
+        try (OHCache<String, String> cache = builder().hashTableSize(256).build())
+        {
+            Map<String, String> expected = new HashMap<>();
+            for (int i = 0; i < 5000; i++)
+            {
+                cache.put("key-" + i, "value-" + i);
+                expected.put("key-" + i, "value-" + i);
+            }
+
+            ConcurrentMap<String, String> map = cache.asMap();
+            Assert.assertEquals(new HashMap<>(map), expected);
+            Assert.assertEquals(map, expected);
+
+            for (Iterator<Map.Entry<String, String>> iter = map.entrySet().iterator(); iter.hasNext(); )
+                if (iter.next().getKey().endsWith("0"))
+                    iter.remove();
+            Assert.assertEquals(map.size(), 4500);
+            Assert.assertFalse(map.containsKey("key-10"));
+            Assert.assertTrue(map.containsKey("key-11"));
+        }
+    }
+}
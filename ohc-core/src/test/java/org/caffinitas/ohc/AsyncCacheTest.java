@@ -0,0 +1,325 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+public class AsyncCacheTest extends AbstractTest
+{
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    private OHCacheBuilder<String, String> builder()
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer)
+                             .executor(executor)
+                             .statisticsEnabled(true);
+    }
+
+    static class CountingLoader extends CacheLoader<String, String>
+    {
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger bulkLoads = new AtomicInteger();
+        volatile CountDownLatch release = new CountDownLatch(0);
+        volatile String suffix = "";
+        volatile boolean fail;
+
+        public String load(String key) throws Exception
+        {
+            release.await();
+            loads.incrementAndGet();
+            if (fail)
+                throw new IOException("backing store unavailable");
+            return "value-" + key + suffix;
+        }
+
+        public Map<String, String> loadAll(Iterable<? extends String> keys) throws Exception
+        {
+            bulkLoads.incrementAndGet();
+            Map<String, String> r = new HashMap<>();
+            for (String key : keys)
+                r.put(key, "bulk-" + key);
+            return r;
+        }
+    }
+
+    @Test
+    public void getLoadsAsynchronously() throws Exception
+    {
+        CountingLoader loader = new CountingLoader();
+        loader.release = new CountDownLatch(1);
+        try (OHAsyncCache<String, String> cache = builder().buildAsync(loader))
+        {
+            ListenableFuture<String> f1 = cache.get("a");
+            ListenableFuture<String> f2 = cache.get("a");
+            // the calling thread does not block and concurrent requests share the load
+            Assert.assertFalse(f1.isDone());
+            Assert.assertSame(f2, f1);
+
+            loader.release.countDown();
+            Assert.assertEquals(f1.get(10, TimeUnit.SECONDS), "value-a");
+            Assert.assertEquals(loader.loads.get(), 1);
+
+            ListenableFuture<String> f3 = cache.get("a");
+            Assert.assertTrue(f3.isDone());
+            Assert.assertEquals(f3.get(), "value-a");
+            Assert.assertEquals(cache.getIfPresent("a"), "value-a");
+            Assert.assertEquals(cache.stats().loadSuccessCount(), 1L);
+        }
+    }
+
+    @Test(dependsOnMethods = "getLoadsAsynchronously")
+    public void getAllBulkLoadsMissingKeys() throws Exception
+    {
+        CountingLoader loader = new CountingLoader();
+        try (OHAsyncCache<String, String> cache = builder().buildAsync(loader))
+        {
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                keys.add("k" + i);
+            for (int i = 0; i < 3; i++)
+                cache.put("k" + i, "put-" + i);
+
+            ImmutableMap<String, String> values = cache.getAll(keys).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(values.keySet().asList(), keys);
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals(values.get("k" + i), i < 3 ? "put-" + i : "bulk-k" + i);
+            Assert.assertEquals(loader.bulkLoads.get(), 1);
+            Assert.assertEquals(loader.loads.get(), 0);
+
+            ListenableFuture<ImmutableMap<String, String>> cached = cache.getAll(keys);
+            Assert.assertTrue(cached.isDone());
+            Assert.assertEquals(cached.get(), values);
+            Assert.assertEquals(loader.bulkLoads.get(), 1);
+        }
+    }
+
+    @Test(dependsOnMethods = "getAllBulkLoadsMissingKeys")
+    public void failedLoad() throws Exception
+    {
+        CountingLoader loader = new CountingLoader();
+        loader.fail = true;
+        try (OHAsyncCache<String, String> cache = builder().buildAsync(loader))
+        {
+            try
+            {
+                cache.get("a").get(10, TimeUnit.SECONDS);
+                Assert.fail("expected ExecutionException");
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            Assert.assertNull(cache.getIfPresent("a"));
+
+            loader.fail = false;
+            Assert.assertEquals(cache.get("a").get(10, TimeUnit.SECONDS), "value-a");
+            Assert.assertEquals(loader.loads.get(), 2);
+        }
+    }
+
+    @Test(dependsOnMethods = "failedLoad")
+    public void failedPut() throws Exception
+    {
+        CacheSerializer<String> failing = new CacheSerializer<String>()
+        {
+            public void serialize(String s, DataOutput out) throws IOException
+            {
+                throw new IllegalStateException("cannot serialize");
+            }
+
+            public String deserialize(DataInput in) throws IOException
+            {
+                return in.readUTF();
+            }
+
+            public int serializedSize(String s)
+            {
+                return -1;
+            }
+        };
+        CountingLoader loader = new CountingLoader();
+        try (OHAsyncCache<String, String> cache = builder().valueSerializer(failing).buildAsync(loader))
+        {
+            for (int i = 0; i < 2; i++)
+                try
+                {
+                    // the second request must not get the stuck future of the first load
+                    cache.get("a").get(10, TimeUnit.SECONDS);
+                    Assert.fail("expected ExecutionException");
+                }
+                catch (ExecutionException e)
+                {
+                    Assert.assertNotNull(e.getCause());
+                }
+            Assert.assertEquals(loader.loads.get(), 2);
+        }
+    }
+
+    @Test(dependsOnMethods = "failedPut")
+    public void expireAfterWrite() throws Exception
+    {
+        CountingLoader loader = new CountingLoader();
+        try (OHAsyncCache<String, String> cache = builder().expireAfterWrite(50L).buildAsync(loader))
+        {
+            cache.put("a", "put");
+            Assert.assertEquals(cache.getIfPresent("a"), "put");
+
+            Thread.sleep(100L);
+            Assert.assertNull(cache.getIfPresent("a"));
+            Assert.assertEquals(cache.get("a").get(10, TimeUnit.SECONDS), "value-a");
+            Assert.assertEquals(loader.loads.get(), 1);
+        }
+    }
+
+    @Test(dependsOnMethods = "expireAfterWrite")
+    public void refreshAhead() throws Exception
+    {
+        CountingLoader loader = new CountingLoader();
+        try (OHAsyncCache<String, String> cache = builder().refreshAfterWrite(50L)
+                                                           .expireAfterWrite(60000L)
+                                                           .buildAsync(loader))
+        {
+            Assert.assertEquals(cache.get("a").get(10, TimeUnit.SECONDS), "value-a");
+
+            Thread.sleep(100L);
+            loader.suffix = "-refreshed";
+
+            // the current value is returned immediately, the refresh runs in the background
+            ListenableFuture<String> f = cache.get("a");
+            Assert.assertTrue(f.isDone());
+            Assert.assertEquals(f.get(), "value-a");
+
+            long timeout = System.currentTimeMillis() + 10000L;
+            while (!"value-a-refreshed".equals(cache.getIfPresent("a")))
+            {
+                Assert.assertTrue(System.currentTimeMillis() < timeout, "value not refreshed");
+                Thread.sleep(10L);
+            }
+            Assert.assertEquals(loader.loads.get(), 2);
+        }
+    }
+
+    @Test(dependsOnMethods = "refreshAhead")
+    public void refreshDoesNotResurrect() throws Exception
+    {
+        CountingLoader loader = new CountingLoader();
+        try (OHAsyncCache<String, String> cache = builder().refreshAfterWrite(50L)
+                                                           .expireAfterWrite(60000L)
+                                                           .buildAsync(loader))
+        {
+            Assert.assertEquals(cache.get("a").get(10, TimeUnit.SECONDS), "value-a");
+            Assert.assertEquals(cache.get("b").get(10, TimeUnit.SECONDS), "value-b");
+
+            Thread.sleep(100L);
+            loader.release = new CountDownLatch(1);
+
+            // start refreshes and invalidate or overwrite the entries while the reloads are blocked
+            Assert.assertEquals(cache.get("a").get(), "value-a");
+            Assert.assertEquals(cache.get("b").get(), "value-b");
+            cache.invalidate("a");
+            cache.put("b", "written");
+            loader.release.countDown();
+
+            long timeout = System.currentTimeMillis() + 10000L;
+            while (cache.stats().loadCount() < 4)
+            {
+                Assert.assertTrue(System.currentTimeMillis() < timeout, "values not reloaded");
+                Thread.sleep(10L);
+            }
+            Thread.sleep(100L);
+
+            Assert.assertNull(cache.getIfPresent("a"));
+            Assert.assertEquals(cache.getIfPresent("b"), "written");
+        }
+    }
+
+    @Test(dependsOnMethods = "refreshDoesNotResurrect")
+    public void refreshRejected() throws Exception
+    {
+        final AtomicInteger executions = new AtomicInteger();
+        Executor rejecting = new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                // reject the first refresh
+                if (executions.incrementAndGet() == 2)
+                    throw new Error("rejected");
+                executor.execute(command);
+            }
+        };
+
+        CountingLoader loader = new CountingLoader();
+        try (OHAsyncCache<String, String> cache = builder().executor(rejecting)
+                                                           .refreshAfterWrite(50L)
+                                                           .expireAfterWrite(60000L)
+                                                           .buildAsync(loader))
+        {
+            Assert.assertEquals(cache.get("a").get(10, TimeUnit.SECONDS), "value-a");
+
+            Thread.sleep(100L);
+            loader.suffix = "-refreshed";
+
+            // a rejected refresh does not prevent later refreshes
+            Assert.assertEquals(cache.get("a").get(), "value-a");
+            Assert.assertEquals(executions.get(), 2);
+            Assert.assertEquals(cache.get("a").get(), "value-a");
+
+            long timeout = System.currentTimeMillis() + 10000L;
+            while (!"value-a-refreshed".equals(cache.getIfPresent("a")))
+            {
+                Assert.assertTrue(System.currentTimeMillis() < timeout, "value not refreshed");
+                Thread.sleep(10L);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void executorRequired()
+    {
+        OHCacheBuilder.<String, String>newBuilder()
+                      .keySerializer(stringSerializer)
+                      .valueSerializer(stringSerializer)
+                      .buildAsync(new CountingLoader());
+    }
+}
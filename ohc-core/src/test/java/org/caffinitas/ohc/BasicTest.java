@@ -15,8 +15,19 @@
  */
 package org.caffinitas.ohc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOError;
 import java.io.IOException;
-
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Predicate;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -190,4 +201,381 @@ public class BasicTest extends AbstractTest
             Assert.assertEquals(cache.extendedStats().getCleanupCount(), 0L, "cleanup did run");
         }
     }
-}
\ No newline at end of file
+
+    @Test(dependsOnMethods = "serializing")
+    public void serializeUnknownSize() throws IOException, InterruptedException
+    {
+        char[] c10k = new char[10000];
+        for (int i = 0; i < c10k.length; i++)
+            c10k[i] = (char) ('A' + i % 26);
+        String large = new String(c10k);
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializerUnknownSize)
+                                                           .valueSerializer(stringSerializerUnknownSize)
+                                                           .build())
+        {
+            for (int i = 0; i < 1000; i++)
+                cache.put("key-" + i, "" + i);
+
+            // larger than the initial size of the staging area
+            cache.put("large", large);
+            cache.put(large, "large-key");
+
+            Assert.assertEquals(cache.size(), 1002);
+
+            for (int i = 0; i < 1000; i++)
+                Assert.assertEquals(cache.getIfPresent("key-" + i), "" + i);
+            Assert.assertEquals(cache.getIfPresent("large"), large);
+            Assert.assertEquals(cache.getIfPresent(large), "large-key");
+
+            cache.invalidateAll();
+
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "serializeUnknownSize")
+    public void serializerFailsUnknownSize() throws IOException
+    {
+        CacheSerializer<String> failing = new CacheSerializer<String>()
+        {
+            public void serialize(String s, DataOutput out) throws IOException
+            {
+                out.writeUTF(s);
+                if (s.startsWith("fail"))
+                    throw new IllegalStateException("cannot serialize " + s);
+            }
+
+            public String deserialize(DataInput in) throws IOException
+            {
+                return in.readUTF();
+            }
+
+            public int serializedSize(String s)
+            {
+                return -1;
+            }
+        };
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(failing)
+                                                           .build())
+        {
+            cache.put("key", "value");
+            try
+            {
+                cache.put("key", "fail");
+                Assert.fail("expected IOError");
+            }
+            catch (IOError e)
+            {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertEquals(cache.getIfPresent("key"), "value");
+
+            cache.invalidateAll();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "putTooLarge")
+    public void putChunked() throws IOException, InterruptedException
+    {
+        char[] c20k = new char[20000];
+        for (int i = 0; i < c20k.length; i++)
+            c20k[i] = (char) ('A' + i % 26);
+        String v = new String(c20k);
+
+        for (CacheSerializer<String> serializer : new CacheSerializer[]{ stringSerializer, stringSerializerUnknownSize })
+            try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                               .keySerializer(serializer)
+                                                               .valueSerializer(serializer)
+                                                               .segmentCount(1)
+                                                               .capacity(100 * 1024)
+                                                               .maxEntrySize(.08d) // == 8kB
+                                                               .chunkSize(1024)
+                                                               .build())
+            {
+                cache.put("foobar", v);
+                cache.put("small", "small");
+
+                Assert.assertEquals(cache.getIfPresent("foobar"), v);
+                Assert.assertEquals(cache.getIfPresent("small"), "small");
+                // 20000 bytes value in 1016 data bytes per chunk
+                Assert.assertEquals(cache.getMemUsed(),
+                                    Constants.chunkedAllocLen(6, 20002, 1024) + Constants.allocLen(5, 7));
+
+                // larger than half of the segment capacity
+                cache.put("huge", v + v + v);
+                Assert.assertNull(cache.getIfPresent("huge"));
+
+                cache.invalidate("foobar");
+                cache.invalidate("small");
+
+                Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+            }
+    }
+
+    @Test(dependsOnMethods = "serializing")
+    public void getAllPresent() throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try
+        {
+            for (ExecutorService exec : new ExecutorService[]{ null, executor })
+                try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                                   .keySerializer(stringSerializer)
+                                                                   .valueSerializer(stringSerializer)
+                                                                   .statisticsEnabled(true)
+                                                                   .executor(exec)
+                                                                   .build())
+                {
+                    for (int i = 0; i < 1000; i += 2)
+                        cache.put("key-" + i, "value-" + i);
+
+                    Assert.assertTrue(cache.getAllPresent(new ArrayList<String>()).isEmpty());
+
+                    List<String> keys = new ArrayList<>();
+                    for (int i = 0; i < 1000; i++)
+                        keys.add("key-" + i);
+                    // duplicate keys
+                    keys.add("key-0");
+                    keys.add("key-1");
+
+                    Map<String, String> present = cache.getAllPresent(keys);
+                    Assert.assertEquals(present.size(), 500);
+                    for (int i = 0; i < 1000; i += 2)
+                        Assert.assertEquals(present.get("key-" + i), "value-" + i);
+                    Assert.assertEquals(cache.stats().hitCount(), 500L);
+                    Assert.assertEquals(cache.stats().missCount(), 500L);
+
+                    cache.invalidateAll();
+
+                    Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+                }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void getAllPresentLongChains() throws IOException
+    {
+        // few buckets - lookups of a group walk long chains and share buckets
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .segmentCount(1)
+                                                           .hashTableSize(256)
+                                                           .loadFactor(100d)
+                                                           .build())
+        {
+            for (int i = 0; i < 10000; i += 3)
+                cache.put("key-" + i, "value-" + i);
+            Assert.assertEquals(cache.getHashTableSizes()[0], 256);
+
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 10000; i++)
+                keys.add("key-" + i);
+
+            Map<String, String> present = cache.getAllPresent(keys);
+            Assert.assertEquals(present.size(), 3334);
+            for (int i = 0; i < 10000; i += 3)
+                Assert.assertEquals(present.get("key-" + i), "value-" + i);
+
+            cache.invalidateAll();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "getAllPresent")
+    public void putAllInvalidateAll() throws IOException
+    {
+        char[] c20k = new char[20000];
+        for (int i = 0; i < c20k.length; i++)
+            c20k[i] = (char) ('A' + i % 26);
+        String tooLarge = new String(c20k);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try
+        {
+            for (ExecutorService exec : new ExecutorService[]{ null, executor })
+                try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                                   .keySerializer(stringSerializer)
+                                                                   .valueSerializer(stringSerializer)
+                                                                   .capacity(4 * ONE_MB)
+                                                                   .segmentCount(4)
+                                                                   .maxEntrySize(1d / 128) // == 8kB
+                                                                   .statisticsEnabled(true)
+                                                                   .executor(exec)
+                                                                   .build())
+                {
+                    cache.put("key-0", "old");
+                    cache.put("too-large", "old");
+
+                    Map<String, String> m = new HashMap<>();
+                    for (int i = 0; i < 1000; i++)
+                        m.put("key-" + i, "value-" + i);
+                    m.put("too-large", tooLarge);
+                    cache.putAll(m);
+
+                    Assert.assertEquals(cache.size(), 1000L);
+                    for (int i = 0; i < 1000; i++)
+                        Assert.assertEquals(cache.getIfPresent("key-" + i), "value-" + i);
+                    // failed put removes the stale entry
+                    Assert.assertNull(cache.getIfPresent("too-large"));
+                    OHCacheStats stats = cache.extendedStats();
+                    Assert.assertEquals(stats.getPutAddCount(), 2L + 999L);
+                    Assert.assertEquals(stats.getPutReplaceCount(), 1L);
+                    Assert.assertEquals(stats.getPutFailCount(), 1L);
+
+                    List<String> keys = new ArrayList<>();
+                    for (int i = 0; i < 2000; i += 2)
+                        keys.add("key-" + i);
+                    cache.invalidateAll(keys);
+
+                    Assert.assertEquals(cache.size(), 500L);
+                    for (int i = 0; i < 1000; i++)
+                        Assert.assertEquals(cache.getIfPresent("key-" + i), i % 2 == 0 ? null : "value-" + i);
+                    Assert.assertEquals(cache.extendedStats().getUnlinkCount(), 500L);
+
+                    cache.invalidateAll();
+
+                    Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+                }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "putAllInvalidateAll")
+    public void putAllSingleCleanUp() throws IOException
+    {
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .capacity(ONE_MB)
+                                                           .segmentCount(1)
+                                                           .build())
+        {
+            for (int i = 0; cache.extendedStats().getCleanupCount() == 0L; i++)
+                cache.put("key-" + i, "value-" + i);
+            long cleanUps = cache.extendedStats().getCleanupCount();
+
+            Map<String, String> m = new HashMap<>();
+            for (int i = 0; i < 1000; i++)
+                m.put("batch-" + i, "value-" + i);
+            cache.putAll(m);
+
+            Assert.assertEquals(cache.extendedStats().getCleanupCount(), cleanUps + 1L);
+            for (int i = 0; i < 1000; i++)
+                Assert.assertEquals(cache.getIfPresent("batch-" + i), "value-" + i);
+        }
+    }
+
+    @Test(dependsOnMethods = "putAllSingleCleanUp")
+    public void invalidateIf() throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .segmentCount(16)
+                                                           .hashTableSize(256)
+                                                           .executor(executor)
+                                                           .statisticsEnabled(true)
+                                                           .build())
+        {
+            for (int i = 0; i < 5000; i++)
+                for (String table : new String[]{ "t1", "t2", "t3" })
+                    cache.put(String.format("%s:%04d", table, i), "value-" + i);
+
+            // serialized by writeUTF - length (7) followed by the characters
+            Assert.assertEquals(cache.invalidateKeysWithPrefix(new byte[]{ 0, 7, 't', '1', ':' }), 5000L);
+            Assert.assertEquals(cache.size(), 10000L);
+
+            long removed = cache.invalidateIf(new Predicate<ByteBuffer>()
+            {
+                public boolean apply(ByteBuffer key)
+                {
+                    // t2 keys with an even number
+                    return key.get(3) == '2' && (key.get(key.limit() - 1) & 1) == 0;
+                }
+            });
+            Assert.assertEquals(removed, 2500L);
+            Assert.assertEquals(cache.stats().evictionCount(), 0L);
+
+            for (int i = 0; i < 5000; i++)
+            {
+                Assert.assertNull(cache.getIfPresent(String.format("t1:%04d", i)));
+                Assert.assertEquals(cache.getIfPresent(String.format("t2:%04d", i)), i % 2 == 0 ? null : "value-" + i);
+                Assert.assertEquals(cache.getIfPresent(String.format("t3:%04d", i)), "value-" + i);
+            }
+            Assert.assertEquals(cache.extendedStats().getUnlinkCount(), 7500L);
+
+            Assert.assertEquals(cache.invalidateKeysWithPrefix(new byte[0]), 7500L);
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "invalidateIf")
+    public void setCapacity() throws IOException
+    {
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .capacity(8 * ONE_MB)
+                                                           .segmentCount(4)
+                                                           .statisticsEnabled(true)
+                                                           .build())
+        {
+            int n = 0;
+            while (cache.extendedStats().getCleanupCount() == 0L)
+                cache.put("key-" + n, "value-" + n++);
+            long size = cache.size();
+
+            cache.setCapacity(4 * ONE_MB);
+            Assert.assertEquals(cache.getCapacity(), 4 * ONE_MB);
+            Assert.assertTrue(cache.getMemUsed() <= 4 * ONE_MB);
+            Assert.assertTrue(cache.size() < size);
+            // most recently used entries are retained
+            Assert.assertEquals(cache.getIfPresent("key-" + (n - 1)), "value-" + (n - 1));
+
+            long cleanUps = cache.extendedStats().getCleanupCount();
+            cache.setCapacity(16 * ONE_MB);
+            Assert.assertEquals(cache.getCapacity(), 16 * ONE_MB);
+            size = cache.size();
+            for (int i = 0; i < 1000; i++)
+                cache.put("more-" + i, "value-" + i);
+            Assert.assertEquals(cache.size(), size + 1000);
+            Assert.assertEquals(cache.extendedStats().getCleanupCount(), cleanUps);
+
+            cache.invalidateAll();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "setCapacity", expectedExceptions = IllegalArgumentException.class)
+    public void setCapacityTooSmall() throws IOException
+    {
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .capacity(8 * ONE_MB)
+                                                           .segmentCount(4)
+                                                           .build())
+        {
+            cache.setCapacity(1024);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BloomFilterTest extends AbstractTest
+{
+    @Test
+    public void countingFilter()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(1000);
+        try
+        {
+            for (long hash = 0L; hash < 1000L; hash++)
+                filter.add(hash * 31);
+            for (long hash = 0L; hash < 1000L; hash++)
+                Assert.assertTrue(filter.mightContain(hash * 31));
+
+            int falsePositives = 0;
+            for (long hash = 1000L; hash < 11000L; hash++)
+                if (filter.mightContain(hash * 31))
+                    falsePositives++;
+            Assert.assertTrue(falsePositives < 1000, "false positives: " + falsePositives);
+
+            for (long hash = 0L; hash < 1000L; hash++)
+                filter.remove(hash * 31);
+            for (long hash = 0L; hash < 11000L; hash++)
+                Assert.assertFalse(filter.mightContain(hash * 31));
+
+            // saturated counters stick
+            for (int i = 0; i < 300; i++)
+                filter.add(42L);
+            for (int i = 0; i < 300; i++)
+                filter.remove(42L);
+            Assert.assertTrue(filter.mightContain(42L));
+        }
+        finally
+        {
+            filter.release();
+        }
+    }
+
+    @Test
+    public void definiteMisses() throws IOException
+    {
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .segmentCount(4)
+                                                           .bloomFilterEntries(10000)
+                                                           .statisticsEnabled(true)
+                                                           .build())
+        {
+            for (int i = 0; i < 10000; i++)
+                cache.put("key-" + i, "value-" + i);
+            for (int i = 0; i < 5000; i++)
+                cache.invalidate("key-" + i);
+
+            for (int i = 0; i < 10000; i++)
+                Assert.assertEquals(cache.getIfPresent("key-" + i), i < 5000 ? null : "value-" + i);
+            for (int i = 0; i < 100000; i++)
+                Assert.assertNull(cache.getIfPresent("missing-" + i));
+
+            OHCacheStats stats = cache.extendedStats();
+            Assert.assertEquals(stats.getBloomFilterNegativeCount() + stats.getBloomFilterFalsePositiveCount(), 105000L);
+            Assert.assertTrue(stats.bloomFilterFalsePositiveRate() < .05d, stats.toString());
+
+            cache.invalidateAll();
+            Assert.assertNull(cache.getIfPresent("key-9999"));
+            cache.resetStatistics();
+            for (int i = 0; i < 1000; i++)
+                Assert.assertNull(cache.getIfPresent("key-" + i));
+            Assert.assertEquals(cache.extendedStats().getBloomFilterNegativeCount(), 1000L);
+        }
+    }
+
+    @Test
+    public void eviction() throws IOException
+    {
+        try (OHLongCache<String> cache = OHCacheBuilder.<Long, String>newBuilder()
+                                                       .valueSerializer(stringSerializer)
+                                                       .segmentCount(2)
+                                                       .capacity(1024 * 1024)
+                                                       .bloomFilterEntries(20000)
+                                                       .statisticsEnabled(true)
+                                                       .buildLongCache())
+        {
+            for (long key = 0L; key < 100000L; key++)
+                cache.put(key, "value-" + key);
+            Assert.assertTrue(cache.size() < 100000L);
+
+            // entries that are still present pass the filter, evicted ones are mostly ruled out
+            long present = 0L;
+            for (long key = 0L; key < 100000L; key++)
+            {
+                String value = cache.get(key);
+                if (value != null)
+                {
+                    Assert.assertEquals(value, "value-" + key);
+                    present++;
+                }
+            }
+            Assert.assertEquals(present, cache.size());
+            Assert.assertTrue(cache.extendedStats().getBloomFilterNegativeCount() > (100000L - present) / 2);
+        }
+    }
+
+    @Test
+    public void sharedMemory() throws IOException
+    {
+        Path file = Files.createTempFile("ohc-bloom", ".shm");
+        try
+        {
+            OHCacheBuilder<String, String> builder = OHCacheBuilder.<String, String>newBuilder()
+                                                                   .keySerializer(stringSerializer)
+                                                                   .valueSerializer(stringSerializer)
+                                                                   .segmentCount(2)
+                                                                   .capacity(4 * 1024 * 1024)
+                                                                   .bloomFilterEntries(1000)
+                                                                   .sharedMemoryFile(file);
+            try (OHCache<String, String> cache = builder.build())
+            {
+                for (int i = 0; i < 1000; i++)
+                    cache.put("key-" + i, "value-" + i);
+            }
+
+            // the filter is rebuilt from the re-attached entries
+            try (OHCache<String, String> cache = builder.build())
+            {
+                for (int i = 0; i < 1000; i++)
+                    Assert.assertEquals(cache.getIfPresent("key-" + i), "value-" + i);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+}
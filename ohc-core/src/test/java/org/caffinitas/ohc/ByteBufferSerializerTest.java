@@ -0,0 +1,170 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ByteBufferSerializerTest
+{
+    static final class StringBufferSerializer implements ByteBufferCacheSerializer<String>
+    {
+        private final boolean knownSize;
+
+        StringBufferSerializer(boolean knownSize)
+        {
+            this.knownSize = knownSize;
+        }
+
+        public void serialize(String s, ByteBuffer buf)
+        {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+        }
+
+        public String deserialize(ByteBuffer buf)
+        {
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public int serializedSize(String s)
+        {
+            return knownSize ? 4 + s.getBytes(StandardCharsets.UTF_8).length : -1;
+        }
+    }
+
+    static final class LongBufferSerializer implements ByteBufferCacheSerializer<Long>
+    {
+        public void serialize(Long l, ByteBuffer buf)
+        {
+            buf.putLong(l);
+        }
+
+        public Long deserialize(ByteBuffer buf)
+        {
+            return buf.getLong();
+        }
+
+        public int serializedSize(Long l)
+        {
+            return 8;
+        }
+    }
+
+    @Test
+    public void knownSize() throws IOException
+    {
+        try (OHCache<Long, String> cache = OHCacheBuilder.<Long, String>newBuilder()
+                                                         .keyBufferSerializer(new LongBufferSerializer())
+                                                         .valueBufferSerializer(new StringBufferSerializer(true))
+                                                         .bufferByteOrder(ByteOrder.nativeOrder())
+                                                         .build())
+        {
+            for (long i = 0; i < 3; i++)
+                cache.put(i, "value-" + i);
+
+            // keys are deserialized from a view of the hash entry
+            Set<Long> hot = new HashSet<>();
+            for (Iterator<Long> iter = cache.hotN(1000); iter.hasNext(); )
+                hot.add(iter.next());
+            Assert.assertEquals(hot, new HashSet<>(Arrays.asList(0L, 1L, 2L)));
+
+            for (long i = 3; i < 1000; i++)
+                cache.put(i, "value-" + i);
+            cache.put(1000L, "");
+
+            for (long i = 0; i < 1000; i++)
+                Assert.assertEquals(cache.getIfPresent(i), "value-" + i);
+            Assert.assertEquals(cache.getIfPresent(1000L), "");
+            Assert.assertNull(cache.getIfPresent(1001L));
+
+            cache.invalidateAll();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "knownSize")
+    public void unknownSize() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++)
+            sb.append("unknown size,");
+        String large = sb.toString();
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keyBufferSerializer(new StringBufferSerializer(false))
+                                                           .valueBufferSerializer(new StringBufferSerializer(false))
+                                                           .build())
+        {
+            // keys and values larger than the initial buffers require retries
+            String largeKey = large.substring(0, 1000);
+            cache.put(largeKey, large);
+            cache.put("small", "small");
+
+            Assert.assertEquals(cache.getIfPresent(largeKey), large);
+            Assert.assertEquals(cache.getIfPresent("small"), "small");
+            Assert.assertEquals(cache.getMemUsed(), Constants.allocLen(4 + 1000, 4 + large.length()) + Constants.allocLen(4 + 5, 4 + 5));
+        }
+    }
+
+    @Test(dependsOnMethods = "unknownSize")
+    public void compressedAndChunked() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4000; i++)
+            sb.append("row-").append(i % 13).append(';');
+        String compressible = sb.toString();
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keyBufferSerializer(new StringBufferSerializer(true))
+                                                           .valueBufferSerializer(new StringBufferSerializer(true))
+                                                           .segmentCount(1)
+                                                           .capacity(4 * 1024 * 1024)
+                                                           .maxEntrySize(1d / 1024) // == 4kB
+                                                           .chunkSize(512)
+                                                           .build())
+        {
+            cache.put("chunked", compressible);
+            Assert.assertTrue(cache.getMemUsed() > compressible.length());
+            Assert.assertEquals(cache.getIfPresent("chunked"), compressible);
+            cache.invalidate("chunked");
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keyBufferSerializer(new StringBufferSerializer(true))
+                                                           .valueBufferSerializer(new StringBufferSerializer(true))
+                                                           .compressionThreshold(256)
+                                                           .build())
+        {
+            cache.put("compressed", compressible);
+            Assert.assertTrue(cache.getMemUsed() < compressible.length() / 2);
+            Assert.assertEquals(cache.getIfPresent("compressed"), compressible);
+        }
+    }
+}
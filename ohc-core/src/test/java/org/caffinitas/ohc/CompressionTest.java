@@ -0,0 +1,148 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CompressionTest extends AbstractTest
+{
+    @Test
+    public void lz4RoundTrip()
+    {
+        Random rnd = new Random(42);
+        for (int len : new int[]{ 0, 1, 12, 13, 100, 4096, 65536, 300000 })
+            for (boolean compressible : new boolean[]{ true, false })
+            {
+                byte[] data = new byte[len];
+                if (compressible)
+                {
+                    // random sequence of a few words
+                    String[] words = { "cassandra ", "row-cache ", "off-heap ", "segment ", "entry ", "value " };
+                    for (int i = 0; i < len; )
+                        for (byte b : words[rnd.nextInt(words.length)].getBytes())
+                            if (i < len)
+                                data[i++] = b;
+                }
+                else
+                    rnd.nextBytes(data);
+
+                long src = Uns.allocate(Math.max(len, 1));
+                long dst = Uns.allocate(LZ4Codec.maxCompressedLength(len));
+                long result = Uns.allocate(Math.max(len, 1));
+                try
+                {
+                    Uns.copyMemory(data, 0, src, 0L, len);
+                    int compressedLen = LZ4Codec.compress(src, 0L, len, dst, 0L, LZ4Codec.maxCompressedLength(len));
+                    Assert.assertTrue(compressedLen > 0);
+                    if (compressible && len > 100)
+                        Assert.assertTrue(compressedLen < len / 2, "poor compression " + compressedLen + " for " + len);
+
+                    LZ4Codec.decompress(dst, 0L, compressedLen, result, 0L, len);
+                    byte[] check = new byte[len];
+                    Uns.copyMemory(result, 0L, check, 0, len);
+                    Assert.assertEquals(check, data);
+
+                    if (!compressible && len > 100)
+                        Assert.assertEquals(LZ4Codec.compress(src, 0L, len, dst, 0L, len - 1), -1);
+                }
+                finally
+                {
+                    Uns.free(src);
+                    Uns.free(dst);
+                    Uns.free(result);
+                }
+            }
+    }
+
+    @Test(dependsOnMethods = "lz4RoundTrip")
+    public void compressedValues() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            sb.append("row-").append(i % 7).append(",column-value;");
+        String large = sb.toString();
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .compressionThreshold(256)
+                                                           .statisticsEnabled(true)
+                                                           .build())
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                cache.put("large-" + i, large + i);
+                cache.put("small-" + i, "small-" + i);
+            }
+
+            // 100 large values with approx. 8kB - compressed much smaller
+            Assert.assertTrue(cache.getMemUsed() < 100 * large.length() / 2, "values not compressed");
+
+            for (int i = 0; i < 100; i++)
+            {
+                Assert.assertEquals(cache.getIfPresent("large-" + i), large + i);
+                Assert.assertEquals(cache.getIfPresent("small-" + i), "small-" + i);
+            }
+
+            OHCacheStats stats = cache.extendedStats();
+            Assert.assertEquals(stats.getCompressedCount(), 100L);
+            Assert.assertEquals(stats.getDecompressCount(), 100L);
+            Assert.assertTrue(stats.getDecompressTime() > 0L);
+
+            cache.invalidateAll();
+
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "compressedValues")
+    public void compressedChunkedValues() throws IOException
+    {
+        Random rnd = new Random(42);
+        String[] words = { "cassandra ", "row-cache ", "off-heap ", "segment ", "entry ", "value " };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 6000; i++)
+            sb.append(words[rnd.nextInt(words.length)]);
+        String large = sb.toString();
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .segmentCount(1)
+                                                           .capacity(4 * 1024 * 1024)
+                                                           .maxEntrySize(1d / 1024) // == 4kB
+                                                           .chunkSize(512)
+                                                           .compressionThreshold(256)
+                                                           .build())
+        {
+            cache.put("large", large);
+
+            // compressed, but still too large for a single allocation
+            Assert.assertTrue(cache.getMemUsed() < large.length() / 2);
+            Assert.assertTrue(cache.getMemUsed() > 4096);
+
+            Assert.assertEquals(cache.getIfPresent("large"), large);
+
+            cache.invalidate("large");
+
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+}
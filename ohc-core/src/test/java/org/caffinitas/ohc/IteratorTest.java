@@ -0,0 +1,205 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class IteratorTest extends AbstractTest
+{
+    private static OHCache<String, String> newCache()
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer)
+                             .segmentCount(8)
+                             .hashTableSize(128)
+                             .compressionThreshold(64)
+                             .build();
+    }
+
+    private static Map<String, String> fill(OHCache<String, String> cache, int n)
+    {
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < n; i++)
+        {
+            // every 10th value is large enough to be compressed
+            String value = i % 10 == 0 ? "value-value-value-value-value-value-value-value-value-value-" + i : "value-" + i;
+            cache.put("key-" + i, value);
+            expected.put("key-" + i, value);
+        }
+        return expected;
+    }
+
+    private static String utf(ByteBuffer buf)
+    {
+        int len = buf.getShort() & 0xffff;
+        Assert.assertEquals(buf.remaining(), len);
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b);
+    }
+
+    @Test
+    public void iterators() throws IOException
+    {
+        try (OHCache<String, String> cache = newCache())
+        {
+            Map<String, String> expected = fill(cache, 10000);
+
+            Set<String> keys = new HashSet<>();
+            for (Iterator<String> iter = cache.keyIterator(); iter.hasNext(); )
+                Assert.assertTrue(keys.add(iter.next()));
+            Assert.assertEquals(keys, expected.keySet());
+
+            Map<String, String> entries = new HashMap<>();
+            for (Iterator<Map.Entry<String, String>> iter = cache.entryIterator(); iter.hasNext(); )
+            {
+                Map.Entry<String, String> e = iter.next();
+                Assert.assertNull(entries.put(e.getKey(), e.getValue()));
+            }
+            Assert.assertEquals(entries, expected);
+
+            Map<String, String> raw = new HashMap<>();
+            for (Iterator<Map.Entry<ByteBuffer, ByteBuffer>> iter = cache.rawEntryIterator(); iter.hasNext(); )
+            {
+                Map.Entry<ByteBuffer, ByteBuffer> e = iter.next();
+                Assert.assertNull(raw.put(utf(e.getKey()), utf(e.getValue())));
+            }
+            Assert.assertEquals(raw, expected);
+
+            // all entries must still be dereferenced
+            cache.invalidateAll();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test(dependsOnMethods = "iterators")
+    public void parallelSplits() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (OHCache<String, String> cache = newCache())
+        {
+            Map<String, String> expected = fill(cache, 10000);
+
+            CacheSpliterator<Map.Entry<String, String>> root = cache.entrySpliterator();
+            Assert.assertEquals(root.estimateSize(), 10000L);
+
+            // split down to single bucket ranges
+            List<CacheSpliterator<Map.Entry<String, String>>> parts = new ArrayList<>();
+            List<CacheSpliterator<Map.Entry<String, String>>> pending = new ArrayList<>();
+            pending.add(root);
+            while (!pending.isEmpty())
+            {
+                CacheSpliterator<Map.Entry<String, String>> part = pending.remove(pending.size() - 1);
+                CacheSpliterator<Map.Entry<String, String>> prefix = part.trySplit();
+                if (prefix == null)
+                    parts.add(part);
+                else
+                {
+                    pending.add(part);
+                    pending.add(prefix);
+                }
+            }
+            // down to 64 buckets per part
+            int buckets = 0;
+            for (int tableSize : cache.getHashTableSizes())
+                buckets += tableSize;
+            Assert.assertEquals(parts.size(), buckets / CacheSpliterator.BUCKETS);
+
+            final Map<String, String> found = new ConcurrentHashMap<>();
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (final CacheSpliterator<Map.Entry<String, String>> part : parts)
+                futures.add(executor.submit(new Callable<Integer>()
+                {
+                    public Integer call()
+                    {
+                        int n = 0;
+                        while (part.hasNext())
+                        {
+                            Map.Entry<String, String> e = part.next();
+                            Assert.assertNull(found.put(e.getKey(), e.getValue()));
+                            n++;
+                        }
+                        return n;
+                    }
+                }));
+            int total = 0;
+            for (Future<Integer> future : futures)
+                total += future.get();
+
+            Assert.assertEquals(total, 10000);
+            Assert.assertEquals(found, expected);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "parallelSplits")
+    public void concurrentModification() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final OHCache<String, String> cache = newCache())
+        {
+            Map<String, String> expected = fill(cache, 10000);
+
+            // keys 10000+ are added and removed while iterating, keys below are not touched
+            final AtomicBoolean stop = new AtomicBoolean();
+            Future<?> writer = executor.submit(new Runnable()
+            {
+                public void run()
+                {
+                    for (int i = 10000; !stop.get(); i++)
+                    {
+                        cache.put("key-" + i, "value-" + i);
+                        if (i >= 10100)
+                            cache.invalidate("key-" + (i - 100));
+                    }
+                }
+            });
+
+            Set<String> keys = new HashSet<>();
+            for (Iterator<String> iter = cache.keyIterator(); iter.hasNext(); )
+                Assert.assertTrue(keys.add(iter.next()));
+            stop.set(true);
+            writer.get();
+
+            Assert.assertTrue(keys.containsAll(expected.keySet()));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
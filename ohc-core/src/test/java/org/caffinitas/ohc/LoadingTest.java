@@ -0,0 +1,294 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.CacheLoader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LoadingTest extends AbstractTest
+{
+    private static OHCacheBuilder<String, String> builder()
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer)
+                             .statisticsEnabled(true);
+    }
+
+    @Test
+    public void singleFlight() throws Exception
+    {
+        final int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final OHCache<String, String> cache = builder().build())
+        {
+            final AtomicInteger loads = new AtomicInteger();
+            final CountDownLatch loading = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final Callable<String> loader = new Callable<String>()
+            {
+                public String call() throws Exception
+                {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    release.await();
+                    return "loaded";
+                }
+            };
+
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                results.add(executor.submit(new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        return cache.get("hot", loader);
+                    }
+                }));
+
+            loading.await();
+            // give the other callers time to queue up behind the load
+            Thread.sleep(100L);
+            release.countDown();
+
+            for (Future<String> result : results)
+                Assert.assertEquals(result.get(), "loaded");
+            Assert.assertEquals(loads.get(), 1);
+            Assert.assertEquals(cache.stats().loadSuccessCount(), 1L);
+            Assert.assertEquals(cache.getIfPresent("hot"), "loaded");
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "singleFlight")
+    public void failedLoad() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (final OHCache<String, String> cache = builder().build())
+        {
+            final CyclicBarrier barrier = new CyclicBarrier(4);
+            final AtomicInteger loads = new AtomicInteger();
+            final Callable<String> loader = new Callable<String>()
+            {
+                public String call() throws Exception
+                {
+                    loads.incrementAndGet();
+                    Thread.sleep(100L);
+                    throw new IOException("backing store unavailable");
+                }
+            };
+
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+                results.add(executor.submit(new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        barrier.await();
+                        return cache.get("hot", loader);
+                    }
+                }));
+
+            for (Future<String> result : results)
+                try
+                {
+                    result.get();
+                    Assert.fail("expected ExecutionException");
+                }
+                catch (ExecutionException e)
+                {
+                    // ExecutionException from Future.get() caused by the ExecutionException thrown by cache.get()
+                    Assert.assertTrue(e.getCause() instanceof ExecutionException);
+                    Assert.assertTrue(e.getCause().getCause() instanceof IOException);
+                }
+            Assert.assertTrue(loads.get() < 4);
+            Assert.assertNull(cache.getIfPresent("hot"));
+
+            // a failed load is not cached
+            Assert.assertEquals(cache.get("hot", new Callable<String>()
+            {
+                public String call()
+                {
+                    return "recovered";
+                }
+            }), "recovered");
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "failedLoad")
+    public void waitTimeout() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (final OHCache<String, String> cache = builder().loadWaitTimeout(50L).build())
+        {
+            final CountDownLatch loading = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Future<String> first = executor.submit(new Callable<String>()
+            {
+                public String call() throws Exception
+                {
+                    return cache.get("hot", new Callable<String>()
+                    {
+                        public String call() throws Exception
+                        {
+                            loading.countDown();
+                            release.await();
+                            return "slow";
+                        }
+                    });
+                }
+            });
+
+            loading.await();
+            try
+            {
+                cache.get("hot", new Callable<String>()
+                {
+                    public String call()
+                    {
+                        throw new AssertionError("must not load concurrently");
+                    }
+                });
+                Assert.fail("expected ExecutionException");
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+
+            release.countDown();
+            Assert.assertEquals(first.get(), "slow");
+            Assert.assertEquals(cache.getIfPresent("hot"), "slow");
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "waitTimeout")
+    public void failedStore() throws Exception
+    {
+        CacheSerializer<String> failing = new CacheSerializer<String>()
+        {
+            public void serialize(String s, DataOutput out) throws IOException
+            {
+                out.writeUTF(s);
+            }
+
+            public String deserialize(DataInput in) throws IOException
+            {
+                return in.readUTF();
+            }
+
+            public int serializedSize(String s)
+            {
+                throw new IllegalStateException("cannot serialize " + s);
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (final OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                                 .keySerializer(stringSerializer)
+                                                                 .valueSerializer(failing)
+                                                                 .build())
+        {
+            final CountDownLatch loading = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final Callable<String> loader = new Callable<String>()
+            {
+                public String call() throws Exception
+                {
+                    loading.countDown();
+                    release.await();
+                    return "loaded";
+                }
+            };
+            Callable<String> get = new Callable<String>()
+            {
+                public String call() throws Exception
+                {
+                    return cache.get("hot", loader);
+                }
+            };
+
+            Future<String> loader1 = executor.submit(get);
+            loading.await();
+            Future<String> waiter = executor.submit(get);
+            // give the waiter time to queue up behind the load
+            Thread.sleep(100L);
+            release.countDown();
+
+            for (Future<String> result : Arrays.asList(loader1, waiter))
+                try
+                {
+                    result.get(10, TimeUnit.SECONDS);
+                    Assert.fail("expected ExecutionException");
+                }
+                catch (ExecutionException e)
+                {
+                    // the loading caller fails directly, the waiter with an ExecutionException from cache.get()
+                    Throwable cause = e.getCause() instanceof ExecutionException ? e.getCause().getCause() : e.getCause();
+                    Assert.assertTrue(cause instanceof IllegalStateException, String.valueOf(cause));
+                }
+            Assert.assertNull(cache.getIfPresent("hot"));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(dependsOnMethods = "failedStore", expectedExceptions = CacheLoader.InvalidCacheLoadException.class)
+    public void nullValue() throws Exception
+    {
+        try (OHCache<String, String> cache = builder().build())
+        {
+            cache.get("key", new Callable<String>()
+            {
+                public String call()
+                {
+                    return null;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LockTest extends AbstractTest
+{
+    @Test
+    public void segmentLockSpins() throws Exception
+    {
+        final OffHeapMap.SegmentLock lock = new OffHeapMap.SegmentLock(1000);
+        lock.lock();
+        try
+        {
+            // reentrant
+            lock.lock();
+            Assert.assertEquals(lock.getHoldCount(), 2);
+            lock.unlock();
+
+            final CountDownLatch acquired = new CountDownLatch(1);
+            Thread t = new Thread()
+            {
+                public void run()
+                {
+                    lock.lock();
+                    try
+                    {
+                        acquired.countDown();
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
+            };
+            t.start();
+
+            // other thread spins, then parks
+            while (!lock.hasQueuedThreads())
+                Thread.sleep(1);
+            Assert.assertEquals(acquired.getCount(), 1L);
+            lock.unlock();
+            t.join();
+            Assert.assertEquals(acquired.getCount(), 0L);
+        }
+        finally
+        {
+            while (lock.isHeldByCurrentThread())
+                lock.unlock();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeLockSpins()
+    {
+        OHCacheBuilder.newBuilder().lockSpins(-1);
+    }
+
+    @Test
+    public void contendedSegments() throws Exception
+    {
+        for (int spins : new int[]{ 0, 100 })
+            try (final OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                                     .keySerializer(stringSerializer)
+                                                                     .valueSerializer(stringSerializer)
+                                                                     .segmentCount(2)
+                                                                     .hashTableSize(256)
+                                                                     .capacity(512 * 1024)
+                                                                     .lockSpins(spins)
+                                                                     .build())
+            {
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                Thread[] threads = new Thread[64];
+                for (int t = 0; t < threads.length; t++)
+                {
+                    final int thread = t;
+                    threads[t] = new Thread()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                for (int i = 0; i < 2000; i++)
+                                {
+                                    String key = thread + "-" + (i % 100);
+                                    cache.put(key, "value-" + i);
+                                    String v = cache.getIfPresent(key);
+                                    // entries may be evicted, but never mixed up
+                                    if (v != null && !v.startsWith("value-"))
+                                        throw new AssertionError(v);
+                                }
+                            }
+                            catch (Throwable e)
+                            {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    };
+                }
+                for (Thread t : threads)
+                    t.start();
+                for (Thread t : threads)
+                    t.join();
+
+                Assert.assertNull(failure.get());
+                Assert.assertTrue(cache.size() <= threads.length * 100);
+                Assert.assertTrue(cache.freeCapacity() >= 0L);
+
+                cache.invalidateAll();
+                Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+            }
+    }
+}
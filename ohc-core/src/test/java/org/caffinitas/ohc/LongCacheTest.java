@@ -0,0 +1,136 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LongCacheTest extends AbstractTest
+{
+    @Test
+    public void basics() throws IOException
+    {
+        try (OHLongCache<String> cache = OHCacheBuilder.<Long, String>newBuilder()
+                                                       .valueSerializer(stringSerializer)
+                                                       .statisticsEnabled(true)
+                                                       .buildLongCache())
+        {
+            for (long key : new long[]{ 0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE })
+            {
+                Assert.assertNull(cache.get(key));
+                Assert.assertFalse(cache.containsKey(key));
+
+                cache.put(key, "value-" + key);
+                Assert.assertEquals(cache.get(key), "value-" + key);
+                Assert.assertTrue(cache.containsKey(key));
+
+                Assert.assertFalse(cache.putIfAbsent(key, "other"));
+                Assert.assertEquals(cache.get(key), "value-" + key);
+            }
+            Assert.assertEquals(cache.size(), 5L);
+
+            cache.put(1L, "replaced");
+            Assert.assertEquals(cache.get(1L), "replaced");
+            Assert.assertEquals(cache.get(-1L), "value--1");
+
+            cache.invalidate(1L);
+            Assert.assertNull(cache.get(1L));
+            Assert.assertTrue(cache.putIfAbsent(1L, "again"));
+            Assert.assertEquals(cache.get(1L), "again");
+
+            OHCacheStats stats = cache.extendedStats();
+            Assert.assertEquals(stats.getPutAddCount(), 6L);
+            Assert.assertEquals(stats.getPutReplaceCount(), 1L);
+            Assert.assertEquals(stats.getUnlinkCount(), 1L);
+
+            cache.invalidateAll();
+            Assert.assertEquals(cache.size(), 0L);
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test
+    public void manyKeys() throws IOException
+    {
+        try (OHLongCache<String> cache = OHCacheBuilder.<Long, String>newBuilder()
+                                                       .valueSerializer(stringSerializer)
+                                                       .segmentCount(4)
+                                                       .hashTableSize(256)
+                                                       .capacity(1024 * 1024)
+                                                       .buildLongCache())
+        {
+            // sequential ids must spread over segments and buckets
+            for (long key = 0L; key < 5000L; key++)
+                cache.put(key << 20, "value-" + key);
+            Assert.assertEquals(cache.size(), 5000L);
+            for (long key = 0L; key < 5000L; key++)
+                Assert.assertEquals(cache.get(key << 20), "value-" + key);
+
+            // eviction
+            for (long key = 5000L; key < 50000L; key++)
+                cache.put(key << 20, "value-" + key);
+            Assert.assertTrue(cache.size() < 50000L);
+            Assert.assertTrue(cache.freeCapacity() >= 0L);
+            Assert.assertEquals(cache.get(49999L << 20), "value-49999");
+
+            cache.invalidateAll();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+        }
+    }
+
+    @Test
+    public void compressedValues() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            sb.append("row-").append(i % 7).append(",column-value;");
+        String large = sb.toString();
+
+        try (OHLongCache<String> cache = OHCacheBuilder.<Long, String>newBuilder()
+                                                       .valueSerializer(stringSerializer)
+                                                       .compressionThreshold(256)
+                                                       .statisticsEnabled(true)
+                                                       .buildLongCache())
+        {
+            for (long key = 0L; key < 100L; key++)
+                cache.put(key, large + key);
+            for (long key = 0L; key < 100L; key++)
+                Assert.assertEquals(cache.get(key), large + key);
+            Assert.assertEquals(cache.extendedStats().getCompressedCount(), 100L);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void spillFileNotSupported() throws IOException
+    {
+        Path spill = Files.createTempFile("ohc-long", ".spill");
+        try
+        {
+            OHCacheBuilder.<Long, String>newBuilder()
+                          .valueSerializer(stringSerializer)
+                          .spillFile(spill)
+                          .buildLongCache();
+        }
+        finally
+        {
+            Files.delete(spill);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LongMapTest
+{
+    @Test
+    public void longValues()
+    {
+        try (OHLongMap map = OHCacheBuilder.newBuilder()
+                                           .segmentCount(4)
+                                           .capacity(1024 * 1024)
+                                           .buildLongMap(8))
+        {
+            Assert.assertEquals(map.get(42L, -1L), -1L);
+            Assert.assertFalse(map.containsKey(42L));
+
+            map.put(42L, 1L);
+            Assert.assertEquals(map.get(42L, -1L), 1L);
+            Assert.assertTrue(map.containsKey(42L));
+
+            Assert.assertFalse(map.compareAndSet(42L, 2L, 3L));
+            Assert.assertTrue(map.compareAndSet(42L, 1L, 3L));
+            Assert.assertEquals(map.get(42L, -1L), 3L);
+            Assert.assertFalse(map.compareAndSet(43L, 0L, 1L));
+            Assert.assertFalse(map.containsKey(43L));
+
+            Assert.assertEquals(map.addAndGet(42L, 5L), 8L);
+            Assert.assertEquals(map.addAndGet(43L, 5L), 5L);
+            Assert.assertEquals(map.size(), 2L);
+
+            Assert.assertTrue(map.remove(42L));
+            Assert.assertFalse(map.remove(42L));
+            Assert.assertEquals(map.size(), 1L);
+
+            map.clear();
+            Assert.assertEquals(map.size(), 0L);
+            Assert.assertFalse(map.containsKey(43L));
+
+            // 16 bytes per entry plus the state byte
+            Assert.assertTrue(map.getMemUsed() <= 1024 * 1024);
+            Assert.assertTrue(map.getMaxSize() >= 1024 * 1024 / 17 / 2 * 3 / 4);
+        }
+    }
+
+    @Test
+    public void fixedWidthValues()
+    {
+        try (OHLongMap map = OHCacheBuilder.newBuilder()
+                                           .segmentCount(2)
+                                           .capacity(1024 * 1024)
+                                           .buildLongMap(12))
+        {
+            byte[] v1 = "abcdefghijkl".getBytes();
+            byte[] v2 = "ABCDEFGHIJKL".getBytes();
+            byte[] v = new byte[12];
+
+            Assert.assertFalse(map.get(1L, v));
+            map.put(1L, v1);
+            Assert.assertTrue(map.get(1L, v));
+            Assert.assertEquals(v, v1);
+
+            Assert.assertFalse(map.compareAndSet(1L, v2, v2));
+            Assert.assertTrue(map.compareAndSet(1L, v1, v2));
+            Assert.assertTrue(map.get(1L, v));
+            Assert.assertEquals(v, v2);
+
+            try
+            {
+                map.put(2L, new byte[8]);
+                Assert.fail("expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+            try
+            {
+                map.put(2L, 2L);
+                Assert.fail("expected UnsupportedOperationException");
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void randomOperations()
+    {
+        // small key range - no evictions, exercises backward shift deletion against a reference map
+        Random rnd = new Random(42);
+        Map<Long, Long> reference = new HashMap<>();
+        try (OHLongMap map = OHCacheBuilder.newBuilder()
+                                           .segmentCount(1)
+                                           .capacity(64 * 1024)
+                                           .buildLongMap(8))
+        {
+            for (int i = 0; i < 200000; i++)
+            {
+                long key = rnd.nextInt(1000);
+                switch (rnd.nextInt(3))
+                {
+                    case 0:
+                        map.put(key, i);
+                        reference.put(key, (long) i);
+                        break;
+                    case 1:
+                        Assert.assertEquals(map.remove(key), reference.remove(key) != null);
+                        break;
+                    default:
+                        Long expected = reference.get(key);
+                        Assert.assertEquals(map.get(key, -1L), expected != null ? expected : -1L);
+                        break;
+                }
+            }
+            Assert.assertEquals(map.evictedEntries(), 0L);
+            Assert.assertEquals(map.size(), reference.size());
+            for (Map.Entry<Long, Long> entry : reference.entrySet())
+                Assert.assertEquals(map.get(entry.getKey(), -1L), entry.getValue().longValue());
+        }
+    }
+
+    @Test
+    public void clockEviction()
+    {
+        try (OHLongMap map = OHCacheBuilder.newBuilder()
+                                           .segmentCount(1)
+                                           .capacity(64 * 1024)
+                                           .buildLongMap(8))
+        {
+            long maxSize = map.getMaxSize();
+
+            // hot keys are referenced between inserts - they get a second chance
+            for (long key = 0L; key < maxSize * 10; key++)
+            {
+                map.put(key, key);
+                for (long hot = -10L; hot < 0L; hot++)
+                    map.addAndGet(hot, 1L);
+            }
+
+            Assert.assertEquals(map.size(), maxSize);
+            Assert.assertTrue(map.evictedEntries() > 0L);
+            for (long hot = -10L; hot < 0L; hot++)
+                Assert.assertEquals(map.get(hot, -1L), maxSize * 10);
+
+            // all remaining entries are consistent
+            long present = 0L;
+            for (long key = 0L; key < maxSize * 10; key++)
+            {
+                long v = map.get(key, -1L);
+                if (v != -1L)
+                {
+                    Assert.assertEquals(v, key);
+                    present++;
+                }
+            }
+            Assert.assertEquals(present, maxSize - 10);
+        }
+    }
+}
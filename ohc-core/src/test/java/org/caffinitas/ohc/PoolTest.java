@@ -0,0 +1,145 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PoolTest extends AbstractTest
+{
+    private static final long MB = 1024 * 1024;
+
+    private static OHCache<String, String> pooled(OHCachePool pool, double weight, long min, long max)
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer)
+                             .segmentCount(2)
+                             .pool(pool)
+                             .poolWeight(weight)
+                             .poolMinCapacity(min)
+                             .poolMaxCapacity(max)
+                             .build();
+    }
+
+    @Test
+    public void weightedShares() throws IOException
+    {
+        OHCachePool pool = new OHCachePool(16 * MB);
+        try (OHCache<String, String> a = pooled(pool, 1d, 0L, 0L))
+        {
+            Assert.assertEquals(a.getCapacity(), 16 * MB);
+
+            try (OHCache<String, String> b = pooled(pool, 3d, 0L, 0L))
+            {
+                Assert.assertEquals(pool.getCacheCount(), 2);
+                Assert.assertEquals(a.getCapacity(), 4 * MB);
+                Assert.assertEquals(b.getCapacity(), 12 * MB);
+                Assert.assertTrue(pool.getAssignedCapacity() <= pool.getCapacity());
+            }
+
+            // capacity of a closed cache is returned to the pool
+            Assert.assertEquals(pool.getCacheCount(), 1);
+            Assert.assertEquals(a.getCapacity(), 16 * MB);
+        }
+        Assert.assertEquals(pool.getCacheCount(), 0);
+    }
+
+    @Test
+    public void quotas() throws IOException
+    {
+        OHCachePool pool = new OHCachePool(16 * MB);
+        // a is limited by its maximum, c gets its minimum, b gets the rest
+        try (OHCache<String, String> a = pooled(pool, 100d, 0L, 2 * MB);
+             OHCache<String, String> b = pooled(pool, 3d, 0L, 0L);
+             OHCache<String, String> c = pooled(pool, 1d, 6 * MB, 0L))
+        {
+            Assert.assertEquals(a.getCapacity(), 2 * MB);
+            Assert.assertEquals(c.getCapacity(), 6 * MB);
+            Assert.assertEquals(b.getCapacity(), 8 * MB);
+        }
+
+        try (OHCache<String, String> a = pooled(pool, 1d, 10 * MB, 0L))
+        {
+            try
+            {
+                pooled(pool, 1d, 10 * MB, 0L);
+                Assert.fail("expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+            Assert.assertEquals(a.getCapacity(), 16 * MB);
+            Assert.assertEquals(pool.getCacheCount(), 1);
+        }
+
+        // the failed cache did not keep a reservation
+        try (OHCache<String, String> a = pooled(pool, 1d, 10 * MB, 0L))
+        {
+            Assert.assertEquals(pool.getCacheCount(), 1);
+        }
+        Assert.assertEquals(pool.getCacheCount(), 0);
+    }
+
+    @Test
+    public void coldCacheShrinks() throws Exception
+    {
+        OHCachePool pool = new OHCachePool(16 * MB);
+        try (OHCache<String, String> hot = pooled(pool, 1d, 1 * MB, 0L);
+             OHCache<String, String> cold = pooled(pool, 1d, 1 * MB, 0L))
+        {
+            Assert.assertEquals(hot.getCapacity(), cold.getCapacity());
+
+            String value = new String(new char[1000]);
+            for (int i = 0; i < 1000; i++)
+                cold.put("cold-" + i, value);
+            pool.rebalance();
+
+            // writes to the hot cache trigger rebalancing
+            for (int i = 0; i < 100000; i++)
+            {
+                hot.put("hot-" + i, value);
+                hot.getIfPresent("hot-" + (i / 2));
+            }
+
+            // rebalancing runs in the background
+            for (int i = 0; i < 1000 && (hot.getCapacity() <= 4 * cold.getCapacity() || cold.freeCapacity() < 0L); i++)
+                Thread.sleep(10L);
+
+            Assert.assertTrue(hot.getCapacity() > 4 * cold.getCapacity(),
+                              hot.getCapacity() + " vs " + cold.getCapacity());
+            Assert.assertTrue(cold.getCapacity() >= 1 * MB);
+            Assert.assertTrue(pool.getAssignedCapacity() <= pool.getCapacity());
+            Assert.assertTrue(cold.freeCapacity() >= 0L);
+            // the cold cache evicted its least recently used entries
+            Assert.assertTrue(cold.size() < 1000L);
+            Assert.assertNotNull(cold.getIfPresent("cold-999"));
+        }
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void capacityManagedByPool() throws IOException
+    {
+        OHCachePool pool = new OHCachePool(16 * MB);
+        try (OHCache<String, String> cache = pooled(pool, 1d, 0L, 0L))
+        {
+            cache.setCapacity(8 * MB);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.CacheLoader;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SavedKeysTest extends AbstractTest
+{
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException
+    {
+        dir = Files.createTempDirectory("ohc-keys");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException
+    {
+        Files.deleteIfExists(dir.resolve("cache.keys"));
+        Files.deleteIfExists(dir);
+    }
+
+    private static OHCacheBuilder<String, String> builder()
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer)
+                             .segmentCount(4);
+    }
+
+    @Test
+    public void saveKeysAndWarmUp() throws Exception
+    {
+        Path file = dir.resolve("cache.keys");
+
+        try (OHCache<String, String> cache = builder().build())
+        {
+            for (int i = 0; i < 1000; i++)
+                cache.put("key-" + i, "value-" + i);
+
+            cache.saveKeys(file, 1000);
+        }
+
+        final AtomicInteger bulkLoads = new AtomicInteger();
+        CacheLoader<String, String> loader = new CacheLoader<String, String>()
+        {
+            public String load(String key)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            public Map<String, String> loadAll(Iterable<? extends String> keys)
+            {
+                bulkLoads.incrementAndGet();
+                Map<String, String> r = new HashMap<>();
+                for (String key : keys)
+                    if (!key.equals("key-42"))
+                        r.put(key, key.replace("key", "value"));
+                return r;
+            }
+        };
+
+        try (OHCache<String, String> cache = builder().statisticsEnabled(true).build())
+        {
+            cache.put("key-7", "newer");
+
+            cache.warmUp(file, loader, 4, 0d);
+
+            Assert.assertEquals(cache.getIfPresent("key-7"), "newer");
+            Assert.assertNull(cache.getIfPresent("key-42"));
+            for (int i = 0; i < 1000; i++)
+                if (i != 7 && i != 42)
+                    Assert.assertEquals(cache.getIfPresent("key-" + i), "value-" + i);
+            Assert.assertEquals(cache.size(), 999L);
+
+            Assert.assertTrue(bulkLoads.get() >= 1000 / SavedKeys.BATCH_SIZE);
+
+            OHCacheStats stats = cache.extendedStats();
+            Assert.assertEquals(stats.getWarmUpKeyCount(), 1000L);
+            Assert.assertEquals(stats.getWarmUpLoadCount(), 998L);
+            Assert.assertEquals(stats.getWarmUpFailCount(), 1L);
+            Assert.assertTrue(stats.getWarmUpTime() > 0L);
+        }
+    }
+
+    @Test(dependsOnMethods = "saveKeysAndWarmUp")
+    public void warmUpWithoutBulkLoader() throws Exception
+    {
+        Path file = dir.resolve("cache.keys");
+
+        try (OHCache<String, String> cache = builder().build())
+        {
+            for (int i = 0; i < 300; i++)
+                cache.put("key-" + i, "value-" + i);
+            cache.saveKeys(file, 1000);
+        }
+
+        try (OHCache<String, String> cache = builder().statisticsEnabled(true).build())
+        {
+            cache.warmUp(file, new CacheLoader<String, String>()
+            {
+                public String load(String key)
+                {
+                    return key.replace("key", "value");
+                }
+            }, 2, 100000d);
+
+            Assert.assertEquals(cache.size(), 300L);
+            for (int i = 0; i < 300; i++)
+                Assert.assertEquals(cache.getIfPresent("key-" + i), "value-" + i);
+            Assert.assertEquals(cache.extendedStats().getWarmUpLoadCount(), 300L);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SharedMemoryTest extends AbstractTest
+{
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException
+    {
+        Path shm = Paths.get("/dev/shm");
+        dir = Files.isDirectory(shm) ? Files.createTempDirectory(shm, "ohc-test") : Files.createTempDirectory("ohc-test");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException
+    {
+        Files.deleteIfExists(dir.resolve("cache-a"));
+        Files.deleteIfExists(dir.resolve("cache-b"));
+        Files.deleteIfExists(dir);
+    }
+
+    private static OHCacheBuilder<String, String> builder(Path file)
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer)
+                             .segmentCount(4)
+                             .capacity(16 * 1024 * 1024)
+                             .hashTableSize(256)
+                             .chunkSize(1024)
+                             .sharedMemoryFile(file);
+    }
+
+    private static String chunkedValue()
+    {
+        Random rnd = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+            sb.append((char) ('a' + rnd.nextInt(26)));
+        return sb.toString();
+    }
+
+    @Test
+    public void sizeClasses()
+    {
+        long previous = 0L;
+        for (int sizeClass = 1; sizeClass < 160; sizeClass++)
+        {
+            long size = ArenaAllocator.classSize(sizeClass);
+            Assert.assertTrue(size > previous);
+            Assert.assertEquals(ArenaAllocator.sizeClass(size), sizeClass);
+            Assert.assertEquals(ArenaAllocator.sizeClass(previous + 1), sizeClass);
+            // at most 25% internal fragmentation
+            Assert.assertTrue(previous < 512L || size <= (previous + 1) * 5 / 4 + 1);
+            previous = size;
+        }
+    }
+
+    @Test(dependsOnMethods = "sizeClasses")
+    public void fragmentation()
+    {
+        int stripes = 4;
+        long size = 4 * 1024 * 1024;
+        long base = Uns.allocate(size);
+        try
+        {
+            ArenaAllocator allocator = new ArenaAllocator(base, 0L, ArenaAllocator.META_LEN, size, stripes, true);
+            long initialFree = allocator.free();
+
+            Random rnd = new Random(42);
+            List<Long> blocks = new ArrayList<>();
+
+            // random allocations and frees of varying sizes
+            for (int i = 0; i < 100000; i++)
+            {
+                long adr;
+                if (blocks.isEmpty() || rnd.nextInt(3) != 0)
+                {
+                    if ((adr = allocator.allocate(16 + rnd.nextInt(rnd.nextBoolean() ? 200 : 20000))) != 0L)
+                    {
+                        Uns.putLong(base, adr - base, adr);
+                        blocks.add(adr);
+                    }
+                }
+                else
+                    free(allocator, base, blocks.remove(rnd.nextInt(blocks.size())));
+            }
+            for (long adr : blocks)
+                free(allocator, base, adr);
+            blocks.clear();
+            Assert.assertEquals(allocator.free(), initialFree);
+
+            // fill the region with small blocks and free all but every 32nd
+            for (long adr; (adr = allocator.allocate(16 + rnd.nextInt(200))) != 0L; )
+            {
+                Uns.putLong(base, adr - base, adr);
+                blocks.add(adr);
+            }
+            for (int i = 0; i < blocks.size(); i++)
+                if (i % 32 != 0)
+                    free(allocator, base, blocks.get(i));
+            long freed = allocator.free();
+            for (int i = blocks.size() - 1; i >= 0; i--)
+                if (i % 32 != 0)
+                    blocks.remove(i);
+
+            // larger blocks fit into the coalesced gaps
+            long allocated = 0L;
+            for (long len = 500 + rnd.nextInt(500), adr; (adr = allocator.allocate(len)) != 0L; len = 500 + rnd.nextInt(500))
+            {
+                Uns.putLong(base, adr - base, adr);
+                blocks.add(adr);
+                allocated += len;
+            }
+            Assert.assertTrue(allocated > freed * 3 / 4, allocated + " of " + freed);
+
+            for (long adr : blocks)
+                free(allocator, base, adr);
+            Assert.assertEquals(allocator.free(), initialFree);
+
+            // all freed blocks have been coalesced - each stripe can serve a block of nearly its size
+            for (int i = 0; i < stripes; i++)
+                Assert.assertTrue(allocator.allocate(initialFree / stripes - 64) != 0L);
+        }
+        finally
+        {
+            Uns.free(base);
+        }
+    }
+
+    private static void free(ArenaAllocator allocator, long base, long adr)
+    {
+        // blocks must not overlap
+        Assert.assertEquals(Uns.getLong(base, adr - base), adr);
+        allocator.free(adr);
+    }
+
+    @Test(dependsOnMethods = "fragmentation")
+    public void reattach() throws IOException
+    {
+        Path file = dir.resolve("cache-a");
+        String chunked = chunkedValue();
+
+        long memUsed;
+        try (OHCache<String, String> cache = builder(file).build())
+        {
+            Assert.assertFalse(((SegmentedCacheImpl) cache).isAttachedToSharedMemory());
+            for (int i = 0; i < 10000; i++)
+                cache.put("key-" + i, "value-" + i);
+            cache.put("chunked", chunked);
+            for (int i = 0; i < 1000; i++)
+                cache.invalidate("key-" + i);
+            cache.putAbsent("absent", Long.MAX_VALUE);
+            memUsed = cache.getMemUsed();
+        }
+
+        OHCache<String, String> other = null;
+        for (int round = 0; round < 2; round++)
+        {
+            try (OHCache<String, String> cache = builder(file).build())
+            {
+                Assert.assertTrue(((SegmentedCacheImpl) cache).isAttachedToSharedMemory());
+                Assert.assertEquals(cache.size(), 9001L);
+                Assert.assertEquals(cache.getMemUsed(), memUsed);
+                for (int i = 0; i < 1000; i++)
+                    Assert.assertNull(cache.getIfPresent("key-" + i));
+                for (int i = 1000; i < 10000; i++)
+                    Assert.assertEquals(cache.getIfPresent("key-" + i), "value-" + i);
+                Assert.assertEquals(cache.getIfPresent("chunked"), chunked);
+                Assert.assertSame(cache.getIfKnown("absent"), OHCache.NOT_FOUND);
+            }
+
+            // occupy the address range of the previous mapping to map the image at a different address in the next round
+            if (round == 0)
+                other = builder(dir.resolve("cache-b")).build();
+        }
+        other.close();
+    }
+
+    @Test(dependsOnMethods = "reattach")
+    public void reattachResized() throws IOException
+    {
+        Path file = dir.resolve("cache-a");
+
+        long memUsed;
+        try (OHCache<String, String> cache = builder(file).build())
+        {
+            for (int i = 0; i < 1000; i++)
+                cache.put("key-" + i, "value-" + i);
+
+            // cannot grow beyond the shared memory image
+            try
+            {
+                cache.setCapacity(32 * 1024 * 1024);
+                Assert.fail("expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+            Assert.assertEquals(cache.getCapacity(), 16 * 1024 * 1024);
+
+            cache.setCapacity(8 * 1024 * 1024);
+            Assert.assertEquals(cache.size(), 1000L);
+            memUsed = cache.getMemUsed();
+        }
+
+        // the builder's capacity applies to the re-attached cache
+        try (OHCache<String, String> cache = builder(file).build())
+        {
+            Assert.assertTrue(((SegmentedCacheImpl) cache).isAttachedToSharedMemory());
+            Assert.assertEquals(cache.getCapacity(), 16 * 1024 * 1024);
+            Assert.assertEquals(cache.getMemUsed(), memUsed);
+            Assert.assertEquals(cache.size(), 1000L);
+        }
+    }
+
+    @Test(dependsOnMethods = "reattachResized")
+    public void discardInconsistentImage() throws IOException
+    {
+        Path file = dir.resolve("cache-a");
+
+        try (OHCache<String, String> cache = builder(file).build())
+        {
+            for (int i = 0; i < 100; i++)
+                cache.put("key-" + i, "value-" + i);
+        }
+
+        // simulate a crash - i.e. the clean shutdown marker is not set
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"))
+        {
+            raf.seek(12);
+            raf.writeInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? SharedMemory.STATE_IN_USE : Integer.reverseBytes(SharedMemory.STATE_IN_USE));
+        }
+
+        try (OHCache<String, String> cache = builder(file).build())
+        {
+            Assert.assertFalse(((SegmentedCacheImpl) cache).isAttachedToSharedMemory());
+            Assert.assertEquals(cache.size(), 0L);
+            Assert.assertNull(cache.getIfPresent("key-1"));
+        }
+
+        // different configuration
+        try (OHCache<String, String> cache = builder(file).segmentCount(8).build())
+        {
+            Assert.assertFalse(((SegmentedCacheImpl) cache).isAttachedToSharedMemory());
+        }
+    }
+
+    @Test(dependsOnMethods = "discardInconsistentImage")
+    public void imageInUse() throws IOException
+    {
+        Path file = dir.resolve("cache-a");
+
+        try (OHCache<String, String> cache = builder(file).build())
+        {
+            cache.put("key", "value");
+
+            try
+            {
+                builder(file).build();
+                Assert.fail("image in use must not be opened");
+            }
+            catch (IOError e)
+            {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+
+            // the image is neither truncated nor re-initialized
+            Assert.assertEquals(cache.getIfPresent("key"), "value");
+        }
+
+        try (OHCache<String, String> cache = builder(file).build())
+        {
+            Assert.assertTrue(((SegmentedCacheImpl) cache).isAttachedToSharedMemory());
+            Assert.assertEquals(cache.getIfPresent("key"), "value");
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SnapshotTest extends AbstractTest
+{
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException
+    {
+        dir = Files.createTempDirectory("ohc-snapshot");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException
+    {
+        Files.deleteIfExists(dir.resolve("cache.snapshot"));
+        Files.deleteIfExists(dir);
+    }
+
+    private static String largeValue(int i)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < 1000; n++)
+            sb.append("large-value-").append(i).append(';');
+        return sb.toString();
+    }
+
+    @Test
+    public void snapshotAndLoad() throws IOException
+    {
+        Path file = dir.resolve("cache.snapshot");
+
+        // not compressible, larger than max entry size
+        Random rnd = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40000; i++)
+            sb.append((char) ('!' + rnd.nextInt(90)));
+        String chunked = sb.toString();
+
+        OHCacheBuilder<String, String> builder = OHCacheBuilder.<String, String>newBuilder()
+                                                               .keySerializer(stringSerializer)
+                                                               .valueSerializer(stringSerializer)
+                                                               .capacity(16 * 1024 * 1024)
+                                                               .maxEntrySize(1d / 256)
+                                                               .chunkSize(1024)
+                                                               .compressionThreshold(4096);
+        long memUsed;
+        try (OHCache<String, String> cache = builder.segmentCount(4).build())
+        {
+            for (int i = 0; i < 10000; i++)
+                cache.put("key-" + i, "value-" + i);
+            // compressed values
+            for (int i = 0; i < 10; i++)
+                cache.put("large-" + i, largeValue(i));
+            // chunked value
+            cache.put("chunked", chunked);
+            memUsed = cache.getMemUsed();
+
+            cache.snapshot(file);
+        }
+
+        Assert.assertTrue(Files.size(file) > 10000 * 10);
+
+        // different number of segments
+        try (OHCache<String, String> cache = builder.segmentCount(2).hashTableSize(256).loadFrom(file))
+        {
+            Assert.assertEquals(cache.size(), 10011L);
+            Assert.assertEquals(cache.getMemUsed(), memUsed);
+            for (int hts : cache.getHashTableSizes())
+                Assert.assertTrue(hts >= 4096, "hash table not pre-sized");
+
+            for (int i = 0; i < 10000; i++)
+                Assert.assertEquals(cache.getIfPresent("key-" + i), "value-" + i);
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals(cache.getIfPresent("large-" + i), largeValue(i));
+            Assert.assertEquals(cache.getIfPresent("chunked"), chunked);
+        }
+    }
+
+    @Test(dependsOnMethods = "snapshotAndLoad")
+    public void recencyOrder() throws IOException
+    {
+        Path file = dir.resolve("cache.snapshot");
+
+        OHCacheBuilder<String, String> builder = OHCacheBuilder.<String, String>newBuilder()
+                                                               .keySerializer(stringSerializer)
+                                                               .valueSerializer(stringSerializer)
+                                                               .segmentCount(1);
+        try (OHCache<String, String> cache = builder.build())
+        {
+            for (int i = 0; i < 10; i++)
+                cache.put("key-" + i, "value-" + i);
+            cache.getIfPresent("key-3");
+            cache.getIfPresent("key-0");
+
+            cache.snapshot(file);
+        }
+
+        try (OHCache<String, String> cache = builder.loadFrom(file))
+        {
+            SegmentedCacheImpl<String, String> impl = (SegmentedCacheImpl<String, String>) cache;
+            long[] entries = impl.lruEntries(0);
+            String[] expected = { "key-1", "key-2", "key-4", "key-5", "key-6", "key-7", "key-8", "key-9", "key-3", "key-0" };
+            Assert.assertEquals(entries.length, expected.length);
+            for (int i = 0; i < entries.length; i++)
+            {
+                Assert.assertEquals(HashEntries.readKeyFrom(entries[i]).readUTF(), expected[i]);
+                impl.dereference(entries[i]);
+            }
+        }
+    }
+
+    @Test(dependsOnMethods = "recencyOrder")
+    public void incrementalSnapshot() throws Exception
+    {
+        Path file = dir.resolve("cache.snapshot");
+
+        OHCacheBuilder<String, String> builder = OHCacheBuilder.<String, String>newBuilder()
+                                                               .keySerializer(stringSerializer)
+                                                               .valueSerializer(stringSerializer)
+                                                               .segmentCount(2)
+                                                               .hashTableSize(4096);
+        try (final OHCache<String, String> cache = builder.build())
+        {
+            for (int i = 0; i < 20000; i++)
+                cache.put("key-" + i, "value-" + i);
+
+            // concurrent modifications - including rehashes - during the snapshot
+            Thread writer = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 20000; i < 40000; i++)
+                        cache.put("key-" + i, "value-" + i);
+                    for (int i = 0; i < 1000; i++)
+                        cache.invalidate("key-" + i);
+                }
+            };
+            writer.start();
+            cache.snapshot(file, 100L * 1024 * 1024);
+            writer.join();
+        }
+
+        try (OHCache<String, String> cache = builder.loadFrom(file))
+        {
+            Assert.assertTrue(cache.size() >= 19000L);
+            for (int i = 1000; i < 20000; i++)
+                Assert.assertEquals(cache.getIfPresent("key-" + i), "value-" + i);
+        }
+    }
+
+    @Test(dependsOnMethods = "incrementalSnapshot")
+    public void bucketEntriesAcrossRehash() throws IOException
+    {
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .segmentCount(1)
+                                                           .hashTableSize(256)
+                                                           .build())
+        {
+            SegmentedCacheImpl<String, String> impl = (SegmentedCacheImpl<String, String>) cache;
+            for (int i = 0; i < 150; i++)
+                cache.put("key-" + i, "value-" + i);
+
+            Set<String> keys = new HashSet<>();
+            int baseTableSize = impl.hashTableSize(0);
+            collectKeys(impl, impl.bucketEntries(0, baseTableSize, 0, baseTableSize / 2), keys);
+
+            // force rehash
+            for (int i = 150; i < 1000; i++)
+                cache.put("key-" + i, "value-" + i);
+            Assert.assertTrue(impl.hashTableSize(0) > baseTableSize);
+
+            collectKeys(impl, impl.bucketEntries(0, baseTableSize, baseTableSize / 2, baseTableSize), keys);
+
+            for (int i = 0; i < 150; i++)
+                Assert.assertTrue(keys.contains("key-" + i));
+        }
+    }
+
+    private static void collectKeys(SegmentedCacheImpl<String, String> impl, long[] entries, Set<String> keys) throws IOException
+    {
+        for (long hashEntryAdr : entries)
+        {
+            // each key must be returned only once
+            Assert.assertTrue(keys.add(HashEntries.readKeyFrom(hashEntryAdr).readUTF()));
+            impl.dereference(hashEntryAdr);
+        }
+    }
+
+    @Test(dependsOnMethods = "bucketEntriesAcrossRehash")
+    public void exportImport() throws Exception
+    {
+        Random rnd = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40000; i++)
+            sb.append((char) ('!' + rnd.nextInt(90)));
+        String chunked = sb.toString();
+
+        OHCacheBuilder<String, String> builder = OHCacheBuilder.<String, String>newBuilder()
+                                                               .keySerializer(stringSerializer)
+                                                               .valueSerializer(stringSerializer)
+                                                               .capacity(16 * 1024 * 1024)
+                                                               .maxEntrySize(1d / 256)
+                                                               .chunkSize(1024)
+                                                               .compressionThreshold(4096);
+        try (final OHCache<String, String> source = builder.segmentCount(4).build();
+             OHCache<String, String> target = builder.segmentCount(2).build())
+        {
+            for (int i = 0; i < 10000; i++)
+                source.put("key-" + i, "value-" + i);
+            for (int i = 0; i < 10; i++)
+                source.put("large-" + i, largeValue(i));
+            source.put("chunked", chunked);
+            target.put("key-0", "old");
+
+            // the pipe's small buffer forces the exporting thread to wait for the importing one
+            final Pipe pipe = Pipe.open();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread exporter = new Thread()
+            {
+                public void run()
+                {
+                    try (Pipe.SinkChannel sink = pipe.sink())
+                    {
+                        source.exportTo(sink);
+                    }
+                    catch (Throwable t)
+                    {
+                        failure.set(t);
+                    }
+                }
+            };
+            exporter.start();
+            long imported;
+            try (Pipe.SourceChannel in = pipe.source())
+            {
+                imported = target.importFrom(in);
+            }
+            exporter.join();
+            Assert.assertNull(failure.get());
+
+            Assert.assertEquals(imported, 10011L);
+            Assert.assertEquals(target.size(), 10011L);
+            for (int i = 0; i < 10000; i++)
+                Assert.assertEquals(target.getIfPresent("key-" + i), "value-" + i);
+            for (int i = 0; i < 10; i++)
+                Assert.assertEquals(target.getIfPresent("large-" + i), largeValue(i));
+            Assert.assertEquals(target.getIfPresent("chunked"), chunked);
+            Assert.assertEquals(target.getMemUsed(), source.getMemUsed());
+        }
+    }
+
+    @Test(dependsOnMethods = "exportImport", expectedExceptions = IOException.class)
+    public void corruptSnapshot() throws IOException
+    {
+        Path file = dir.resolve("cache.snapshot");
+
+        OHCacheBuilder<String, String> builder = OHCacheBuilder.<String, String>newBuilder()
+                                                               .keySerializer(stringSerializer)
+                                                               .valueSerializer(stringSerializer);
+        try (OHCache<String, String> cache = builder.build())
+        {
+            for (int i = 0; i < 1000; i++)
+                cache.put("key-" + i, "value-" + i);
+            cache.snapshot(file);
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"))
+        {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x55);
+        }
+
+        builder.loadFrom(file).close();
+    }
+}
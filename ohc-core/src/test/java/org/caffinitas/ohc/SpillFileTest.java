@@ -0,0 +1,192 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import com.google.common.base.Predicate;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SpillFileTest extends AbstractTest
+{
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException
+    {
+        dir = Files.createTempDirectory("ohc-test");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException
+    {
+        Files.deleteIfExists(dir.resolve("spill"));
+        Files.deleteIfExists(dir);
+    }
+
+    private OHCacheBuilder<String, String> builder()
+    {
+        return OHCacheBuilder.<String, String>newBuilder()
+                             .keySerializer(stringSerializer)
+                             .valueSerializer(stringSerializer)
+                             .segmentCount(4)
+                             .capacity(1024 * 1024)
+                             .statisticsEnabled(true)
+                             .spillFile(dir.resolve("spill"));
+    }
+
+    private static String value(int i)
+    {
+        StringBuilder sb = new StringBuilder("value-").append(i);
+        while (sb.length() < 100)
+            sb.append('-').append(i);
+        return sb.toString();
+    }
+
+    private static void awaitSpilled(OHCache<String, String> cache, long count) throws InterruptedException
+    {
+        for (int i = 0; i < 1000 && cache.size() + cache.extendedStats().getSpillWriteCount() < count; i++)
+            Thread.sleep(10L);
+        Assert.assertEquals(cache.size() + cache.extendedStats().getSpillWriteCount(), count);
+    }
+
+    @Test
+    public void spillAndPromote() throws Exception
+    {
+        try (OHCache<String, String> cache = builder().build())
+        {
+            for (int i = 0; i < 20000; i++)
+                cache.put("key-" + i, value(i));
+            Assert.assertTrue(cache.size() < 20000L);
+            awaitSpilled(cache, 20000L);
+
+            for (int i = 0; i < 20000; i++)
+                Assert.assertEquals(cache.getIfPresent("key-" + i), value(i));
+
+            OHCacheStats stats = cache.extendedStats();
+            Assert.assertTrue(stats.getSpillHitCount() > 0L);
+            Assert.assertEquals(stats.getCacheStats().missCount(), 0L);
+            Assert.assertTrue(cache.freeCapacity() >= 0L);
+        }
+
+        Assert.assertFalse(Files.exists(dir.resolve("spill")));
+    }
+
+    @Test
+    public void invalidateSpilled() throws Exception
+    {
+        try (OHCache<String, String> cache = builder().build())
+        {
+            for (int i = 0; i < 20000; i++)
+                cache.put("key-" + i, value(i));
+            awaitSpilled(cache, 20000L);
+
+            // the oldest entries are no longer in memory
+            cache.invalidate("key-0");
+            cache.put("key-1", "replaced");
+            Assert.assertNull(cache.getIfPresent("key-0"));
+            Assert.assertEquals(cache.getIfPresent("key-1"), "replaced");
+
+            // the removed value is read from the spill file
+            Assert.assertEquals(cache.asMap().remove("key-2"), value(2));
+            Assert.assertNull(cache.getIfPresent("key-2"));
+
+            cache.invalidateAll();
+            for (int i = 0; i < 20000; i++)
+                Assert.assertNull(cache.getIfPresent("key-" + i));
+        }
+    }
+
+    @Test
+    public void invalidateIfSpilled() throws Exception
+    {
+        try (OHCache<String, String> cache = builder().build())
+        {
+            for (int i = 0; i < 20000; i++)
+                cache.put((i % 2 == 0 ? "even-" : "odd-") + i, value(i));
+            awaitSpilled(cache, 20000L);
+
+            // keys are serialized with a two byte length prefix
+            long removed = cache.invalidateIf(new Predicate<ByteBuffer>()
+            {
+                public boolean apply(ByteBuffer key)
+                {
+                    return key.get(2) == 'e';
+                }
+            });
+            Assert.assertEquals(removed, 10000L);
+
+            for (int i = 0; i < 20000; i += 2)
+            {
+                Assert.assertNull(cache.getIfPresent("even-" + i));
+                Assert.assertEquals(cache.getIfPresent("odd-" + (i + 1)), value(i + 1));
+            }
+        }
+    }
+
+    @Test
+    public void overwriteOldest() throws Exception
+    {
+        try (OHCache<String, String> cache = builder().spillFileSize(256 * 1024).build())
+        {
+            for (int i = 0; i < 20000; i++)
+                cache.put("key-" + i, value(i));
+            awaitSpilled(cache, 20000L);
+
+            // all entries are either found or have been overwritten
+            int found = 0;
+            for (int i = 0; i < 20000; i++)
+            {
+                String v = cache.getIfPresent("key-" + i);
+                if (v != null)
+                {
+                    Assert.assertEquals(v, value(i));
+                    found++;
+                }
+            }
+            Assert.assertTrue(found < 20000);
+            Assert.assertNull(cache.getIfPresent("key-0"));
+            Assert.assertEquals(cache.getIfPresent("key-19999"), value(19999));
+        }
+    }
+
+    @Test
+    public void chunkedValues() throws Exception
+    {
+        Random rnd = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            sb.append((char) ('a' + rnd.nextInt(26)));
+        String large = sb.toString();
+
+        try (OHCache<String, String> cache = builder().chunkSize(1024).build())
+        {
+            for (int i = 0; i < 100; i++)
+                cache.put("key-" + i, large + i);
+            awaitSpilled(cache, 100L);
+
+            for (int i = 0; i < 100; i++)
+                Assert.assertEquals(cache.getIfPresent("key-" + i), large + i);
+        }
+    }
+}
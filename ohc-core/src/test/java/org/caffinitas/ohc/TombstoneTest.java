@@ -0,0 +1,172 @@
+/*
+ *      Copyright (C) 2014 Robert Stupp, Koeln, Germany, robert-stupp.de
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.caffinitas.ohc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TombstoneTest extends AbstractTest
+{
+    @Test
+    public void negativeLookups() throws IOException
+    {
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .statisticsEnabled(true)
+                                                           .build())
+        {
+            cache.put("present", "value");
+            cache.put("replaced", "value");
+            cache.putAbsent("absent", 60000L);
+            cache.putAbsent("replaced", 60000L);
+
+            Assert.assertEquals(cache.getIfKnown("present"), "value");
+            Assert.assertSame(cache.getIfKnown("absent"), OHCache.NOT_FOUND);
+            Assert.assertSame(cache.getIfKnown("replaced"), OHCache.NOT_FOUND);
+            Assert.assertNull(cache.getIfKnown("unknown"));
+            Assert.assertNull(cache.getIfPresent("absent"));
+            Assert.assertEquals(cache.getAllPresent(Lists.newArrayList("present", "absent", "unknown")),
+                                ImmutableMap.of("present", "value"));
+
+            ConcurrentMap<String, String> map = cache.asMap();
+            Assert.assertFalse(map.containsKey("absent"));
+            Assert.assertNull(map.get("absent"));
+            Assert.assertNull(map.replace("absent", "other"));
+            Assert.assertSame(cache.getIfKnown("absent"), OHCache.NOT_FOUND);
+            Assert.assertFalse(map.remove("absent", "other"));
+
+            Iterator<String> keys = cache.keyIterator();
+            Assert.assertEquals(keys.next(), "present");
+            Assert.assertFalse(keys.hasNext());
+            Iterator<String> hot = cache.hotN(10);
+            Assert.assertEquals(hot.next(), "present");
+            Assert.assertFalse(hot.hasNext());
+
+            OHCacheStats stats = cache.extendedStats();
+            Assert.assertEquals(stats.getSize(), 3L);
+            Assert.assertEquals(cache.size(), 1L);
+            Assert.assertEquals(map.size(), 1);
+            Assert.assertEquals(stats.getTombstoneCount(), 2L);
+            Assert.assertEquals(stats.getTombstonePutCount(), 2L);
+            Assert.assertEquals(stats.getTombstoneHitCount(), 6L);
+
+            // a tombstone does not prevent putIfAbsent
+            Assert.assertNull(map.putIfAbsent("absent", "loaded"));
+            Assert.assertEquals(cache.getIfKnown("absent"), "loaded");
+            cache.put("replaced", "again");
+            Assert.assertEquals(cache.getIfPresent("replaced"), "again");
+            Assert.assertEquals(cache.extendedStats().getTombstoneCount(), 0L);
+
+            cache.putAbsent("present", 60000L);
+            cache.invalidate("present");
+            Assert.assertNull(cache.getIfKnown("present"));
+            Assert.assertEquals(cache.size(), 2L);
+
+            cache.putAbsent("present", 60000L);
+            cache.invalidateAll();
+            Assert.assertEquals(cache.freeCapacity(), cache.getCapacity());
+
+            // tombstones are not part of the map view
+            cache.putAbsent("absent", 60000L);
+            Assert.assertEquals(cache.size(), 0L);
+            Assert.assertEquals(map.size(), 0);
+            Assert.assertTrue(map.isEmpty());
+            Assert.assertTrue(map.entrySet().isEmpty());
+            Assert.assertEquals(cache.extendedStats().getSize(), 1L);
+        }
+    }
+
+    @Test
+    public void expiry() throws IOException
+    {
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .build())
+        {
+            cache.putAbsent("short", 50L);
+            cache.putAbsent("long", 60000L);
+            cache.putAbsent("forever", Long.MAX_VALUE);
+            Assert.assertSame(cache.getIfKnown("short"), OHCache.NOT_FOUND);
+            Assert.assertSame(cache.getIfKnown("forever"), OHCache.NOT_FOUND);
+
+            Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+
+            Assert.assertNull(cache.getIfKnown("short"));
+            Assert.assertSame(cache.getIfKnown("long"), OHCache.NOT_FOUND);
+            Assert.assertSame(cache.getIfKnown("forever"), OHCache.NOT_FOUND);
+            // the lookup removed the expired tombstone
+            Assert.assertEquals(cache.extendedStats().getTombstoneCount(), 2L);
+            Assert.assertEquals(cache.extendedStats().getSize(), 2L);
+
+            try
+            {
+                cache.putAbsent("key", 0L);
+                Assert.fail("ttl must be positive");
+            }
+            catch (IllegalArgumentException expected)
+            {
+                // fine
+            }
+        }
+    }
+
+    @Test
+    public void evictedFirst() throws IOException
+    {
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+
+        try (OHCache<String, String> cache = OHCacheBuilder.<String, String>newBuilder()
+                                                           .keySerializer(stringSerializer)
+                                                           .valueSerializer(stringSerializer)
+                                                           .segmentCount(1)
+                                                           .capacity(1024 * 1024)
+                                                           .statisticsEnabled(true)
+                                                           .build())
+        {
+            for (int i = 0; i < 100; i++)
+                cache.put("value-" + i, large + i);
+            for (int i = 0; i < 10000; i++)
+                cache.putAbsent("absent-" + i, 60000L);
+            // recently used tombstones are evicted before the values as well
+            for (int i = 0; i < 100; i++)
+                cache.getIfKnown("absent-" + i);
+            for (int i = 0; i < 100; i++)
+                cache.put("more-" + i, large + i);
+
+            OHCacheStats stats = cache.extendedStats();
+            Assert.assertTrue(stats.getCacheStats().evictionCount() > 0L);
+            Assert.assertTrue(stats.getTombstoneCount() < 10000L);
+            for (int i = 0; i < 100; i++)
+            {
+                Assert.assertEquals(cache.getIfPresent("value-" + i), large + i);
+                Assert.assertEquals(cache.getIfPresent("more-" + i), large + i);
+            }
+        }
+    }
+}
@@ -39,4 +39,38 @@ public class UtilTest
         Assert.assertEquals(Constants.roundUpTo8(BIG + 121), BIG + 128);
         Assert.assertEquals(Constants.roundUpTo8(BIG + 128), BIG + 128);
     }
+
+    @Test
+    public void serializationBufferOfTerminatedThread() throws Exception
+    {
+        int before = SerializationBuffer.retained();
+
+        Thread thread = new Thread()
+        {
+            public void run()
+            {
+                SerializationBuffer[] buffers = new SerializationBuffer[4];
+                for (int i = 0; i < buffers.length; i++)
+                {
+                    buffers[i] = SerializationBuffer.acquire();
+                    buffers[i].ensureCapacity(SerializationBuffer.INITIAL_SIZE);
+                }
+                for (SerializationBuffer buffer : buffers)
+                    buffer.release();
+            }
+        };
+        thread.start();
+        thread.join();
+        thread = null;
+        Assert.assertEquals(SerializationBuffer.retained(), before + 4);
+
+        // the staging areas retained by the terminated thread are freed once they have been collected
+        for (int i = 0; i < 100 && SerializationBuffer.retained() > before + 1; i++)
+        {
+            System.gc();
+            Thread.sleep(10L);
+            SerializationBuffer.acquire().release();
+        }
+        Assert.assertTrue(SerializationBuffer.retained() <= before + 1, Integer.toString(SerializationBuffer.retained()));
+    }
 }